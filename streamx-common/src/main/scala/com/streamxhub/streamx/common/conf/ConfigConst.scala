@@ -165,8 +165,57 @@ object ConfigConst {
 
   val KEY_KAFKA_START_FROM_TIMESTAMP = "timestamp"
 
+  /**
+   * kafka.source: KafkaRecord保留的字段,key,headers,metadata的组合,默认key,metadata
+   */
+  val KEY_KAFKA_RECORD_FIELDS = "record.fields"
+
+  /**
+   * kafka.source: 自动发现新增topic(pattern订阅)和partition的间隔(ms),不设置则不开启
+   */
+  val KEY_KAFKA_PARTITION_DISCOVERY_INTERVAL = "partition.discovery.interval"
+
+  /**
+   * kafka.source: partition空闲超过该时间(ms)后不再参与watermark的计算
+   */
+  val KEY_KAFKA_WATERMARK_IDLENESS = "watermark.idleness"
+
+  /**
+   * kafka.source: consumer(FlinkKafkaConsumer,默认)或source(FLIP-27 KafkaSource)
+   */
+  val KEY_KAFKA_SOURCE_API = "source.api"
+
+  val KAFKA_SOURCE_API_CONSUMER = "consumer"
+
+  val KAFKA_SOURCE_API_SOURCE = "source"
+
+  /**
+   * kafka.sink: equality(默认) 或 sticky
+   */
+  val KEY_KAFKA_PARTITIONER = "partitioner"
+
   val REDIS_PREFIX = "redis."
 
+  val KEY_REDIS_BATCH_SIZE = "batch.size"
+
+  val DEFAULT_REDIS_BATCH_SIZE = 1000
+
+  val KEY_REDIS_BATCH_INTERVAL = "batch.interval"
+
+  val DEFAULT_REDIS_BATCH_INTERVAL = 1000L
+
+  val KEY_REDIS_POOL_MAX_TOTAL = "pool.maxTotal"
+
+  val DEFAULT_REDIS_POOL_MAX_TOTAL = 1000
+
+  val KEY_REDIS_POOL_MAX_IDLE = "pool.maxIdle"
+
+  val DEFAULT_REDIS_POOL_MAX_IDLE = 64
+
+  val KEY_REDIS_POOL_MIN_IDLE = "pool.minIdle"
+
+  val DEFAULT_REDIS_POOL_MIN_IDLE = 0
+
   val KEY_ALIAS = "alias"
 
   /**
@@ -180,6 +229,19 @@ object ConfigConst {
   val KEY_JDBC_PASSWORD = "password"
   val KEY_JDBC_INSERT_BATCH = "batch.size"
   val DEFAULT_JDBC_INSERT_BATCH = 1
+  val KEY_JDBC_INSERT_BATCH_INTERVAL = "batch.interval"
+  val DEFAULT_JDBC_INSERT_BATCH_INTERVAL = 1000L
+  val KEY_JDBC_INSERT_BATCH_REWRITE = "batch.rewrite"
+  val KEY_JDBC_STAGING_TABLE = "staging.table"
+  val KEY_JDBC_STAGING_BATCH = "staging.batch"
+  val DEFAULT_JDBC_STAGING_BATCH = 1000
+  val KEY_JDBC_FETCH_SIZE = "fetch.size"
+  val DEFAULT_JDBC_FETCH_SIZE = 1000
+  val KEY_JDBC_POLL_INTERVAL = "poll.interval"
+  val DEFAULT_JDBC_POLL_INTERVAL = 100L
+  val KEY_JDBC_POLL_MAX_INTERVAL = "poll.maxInterval"
+  val DEFAULT_JDBC_POLL_MAX_INTERVAL = 10000L
+  val KEY_JDBC_SPLIT_KEY = "split.key"
 
   val MONGO_PREFIX = "mongodb."
   /**
@@ -197,17 +259,79 @@ object ConfigConst {
 
   val DEFAULT_HBASE_WRITE_SIZE = 1024 * 1024 * 10
 
+  /**
+   * batch: 原有的按批次提交, mutator: 由BufferedMutator异步提交,checkpoint时flush
+   */
+  val KEY_HBASE_SINK_MODE = "hbase.sink.mode"
+
+  val KEY_HBASE_SINK_FLUSH_INTERVAL = "hbase.sink.flush.interval"
+
+  val DEFAULT_HBASE_SINK_FLUSH_INTERVAL = 1000L
+
+  val KEY_HBASE_LOOKUP_RETRIES = "hbase.lookup.retries"
+
+  val DEFAULT_HBASE_LOOKUP_RETRIES = 3
+
+  val KEY_HBASE_LOOKUP_BACKOFF = "hbase.lookup.backoff"
+
+  val DEFAULT_HBASE_LOOKUP_BACKOFF = 100L
+
+  val KEY_HBASE_SOURCE_CACHING = "hbase.source.caching"
+
+  val DEFAULT_HBASE_SOURCE_CACHING = 1000
+
+  val KEY_HBASE_SOURCE_BATCH = "hbase.source.batch"
+
+  val KEY_HBASE_SOURCE_POLL_INTERVAL = "hbase.source.poll.interval"
+
+  val DEFAULT_HBASE_SOURCE_POLL_INTERVAL = 1000L
+
+  val KEY_HBASE_SOURCE_POLL_MAX_INTERVAL = "hbase.source.poll.maxInterval"
+
+  val DEFAULT_HBASE_SOURCE_POLL_MAX_INTERVAL = 30000L
+
+  val KEY_HBASE_SOURCE_SAFETY_LAG = "hbase.source.safetyLag"
+
+  val DEFAULT_HBASE_SOURCE_SAFETY_LAG = 5000L
+
   /**
    * about influx
    */
   val INFLUX_PREFIX = "influx."
   val KEY_INFLUX_ACTIONS = "actions"
   val KEY_INFLUX_FLUSH_DURATION = "flush.duration"
+
+  /**
+   * client: 使用influxdb-java写入(默认)
+   * line: 直接编码为line protocol,按threshold.*批量,多个并发的gzip http请求写入,失败的批次写入failover
+   */
+  val KEY_INFLUX_MODE = "mode"
+
+  val INFLUX_MODE_CLIENT = "client"
+
+  val INFLUX_MODE_LINE = "line"
+
+  /**
+   * line模式下是否gzip压缩请求体
+   */
+  val KEY_INFLUX_COMPRESS = "compress"
+
+  val DEFAULT_INFLUX_SUCCESS_CODE = 204
   /**
    * about clickhouse
    */
   val CLICKHOUSE_SINK_PREFIX = "clickhouse.sink"
 
+  val KEY_CLICKHOUSE_INSERT_FORMAT = "insert.format"
+
+  val KEY_CLICKHOUSE_INSERT_COMPRESS = "insert.compress"
+
+  val KEY_CLICKHOUSE_INSERT_BUFFER_BYTES = "insert.bufferBytes"
+
+  val DEFAULT_CLICKHOUSE_INSERT_FORMAT = "Values"
+
+  val DEFAULT_CLICKHOUSE_INSERT_BUFFER_BYTES: Int = 1024 * 1024 * 4
+
   val HTTP_SINK_PREFIX = "http.sink"
 
   /**
@@ -220,6 +344,12 @@ object ConfigConst {
   val KEY_SINK_THRESHOLD_REQ_TIMEOUT: String = "threshold.requestTimeout"
   val KEY_SINK_THRESHOLD_RETRIES: String = "threshold.retries"
   val KEY_SINK_THRESHOLD_SUCCESS_CODE: String = "threshold.successCode"
+  val KEY_SINK_THRESHOLD_BUFFER_BYTES: String = "threshold.bufferBytes"
+  val KEY_SINK_THRESHOLD_ADAPTIVE: String = "threshold.adaptive"
+  val KEY_SINK_THRESHOLD_MIN_IN_FLIGHT: String = "threshold.minInFlight"
+  val KEY_SINK_THRESHOLD_MAX_IN_FLIGHT: String = "threshold.maxInFlight"
+  val KEY_SINK_THRESHOLD_TARGET_LATENCY: String = "threshold.targetLatency"
+  val KEY_SINK_THRESHOLD_PERSIST_PENDING: String = "threshold.persistPending"
 
   val KEY_SINK_FAILOVER_TABLE: String = "failover.table"
   val KEY_SINK_FAILOVER_STORAGE: String = "failover.storage"
@@ -231,6 +361,50 @@ object ConfigConst {
   val DEFAULT_SINK_THRESHOLD_BUFFER_SIZE = 1000
   val DEFAULT_SINK_THRESHOLD_RETRIES = 3
   val DEFAULT_SINK_THRESHOLD_NUM_WRITERS: Int = Runtime.getRuntime.availableProcessors()
+  val DEFAULT_SINK_THRESHOLD_BUFFER_BYTES: Long = 1024 * 1024 * 4
+  val DEFAULT_SINK_THRESHOLD_MIN_IN_FLIGHT = 1
+
+  /**
+   * failover.hdfs.*: 失败的数据异步写入按大小和时间滚动的压缩文件
+   */
+  val KEY_FAILOVER_HDFS_PATH: String = "path"
+  val KEY_FAILOVER_HDFS_FORMAT: String = "format"
+  val KEY_FAILOVER_HDFS_NAMENODE: String = "namenode"
+  val KEY_FAILOVER_HDFS_USER: String = "user"
+  val KEY_FAILOVER_HDFS_CODEC: String = "codec"
+  val KEY_FAILOVER_HDFS_ROLL_SIZE: String = "rollSize"
+  val KEY_FAILOVER_HDFS_ROLL_INTERVAL: String = "rollInterval"
+  val KEY_FAILOVER_HDFS_FLUSH_INTERVAL: String = "flushInterval"
+  val KEY_FAILOVER_HDFS_QUEUE_CAPACITY: String = "queueCapacity"
+
+  val DEFAULT_FAILOVER_HDFS_CODEC = "gzip"
+  val DEFAULT_FAILOVER_HDFS_ROLL_SIZE: Long = 1024 * 1024 * 128
+  val DEFAULT_FAILOVER_HDFS_ROLL_INTERVAL: Long = 1000 * 60 * 10
+  val DEFAULT_FAILOVER_HDFS_FLUSH_INTERVAL = 1000L
+  val DEFAULT_FAILOVER_HDFS_QUEUE_CAPACITY = 1000
+
+  /**
+   * failover.kafka.*: 异步发送,未确认的请求数超过maxInFlight时最多等待inFlightTimeout(ms),之后该批次失败
+   */
+  val KEY_FAILOVER_KAFKA_MAX_IN_FLIGHT: String = "maxInFlight"
+  val KEY_FAILOVER_KAFKA_IN_FLIGHT_TIMEOUT: String = "inFlightTimeout"
+
+  val DEFAULT_FAILOVER_KAFKA_MAX_IN_FLIGHT = 1000
+  val DEFAULT_FAILOVER_KAFKA_IN_FLIGHT_TIMEOUT = 5000L
+
+  /**
+   * failover.*.queueCapacity: mysql,hbase的写入和等待kafka in-flight的请求在failover线程中排队,超过时该批次失败
+   */
+  val KEY_FAILOVER_QUEUE_CAPACITY: String = "queueCapacity"
+
+  val DEFAULT_FAILOVER_QUEUE_CAPACITY = 1000
+
+  /**
+   * failover.mysql.*: 每次executeBatch的记录数
+   */
+  val KEY_FAILOVER_JDBC_BATCH_SIZE: String = "batchSize"
+
+  val DEFAULT_FAILOVER_JDBC_BATCH_SIZE = 1000
 
   /**
    * about config es
@@ -253,6 +427,28 @@ object ConfigConst {
 
   val KEY_ES_BULK_PREFIX = "bulk.flush."
 
+  /**
+   * es6: 开启自适应bulk,按bulk的耗时和429拒绝调整每个index的bulk条数和并发的请求数,
+   * bulk.flush.max.actions为初始条数,bulk.flush.max.size.mb为单个bulk的字节上限,bulk.flush.interval.ms为定时flush的间隔
+   */
+  val KEY_ES_BULK_ADAPTIVE_ENABLE = "bulk.adaptive.enable"
+
+  val KEY_ES_BULK_ADAPTIVE_MIN_ACTIONS = "bulk.adaptive.min.actions"
+
+  val KEY_ES_BULK_ADAPTIVE_MAX_ACTIONS = "bulk.adaptive.max.actions"
+
+  val KEY_ES_BULK_ADAPTIVE_TARGET_LATENCY = "bulk.adaptive.target.latency"
+
+  val KEY_ES_BULK_ADAPTIVE_MAX_CONCURRENT = "bulk.adaptive.max.concurrent"
+
+  val DEFAULT_ES_BULK_ADAPTIVE_MIN_ACTIONS = 100
+
+  val DEFAULT_ES_BULK_ADAPTIVE_MAX_ACTIONS = 10000
+
+  val DEFAULT_ES_BULK_ADAPTIVE_TARGET_LATENCY = 1000L
+
+  val DEFAULT_ES_BULK_ADAPTIVE_MAX_CONCURRENT = 4
+
   val KEY_ES_CLIENT_TRANSPORT_SNIFF = "client.transport.sniff"
 
   val APP_PLUGINS = "/streamx/plugins"
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.common.util
+
+import java.lang.reflect.{Constructor, Modifier}
+import java.sql.ResultSet
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 游标读取时复用的一行数据,列信息在查询开始时只解析一次.
+ * 每次next后values会被覆盖,需要保留时请调用copy或toMap.
+ */
+class JdbcRow(val columns: Array[String]) extends Serializable {
+
+  val values: Array[AnyRef] = new Array[AnyRef](columns.length)
+
+  private[this] lazy val indexes: Map[String, Int] = columns.zipWithIndex.map(x => x._1.toLowerCase -> x._2).toMap
+
+  def size: Int = columns.length
+
+  def apply(index: Int): AnyRef = values(index)
+
+  def apply(column: String): AnyRef = indexes.get(column.toLowerCase) match {
+    case Some(index) => values(index)
+    case None => throw new IllegalArgumentException(s"[StreamX] JdbcRow column: $column not found, columns: ${columns.mkString(",")}")
+  }
+
+  private[util] def fill(resultSet: ResultSet): JdbcRow = {
+    for (i <- columns.indices) {
+      values(i) = resultSet.getObject(i + 1)
+    }
+    this
+  }
+
+  def copy(): JdbcRow = {
+    val row = new JdbcRow(columns)
+    System.arraycopy(values, 0, row.values, 0, values.length)
+    row
+  }
+
+  def toMap: Map[String, Any] = columns.zip(values).toMap
+
+  override def toString: String = columns.zip(values).map(x => s"${x._1}:${x._2}").mkString("(", ",", ")")
+
+}
+
+/**
+ * 将ResultSet的当前行转换成T(case class或者有全参构造方法的类):
+ * 构造方法的参数按字段的声明顺序和列名(忽略大小写和下划线)对应,每个参数的读取方法在第一次使用时解析并缓存,
+ * 之后每行只是按列的下标读取和调用构造方法.
+ */
+class JdbcRowMapper[T](clazz: Class[T], columns: Array[String]) extends Serializable {
+
+  @transient private[this] lazy val constructor: Constructor[_] = clazz.getConstructors.maxBy(_.getParameterCount)
+
+  @transient private[this] lazy val readers: Array[ResultSet => AnyRef] = {
+    val types = constructor.getParameterTypes
+    val fields = clazz.getDeclaredFields.filter(f => !Modifier.isStatic(f.getModifiers) && !f.isSynthetic).take(types.length)
+    require(fields.length == types.length, s"[StreamX] JdbcRowMapper: can not map the parameters of constructor to the fields of ${clazz.getName}")
+    val normalize = (name: String) => name.replace("_", "").toLowerCase
+    val columnIndex = columns.zipWithIndex.map(x => normalize(x._1) -> (x._2 + 1)).toMap
+    fields.zip(types).map { case (field, fieldType) =>
+      columnIndex.get(normalize(field.getName)) match {
+        case Some(index) => JdbcRowMapper.reader(fieldType, index)
+        case None => JdbcRowMapper.defaultValue(fieldType)
+      }
+    }
+  }
+
+  def map(resultSet: ResultSet): T = {
+    val args = new Array[AnyRef](readers.length)
+    for (i <- readers.indices) {
+      args(i) = readers(i)(resultSet)
+    }
+    constructor.newInstance(args: _*).asInstanceOf[T]
+  }
+
+}
+
+object JdbcRowMapper {
+
+  private[this] val mappers = new ConcurrentHashMap[(Class[_], Seq[String]), JdbcRowMapper[_]]()
+
+  def apply[T](clazz: Class[T], columns: Array[String]): JdbcRowMapper[T] = {
+    val key = clazz -> columns.toSeq
+    Option(mappers.get(key)) match {
+      case Some(mapper) => mapper.asInstanceOf[JdbcRowMapper[T]]
+      case None =>
+        val mapper = new JdbcRowMapper[T](clazz, columns)
+        mappers.putIfAbsent(key, mapper)
+        mapper
+    }
+  }
+
+  private def reader(fieldType: Class[_], index: Int): ResultSet => AnyRef = {
+    //基本类型的列为null时getXXX返回0/false,和没有对应的列一样
+    fieldType match {
+      case java.lang.Integer.TYPE => rs => Int.box(rs.getInt(index))
+      case java.lang.Long.TYPE => rs => Long.box(rs.getLong(index))
+      case java.lang.Double.TYPE => rs => Double.box(rs.getDouble(index))
+      case java.lang.Float.TYPE => rs => Float.box(rs.getFloat(index))
+      case java.lang.Short.TYPE => rs => Short.box(rs.getShort(index))
+      case java.lang.Byte.TYPE => rs => Byte.box(rs.getByte(index))
+      case java.lang.Boolean.TYPE => rs => Boolean.box(rs.getBoolean(index))
+      case x if x == classOf[String] => rs => rs.getString(index)
+      case x if x == classOf[java.math.BigDecimal] => rs => rs.getBigDecimal(index)
+      case x if x == classOf[BigDecimal] => rs => Option(rs.getBigDecimal(index)).map(BigDecimal(_)).orNull
+      case x if x == classOf[java.sql.Date] => rs => rs.getDate(index)
+      case x if x == classOf[java.sql.Timestamp] || x == classOf[java.util.Date] => rs => rs.getTimestamp(index)
+      case x if x == classOf[java.lang.Integer] => rs => wasNull(rs, Int.box(rs.getInt(index)))
+      case x if x == classOf[java.lang.Long] => rs => wasNull(rs, Long.box(rs.getLong(index)))
+      case x if x == classOf[java.lang.Double] => rs => wasNull(rs, Double.box(rs.getDouble(index)))
+      case x if x == classOf[java.lang.Boolean] => rs => wasNull(rs, Boolean.box(rs.getBoolean(index)))
+      case _ => rs => rs.getObject(index)
+    }
+  }
+
+  private[this] def wasNull(resultSet: ResultSet, value: AnyRef): AnyRef = if (resultSet.wasNull()) null else value
+
+  private def defaultValue(fieldType: Class[_]): ResultSet => AnyRef = {
+    val value: AnyRef = fieldType match {
+      case java.lang.Integer.TYPE => Int.box(0)
+      case java.lang.Long.TYPE => Long.box(0L)
+      case java.lang.Double.TYPE => Double.box(0D)
+      case java.lang.Float.TYPE => Float.box(0F)
+      case java.lang.Short.TYPE => Short.box(0)
+      case java.lang.Byte.TYPE => Byte.box(0)
+      case java.lang.Boolean.TYPE => Boolean.box(false)
+      case _ => null
+    }
+    _ => value
+  }
+
+}
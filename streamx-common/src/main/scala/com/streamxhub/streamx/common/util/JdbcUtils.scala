@@ -37,7 +37,7 @@ import scala.util.Try
  * @author benjobs
  *         基于hikari连接池实现.呃,当然支持多数据源,需注意所有的修改和添加操作都是自动提交事物的...
  */
-object JdbcUtils {
+object JdbcUtils extends Logger {
 
   @transient
   implicit private lazy val formats: DefaultFormats.type = org.json4s.DefaultFormats
@@ -46,6 +46,24 @@ object JdbcUtils {
 
   private[this] val dataSourceHolder = new ConcurrentHashMap[String, HikariDataSource]
 
+  /**
+   * the keys of jdbc.* which are read by the sinks and sources of StreamX, not the properties of HikariCP.
+   */
+  private[this] val nonHikariKeys = Set(
+    KEY_ALIAS,
+    KEY_SEMANTIC,
+    KEY_JDBC_INSERT_BATCH,
+    KEY_JDBC_INSERT_BATCH_INTERVAL,
+    KEY_JDBC_INSERT_BATCH_REWRITE,
+    KEY_JDBC_STAGING_TABLE,
+    KEY_JDBC_STAGING_BATCH,
+    KEY_JDBC_FETCH_SIZE,
+    KEY_JDBC_POLL_INTERVAL,
+    KEY_JDBC_POLL_MAX_INTERVAL,
+    KEY_JDBC_SPLIT_KEY,
+    KEY_FAILOVER_JDBC_BATCH_SIZE
+  )
+
   /**
    * 将查询的一行数据的所有字段封装到Map里,返回List。。。
    *
@@ -64,15 +82,12 @@ object JdbcUtils {
         if (func != null) {
           func(result)
         }
-        val count = result.getMetaData.getColumnCount
+        val labels = columnLabels(result)
         val array = ArrayBuffer[Map[String, Any]]()
         while (result.next()) {
           var map = Map[String, Any]()
-          for (x <- 1 to count) {
-            val key = result.getMetaData.getColumnLabel(x)
-            result.getMetaData.getColumnType(x)
-            val value = result.getObject(x)
-            map += key -> value
+          for (x <- labels.indices) {
+            map += labels(x) -> result.getObject(x + 1)
           }
           array += map
         }
@@ -86,6 +101,86 @@ object JdbcUtils {
     }
   }
 
+  /**
+   * 以forward-only游标逐行读取,不会将整个结果集加载到内存里,异常会抛出.
+   * 列信息只解析一次,传给func的每一行是同一个JdbcRow实例,需要保留时请调用copy或toMap.
+   * Iterator只能在func里使用,func返回后连接即被关闭.
+   *
+   * @param sql
+   * @param fetchSize 每次从数据库获取的行数,MySQL需要在jdbcUrl里加上useCursorFetch=true
+   * @param func
+   * @param jdbcConfig
+   * @return
+   */
+  def stream[R](sql: String, fetchSize: Int = DEFAULT_JDBC_FETCH_SIZE)(func: Iterator[JdbcRow] => R)(implicit jdbcConfig: Properties): R = {
+    query(sql, fetchSize) { result =>
+      val row = new JdbcRow(columnLabels(result))
+      func(resultIterator(result)(row.fill))
+    }
+  }
+
+  /**
+   * 同stream,每一行直接转换成T(case class),转换方法按T和列名缓存.
+   * 调用时标注Iterator的类型即可推断出T和R,如: streamAs(sql) { it: Iterator[User] => it.size }
+   *
+   * @param sql
+   * @param fetchSize
+   * @param func
+   * @param jdbcConfig
+   * @param manifest
+   * @tparam T
+   * @tparam R
+   * @return func的返回值
+   */
+  def streamAs[T, R](sql: String, fetchSize: Int = DEFAULT_JDBC_FETCH_SIZE)(func: Iterator[T] => R)(implicit jdbcConfig: Properties, manifest: Manifest[T]): R = {
+    query(sql, fetchSize) { result =>
+      val mapper = JdbcRowMapper(manifest.runtimeClass.asInstanceOf[Class[T]], columnLabels(result))
+      func(resultIterator(result)(mapper.map))
+    }
+  }
+
+  private[this] def query[R](sql: String, fetchSize: Int)(func: ResultSet => R)(implicit jdbcConfig: Properties): R = {
+    val conn = getConnection(jdbcConfig)
+    var stmt: Statement = null
+    var result: ResultSet = null
+    val autoCommit = conn.getAutoCommit
+    try {
+      //PostgreSQL等只有在事务里才会使用游标
+      conn.setAutoCommit(false)
+      stmt = createStatement(conn)
+      stmt.setFetchSize(fetchSize)
+      result = stmt.executeQuery(sql)
+      func(result)
+    } finally {
+      close(result, stmt)
+      Try(conn.commit())
+      Try(conn.setAutoCommit(autoCommit))
+      close(conn)
+    }
+  }
+
+  private[this] def resultIterator[T](result: ResultSet)(func: ResultSet => T): Iterator[T] = new Iterator[T] {
+    private[this] var fetched: Option[Boolean] = None
+
+    override def hasNext: Boolean = {
+      if (fetched.isEmpty) {
+        fetched = Some(result.next())
+      }
+      fetched.get
+    }
+
+    override def next(): T = {
+      if (!hasNext) throw new NoSuchElementException("[StreamX] JdbcUtils stream: no more rows")
+      fetched = None
+      func(result)
+    }
+  }
+
+  private[this] def columnLabels(result: ResultSet): Array[String] = {
+    val meta = result.getMetaData
+    (1 to meta.getColumnCount).map(meta.getColumnLabel).toArray
+  }
+
   def count(sql: String)(implicit jdbcConfig: Properties): Long = unique(sql).head._2.toString.toLong
 
   def count(conn: Connection, sql: String): Long = unique(conn, sql).head._2.toString.toLong
@@ -172,13 +267,11 @@ object JdbcUtils {
     try {
       stmt = createStatement(conn)
       result = stmt.executeQuery(sql)
-      val count = result.getMetaData.getColumnCount
+      val labels = columnLabels(result)
       if (!result.next()) Map.empty else {
         var map = Map[String, Any]()
-        for (x <- 1 to count) {
-          val key = result.getMetaData.getColumnLabel(x)
-          val value = result.getObject(x).asInstanceOf[Any]
-          map += key -> value
+        for (x <- labels.indices) {
+          map += labels(x) -> result.getObject(x + 1).asInstanceOf[Any]
         }
         map
       }
@@ -236,7 +329,7 @@ object JdbcUtils {
         case None =>
           //创建一个数据源对象
           val jdbcConfig = new HikariConfig()
-          prop.filter(x => x._1 != KEY_ALIAS && x._1 != KEY_SEMANTIC).foreach(x => {
+          prop.filter(x => !nonHikariKeys.contains(x._1)).foreach(x => {
             Try(Option(jdbcConfig.getClass.getDeclaredField(x._1))).getOrElse(None) match {
               case Some(field) =>
                 field.setAccessible(true)
@@ -251,6 +344,9 @@ object JdbcUtils {
                 val setMethod = s"set${x._1.substring(0, 1).toUpperCase}${x._1.substring(1)}"
                 val method = Try(jdbcConfig.getClass.getMethods.filter(_.getName == setMethod).filter(_.getParameterCount == 1).head).getOrElse(null)
                 method match {
+                  //the keys of StreamX are filtered by nonHikariKeys, anything else is a typo of a HikariCP property
+                  case null =>
+                    throw new IllegalArgumentException(s"[StreamX] jdbcConfig error,property:${x._1} invalid,please see more properties jdbcConfig https://github.com/brettwooldridge/HikariCP")
                   case m =>
                     m.setAccessible(true)
                     m.getParameterTypes.head.getSimpleName match {
@@ -260,8 +356,6 @@ object JdbcUtils {
                       case "boolean" => m.invoke(jdbcConfig, Seq(x._2.toBoolean.asInstanceOf[Object]): _*)
                       case _ =>
                     }
-                  case null =>
-                    throw new IllegalArgumentException(s"jdbcConfig error,property:${x._1} invalid,please see more properties jdbcConfig https://github.com/brettwooldridge/HikariCP")
                 }
             }
           })
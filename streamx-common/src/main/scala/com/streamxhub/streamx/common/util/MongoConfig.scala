@@ -54,6 +54,27 @@ object MongoConfig {
   val local_threshold = "local-threshold"
   val authentication_database = "authentication-database"
 
+  /**
+   * parallel source: 快照阶段ObjectId split的个数,默认等于source的并行度
+   */
+  val source_splits = "source.splits"
+  /**
+   * parallel source: 快照阶段ObjectId分桶的时间间隔(秒),默认60
+   */
+  val source_split_interval = "source.split-interval"
+  /**
+   * parallel source: 快照阶段每批次读取的文档数
+   */
+  val source_batch_size = "source.batch-size"
+  /**
+   * parallel source: 快照完成后是否继续读取change stream(需要副本集或分片集群),默认true
+   */
+  val source_change_stream = "source.change-stream"
+  /**
+   * parallel source: change stream没有数据时每次等待的时间(ms)
+   */
+  val source_await_time = "source.await-time"
+
   def getProperty(properties: Properties, k: String)(implicit alias: String = ""): String = {
     val prop = getProperties(properties)
     prop.getProperty(k)
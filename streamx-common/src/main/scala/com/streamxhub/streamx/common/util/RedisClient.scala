@@ -40,6 +40,32 @@ object RedisClient extends Logger {
   @getter
   private lazy val clusters: ConcurrentHashMap[RedisEndpoint, JedisCluster] = new ConcurrentHashMap[RedisEndpoint, JedisCluster]()
 
+  @transient
+  @getter
+  private lazy val configs: ConcurrentHashMap[RedisEndpoint, RedisConfig] = new ConcurrentHashMap[RedisEndpoint, RedisConfig]()
+
+  /**
+   * 集群(或单机)节点和slot的信息,每个JVM里同一个RedisEndpoint只获取一次
+   *
+   * @param endpoint
+   * @return
+   */
+  def config(endpoint: RedisEndpoint): RedisConfig = configs.computeIfAbsent(endpoint, new java.util.function.Function[RedisEndpoint, RedisConfig] {
+    override def apply(e: RedisEndpoint): RedisConfig = new RedisConfig(e)
+  })
+
+  /**
+   * slot迁移(MOVED/ASK)之后重新获取节点和slot的信息
+   *
+   * @param endpoint
+   * @return
+   */
+  def refreshConfig(endpoint: RedisEndpoint): RedisConfig = {
+    val config = new RedisConfig(endpoint)
+    configs.put(endpoint, config)
+    config
+  }
+
   /**
    * 随机选择一个 RedisEndpoint 创建 或者获取一个Redis 连接池
    *
@@ -65,7 +91,9 @@ object RedisClient extends Logger {
    * @return
    */
   def connect(re: RedisEndpoint): Jedis = {
-    val pool = pools.getOrElseUpdate(re, createJedisPool(re))
+    val pool = pools.computeIfAbsent(re, new java.util.function.Function[RedisEndpoint, JedisPool] {
+      override def apply(e: RedisEndpoint): JedisPool = createJedisPool(e)
+    })
     var sleepTime: Int = 4
     var conn: Jedis = null
     while (conn == null) {
@@ -92,20 +120,22 @@ object RedisClient extends Logger {
   def createJedisPool(endpoint: RedisEndpoint): JedisPool = {
     val endpointEn: RedisEndpoint = endpoint.copy(auth = "********")
     logInfo(s"[StreamX-Flink]RedisClient: createJedisPool with $endpointEn ")
-    new JedisPool(poolConfig, endpoint.host, endpoint.port, endpoint.timeout, endpoint.auth, endpoint.db)
+    new JedisPool(poolConfig(endpoint), endpoint.host, endpoint.port, endpoint.timeout, endpoint.auth, endpoint.db)
   }
 
-  private lazy val poolConfig = {
+  private def poolConfig(endpoint: RedisEndpoint): JedisPoolConfig = {
     val poolConfig: JedisPoolConfig = new JedisPoolConfig()
     /*最大连接数*/
-    poolConfig.setMaxTotal(1000)
+    poolConfig.setMaxTotal(endpoint.maxTotal)
     /*最大空闲连接数*/
-    poolConfig.setMaxIdle(64)
-    /*在获取连接的时候检查有效性, 默认false*/
-    poolConfig.setTestOnBorrow(true)
+    poolConfig.setMaxIdle(endpoint.maxIdle)
+    /*最小空闲连接数*/
+    poolConfig.setMinIdle(endpoint.minIdle)
+    /*在获取连接的时候检查有效性(每次多一次PING), 默认false,由空闲检查和使用时的异常剔除坏连接*/
+    poolConfig.setTestOnBorrow(false)
     poolConfig.setTestOnReturn(false)
     /*在空闲时检查有效性, 默认false*/
-    poolConfig.setTestWhileIdle(false)
+    poolConfig.setTestWhileIdle(true)
     /*逐出连接的最小空闲时间 默认1800000毫秒(30分钟)*/
     poolConfig.setMinEvictableIdleTimeMillis(1800000)
     /*逐出扫描的时间间隔(毫秒) 如果为负数,则不运行逐出线程, 默认-1*/
@@ -114,17 +144,49 @@ object RedisClient extends Logger {
     poolConfig
   }
 
+  /**
+   * 各个连接池的状态
+   *
+   * @return
+   */
+  def poolStats: Map[RedisEndpoint, RedisPoolStats] = pools.map { case (endpoint, pool) =>
+    endpoint.copy(auth = "********") -> RedisPoolStats(
+      pool.getNumActive,
+      pool.getNumIdle,
+      pool.getNumWaiters,
+      pool.getMeanBorrowWaitTimeMillis,
+      pool.getMaxBorrowWaitTimeMillis
+    )
+  }.toMap
+
+  /**
+   * 同一组RedisEndpoint的JedisCluster在JVM内只创建一次,不要在使用后关闭
+   *
+   * @param res
+   * @return
+   */
   def connectCluster(res: RedisEndpoint*): JedisCluster = {
     require(res.nonEmpty, "The RedisEndpoint array is empty!!!")
     val head = res.head
-    val cluster = clusters.getOrElseUpdate(head, {
-      val hostPorts = res.map(r => new HostAndPort(r.host, r.port)).toSet
-      new JedisCluster(hostPorts, head.timeout, 1000, 1, head.auth, poolConfig)
+    clusters.computeIfAbsent(head, new java.util.function.Function[RedisEndpoint, JedisCluster] {
+      override def apply(e: RedisEndpoint): JedisCluster = {
+        val hostPorts = res.map(r => new HostAndPort(r.host, r.port)).toSet
+        new JedisCluster(hostPorts, head.timeout, 1000, 1, head.auth, poolConfig(head))
+      }
     })
-    cluster
   }
 
-  def close(): Unit = pools.foreach { case (_, v) => v.close() }
-
+  def close(): Unit = {
+    pools.foreach { case (_, v) => v.close() }
+    pools.clear()
+    clusters.foreach { case (_, v) => v.close() }
+    clusters.clear()
+  }
 
 }
+
+case class RedisPoolStats(active: Int,
+                          idle: Int,
+                          waiters: Int,
+                          meanBorrowWaitMillis: Long,
+                          maxBorrowWaitMillis: Long)
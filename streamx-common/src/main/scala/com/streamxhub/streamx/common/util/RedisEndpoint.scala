@@ -40,16 +40,23 @@ import scala.collection.JavaConversions._
  * @param port the redis port
  * @param auth the authentication password
  * @param db   database number (should be avoided in general)
+ * @param maxTotal the max connections of the pool of this endpoint
+ * @param maxIdle  the max idle connections of the pool of this endpoint
+ * @param minIdle  the min idle connections of the pool of this endpoint
  */
 case class RedisEndpoint(host: String = Protocol.DEFAULT_HOST,
                          port: Int = Protocol.DEFAULT_PORT,
                          auth: String = null,
                          db: Int = Protocol.DEFAULT_DATABASE,
-                         timeout: Int = Protocol.DEFAULT_TIMEOUT)
+                         timeout: Int = Protocol.DEFAULT_TIMEOUT,
+                         maxTotal: Int = DEFAULT_REDIS_POOL_MAX_TOTAL,
+                         maxIdle: Int = DEFAULT_REDIS_POOL_MAX_IDLE,
+                         minIdle: Int = DEFAULT_REDIS_POOL_MIN_IDLE)
   extends Serializable {
 
   /**
-   * Constructor from Properties. set params with redis.host, redis.port, redis.password and redis.db
+   * Constructor from Properties. set params with redis.host, redis.port, redis.password and redis.db,
+   * and the pool size with redis.pool.maxTotal, redis.pool.maxIdle and redis.pool.minIdle
    *
    * @param conf Properties
    */
@@ -59,7 +66,10 @@ case class RedisEndpoint(host: String = Protocol.DEFAULT_HOST,
       conf.getOrElse(KEY_PORT, Protocol.DEFAULT_PORT).toString.toInt,
       conf.getOrElse(KEY_PASSWORD, null),
       conf.getOrElse(KEY_DB, Protocol.DEFAULT_DATABASE).toString.toInt,
-      conf.getOrElse(KEY_TIMEOUT, Protocol.DEFAULT_TIMEOUT).toString.toInt
+      conf.getOrElse(KEY_TIMEOUT, Protocol.DEFAULT_TIMEOUT).toString.toInt,
+      conf.getOrElse(KEY_REDIS_POOL_MAX_TOTAL, DEFAULT_REDIS_POOL_MAX_TOTAL).toString.toInt,
+      conf.getOrElse(KEY_REDIS_POOL_MAX_IDLE, DEFAULT_REDIS_POOL_MAX_IDLE).toString.toInt,
+      conf.getOrElse(KEY_REDIS_POOL_MIN_IDLE, DEFAULT_REDIS_POOL_MIN_IDLE).toString.toInt
     )
   }
 
@@ -198,8 +208,7 @@ class RedisConfig(val initialHost: RedisEndpoint) extends Serializable {
       val port = replinfo.filter(_.contains("master_port:"))(0).trim.substring(12).toInt
 
       //simply re-enter this function witht he master host/port
-      getNonClusterNodes(initialHost = RedisEndpoint(host, port,
-        initialHost.auth, initialHost.db))
+      getNonClusterNodes(initialHost = initialHost.copy(host = host, port = port))
 
     } else {
       //this is a master - take its slaves
@@ -214,8 +223,7 @@ class RedisConfig(val initialHost: RedisEndpoint) extends Serializable {
       val nodes = master +: slaves
       val range = nodes.length
       (0 until range).map(i =>
-        RedisNode(RedisEndpoint(nodes(i)._1, nodes(i)._2, initialHost.auth, initialHost.db,
-          initialHost.timeout),
+        RedisNode(initialHost.copy(host = nodes(i)._1, port = nodes(i)._2),
           0, 16383, i, range)).toArray
     }
   }
@@ -244,8 +252,7 @@ class RedisConfig(val initialHost: RedisEndpoint) extends Serializable {
           val node = slotInfo(i + 2).asInstanceOf[java.util.List[java.lang.Object]]
           val host = SafeEncoder.encode(node.get(0).asInstanceOf[Array[scala.Byte]])
           val port = node.get(1).toString.toInt
-          RedisNode(RedisEndpoint(host, port, initialHost.auth, initialHost.db,
-            initialHost.timeout),
+          RedisNode(initialHost.copy(host = host, port = port),
             sPos,
             ePos,
             i,
@@ -20,7 +20,7 @@
  */
 package com.streamxhub.streamx.common.util
 
-import redis.clients.jedis.{Jedis, JedisCluster, Pipeline, ScanParams}
+import redis.clients.jedis.{Jedis, JedisCluster, Pipeline, Response, ScanParams}
 
 import java.lang.{Integer => JInt}
 import java.util.Set
@@ -361,6 +361,70 @@ object RedisUtils extends Logger {
     System.currentTimeMillis() - start
   }, func)
 
+  /**
+   * 批量hget,一次网络往返
+   *
+   * @param keyFields (key,field)
+   * @param endpoint
+   * @return 与keyFields顺序一致的值,不存在时为null
+   */
+  def mHget(keyFields: Seq[(String, String)])(implicit endpoint: RedisEndpoint): Seq[String] = doPipelined(pipe => {
+    keyFields.map { case (k, f) => pipe.hget(k, f) }
+  })
+
+  /**
+   * 批量hmget,一次网络往返
+   *
+   * @param keys
+   * @param fields
+   * @param endpoint
+   * @return 与keys顺序一致的fields的值
+   */
+  def mHmget(keys: Seq[String], fields: String*)(implicit endpoint: RedisEndpoint): Seq[List[String]] = doPipelined(pipe => {
+    keys.map(pipe.hmget(_, fields: _*))
+  }).map(_.asScala.toList)
+
+  /**
+   * 批量hgetAll,一次网络往返
+   *
+   * @param keys
+   * @param endpoint
+   * @return 与keys顺序一致的hash
+   */
+  def mHgetAll(keys: Seq[String])(implicit endpoint: RedisEndpoint): Seq[Map[String, String]] = doPipelined(pipe => {
+    keys.map(k => pipe.hgetAll(k))
+  }).map(_.asScala.toMap)
+
+  /**
+   * 批量写入多个hash,一次网络往返,每个key只EXPIRE一次
+   *
+   * @param hashes key -> (field -> value)
+   * @param ttl
+   * @param endpoint
+   * @return 用时(ms)
+   */
+  def mHset(hashes: Map[String, Map[String, String]], ttl: JInt = null, func: () => Unit = null)(implicit endpoint: RedisEndpoint): Long = doRedis(x => {
+    val start = System.currentTimeMillis()
+    val pipe = x.pipelined()
+    hashes.foreach { case (k, hash) =>
+      if (hash.nonEmpty) {
+        pipe.hset(k, hash.asJava)
+        if (ttl != null) {
+          pipe.expire(k, ttl)
+        }
+      }
+    }
+    pipe.sync()
+    System.currentTimeMillis() - start
+  }, func)
+
+  private[this] def doPipelined[T](f: Pipeline => Seq[Response[T]])(implicit endpoint: RedisEndpoint): Seq[T] = doRedis(x => {
+    val pipe = x.pipelined()
+    val responses = f(pipe)
+    pipe.sync()
+    responses.map(_.get())
+  })
+
   def expire(key: String, s: Int)(implicit endpoint: RedisEndpoint) = doRedis(_.expire(key, s))
 
   def delByPattern(key: String, func: () => Unit = null)(implicit endpoint: RedisEndpoint) = doRedis(r => {
@@ -383,50 +447,50 @@ object RedisUtils extends Logger {
 
   def hlen(key: String)(implicit endpoint: RedisEndpoint): Long = doRedis(_.hlen(key))
 
+  /**
+   * 连接从RedisEndpoint对应的连接池中获取,使用完归还到连接池
+   */
   def doRedis[R](f: Jedis => R, func: () => Unit = null)(implicit endpoint: RedisEndpoint): R = {
     val redis = RedisClient.connect(endpoint)
-    val result = func match {
-      case null => f(redis)
-      case _ =>
-        //确保redis的操作和用户的操作在用一个redis事务里...
-        val transaction = redis.multi()
-        val r = f(redis)
-        func()
-        transaction.exec()
-        transaction.close()
-        r
-    }
-    Try(redis.close()) match {
-      case Success(_) => logger.debug("jedis.close successful.")
-      case Failure(_) => logger.error("jedis.close failed.")
+    try {
+      func match {
+        case null => f(redis)
+        case _ =>
+          //确保redis的操作和用户的操作在用一个redis事务里...
+          val transaction = redis.multi()
+          val r = f(redis)
+          func()
+          transaction.exec()
+          transaction.close()
+          r
+      }
+    } finally {
+      Try(redis.close()) match {
+        case Success(_) => logger.debug("jedis.close successful.")
+        case Failure(_) => logger.error("jedis.close failed.")
+      }
     }
-    result
   }
 
-  def doCluster[R](f: JedisCluster => R)(implicit endpoint: RedisEndpoint*): R = {
-    val cluster = RedisClient.connectCluster(endpoint: _*)
-    val result = f(cluster)
-    Try(cluster.close()) match {
-      case Success(_) => logger.debug("cluster.close successful.")
-      case Failure(_) => logger.error("cluster.close failed.")
-    }
-    result
-  }
+  /**
+   * JedisCluster在JVM内缓存复用(RedisClient.connectCluster),这里不关闭
+   */
+  def doCluster[R](f: JedisCluster => R)(implicit endpoint: RedisEndpoint*): R = f(RedisClient.connectCluster(endpoint: _*))
 
   def doPipeline[R](f: Pipeline => R)(implicit endpoint: RedisEndpoint): R = {
     val redis = RedisClient.connect(endpoint)
-    val pipe = redis.pipelined()
-    val result = f(pipe)
-    Try {
+    try {
+      val pipe = redis.pipelined()
+      val result = f(pipe)
       pipe.sync()
       pipe.close()
-      redis.close()
-    } match {
-      case Success(_) => logger.debug("pipe.close successful.")
-      case Failure(_) => logger.error("pipe.close failed.")
+      result
+    } finally {
+      Try(redis.close()) match {
+        case Success(_) => logger.debug("pipe.close successful.")
+        case Failure(_) => logger.error("pipe.close failed.")
+      }
     }
-    result
   }
 
-
 }
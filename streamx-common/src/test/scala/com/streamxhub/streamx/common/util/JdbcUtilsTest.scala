@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.common.util
+
+import com.streamxhub.streamx.common.conf.ConfigConst._
+import org.junit.Assert._
+import org.junit.{After, Before, Test}
+
+import java.sql.{Connection, DriverManager}
+import java.util.Properties
+
+/**
+ * JdbcUtils.stream and streamAs on H2: typed row mapping, the result of func, the same rows as select,
+ * and the HikariCP keys of getConnection. the throughput is compared by JdbcUtilsBenchmark of streamx-flink-core.
+ */
+class JdbcUtilsTest {
+
+  private[this] val rows = 20000
+  private[this] val url = s"jdbc:h2:mem:jdbc${System.nanoTime()};DB_CLOSE_DELAY=-1"
+  private[this] var keepAlive: Connection = _
+
+  implicit private[this] val jdbcConfig: Properties = {
+    val prop = new Properties()
+    prop.put(KEY_ALIAS, url)
+    prop.put(KEY_JDBC_DRIVER, "org.h2.Driver")
+    prop.put(KEY_JDBC_URL, url)
+    prop.put(KEY_JDBC_USER, "sa")
+    prop.put(KEY_JDBC_PASSWORD, "")
+    prop
+  }
+
+  @Before def setUp(): Unit = {
+    keepAlive = DriverManager.getConnection(url, "sa", "")
+    val statement = keepAlive.createStatement()
+    try {
+      statement.execute("create table orders(id bigint primary key, user_name varchar(32), amount decimal(10, 2), note varchar(32))")
+      statement.execute(s"insert into orders select x, concat('user-', x), x / 100.0, case when mod(x, 2) = 0 then null else 'odd' end from system_range(1, $rows)")
+    } finally {
+      statement.close()
+    }
+  }
+
+  @After def tearDown(): Unit = keepAlive.close()
+
+  private[this] val sql = "select id, user_name, amount, note from orders order by id"
+
+  @Test def streamAsMapsRows(): Unit = {
+    val orders = JdbcUtils.streamAs(sql, 100) { it: Iterator[JdbcUtilsTest.Order] => it.take(3).toList }
+    assertEquals(List(
+      JdbcUtilsTest.Order(1L, "user-1", new java.math.BigDecimal("0.01"), "odd", 0),
+      JdbcUtilsTest.Order(2L, "user-2", new java.math.BigDecimal("0.02"), null, 0),
+      JdbcUtilsTest.Order(3L, "user-3", new java.math.BigDecimal("0.03"), "odd", 0)
+    ), orders)
+  }
+
+  @Test def streamAsReturnsResult(): Unit = {
+    val (count, amount) = JdbcUtils.streamAs[JdbcUtilsTest.Order, (Int, BigDecimal)](sql) { it =>
+      it.foldLeft((0, BigDecimal(0))) { case ((c, a), order) => (c + 1, a + BigDecimal(order.amount)) }
+    }
+    assertEquals(rows, count)
+    assertEquals(BigDecimal(rows.toLong * (rows + 1) / 2) / 100, amount)
+  }
+
+  @Test def streamReturnsResult(): Unit = {
+    val nulls = JdbcUtils.stream(sql, 500)(_.count(_("note") == null))
+    assertEquals(rows / 2, nulls)
+  }
+
+  @Test def unknownHikariKey(): Unit = {
+    val prop = new Properties()
+    prop.putAll(jdbcConfig)
+    prop.put(KEY_ALIAS, s"$url-typo")
+    prop.put(KEY_JDBC_INSERT_BATCH, "100")
+    prop.put("maximumPoolSise", "4")
+    try {
+      JdbcUtils.getConnection(prop).close()
+      fail("a misspelled HikariCP property must be rejected")
+    } catch {
+      case e: IllegalArgumentException => assertTrue(e.getMessage, e.getMessage.contains("maximumPoolSise"))
+    }
+    //the keys of StreamX are not passed to HikariCP
+    prop.remove("maximumPoolSise")
+    prop.put("maximumPoolSize", "4")
+    JdbcUtils.getConnection(prop).close()
+  }
+
+  @Test def streamAsSameAsSelect(): Unit = {
+    val streamed = JdbcUtils.streamAs(sql) { it: Iterator[JdbcUtilsTest.Order] => it.toList }
+    val selected = JdbcUtils.select(sql).map(x => JdbcUtilsTest.Order(
+      x("ID").asInstanceOf[Long],
+      x("USER_NAME").asInstanceOf[String],
+      x("AMOUNT").asInstanceOf[java.math.BigDecimal],
+      x("NOTE").asInstanceOf[String],
+      0
+    )).toList
+    assertEquals(rows, streamed.size)
+    assertEquals(selected, streamed)
+  }
+
+}
+
+object JdbcUtilsTest {
+
+  /**
+   * missing has no column and gets the default value
+   */
+  case class Order(id: Long, userName: String, amount: java.math.BigDecimal, note: String, missing: Int)
+
+}
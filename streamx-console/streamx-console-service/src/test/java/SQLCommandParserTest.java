@@ -0,0 +1,135 @@
+import com.streamxhub.streamx.flink.common.util.SQLCommandCall;
+import com.streamxhub.streamx.flink.common.util.SQLCommandUtil;
+import org.junit.Assert;
+import org.junit.Test;
+import scala.collection.JavaConversions;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SQLCommandParserTest {
+
+    /**
+     * sql script -> the expected command names, in order.
+     */
+    private static final Map<String, List<String>> CORPUS = new LinkedHashMap<>();
+
+    static {
+        CORPUS.put(
+                "-- a comment line\n" +
+                        "SHOW TABLES;\n" +
+                        "show databases;",
+                Arrays.asList("show tables", "show databases")
+        );
+        CORPUS.put(
+                "CREATE TABLE user_log (\n" +
+                        "    user_id VARCHAR,\n" +
+                        "\n" +
+                        "    ts TIMESTAMP(3)\n" +
+                        ") WITH (\n" +
+                        "'connector.type' = 'kafka', -- comment with a ; inside\n" +
+                        "'connector.topic' = 'user_behavior'\n" +
+                        ");\n" +
+                        "INSERT INTO pvuv_sink\n" +
+                        "SELECT 'a;b', 'it''s; fine' FROM user_log;",
+                Arrays.asList("create table", "insert into")
+        );
+        CORPUS.put(
+                "/* block comment; with a semicolon */ USE CATALOG hive;\n" +
+                        "USE db1;\n" +
+                        "DESCRIBE t1;\n" +
+                        "DESC t2;",
+                Arrays.asList("use catalog", "use", "describe", "desc")
+        );
+        CORPUS.put(
+                "SELECT * FROM t /*+ OPTIONS('k'='v') */;\n" +
+                        "select `a;b` from\n" +
+                        "  t;\n" +
+                        "DROP TABLE t;\n" +
+                        "ALTER TABLE t RENAME TO t2;\n" +
+                        "CREATE DATABASE d;\n" +
+                        "CREATE FUNCTION f AS 'com.example.F';\n" +
+                        "INSERT OVERWRITE t SELECT * FROM s;",
+                Arrays.asList("select", "select", "drop table", "alter table", "create database", "create function", "insert overwrite")
+        );
+    }
+
+    @Test
+    public void parseCorpus() {
+        CORPUS.forEach((sql, expected) -> Assert.assertEquals(sql, expected, commands(sql)));
+    }
+
+    @Test
+    public void quotedAndComments() {
+        List<SQLCommandCall> calls = parse(
+                "INSERT INTO t SELECT 'a;b', \"c -- d\" FROM s -- trailing comment\n;\n" +
+                        "SELECT * FROM t /*+ OPTIONS('k'='v') */;"
+        );
+        Assert.assertEquals(2, calls.size());
+        Assert.assertEquals("INSERT INTO t SELECT 'a;b', \"c -- d\" FROM s", calls.get(0).operands()[0]);
+        Assert.assertEquals("SELECT * FROM t /*+ OPTIONS('k'='v') */", calls.get(1).operands()[0]);
+    }
+
+    @Test
+    public void withProperties() {
+        List<SQLCommandCall> calls = parse(
+                "CREATE TABLE t (\n" +
+                        "  id INT\n" +
+                        ") WITH (\n" +
+                        "  connector = kafka, -- without quotes\n" +
+                        "  topic = t1\n" +
+                        ");"
+        );
+        String operand = calls.get(0).operands()[0];
+        Assert.assertTrue(operand, operand.contains("'connector' = 'kafka',"));
+        Assert.assertTrue(operand, operand.contains("'topic' = 't1'"));
+        Assert.assertFalse(operand, operand.contains("without quotes"));
+    }
+
+    @Test
+    public void invalidScripts() {
+        for (String sql : Arrays.asList("UNKNOWN STATEMENT;", "SHOW TABLES", "-- only a comment")) {
+            try {
+                parse(sql);
+                Assert.fail(sql);
+            } catch (RuntimeException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void concurrentParse() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(executor.submit(() -> {
+                    for (Map.Entry<String, List<String>> entry : CORPUS.entrySet()) {
+                        if (!entry.getValue().equals(commands(entry.getKey()))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> future : futures) {
+                Assert.assertTrue(future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<SQLCommandCall> parse(String sql) {
+        return JavaConversions.seqAsJavaList(SQLCommandUtil.parseSQL(sql));
+    }
+
+    private static List<String> commands(String sql) {
+        List<String> commands = new ArrayList<>();
+        parse(sql).forEach(x -> commands.add(x.command().name()));
+        return commands;
+    }
+
+}
@@ -34,7 +34,6 @@ import org.apache.flink.table.planner.calcite.CalciteParser
 import org.apache.flink.table.planner.delegation.FlinkSqlParserFactories
 import org.apache.flink.table.planner.utils.TableConfigUtils
 
-import java.util.Scanner
 import java.util.regex.{Matcher, Pattern}
 import scala.collection.immutable
 import scala.collection.mutable.ArrayBuffer
@@ -43,6 +42,16 @@ object SQLCommandUtil extends Logger {
 
   private[this] val WITH_REGEXP = "(WITH|with)\\s*\\(\\s*\\n+((.*)\\s*=(.*)(,|)\\s*\\n+)+\\)".r
 
+  /**
+   * the patterns are compiled once, Pattern is immutable and thread-safe, a Matcher is created per call.
+   */
+  private[this] val LINE_SEPARATOR = Pattern.compile("\\n")
+  private[this] val PROP_REGEXP = Pattern.compile("\\s*(.*)\\s*=(.*)(,|)\\s*")
+  private[this] val PROP_KEY_REGEXP = Pattern.compile("^'|^")
+  private[this] val PROP_EQUALS_REGEXP = Pattern.compile("('|)\\s*=\\s*('|)")
+  private[this] val PROP_VALUE_REGEXP = Pattern.compile("('|),$")
+  private[this] val PROP_END_REGEXP = Pattern.compile("('|)\\s*$")
+
   private[this] lazy val sqlParserConfig = {
     val tableConfig = StreamTableEnvironment.create(
       StreamExecutionEnvironment.getExecutionEnvironment,
@@ -124,38 +133,75 @@ object SQLCommandUtil extends Logger {
   def parseSQL(sql: String): List[SQLCommandCall] = {
     val sqlEmptyError = SQLError(SQLErrorType.VERIFY_FAILED, "sql is empty", sql).toString
     require(sql != null && sql.trim.nonEmpty, sqlEmptyError)
-    val lines = sql.split("\\n").filter(_.trim.nonEmpty).filter(!_.startsWith("--"))
-    lines match {
-      case x if x.isEmpty => throw new RuntimeException(sqlEmptyError)
-      case x =>
-        val calls = new ArrayBuffer[SQLCommandCall]
-        val stmt = new StringBuilder
-        for (line <- x) {
-          stmt.append("\n").append(line)
-          if (line.trim.endsWith(";")) {
-            parseLine(stmt.toString.trim) match {
-              case Some(x) => calls += x
-              case _ => throw new RuntimeException(SQLError(SQLErrorType.UNSUPPORTED_SQL, sql = stmt.toString).toErrorString)
-            }
-            // clear string builder
-            stmt.clear()
-          }
+    val (statements, rest) = splitStatements(sql)
+    if (statements.isEmpty && rest.isEmpty) {
+      throw new RuntimeException(sqlEmptyError)
+    }
+    statements.map(stmt => {
+      parseLine(stmt) match {
+        case Some(x) => x
+        case _ => throw new RuntimeException(SQLError(SQLErrorType.UNSUPPORTED_SQL, sql = s"$stmt;").toErrorString)
+      }
+    }) match {
+      case Nil => throw new RuntimeException(SQLError(SQLErrorType.ENDS_WITH, sql = sql).toErrorString)
+      case r => r
+    }
+  }
+
+  /**
+   * 一次扫描将脚本切分为语句: 去掉行注释和块注释(保留OPTIONS等hint), 引号(' " `)中的分号和注释符不做处理,
+   * 语句可以跨多行, 空行被去掉.
+   *
+   * @return 以分号结束的语句(不含分号)和最后没有以分号结束的部分
+   */
+  private[util] def splitStatements(sql: String): (List[String], String) = {
+    val statements = new ArrayBuffer[String]
+    val stmt = new java.lang.StringBuilder
+    val length = sql.length
+    var quote: Char = 0
+    var i = 0
+    while (i < length) {
+      val c = sql.charAt(i)
+      val next = if (i + 1 < length) sql.charAt(i + 1) else 0.toChar
+      if (quote != 0) {
+        stmt.append(c)
+        if (c == quote) {
+          //'' is an escaped quote inside the literal
+          if (next == quote) {
+            stmt.append(next)
+            i += 1
+          } else quote = 0
         }
-        calls.toList match {
-          case Nil => throw new RuntimeException(SQLError(SQLErrorType.ENDS_WITH, sql = sql).toErrorString)
-          case r => r
+      } else {
+        c match {
+          case '\'' | '"' | '`' =>
+            quote = c
+            stmt.append(c)
+          case '-' if next == '-' =>
+            val end = sql.indexOf('\n', i)
+            i = (if (end == -1) length else end) - 1
+          case '/' if next == '*' && (i + 2 >= length || sql.charAt(i + 2) != '+') =>
+            val end = sql.indexOf("*/", i + 2)
+            i = if (end == -1) length - 1 else end + 1
+            stmt.append(' ')
+          case ';' =>
+            val statement = normalize(stmt)
+            if (statement.nonEmpty) statements += statement
+            stmt.setLength(0)
+          case _ => stmt.append(c)
         }
+      }
+      i += 1
     }
+    statements.toList -> normalize(stmt)
+  }
+
+  private[this] def normalize(stmt: CharSequence): String = {
+    LINE_SEPARATOR.split(stmt).filter(_.trim.nonEmpty).mkString("\n").trim
   }
 
-  private[this] def parseLine(sqlLine: String): Option[SQLCommandCall] = {
-    // remove ';' at the end
-    val stmt = sqlLine.trim.replaceFirst(";$", "")
-    // parse
-    val sqlCommands = SQLCommand.values.filter(_.matches(stmt))
-    if (sqlCommands.isEmpty) None else {
-      val sqlCommand = sqlCommands.head
-      val matcher = sqlCommand.matcher
+  private[this] def parseLine(stmt: String): Option[SQLCommandCall] = {
+    SQLCommand.classify(stmt).flatMap { case (sqlCommand, matcher) =>
       val groups = new Array[String](matcher.groupCount)
       for (i <- groups.indices) {
         groups(i) = {
@@ -166,24 +212,19 @@ object SQLCommandUtil extends Logger {
              * 解决with里的属性参数必须加单引号'的问题,从此可以不用带'了,更可读(手指多动一下是可耻的,scala语言之父说的.)
              */
             val withSegment = withMatcher.group()
-            val scanner = new Scanner(withSegment)
-            val buffer = new StringBuffer()
-            while (scanner.hasNextLine) {
-              val line = scanner.nextLine().replaceAll("--(.*)$", "").trim
-              val propReg = "\\s*(.*)\\s*=(.*)(,|)\\s*"
-              if (line.matches(propReg)) {
-                var newLine = line
-                  .replaceAll("^'|^", "'")
-                  .replaceAll("('|)\\s*=\\s*('|)", "' = '")
-                  .replaceAll("('|),$", "',")
+            val buffer = new StringBuilder()
+            //comments are already removed by splitStatements.
+            LINE_SEPARATOR.split(withSegment).map(_.trim).foreach(line => {
+              if (PROP_REGEXP.matcher(line).matches()) {
+                var newLine = PROP_VALUE_REGEXP.matcher(PROP_EQUALS_REGEXP.matcher(PROP_KEY_REGEXP.matcher(line).replaceAll("'")).replaceAll("' = '")).replaceAll("',")
                 if (!line.endsWith(",")) {
-                  newLine = newLine.replaceFirst("('|)\\s*$", "'")
+                  newLine = PROP_END_REGEXP.matcher(newLine).replaceFirst("'")
                 }
                 buffer.append(newLine).append("\n")
               } else {
                 buffer.append(line).append("\n")
               }
-            }
+            })
             segment.replace(withSegment, buffer.toString.trim)
           }
         }
@@ -210,13 +251,22 @@ sealed abstract class SQLCommand(
                                   private val regex: String,
                                   val converter: Array[String] => Option[Array[String]] = (x: Array[String]) => Some(Array[String](x.head))
                                 ) extends EnumEntry {
-  var matcher: Matcher = _
-
-  def matches(input: String): Boolean = {
-    if (regex == null) false else {
-      val pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.DOTALL)
-      matcher = pattern.matcher(input)
-      matcher.matches()
+  private[util] val pattern: Pattern = if (regex == null) null else Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.DOTALL)
+
+  /**
+   * the leading keyword of the statement this command starts with, None if the regex doesn't start with a keyword.
+   */
+  private[util] val keyword: Option[String] = Option(regex).flatMap(x => "^\\(?([A-Z]+)".r.findFirstMatchIn(x).map(_.group(1)))
+
+  def matches(input: String): Boolean = matcher(input).isDefined
+
+  /**
+   * a new Matcher for each call, so a command can be matched concurrently.
+   */
+  def matcher(input: String): Option[Matcher] = {
+    if (pattern == null) None else {
+      val matcher = pattern.matcher(input)
+      if (matcher.matches()) Some(matcher) else None
     }
   }
 }
@@ -225,6 +275,17 @@ object SQLCommand extends enumeratum.Enum[SQLCommand] {
 
   val values: immutable.IndexedSeq[SQLCommand] = findValues
 
+  /**
+   * the first command(in the order of values) which matches the statement,
+   * the regex is only tried if the statement starts with the leading keyword of the command.
+   */
+  def classify(stmt: String): Option[(SQLCommand, Matcher)] = {
+    values.toStream
+      .filter(_.keyword.forall(k => stmt.regionMatches(true, 0, k, 0, k.length)))
+      .flatMap(x => x.matcher(stmt).map(x -> _))
+      .headOption
+  }
+
   private[this] val NO_OPERANDS = (_: Array[String]) => Some(Array.empty[String])
 
   case object SHOW_CATALOGS extends SQLCommand(
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.benchmark
+
+import com.streamxhub.streamx.flink.core.scala.failover.{SinkRequest, SinkWriter}
+import com.streamxhub.streamx.flink.core.scala.sink.{ByteBufferPool, RowBinarySinkBuffer}
+import org.openjdk.jmh.annotations._
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.TimeUnit
+import scala.collection.JavaConversions._
+
+case class InsertOrder(id: Int, userId: Long, price: Double, name: String, city: String)
+
+/**
+ * one batch of rows per invocation: the RowBinary insert format against the Values(csv) path of AsyncClickHouseSinkFunction,
+ * which builds every record by reflection and the body by records.mkString.
+ * rows/s = ops/s * rows, the allocation of each path is reported by "-prof gc"(gc.alloc.rate.norm is bytes per batch).
+ * {{{
+ *   mvn -Pjmh test -DskipTests exec:exec -Djmh.args="ClickHouseInsertBenchmark -prof gc"
+ * }}}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class ClickHouseInsertBenchmark {
+
+  @Param(Array("1000", "10000"))
+  var rows: Int = _
+
+  @Param(Array("false", "true"))
+  var compress: Boolean = _
+
+  private[this] var orders: Array[InsertOrder] = _
+
+  private[this] var pool: ByteBufferPool = _
+
+  private[this] var buffer: RowBinarySinkBuffer = _
+
+  private[this] var request: SinkRequest = _
+
+  @Setup
+  def setup(): Unit = {
+    orders = Array.tabulate(rows)(i => InsertOrder(i, i * 31L, i * 0.25, s"name-$i", if (i % 2 == 0) "beijing" else "shanghai"))
+    pool = new ByteBufferPool(1024 * 1024, 4)
+    val writer = new SinkWriter {
+      override def write(r: SinkRequest): Unit = request = r
+
+      override def close(): Unit = {}
+    }
+    buffer = RowBinarySinkBuffer(writer, pool, Long.MaxValue, Int.MaxValue, Int.MaxValue, compress, "test.orders")
+  }
+
+  @TearDown
+  def tearDown(): Unit = buffer.close()
+
+  /**
+   * the Values path: one string per record, then one string for the batch sent as the body.
+   */
+  @Benchmark
+  def values(): Array[Byte] = {
+    val records = new java.util.ArrayList[String](rows)
+    orders.foreach(x => records.add(ClickHouseInsertBenchmark.csv(x)))
+    s"INSERT INTO test.orders VALUES ${records.mkString(",")}".getBytes(StandardCharsets.UTF_8)
+  }
+
+  /**
+   * the RowBinary path: the rows are encoded into a pooled buffer, the body is given back to the pool as the writer does.
+   */
+  @Benchmark
+  def rowBinary(): Int = {
+    orders.foreach(buffer.put)
+    buffer.flush()
+    val bytes = request.body.remaining()
+    pool.release(request.body)
+    request = null
+    bytes
+  }
+
+}
+
+object ClickHouseInsertBenchmark {
+
+  /**
+   * same as AsyncClickHouseSinkFunction.putValues without toCSVFun
+   */
+  def csv(value: AnyRef): String = {
+    val buffer = new StringBuilder("(")
+    val fields = value.getClass.getDeclaredFields
+    fields.foreach(f => {
+      f.setAccessible(true)
+      val v = f.get(value)
+      f.getType.getSimpleName match {
+        case "String" => buffer.append(s""""$v",""".stripMargin)
+        case _ => buffer.append(s"""$v,""".stripMargin)
+      }
+    })
+    buffer.toString().replaceFirst(",$", ")")
+  }
+
+}
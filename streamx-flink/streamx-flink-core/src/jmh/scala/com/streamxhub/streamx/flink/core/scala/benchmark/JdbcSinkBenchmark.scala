@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.benchmark
+
+import com.streamxhub.streamx.common.conf.ConfigConst._
+import com.streamxhub.streamx.flink.core.scala.sink.{JdbcPreparedSinkFunction, JdbcSinkFunction}
+import org.apache.flink.configuration.Configuration
+import org.apache.flink.streaming.api.functions.sink.RichSinkFunction
+import org.openjdk.jmh.annotations._
+
+import java.sql.{Connection, DriverManager, PreparedStatement}
+import java.util.Properties
+import java.util.concurrent.TimeUnit
+
+case class JdbcOrder(id: Long, userName: String, amount: java.math.BigDecimal)
+
+/**
+ * rows/s of JdbcSink on H2: the string path(one sql string per record, Statement.addBatch(sql)) against the typed path
+ * (one PreparedStatement, parameters bound per record) and the typed path with batch.rewrite(multi-row insert).
+ * every invocation writes one record, the batch of batch.size rows is executed and committed by invoke.
+ * {{{
+ *   mvn -Pjmh test -DskipTests exec:exec -Djmh.args="JdbcSinkBenchmark -prof gc"
+ * }}}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = Array("-Xmx2g"))
+class JdbcSinkBenchmark {
+
+  @Param(Array("string", "prepared", "rewrite"))
+  var mode: String = _
+
+  @Param(Array("1000"))
+  var batchSize: Int = _
+
+  private[this] val url = s"jdbc:h2:mem:sink${System.nanoTime()};DB_CLOSE_DELAY=-1"
+
+  private[this] var keepAlive: Connection = _
+
+  private[this] var sink: RichSinkFunction[JdbcOrder] = _
+
+  private[this] var id = 0L
+
+  @Setup(Level.Trial)
+  def setup(): Unit = keepAlive = DriverManager.getConnection(url, "sa", "")
+
+  /**
+   * a new table for every iteration, so the cost of the insert does not grow with the rows of the previous iterations.
+   */
+  @Setup(Level.Iteration)
+  def open(): Unit = {
+    val statement = keepAlive.createStatement()
+    try {
+      statement.execute("drop table if exists orders")
+      statement.execute("create table orders(id bigint, user_name varchar(32), amount decimal(10, 2))")
+    } finally {
+      statement.close()
+    }
+    sink = mode match {
+      case "string" => new JdbcSinkFunction[JdbcOrder](properties(), JdbcSinkBenchmark.toSQL)
+      case "prepared" => new JdbcPreparedSinkFunction[JdbcOrder](properties(), JdbcSinkBenchmark.SQL, JdbcSinkBenchmark.bind)
+      case "rewrite" =>
+        val prop = properties()
+        prop.put(KEY_JDBC_INSERT_BATCH_REWRITE, "true")
+        new JdbcPreparedSinkFunction[JdbcOrder](prop, JdbcSinkBenchmark.SQL, JdbcSinkBenchmark.bind)
+    }
+    sink.open(new Configuration())
+  }
+
+  @TearDown(Level.Iteration)
+  def close(): Unit = sink.close()
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = keepAlive.close()
+
+  @Benchmark
+  def invoke(): Unit = {
+    id += 1
+    sink.invoke(JdbcOrder(id, s"user-$id", java.math.BigDecimal.valueOf(id % 100000, 2)), null)
+  }
+
+  /**
+   * the sink functions take their keys out of the properties, every sink gets its own.
+   */
+  private[this] def properties(): Properties = {
+    val prop = new Properties()
+    prop.put(KEY_ALIAS, url)
+    prop.put(KEY_JDBC_DRIVER, "org.h2.Driver")
+    prop.put(KEY_JDBC_URL, url)
+    prop.put(KEY_JDBC_USER, "sa")
+    prop.put(KEY_JDBC_PASSWORD, "")
+    prop.put(KEY_JDBC_INSERT_BATCH, batchSize.toString)
+    //flushed by batch.size only, no timer
+    prop.put(KEY_JDBC_INSERT_BATCH_INTERVAL, "0")
+    prop
+  }
+
+}
+
+object JdbcSinkBenchmark {
+
+  val SQL = "insert into orders(id, user_name, amount) values(?, ?, ?)"
+
+  val toSQL: JdbcOrder => String = x => s"insert into orders(id, user_name, amount) values(${x.id}, '${x.userName}', ${x.amount})"
+
+  val bind: (PreparedStatement, JdbcOrder) => Unit = (statement, x) => {
+    statement.setLong(1, x.id)
+    statement.setString(2, x.userName)
+    statement.setBigDecimal(3, x.amount)
+  }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.benchmark
+
+import com.streamxhub.streamx.common.conf.ConfigConst._
+import com.streamxhub.streamx.common.util.JdbcUtils
+import org.openjdk.jmh.annotations._
+
+import java.sql.{Connection, DriverManager}
+import java.util.Properties
+import java.util.concurrent.TimeUnit
+
+case class QueryOrder(id: Long, userName: String, amount: java.math.BigDecimal, note: String)
+
+/**
+ * one full query of the orders table per invocation on H2: JdbcUtils.select(every row into a Map, the whole result in memory)
+ * against stream(one reused array-backed JdbcRow) and streamAs(rows mapped into a case class by the cached mapper).
+ * rows/s = ops/s * rows, the allocation per row is gc.alloc.rate.norm / rows with "-prof gc".
+ * {{{
+ *   mvn -Pjmh test -DskipTests exec:exec -Djmh.args="JdbcUtilsBenchmark -prof gc"
+ * }}}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class JdbcUtilsBenchmark {
+
+  @Param(Array("10000", "100000"))
+  var rows: Int = _
+
+  private[this] val url = s"jdbc:h2:mem:query${System.nanoTime()};DB_CLOSE_DELAY=-1"
+
+  private[this] val sql = "select id, user_name, amount, note from orders"
+
+  private[this] var keepAlive: Connection = _
+
+  implicit private[this] val jdbcConfig: Properties = {
+    val prop = new Properties()
+    prop.put(KEY_ALIAS, url)
+    prop.put(KEY_JDBC_DRIVER, "org.h2.Driver")
+    prop.put(KEY_JDBC_URL, url)
+    prop.put(KEY_JDBC_USER, "sa")
+    prop.put(KEY_JDBC_PASSWORD, "")
+    prop
+  }
+
+  @Setup
+  def setup(): Unit = {
+    keepAlive = DriverManager.getConnection(url, "sa", "")
+    val statement = keepAlive.createStatement()
+    try {
+      statement.execute("create table orders(id bigint primary key, user_name varchar(32), amount decimal(10, 2), note varchar(32))")
+      statement.execute(s"insert into orders select x, concat('user-', x), x / 100.0, case when mod(x, 2) = 0 then null else 'odd' end from system_range(1, $rows)")
+    } finally {
+      statement.close()
+    }
+  }
+
+  @TearDown
+  def tearDown(): Unit = keepAlive.close()
+
+  @Benchmark
+  def select(): Long = JdbcUtils.select(sql).map(x => QueryOrder(
+    x("ID").asInstanceOf[Long],
+    x("USER_NAME").asInstanceOf[String],
+    x("AMOUNT").asInstanceOf[java.math.BigDecimal],
+    x("NOTE").asInstanceOf[String]
+  )).map(_.id).sum
+
+  @Benchmark
+  def stream(): Long = JdbcUtils.stream(sql)(_.map(_("id").asInstanceOf[java.lang.Long].longValue()).sum)
+
+  @Benchmark
+  def streamAs(): Long = JdbcUtils.streamAs(sql) { it: Iterator[QueryOrder] => it.map(_.id).sum }
+
+}
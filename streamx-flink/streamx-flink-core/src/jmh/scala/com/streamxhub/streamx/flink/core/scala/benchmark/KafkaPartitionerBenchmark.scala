@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.benchmark
+
+import com.streamxhub.streamx.flink.core.scala.sink.{KafkaEqualityPartitioner, KafkaStickyPartitioner}
+import org.apache.flink.streaming.connectors.kafka.partitioner.FlinkKafkaPartitioner
+import org.openjdk.jmh.annotations._
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * the cost of one partition() call of KafkaEqualityPartitioner against KafkaStickyPartitioner(batch.size 16384, linger.ms 5)
+ * on 100 bytes records, both run in the sink for every record.
+ * the batches and requests they cause on the brokers are compared in KafkaPartitionerThroughputTest.
+ * {{{
+ *   mvn -Pjmh test -DskipTests exec:exec -Djmh.args="KafkaPartitionerBenchmark"
+ * }}}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class KafkaPartitionerBenchmark {
+
+  @Param(Array("equality", "sticky"))
+  var partitioner: String = _
+
+  @Param(Array("4", "12"))
+  var partitions: Int = _
+
+  private[this] val topic = "orders"
+
+  private[this] val value = new Array[Byte](100)
+
+  private[this] var targets: Array[Int] = _
+
+  private[this] var instance: FlinkKafkaPartitioner[String] = _
+
+  @Setup
+  def setup(): Unit = {
+    targets = (0 until partitions).toArray
+    instance = partitioner match {
+      case "equality" => new KafkaEqualityPartitioner[String](1)
+      case "sticky" => new KafkaStickyPartitioner[String](16384, 5)
+    }
+    instance.open(0, 1)
+  }
+
+  @Benchmark
+  def partition(): Int = instance.partition("x", null, value, topic, targets)
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.java.function;
+
+import org.bson.Document;
+
+import java.io.Serializable;
+
+/**
+ * @author benjobs
+ */
+@FunctionalInterface
+public interface MongoDocumentFunction<T> extends Serializable {
+
+    /**
+     * 处理并行读取的文档
+     *
+     * @param operation 快照阶段为read,change stream阶段为insert,update,replace,delete
+     * @param document  快照阶段为读取到的文档,change stream阶段为fullDocument,delete时为documentKey
+     * @return
+     */
+    T result(String operation, Document document);
+
+}
@@ -22,7 +22,9 @@ package com.streamxhub.streamx.flink.core.java.sink;
 
 import com.streamxhub.streamx.common.util.ConfigUtils;
 import com.streamxhub.streamx.flink.core.java.function.SQLFromFunction;
+import com.streamxhub.streamx.flink.core.java.function.StatementBindFunction;
 import com.streamxhub.streamx.flink.core.scala.StreamingContext;
+import com.streamxhub.streamx.flink.core.scala.sink.JdbcPreparedSinkFunction;
 import com.streamxhub.streamx.flink.core.scala.sink.JdbcSinkFunction;
 import org.apache.flink.streaming.api.datastream.DataStream;
 import org.apache.flink.streaming.api.datastream.DataStreamSink;
@@ -37,6 +39,8 @@ public class JdbcSink<T> {
     private final StreamingContext context;
     private Properties jdbc;
     private SQLFromFunction<T> sqlFunc;
+    private String sql;
+    private StatementBindFunction<T> bindFunc;
     private String alias = "";
 
     public JdbcSink(StreamingContext context) {
@@ -58,9 +62,26 @@ public class JdbcSink<T> {
         return this;
     }
 
+    /**
+     * typed mode, the PreparedStatement of sql is reused and the bean is bound by func
+     *
+     * @param sql  insert sql with parameters, e.g: insert into t_user(name,age) values(?,?)
+     * @param func
+     * @return
+     */
+    public JdbcSink<T> sql(String sql, StatementBindFunction<T> func) {
+        this.sql = sql;
+        this.bindFunc = func;
+        return this;
+    }
+
     public DataStreamSink<T> sink(DataStream<T> dataStream) {
-        assert sqlFunc != null;
+        assert sqlFunc != null || bindFunc != null;
         this.jdbc = this.jdbc == null ? ConfigUtils.getJdbcConf(context.parameter().toMap(), alias) : this.jdbc;
+        if (bindFunc != null) {
+            JdbcPreparedSinkFunction<T> sinkFun = new JdbcPreparedSinkFunction<>(this.jdbc, this.sql, this.bindFunc);
+            return dataStream.addSink(sinkFun);
+        }
         JdbcSinkFunction<T> sinkFun = new JdbcSinkFunction<>(this.jdbc, this.sqlFunc);
         return dataStream.addSink(sinkFun);
     }
@@ -23,6 +23,7 @@ package com.streamxhub.streamx.flink.core.java.source;
 import com.streamxhub.streamx.flink.core.java.function.HBaseQueryFunction;
 import com.streamxhub.streamx.flink.core.java.function.HBaseResultFunction;
 import com.streamxhub.streamx.flink.core.scala.StreamingContext;
+import com.streamxhub.streamx.flink.core.scala.source.HBaseParallelSourceFunction;
 import com.streamxhub.streamx.flink.core.scala.source.HBaseSourceFunction;
 import org.apache.flink.streaming.api.datastream.DataStreamSource;
 
@@ -44,4 +45,21 @@ public class HBaseSource<T> {
         HBaseSourceFunction<T> sourceFunction = new HBaseSourceFunction<>(property, queryFunc, resultFunc, null);
         return context.getJavaEnv().addSource(sourceFunction);
     }
+
+    /**
+     * 按region的key范围并行增量读取
+     *
+     * @param table
+     * @param parallelism
+     * @param resultFunc
+     * @return
+     */
+    public DataStreamSource<T> getDataStream(String table, int parallelism, HBaseResultFunction<T> resultFunc) {
+        assert table != null;
+        assert resultFunc != null;
+        HBaseParallelSourceFunction<T> sourceFunction = new HBaseParallelSourceFunction<>(property, table, resultFunc, null);
+        DataStreamSource<T> source = context.getJavaEnv().addSource(sourceFunction);
+        source.setParallelism(parallelism);
+        return source;
+    }
 }
@@ -23,7 +23,9 @@ package com.streamxhub.streamx.flink.core.java.source;
 import com.streamxhub.streamx.common.util.ConfigUtils;
 import com.streamxhub.streamx.flink.core.java.function.SQLQueryFunction;
 import com.streamxhub.streamx.flink.core.java.function.SQLResultFunction;
+import com.streamxhub.streamx.flink.core.java.function.SQLRowFunction;
 import com.streamxhub.streamx.flink.core.scala.StreamingContext;
+import com.streamxhub.streamx.flink.core.scala.source.JdbcParallelSourceFunction;
 import com.streamxhub.streamx.flink.core.scala.source.JdbcSourceFunction;
 import org.apache.flink.streaming.api.datastream.DataStreamSource;
 
@@ -66,4 +68,24 @@ public class JdbcSource<T> {
         return context.getJavaEnv().addSource(sourceFunction);
     }
 
+    /**
+     * 按splitColumn的取值范围切分成parallelism个split并行读取
+     *
+     * @param query       e.g: select * from t_order
+     * @param splitColumn 切分和增量读取的列(数值或时间类型,单调递增)
+     * @param parallelism
+     * @param rowFunc
+     * @return
+     */
+    public DataStreamSource<T> getDataStream(String query, String splitColumn, int parallelism, SQLRowFunction<T> rowFunc) {
+        assert query != null;
+        assert splitColumn != null;
+        assert rowFunc != null;
+        this.jdbc = this.jdbc == null ? ConfigUtils.getJdbcConf(context.parameter().toMap(), alias) : this.jdbc;
+        JdbcParallelSourceFunction<T> sourceFunction = new JdbcParallelSourceFunction<>(jdbc, query, splitColumn, parallelism, rowFunc, null);
+        DataStreamSource<T> source = context.getJavaEnv().addSource(sourceFunction);
+        source.setParallelism(parallelism);
+        return source;
+    }
+
 }
@@ -83,6 +83,21 @@ public class KafkaSource<T> {
     }
 
     public DataStreamSource<KafkaRecord<T>> getDataStream() {
+        if (com.streamxhub.streamx.flink.core.scala.source.KafkaSource.isSourceApi(this.context, this.property, this.alias)) {
+            org.apache.flink.connector.kafka.source.KafkaSource<KafkaRecord<T>> source = com.streamxhub.streamx.flink.core.scala.source.KafkaSource.getKafkaSource(
+                    this.context,
+                    this.property,
+                    this.topics,
+                    this.alias,
+                    this.deserializer,
+                    null);
+            WatermarkStrategy<KafkaRecord<T>> watermarkStrategy = com.streamxhub.streamx.flink.core.scala.source.KafkaSource.getWatermarkStrategy(
+                    this.context,
+                    this.property,
+                    this.alias,
+                    this.strategy);
+            return context.getJavaEnv().fromSource(source, watermarkStrategy, "KafkaSource-" + this.alias);
+        }
         FlinkKafkaConsumer<KafkaRecord<T>> consumer = com.streamxhub.streamx.flink.core.scala.source.KafkaSource.getSource(
                 this.context,
                 this.property,
@@ -20,11 +20,14 @@
  */
 package com.streamxhub.streamx.flink.core.java.source;
 
+import com.streamxhub.streamx.flink.core.java.function.MongoDocumentFunction;
 import com.streamxhub.streamx.flink.core.java.function.MongoQueryFunction;
 import com.streamxhub.streamx.flink.core.java.function.MongoResultFunction;
 import com.streamxhub.streamx.flink.core.scala.StreamingContext;
+import com.streamxhub.streamx.flink.core.scala.source.MongoParallelSourceFunction;
 import com.streamxhub.streamx.flink.core.scala.source.MongoSourceFunction;
 import org.apache.flink.streaming.api.datastream.DataStreamSource;
+import org.bson.Document;
 
 import java.util.Properties;
 
@@ -45,4 +48,9 @@ public class MongoSource<T> {
         return context.getJavaEnv().addSource(sourceFunction);
     }
 
+    public DataStreamSource<T> getParallelDataStream(String collectionName, int parallelism, Document filter, MongoDocumentFunction<T> function) {
+        MongoParallelSourceFunction<T> sourceFunction = new MongoParallelSourceFunction<>(property, collectionName, parallelism, filter, function, null);
+        return context.getJavaEnv().addSource(sourceFunction).setParallelism(parallelism);
+    }
+
 }
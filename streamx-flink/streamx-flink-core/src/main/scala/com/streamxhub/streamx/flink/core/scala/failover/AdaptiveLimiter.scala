@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.streamxhub.streamx.flink.core.scala.failover
+
+import com.streamxhub.streamx.common.util.Logger
+import org.apache.flink.metrics.{Gauge, MetricGroup}
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+
+object AdaptiveLimiter {
+
+  def apply(conf: ThresholdConf): AdaptiveLimiter = {
+    if (conf.adaptive) {
+      new AdaptiveLimiter(conf.minInFlight, conf.maxInFlight, conf.targetLatency)
+    } else {
+      //not adaptive: never blocks, only the latency is recorded.
+      new AdaptiveLimiter(Int.MaxValue, Int.MaxValue, Long.MaxValue)
+    }
+  }
+
+}
+
+/**
+ * AIMD limit of the concurrent in-flight requests:
+ * when a request succeeds within targetLatency, the limit grows by 1/limit (about +1 per round trip),
+ * when it fails or is slower than targetLatency, the limit is multiplied by backoffRatio, at most once per targetLatency.
+ * the writer threads block in acquire when the limit is reached, the queue fills up and the sink thread
+ * blocks on it, so the backpressure reaches the flink task.
+ */
+class AdaptiveLimiter(minLimit: Int,
+                      maxLimit: Int,
+                      targetLatency: Long,
+                      backoffRatio: Double = 0.5) extends Logger {
+
+  require(minLimit > 0 && minLimit <= maxLimit, s"[StreamX] AdaptiveLimiter: invalid limit range [$minLimit,$maxLimit]")
+
+  private[this] val lock = new ReentrantLock()
+
+  private[this] val available = lock.newCondition()
+
+  @volatile private[this] var limit: Double = math.max(minLimit, maxLimit / 2).toDouble
+
+  @volatile private[this] var inFlight = 0
+
+  private[this] var lastDecrease = 0L
+
+  private[this] val latencies = new LatencyWindow(1024)
+
+  def currentLimit: Int = limit.toInt
+
+  def inFlightRequests: Int = inFlight
+
+  def acquire(): Unit = {
+    lock.lockInterruptibly()
+    try {
+      while (inFlight >= limit.toInt) {
+        available.await(100, TimeUnit.MILLISECONDS)
+      }
+      inFlight += 1
+    } finally {
+      lock.unlock()
+    }
+  }
+
+  /**
+   * @param latency the time of the request in milliseconds
+   * @param success the response code is one of successCode
+   */
+  def release(latency: Long, success: Boolean): Unit = {
+    latencies.add(latency)
+    lock.lock()
+    try {
+      inFlight -= 1
+      if (success && latency <= targetLatency) {
+        limit = math.min(maxLimit.toDouble, limit + 1.0 / limit)
+      } else {
+        val now = System.currentTimeMillis()
+        if (now - lastDecrease > math.min(targetLatency, 1000L)) {
+          lastDecrease = now
+          limit = math.max(minLimit.toDouble, limit * backoffRatio)
+          logDebug(s"AdaptiveLimiter decrease limit to ${limit.toInt}, latency = $latency, success = $success")
+        }
+      }
+      available.signalAll()
+    } finally {
+      lock.unlock()
+    }
+  }
+
+  def registerMetrics(group: MetricGroup): Unit = {
+    group.gauge[Int, Gauge[Int]]("inFlightLimit", new Gauge[Int] {
+      override def getValue: Int = currentLimit
+    })
+    group.gauge[Int, Gauge[Int]]("inFlightRequests", new Gauge[Int] {
+      override def getValue: Int = inFlightRequests
+    })
+    Seq(50, 95, 99).foreach(p => {
+      group.gauge[Long, Gauge[Long]](s"requestLatencyP$p", new Gauge[Long] {
+        override def getValue: Long = latencies.percentile(p)
+      })
+    })
+  }
+
+}
+
+/**
+ * the latest request latencies, the percentile is computed when the metric is reported.
+ */
+class LatencyWindow(capacity: Int) {
+
+  private[this] val samples = new Array[Long](capacity)
+
+  private[this] var count = 0L
+
+  def add(latency: Long): Unit = this.synchronized {
+    samples((count % capacity).toInt) = latency
+    count += 1
+  }
+
+  def percentile(p: Int): Long = {
+    val sorted = this.synchronized {
+      java.util.Arrays.copyOf(samples, math.min(count, capacity.toLong).toInt)
+    }
+    if (sorted.isEmpty) 0L else {
+      java.util.Arrays.sort(sorted)
+      sorted(math.min(sorted.length - 1, (sorted.length * p / 100.0).toInt))
+    }
+  }
+
+}
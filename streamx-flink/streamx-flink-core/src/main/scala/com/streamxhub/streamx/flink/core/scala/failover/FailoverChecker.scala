@@ -28,20 +28,25 @@ import scala.collection.mutable.ListBuffer
 
 case class FailoverChecker(delayTime: Long) extends AutoCloseable with Logger {
 
-  val sinkBuffers: ListBuffer[SinkBuffer] = ListBuffer[SinkBuffer]()
+  val sinkBuffers: ListBuffer[FlushableBuffer] = ListBuffer[FlushableBuffer]()
   val factory: ThreadFactory = ThreadUtils.threadFactory("FailoverChecker")
   val scheduledExecutorService: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(factory)
   scheduledExecutorService.scheduleWithFixedDelay(getTask, delayTime, delayTime, TimeUnit.MILLISECONDS)
   logInfo(s"Build Sink scheduled checker, timeout (microSeconds) = $delayTime")
 
-  def addSinkBuffer(buffer: SinkBuffer): Unit = {
+  def addSinkBuffer(buffer: FlushableBuffer): Unit = {
     this.synchronized(sinkBuffers.add(buffer))
     logDebug(s"Add SinkBuffer, target table = ${buffer.table}")
   }
 
+  def removeSinkBuffer(buffer: FlushableBuffer): Unit = {
+    this.synchronized(sinkBuffers -= buffer)
+    logDebug(s"Remove SinkBuffer, target table = ${buffer.table}")
+  }
+
   def getTask: Runnable = new Runnable {
     override def run(): Unit = {
-      this synchronized {
+      FailoverChecker.this.synchronized {
         logDebug(s"Start checking buffers. Current count of buffers = ${sinkBuffers.size}")
         sinkBuffers.foreach(_.tryAddToQueue())
       }
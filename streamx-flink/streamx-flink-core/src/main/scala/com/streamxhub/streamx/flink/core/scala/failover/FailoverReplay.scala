@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.failover
+
+import com.streamxhub.streamx.common.conf.ConfigConst._
+import com.streamxhub.streamx.common.util.Logger
+import org.apache.hadoop.conf.{Configuration => HConf}
+import org.apache.hadoop.fs.{FileSystem, Path}
+import org.apache.hadoop.io.compress.CompressionCodecFactory
+
+import java.io.{BufferedInputStream, ByteArrayOutputStream, IOException, InputStream}
+import java.nio.charset.StandardCharsets
+import java.util.Properties
+import scala.collection.JavaConversions._
+import scala.util.Try
+
+/**
+ * 将HdfsRollingWriter写入的failover文件重新写入原来的sink.
+ * 处理已经关闭的文件,以及writer异常退出时遗留的.inprogress文件(创建时间早于rollInterval + 2 * flushInterval,不会再被写入),
+ * 按文件扩展名解压,每个文件按batchSize行一批写入,文件的所有批次写入成功之后重命名为 *.replayed,重复执行不会重复写入.
+ * 遗留文件末尾未完整写入的压缩块和没有换行结束的行是未确认保存的数据,被丢弃.
+ * e.g:
+ * {{{
+ *   val replay = new FailoverReplay(clickHouseConf.getFailoverConfig)
+ *   replay.replay("orders", "test.orders", ClickHouseSinkWriter(clickHouseConf))
+ * }}}
+ * ClickHouse RowBinary的批次按行保存为base64的记录(SinkRequest.binaryRecord),重放时拼接为RowBinary的请求写入.
+ */
+class FailoverReplay(properties: Properties) extends AutoCloseable with Logger {
+
+  private[this] val rootPath = properties.getOrElse(KEY_FAILOVER_HDFS_PATH, throw new IllegalArgumentException("[StreamX] failover.hdfs.path must not be null"))
+  private[this] val hConf = new HConf()
+  private[this] val fileSystem: FileSystem = HdfsRollingWriter.fileSystem(properties, hConf)
+  private[this] val codecFactory = new CompressionCodecFactory(hConf)
+  //正在写入的文件最迟在创建之后 rollInterval + flushInterval 滚动
+  private[this] val staleAfter = Try(properties(KEY_FAILOVER_HDFS_ROLL_INTERVAL).toLong).getOrElse(DEFAULT_FAILOVER_HDFS_ROLL_INTERVAL) +
+    2 * Try(properties(KEY_FAILOVER_HDFS_FLUSH_INTERVAL).toLong).getOrElse(DEFAULT_FAILOVER_HDFS_FLUSH_INTERVAL)
+
+  /**
+   * 由SinkWriter写入,每个文件写完之后等待所有的请求完成(写入目标或者再次写入failover),有请求失败时抛出异常,文件保持未重放.
+   *
+   * @param table  failover的目录名(原始表名的最后一段)
+   * @param target 写入的目标表
+   * @return 重放的记录数
+   */
+  def replay(table: String, target: String, writer: SinkWriter, batchSize: Int = DEFAULT_SINK_THRESHOLD_BUFFER_SIZE): Long = {
+    val subtaskWriter = new SubtaskSinkWriter(writer)
+    replay(table, batchSize) { records =>
+      SinkRequest.fromFailover(records, target).foreach(subtaskWriter.write)
+    } { () =>
+      subtaskWriter.flush()
+    }
+  }
+
+  /**
+   * @param batch 每一批的记录
+   * @param fileDone 文件的所有批次都交给batch之后调用,抛出异常时文件保持未重放
+   */
+  def replay(table: String, batchSize: Int)(batch: java.util.List[String] => Unit)(fileDone: () => Unit): Long = {
+    files(new Path(s"$rootPath/$table")).map(path => {
+      val count = read(path, batchSize, batch)
+      fileDone()
+      fileSystem.rename(path, new Path(path.getParent, closedName(path) + FailoverReplay.REPLAYED_SUFFIX))
+      logInfo(s"Failover replay successful, file: $path, size: $count")
+      count
+    }).sum
+  }
+
+  private[this] def files(dir: Path): List[Path] = {
+    if (!fileSystem.exists(dir)) Nil else {
+      val iterator = fileSystem.listFiles(dir, true)
+      val now = System.currentTimeMillis()
+      Iterator.continually(iterator).takeWhile(_.hasNext).map(_.next())
+        .filter(x => !x.getPath.getName.endsWith(FailoverReplay.REPLAYED_SUFFIX))
+        .filter(x => !inProgress(x.getPath) || now - math.max(createTime(x.getPath), x.getModificationTime) > staleAfter)
+        .map(_.getPath)
+        .toList
+        .sortBy(_.toString)
+    }
+  }
+
+  private[this] def inProgress(path: Path): Boolean = path.getName.endsWith(HdfsRollingWriter.IN_PROGRESS_SUFFIX)
+
+  private[this] def closedName(path: Path): String = path.getName.stripSuffix(HdfsRollingWriter.IN_PROGRESS_SUFFIX)
+
+  /**
+   * part-$createTime-$uuid$ext
+   */
+  private[this] def createTime(path: Path): Long = Try(path.getName.split("-")(1).toLong).getOrElse(0L)
+
+  private[this] def read(path: Path, batchSize: Int, batch: java.util.List[String] => Unit): Long = {
+    val in = fileSystem.open(path)
+    val codec = codecFactory.getCodec(new Path(path.getParent, closedName(path)))
+    val reader = new BufferedInputStream(Option(codec).map(_.createInputStream(in)).getOrElse(in))
+    try {
+      var count = 0L
+      var records = new java.util.ArrayList[String](batchSize)
+      lines(reader, inProgress(path)).filter(_.nonEmpty).foreach(line => {
+        records.add(HdfsRollingWriter.unescape(line))
+        if (records.size() >= batchSize) {
+          batch(records)
+          count += records.size()
+          records = new java.util.ArrayList[String](batchSize)
+        }
+      })
+      if (!records.isEmpty) {
+        batch(records)
+        count += records.size()
+      }
+      count
+    } finally {
+      reader.close()
+    }
+  }
+
+  /**
+   * 只返回以换行结束的行,遗留文件读到截断的压缩块时结束.
+   * 按字节读取,截断之前已经解压的行不会因为字符解码的预读而丢失.
+   */
+  private[this] def lines(in: InputStream, truncated: Boolean): Iterator[String] = new Iterator[String] {
+    private[this] val line = new ByteArrayOutputStream()
+    private[this] var nextLine: String = _
+    private[this] var eof = false
+
+    override def hasNext: Boolean = {
+      while (nextLine == null && !eof) {
+        val b = try in.read() catch {
+          case e: IOException if truncated =>
+            logWarn(s"Failover replay: the tail of the unfinished file is dropped, error: $e")
+            -1
+        }
+        if (b == -1) eof = true else if (b == '\n') {
+          nextLine = new String(line.toByteArray, StandardCharsets.UTF_8)
+          line.reset()
+        } else line.write(b)
+      }
+      nextLine != null
+    }
+
+    override def next(): String = {
+      if (!hasNext) throw new NoSuchElementException
+      val current = nextLine
+      nextLine = null
+      current
+    }
+  }
+
+  override def close(): Unit = fileSystem.close()
+
+}
+
+object FailoverReplay {
+
+  val REPLAYED_SUFFIX = ".replayed"
+
+}
@@ -23,19 +23,20 @@ package com.streamxhub.streamx.flink.core.scala.failover
 import com.streamxhub.streamx.common.conf.ConfigConst._
 import com.streamxhub.streamx.common.util._
 import com.streamxhub.streamx.flink.core.scala.failover.FailoverStorageType.{FailoverStorageType, HBase, HDFS, Kafka, MySQL}
-import org.apache.hadoop.conf.{Configuration => HConf}
-import org.apache.hadoop.fs.{FileSystem, Path}
 import org.apache.hadoop.hbase.client.{BufferedMutator, BufferedMutatorParams, Put, RetriesExhaustedWithDetailsException, Connection => HBaseConn}
 import org.apache.hadoop.hbase.util.Bytes
 import org.apache.hadoop.hbase.{HColumnDescriptor, HConstants, HTableDescriptor, TableName}
-import org.apache.hadoop.io.IOUtils
 import org.apache.kafka.clients.producer.{Callback, KafkaProducer, ProducerRecord, RecordMetadata}
 
-import java.io.ByteArrayInputStream
-import java.net.URI
+import java.io.IOException
+import java.sql.Connection
 import java.util._
+import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.locks.ReentrantLock
+import java.util.concurrent.{ArrayBlockingQueue, CountDownLatch, RejectedExecutionException, Semaphore, ThreadPoolExecutor, TimeUnit}
 import scala.collection.JavaConversions._
+import scala.collection.mutable
+import scala.util.Try
 
 
 class FailoverWriter(failoverStorage: FailoverStorageType, properties: Properties) extends AutoCloseable with Logger {
@@ -45,71 +46,152 @@ class FailoverWriter(failoverStorage: FailoverStorageType, properties: Propertie
     val lock = new ReentrantLock()
   }
 
-  private var kafkaProducer: KafkaProducer[String, String] = _
+  @volatile private var kafkaProducer: KafkaProducer[String, String] = _
   private var hConnect: HBaseConn = _
   private var mutator: BufferedMutator = _
-  private var fileSystem: FileSystem = _
+  @volatile private var hdfsWriter: HdfsRollingWriter = _
 
+  /**
+   * kafka: 未确认的请求数的上限,超过时在failover线程中等待inFlightTimeout,仍然没有空闲时该请求失败
+   */
+  private[this] lazy val kafkaMaxInFlight = Try(properties(KEY_FAILOVER_KAFKA_MAX_IN_FLIGHT).toInt).getOrElse(DEFAULT_FAILOVER_KAFKA_MAX_IN_FLIGHT)
+  private[this] lazy val kafkaInFlightTimeout = Try(properties(KEY_FAILOVER_KAFKA_IN_FLIGHT_TIMEOUT).toLong).getOrElse(DEFAULT_FAILOVER_KAFKA_IN_FLIGHT_TIMEOUT)
+  private[this] lazy val kafkaInFlight = new Semaphore(kafkaMaxInFlight)
+  private[this] val kafkaFailedRecords = new AtomicLong(0)
 
-  def write(request: SinkRequest): Unit = {
-    this.synchronized {
-      val table = request.table.split("\\.").last
-      failoverStorage match {
-        case Kafka =>
-          if (!Lock.initialized) {
+  private[this] lazy val jdbcBatchSize = Try(properties(KEY_FAILOVER_JDBC_BATCH_SIZE).toInt).getOrElse(DEFAULT_FAILOVER_JDBC_BATCH_SIZE)
+  private[this] val jdbcTables = mutable.Set.empty[String]
+
+  /**
+   * 同步的存储(mysql,hbase)和需要等待in-flight许可的kafka请求在这个线程中执行,调用线程(通常是HTTP的回调线程)不会被阻塞.
+   * 排队的请求超过queueCapacity时该请求直接失败.
+   */
+  private[this] val queueCapacity = Try(properties(KEY_FAILOVER_QUEUE_CAPACITY).toInt).getOrElse(DEFAULT_FAILOVER_QUEUE_CAPACITY)
+  private[this] val executor = {
+    val executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue[Runnable](queueCapacity), ThreadUtils.threadFactory("Failover-Writer"))
+    executor.allowCoreThreadTimeOut(true)
+    executor
+  }
+
+  /**
+   * 异步写入,数据保存成功(callback的参数为null)或者失败之后回调,调用线程不会被存储的延迟阻塞.
+   * HDFS和Kafka是异步写入,Kafka没有空闲的in-flight许可时在failover线程中等待inFlightTimeout;
+   * 其他存储在failover线程中同步写入之后回调.
+   */
+  def writeAsync(request: SinkRequest)(callback: Throwable => Unit): Unit = {
+    failoverStorage match {
+      case Kafka =>
+        initKafka()
+        if (kafkaInFlight.tryAcquire()) {
+          sendKafka(request)(callback)
+        } else {
+          submit(request, callback) {
+            if (kafkaInFlight.tryAcquire(kafkaInFlightTimeout, TimeUnit.MILLISECONDS)) {
+              sendKafka(request)(callback)
+            } else {
+              callback(new IOException(s"[StreamX] failover kafka in-flight requests exceed $kafkaMaxInFlight, table: ${request.table}, size: ${request.size}"))
+            }
+          }
+        }
+      case HDFS =>
+        if (hdfsWriter == null) {
+          try {
             Lock.lock.lock()
-            if (!Lock.initialized) {
-              Lock.initialized = true
-              //failoverConfig.remove(KEY_KAFKA_TOPIC)
-              properties.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer")
-              properties.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer")
-              kafkaProducer = new KafkaProducer[String, String](properties)
+            if (hdfsWriter == null) {
+              hdfsWriter = new HdfsRollingWriter(properties)
             }
+          } finally {
             Lock.lock.unlock()
           }
-          val topic = properties.getProperty(KEY_KAFKA_TOPIC)
-          val timestamp = System.currentTimeMillis()
-          val records = request.records.map(cleanUp)
-          val sendData =
-            s"""
-               |{
-               |"values":[${records.mkString(",")}],
-               |"timestamp":$timestamp
-               |}
-               |""".stripMargin
-          val record = new ProducerRecord[String, String](topic, sendData)
-          kafkaProducer.send(record, new Callback() {
-            override def onCompletion(recordMetadata: RecordMetadata, e: Exception): Unit = {
-              logInfo(s"Failover successful!! storageType:Kafka,table: $table,size:${request.size}")
-            }
-          }).get()
+        }
+        hdfsWriter.write(request.table.split("\\.").last, request.records)(callback)
+      case _ =>
+        submit(request, callback) {
+          val error = try {
+            write(request)
+            null
+          } catch {
+            case e: Throwable => e
+          }
+          callback(error)
+        }
+    }
+  }
+
+  private[this] def submit(request: SinkRequest, callback: Throwable => Unit)(task: => Unit): Unit = {
+    try {
+      executor.execute(new Runnable {
+        override def run(): Unit = task
+      })
+    } catch {
+      case e: RejectedExecutionException =>
+        callback(new IOException(s"[StreamX] failover queue exceeds $queueCapacity, storageType: $failoverStorage, table: ${request.table}, size: ${request.size}", e))
+    }
+  }
+
+  /**
+   * 已经取得in-flight许可,发送完成(成功或失败)之后归还.
+   */
+  private[this] def sendKafka(request: SinkRequest)(callback: Throwable => Unit): Unit = {
+    val table = request.table.split("\\.").last
+    val topic = properties.getProperty(KEY_KAFKA_TOPIC)
+    try {
+      val record = new ProducerRecord[String, String](topic, kafkaValue(request))
+      kafkaProducer.send(record, new Callback() {
+        override def onCompletion(recordMetadata: RecordMetadata, e: Exception): Unit = {
+          kafkaInFlight.release()
+          if (e == null) {
+            logInfo(s"Failover successful!! storageType:Kafka,table: $table,size:${request.size}")
+          } else {
+            logError(s"Failover storageType:Kafka send failed, table: $table, size: ${request.size}, total failed: ${kafkaFailedRecords.addAndGet(request.size)}", e)
+          }
+          callback(e)
+        }
+      })
+    } catch {
+      //send() throws without calling back(e.g. buffer exhausted after max.block.ms)
+      case e: Throwable =>
+        kafkaInFlight.release()
+        logError(s"Failover storageType:Kafka send failed, table: $table, size: ${request.size}, total failed: ${kafkaFailedRecords.addAndGet(request.size)}", e)
+        callback(e)
+    }
+  }
+
+  def write(request: SinkRequest): Unit = {
+    this.synchronized {
+      val table = request.table.split("\\.").last
+      failoverStorage match {
+        case Kafka => awaitAsync(request)
 
         case MySQL =>
-          if (!Lock.initialized) {
+          val conn = JdbcUtils.getConnection(jdbcProperties)
+          try {
+            createTableIfAbsent(conn, table)
+            val timestamp = System.currentTimeMillis()
+            val autoCommit = conn.getAutoCommit
+            conn.setAutoCommit(false)
+            val statement = conn.prepareStatement(s"INSERT INTO $table(`values`,`timestamp`) VALUES (?,?)")
             try {
-              Lock.lock.lock()
-              Lock.initialized = true
-              properties.put(KEY_ALIAS, s"failover-${table}")
-              val mysqlConnect = JdbcUtils.getConnection(properties)
-              val mysqlTable = mysqlConnect.getMetaData.getTables(null, null, table, Array("TABLE", "VIEW"))
-              if (!mysqlTable.next()) {
-                JdbcUtils.execute(
-                  mysqlConnect,
-                  s"create table $table (`values` text, `timestamp` bigint)"
-                )
-                logWarn(s"Failover storageType:MySQL,table: $table is not exist,auto created...")
-              }
+              request.records.grouped(jdbcBatchSize).foreach(records => {
+                records.foreach(x => {
+                  statement.setString(1, x)
+                  statement.setLong(2, timestamp)
+                  statement.addBatch()
+                })
+                statement.executeBatch()
+              })
+              conn.commit()
+            } catch {
+              case e: Exception =>
+                Try(conn.rollback())
+                throw e
             } finally {
-              Lock.lock.unlock()
+              statement.close()
+              conn.setAutoCommit(autoCommit)
             }
+          } finally {
+            conn.close()
           }
-          val timestamp = System.currentTimeMillis()
-          val records = request.records.map(x => {
-            val v = cleanUp(x)
-            s""" ($v,$timestamp) """.stripMargin
-          })
-          val sql = s"INSERT INTO $table(`values`,`timestamp`) VALUES ${records.mkString(",")} "
-          JdbcUtils.update(sql)(properties)
           logInfo(s"Failover successful!! storageType:MySQL,table: $table,size:${request.size}")
 
         case HBase =>
@@ -143,64 +225,101 @@ class FailoverWriter(failoverStorage: FailoverStorageType, properties: Propertie
             }
           }
           val timestamp = System.currentTimeMillis()
-          for (i <- 0 until request.size) {
+          request.records.zipWithIndex.foreach { case (record, i) =>
             val rowKey = HConstants.LATEST_TIMESTAMP - timestamp - i //you know?...
             val put = new Put(Bytes.toBytes(rowKey))
-              .addColumn(familyName.getBytes, "values".getBytes, Bytes.toBytes(request.records(i)))
+              .addColumn(familyName.getBytes, "values".getBytes, Bytes.toBytes(record))
               .addColumn(familyName.getBytes, "timestamp".getBytes, Bytes.toBytes(timestamp))
             mutator.mutate(put)
           }
           mutator.flush()
 
-        case HDFS =>
-          val path = properties("path")
-          val format = properties.getOrElse("format", DateUtils.foramt_yyyyMMdd)
-          require(path != null)
-          val fileName = s"$path/$table"
-          val rootPath = new Path(s"$fileName/${DateUtils.format(new Date(), format)}")
-          try {
-            if (!Lock.initialized) {
-              try {
-                Lock.lock.lock()
-                if (!Lock.initialized) {
-                  Lock.initialized = true
-                  fileSystem = (Option(properties("namenode")), Option(properties("user"))) match {
-                    case (None, None) => FileSystem.get(new HConf())
-                    case (Some(nn), Some(u)) => FileSystem.get(new URI(nn), new HConf(), u)
-                    case (Some(nn), _) => FileSystem.get(new URI(nn), new HConf())
-                    case _ => throw new IllegalArgumentException("[StreamX] usage error..")
-                  }
-                }
-              } finally {
-                Lock.lock.unlock()
-              }
-            }
-            val uuid = UUID.randomUUID().toString.replace("-", "")
-            val filePath = new Path(s"$rootPath/${System.currentTimeMillis()}_$uuid")
-            var outStream = fileSystem.create(filePath)
-            var record = new StringBuilder
-            request.records.foreach(x => record.append(x).append("\n"))
-            var inputStream = new ByteArrayInputStream(record.toString().getBytes)
-            IOUtils.copyBytes(inputStream, outStream, 1024, true)
-            record.clear()
-            record = null
-            inputStream = null
-            outStream = null
-          } catch {
-            case e: Exception => e.printStackTrace()
-          }
+        case HDFS => awaitAsync(request)
         case _ => throw new UnsupportedOperationException(s"[StreamX] unsupported failover storageType:$failoverStorage")
       }
     }
   }
 
+  private[this] def awaitAsync(request: SinkRequest): Unit = {
+    val latch = new CountDownLatch(1)
+    var error: Throwable = null
+    writeAsync(request)(e => {
+      error = e
+      latch.countDown()
+    })
+    latch.await()
+    if (error != null) throw error
+  }
+
+  private[this] def initKafka(): Unit = {
+    if (kafkaProducer == null) {
+      try {
+        Lock.lock.lock()
+        if (kafkaProducer == null) {
+          val producerProperties = new Properties()
+          producerProperties.putAll(properties)
+          producerProperties.remove(KEY_FAILOVER_KAFKA_MAX_IN_FLIGHT)
+          producerProperties.remove(KEY_FAILOVER_KAFKA_IN_FLIGHT_TIMEOUT)
+          producerProperties.remove(KEY_FAILOVER_QUEUE_CAPACITY)
+          producerProperties.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer")
+          producerProperties.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer")
+          kafkaProducer = new KafkaProducer[String, String](producerProperties)
+        }
+      } finally {
+        Lock.lock.unlock()
+      }
+    }
+  }
+
+  private[this] def kafkaValue(request: SinkRequest): String = {
+    val timestamp = System.currentTimeMillis()
+    val records = request.records.map(cleanUp)
+    s"""
+       |{
+       |"values":[${records.mkString(",")}],
+       |"timestamp":$timestamp
+       |}
+       |""".stripMargin
+  }
+
+  /**
+   * the batch size and the queue capacity are not HikariCP properties, the writers of the same database share one pool.
+   */
+  private[this] lazy val jdbcProperties: Properties = {
+    val jdbcProperties = new Properties()
+    jdbcProperties.putAll(properties)
+    jdbcProperties.remove(KEY_FAILOVER_JDBC_BATCH_SIZE)
+    jdbcProperties.remove(KEY_FAILOVER_QUEUE_CAPACITY)
+    jdbcProperties.put(KEY_ALIAS, s"failover-${properties.getProperty(KEY_JDBC_URL)}-${properties.getProperty(KEY_JDBC_USER)}")
+    jdbcProperties
+  }
+
+  private[this] def createTableIfAbsent(conn: Connection, table: String): Unit = {
+    if (!jdbcTables.contains(table)) {
+      val mysqlTable = conn.getMetaData.getTables(null, null, table, Array("TABLE", "VIEW"))
+      try {
+        if (!mysqlTable.next()) {
+          //JdbcUtils.execute closes the connection, which is still used by the insert.
+          val statement = conn.createStatement()
+          try statement.execute(s"create table if not exists $table (`values` text, `timestamp` bigint)") finally statement.close()
+          logWarn(s"Failover storageType:MySQL,table: $table is not exist,auto created...")
+        }
+      } finally {
+        mysqlTable.close()
+      }
+      jdbcTables += table
+    }
+  }
+
   private[this] def cleanUp(record: String) = {
     s""" "${record.replace("\"", "\\\"")}" """.stripMargin
   }
 
   override def close(): Unit = {
+    //the queued requests are written before the storages are closed
+    ThreadUtils.shutdownExecutorService(executor)
     if (kafkaProducer != null) kafkaProducer.close()
-    if (fileSystem != null) fileSystem.close()
+    if (hdfsWriter != null) hdfsWriter.close()
     if (mutator != null) {
       mutator.flush()
       mutator.close()
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.failover
+
+import com.streamxhub.streamx.common.conf.ConfigConst._
+import com.streamxhub.streamx.common.util.{DateUtils, Logger, ThreadUtils}
+import org.apache.hadoop.conf.{Configuration => HConf}
+import org.apache.hadoop.fs.{FSDataOutputStream, FileSystem, Path}
+import org.apache.hadoop.io.compress.{CompressionCodec, CompressionCodecFactory, CompressionOutputStream}
+
+import java.io.{IOException, OutputStream}
+import java.net.URI
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.{ArrayBlockingQueue, ExecutorService, Executors, TimeUnit}
+import java.util.{Date, Properties, UUID}
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Try
+
+/**
+ * HDFS failover writer.
+ * 失败的数据先进入有界队列,由单独的线程按批写入压缩文件,文件按大小和时间滚动,sink线程不会被HDFS的延迟阻塞.
+ * 文件写入的路径为 $path/$table/$date/part-$time-$uuid$ext, 未关闭的文件以.inprogress结尾.
+ * 每条记录一行,记录里的换行和反斜杠被转义(见escape),所以记录本身可以包含换行.
+ * 每批数据hflush之后才会回调,回调之前的数据不认为已保存.
+ */
+class HdfsRollingWriter(properties: Properties) extends AutoCloseable with Logger {
+
+  private[this] val rootPath = properties.getOrElse(KEY_FAILOVER_HDFS_PATH, throw new IllegalArgumentException("[StreamX] failover.hdfs.path must not be null"))
+  private[this] val format = properties.getOrElse(KEY_FAILOVER_HDFS_FORMAT, DateUtils.foramt_yyyyMMdd)
+  private[this] val rollSize = Try(properties(KEY_FAILOVER_HDFS_ROLL_SIZE).toLong).getOrElse(DEFAULT_FAILOVER_HDFS_ROLL_SIZE)
+  private[this] val rollInterval = Try(properties(KEY_FAILOVER_HDFS_ROLL_INTERVAL).toLong).getOrElse(DEFAULT_FAILOVER_HDFS_ROLL_INTERVAL)
+  private[this] val flushInterval = Try(properties(KEY_FAILOVER_HDFS_FLUSH_INTERVAL).toLong).getOrElse(DEFAULT_FAILOVER_HDFS_FLUSH_INTERVAL)
+  private[this] val queueCapacity = Try(properties(KEY_FAILOVER_HDFS_QUEUE_CAPACITY).toInt).getOrElse(DEFAULT_FAILOVER_HDFS_QUEUE_CAPACITY)
+
+  private[this] val hConf = new HConf()
+  private[this] val fileSystem: FileSystem = HdfsRollingWriter.fileSystem(properties, hConf)
+  private[this] val codec: CompressionCodec = HdfsRollingWriter.codec(properties.getOrElse(KEY_FAILOVER_HDFS_CODEC, DEFAULT_FAILOVER_HDFS_CODEC), hConf)
+
+  private[this] val queue = new ArrayBlockingQueue[HdfsRollingWriter.Entry](queueCapacity)
+  private[this] val buckets = mutable.Map.empty[String, Bucket]
+  @volatile private[this] var running = true
+
+  private[this] val executor: ExecutorService = Executors.newSingleThreadExecutor(ThreadUtils.threadFactory("Failover-HDFS-Writer"))
+  executor.submit(new Runnable {
+    override def run(): Unit = process()
+  })
+
+  /**
+   * 不阻塞调用者,队列已满或writer已关闭时直接以异常回调,由调用者决定重试或者失败.
+   */
+  def write(table: String, records: java.util.List[String])(callback: Throwable => Unit): Unit = {
+    if (!running) {
+      callback(new IOException("[StreamX] failover hdfs writer is closed"))
+    } else if (!queue.offer(HdfsRollingWriter.Entry(table, records, callback))) {
+      callback(new IOException(s"[StreamX] failover hdfs queue is full(capacity:$queueCapacity), table: $table, size: ${records.size}"))
+    }
+  }
+
+  private[this] def process(): Unit = {
+    val batch = new java.util.ArrayList[HdfsRollingWriter.Entry]()
+    try {
+      while (running || !queue.isEmpty) {
+        val head = queue.poll(flushInterval, TimeUnit.MILLISECONDS)
+        if (head != null) {
+          batch.add(head)
+          queue.drainTo(batch)
+          writeBatch(batch)
+          batch.clear()
+        }
+        rollExpired()
+      }
+    } catch {
+      case _: InterruptedException => logWarn("Failover storageType:HDFS writer interrupted")
+    } finally {
+      buckets.values.foreach(x => Try(x.close()).failed.foreach(e => logError(s"Failover storageType:HDFS close file failed, table: ${x.table}", e)))
+      buckets.clear()
+      val remaining = new java.util.ArrayList[HdfsRollingWriter.Entry]()
+      queue.drainTo(remaining)
+      (batch ++ remaining).foreach(x => complete(x, new IOException("[StreamX] failover hdfs writer is closed")))
+    }
+  }
+
+  private[this] def writeBatch(batch: java.util.List[HdfsRollingWriter.Entry]): Unit = {
+    val dir = DateUtils.format(new Date(), format)
+    val touched = new mutable.LinkedHashMap[Bucket, ArrayBuffer[HdfsRollingWriter.Entry]]()
+    batch.foreach(entry => {
+      try {
+        val bucket = bucketOf(entry.table, dir)
+        bucket.write(entry.records)
+        touched.getOrElseUpdate(bucket, ArrayBuffer.empty) += entry
+      } catch {
+        case e: Throwable =>
+          logError(s"Failover storageType:HDFS write failed, table: ${entry.table}, size: ${entry.records.size}", e)
+          val written = touched.keys.filter(_.table == entry.table).toList.flatMap(touched.remove).flatten
+          abort(entry.table, written :+ entry, e)
+      }
+    })
+    touched.foreach {
+      case (bucket, entries) =>
+        val synced = Try(bucket.sync())
+        synced.failed.foreach(e => {
+          logError(s"Failover storageType:HDFS sync failed, table: ${bucket.table}", e)
+          abort(bucket.table, entries, e)
+        })
+        if (synced.isSuccess) {
+          entries.foreach(x => complete(x, null))
+          logInfo(s"Failover successful!! storageType:HDFS,table: ${bucket.table},size:${entries.map(_.records.size).sum}")
+          if (bucket.size >= rollSize) {
+            roll(bucket)
+          }
+        }
+    }
+  }
+
+  private[this] def bucketOf(table: String, dir: String): Bucket = {
+    buckets.get(table) match {
+      //日期变化时滚动到新的目录
+      case Some(bucket) if bucket.dir == dir => bucket
+      case other =>
+        other.foreach(_.close())
+        val bucket = new Bucket(table, dir)
+        buckets.put(table, bucket)
+        bucket
+    }
+  }
+
+  /**
+   * 写入失败时丢弃当前文件(已hflush的数据仍保留在.inprogress文件中),本批次该表的数据全部以异常回调.
+   */
+  private[this] def abort(table: String, entries: Seq[HdfsRollingWriter.Entry], cause: Throwable): Unit = {
+    buckets.remove(table).foreach(x => Try(x.close()))
+    entries.foreach(x => complete(x, cause))
+  }
+
+  private[this] def rollExpired(): Unit = {
+    val now = System.currentTimeMillis()
+    buckets.values.filter(now - _.createTime >= rollInterval).toList.foreach(roll)
+  }
+
+  private[this] def roll(bucket: Bucket): Unit = {
+    Try(bucket.close()).failed.foreach(e => logError(s"Failover storageType:HDFS roll file failed, table: ${bucket.table}", e))
+    if (buckets.get(bucket.table).contains(bucket)) buckets.remove(bucket.table)
+  }
+
+  private[this] def complete(entry: HdfsRollingWriter.Entry, cause: Throwable): Unit = {
+    try entry.callback(cause) catch {
+      case e: Throwable => logError(s"Failover storageType:HDFS callback error, table: ${entry.table}", e)
+    }
+  }
+
+  override def close(): Unit = {
+    running = false
+    ThreadUtils.shutdownExecutorService(executor, math.max(5, (flushInterval / 1000).toInt * 2))
+    fileSystem.close()
+  }
+
+  private[this] class Bucket(val table: String, val dir: String) {
+    val createTime: Long = System.currentTimeMillis()
+    private[this] val name = s"part-$createTime-${UUID.randomUUID().toString.replace("-", "")}${Option(codec).map(_.getDefaultExtension).getOrElse("")}"
+    private[this] val target = new Path(s"$rootPath/$table/$dir/$name")
+    private[this] val inProgress = new Path(s"$rootPath/$table/$dir/$name${HdfsRollingWriter.IN_PROGRESS_SUFFIX}")
+    private[this] val fsOut: FSDataOutputStream = fileSystem.create(inProgress, false)
+    private[this] val cmpOut: CompressionOutputStream = Option(codec).map(_.createOutputStream(fsOut)).orNull
+    private[this] val out: OutputStream = if (cmpOut == null) fsOut else cmpOut
+    private[this] var finished = false
+    private[this] var closed = false
+
+    def write(records: java.util.List[String]): Unit = {
+      if (finished) {
+        cmpOut.resetState()
+        finished = false
+      }
+      records.foreach(x => {
+        out.write(HdfsRollingWriter.escape(x).getBytes(StandardCharsets.UTF_8))
+        out.write('\n')
+      })
+    }
+
+    /**
+     * 压缩流需要先finish才能把压缩器中的数据写出,之后的写入从新的压缩块开始(gzip多member拼接)
+     */
+    def sync(): Unit = if (!closed) {
+      if (cmpOut != null && !finished) {
+        cmpOut.finish()
+        finished = true
+      }
+      fsOut.hflush()
+    }
+
+    def size: Long = fsOut.getPos
+
+    def close(): Unit = if (!closed) {
+      closed = true
+      try {
+        if (cmpOut != null && !finished) cmpOut.finish()
+        out.close()
+      } finally {
+        if (fileSystem.exists(inProgress)) fileSystem.rename(inProgress, target)
+      }
+    }
+  }
+
+}
+
+object HdfsRollingWriter {
+
+  val IN_PROGRESS_SUFFIX = ".inprogress"
+
+  private case class Entry(table: String, records: java.util.List[String], callback: Throwable => Unit)
+
+  /**
+   * 每条记录写成一行: 反斜杠写成两个反斜杠,换行写成反斜杠加'n',FailoverReplay读取时由unescape还原.
+   */
+  def escape(record: String): String = {
+    if (record.indexOf('\n') < 0 && record.indexOf('\\') < 0) record else {
+      val sb = new java.lang.StringBuilder(record.length + 16)
+      record.foreach {
+        case '\\' => sb.append("\\\\")
+        case '\n' => sb.append("\\n")
+        case c => sb.append(c)
+      }
+      sb.toString
+    }
+  }
+
+  def unescape(line: String): String = {
+    if (line.indexOf('\\') < 0) line else {
+      val sb = new java.lang.StringBuilder(line.length)
+      var i = 0
+      while (i < line.length) {
+        val c = line.charAt(i)
+        if (c == '\\' && i + 1 < line.length) {
+          line.charAt(i + 1) match {
+            case 'n' => sb.append('\n')
+            case '\\' => sb.append('\\')
+            case x => sb.append(c).append(x)
+          }
+          i += 2
+        } else {
+          sb.append(c)
+          i += 1
+        }
+      }
+      sb.toString
+    }
+  }
+
+  def fileSystem(properties: Properties, hConf: HConf): FileSystem = {
+    (Option(properties.getProperty(KEY_FAILOVER_HDFS_NAMENODE)), Option(properties.getProperty(KEY_FAILOVER_HDFS_USER))) match {
+      case (None, None) => FileSystem.newInstance(hConf)
+      case (Some(nn), Some(u)) => FileSystem.newInstance(new URI(nn), hConf, u)
+      case (Some(nn), _) => FileSystem.newInstance(new URI(nn), hConf)
+      case _ => throw new IllegalArgumentException("[StreamX] usage error..")
+    }
+  }
+
+  /**
+   * gzip|default|bzip2|snappy|lz4|none 或者 CompressionCodec 的类名
+   */
+  def codec(name: String, hConf: HConf): CompressionCodec = name.trim.toLowerCase match {
+    case "none" | "" => null
+    case _ =>
+      new CompressionCodecFactory(hConf).getCodecByName(name.trim) match {
+        case null => throw new IllegalArgumentException(s"[StreamX] unsupported failover.hdfs.codec:$name")
+        case c => c
+      }
+  }
+
+}
@@ -22,57 +22,172 @@
 package com.streamxhub.streamx.flink.core.scala.failover
 
 import com.streamxhub.streamx.common.util.Logger
+import org.apache.flink.metrics.{Gauge, MetricGroup}
 
 import java.util
-import java.util.Collections
-import java.util.concurrent.CopyOnWriteArrayList
-import scala.collection.JavaConversions._
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong, AtomicReference}
 
 
+/**
+ * buffer checked periodically by FailoverChecker, flushed when it's full or timeout
+ */
+trait FlushableBuffer extends AutoCloseable {
+
+  def table: String
+
+  def tryAddToQueue(): Unit
+
+  /**
+   * hand off all the buffered records to the writer right now, called from the sink thread.
+   */
+  def flush(): Unit
+
+}
+
+/**
+ * single writer(the sink thread) / multi reader(the FailoverChecker) buffer.
+ * records are appended to a preallocated chunk in O(1), a full or timeout chunk is sealed by CAS and
+ * handed to SinkWriter as it is, no copy is made. the sealed chunk belongs to the SinkRequest, a new one is swapped in.
+ */
 case class SinkBuffer(writer: SinkWriter,
                       delayTime: Long,
                       bufferSize: Int,
-                      table: String) extends AutoCloseable with Logger {
+                      table: String,
+                      bufferBytes: Long = Long.MaxValue) extends FlushableBuffer with Logger {
+
+  require(bufferSize > 0, s"[StreamX] SinkBuffer: bufferSize must be greater than 0, but $bufferSize")
+
+  private[this] val current = new AtomicReference[SinkChunk](new SinkChunk(bufferSize))
 
-  private var timestamp = 0L
+  private[this] val flushedBatches = new AtomicLong(0L)
 
-  var localValues = new CopyOnWriteArrayList[String]()
+  private[this] val flushedRecords = new AtomicLong(0L)
 
   def put(value: String): Unit = {
-    tryAddToQueue()
-    localValues.add(value)
-    timestamp = System.currentTimeMillis
+    var done = false
+    while (!done) {
+      val chunk = current.get()
+      chunk.append(value) match {
+        case SinkChunk.APPENDED =>
+          done = true
+          // the batch is bounded by bytes too, one char is counted as one byte
+          if (chunk.addBytes(value.length) >= bufferBytes) {
+            val size = chunk.size
+            if (chunk.seal(size)) addToQueue(chunk, size)
+          }
+        case SinkChunk.FULL =>
+          done = true
+          if (chunk.seal(bufferSize)) addToQueue(chunk, bufferSize)
+        // sealed by FailoverChecker in the meantime, the value was not taken,try the next chunk.
+        case SinkChunk.SEALED => current.compareAndSet(chunk, new SinkChunk(bufferSize))
+      }
+    }
   }
 
-  def tryAddToQueue(): Unit = {
-    this.synchronized {
-      if (flush) {
-        addToQueue()
-      }
+  override def tryAddToQueue(): Unit = {
+    val chunk = current.get()
+    val size = chunk.size
+    if (size > 0 && System.currentTimeMillis - chunk.timestamp > delayTime && chunk.seal(size)) {
+      addToQueue(chunk, size)
     }
   }
 
-  private[this] def addToQueue(): Unit = {
-    val deepCopy = buildDeepCopy(localValues)
-    val params = SinkRequest(deepCopy, table)
+  /**
+   * records waiting in the current chunk
+   */
+  def size: Int = current.get().size
+
+  def registerMetrics(group: MetricGroup): Unit = {
+    group.gauge[Int, Gauge[Int]]("sinkBufferSize", new Gauge[Int] {
+      override def getValue: Int = SinkBuffer.this.size
+    })
+    group.gauge[Double, Gauge[Double]]("sinkBufferOccupancy", new Gauge[Double] {
+      override def getValue: Double = SinkBuffer.this.size.toDouble / bufferSize
+    })
+    group.gauge[Long, Gauge[Long]]("sinkBufferFlushedBatches", new Gauge[Long] {
+      override def getValue: Long = flushedBatches.get()
+    })
+    group.gauge[Long, Gauge[Long]]("sinkBufferFlushedRecords", new Gauge[Long] {
+      override def getValue: Long = flushedRecords.get()
+    })
+  }
+
+  private[this] def addToQueue(chunk: SinkChunk, size: Int): Unit = {
+    current.compareAndSet(chunk, new SinkChunk(bufferSize))
+    val params = SinkRequest(chunk.asList(size), table)
     logDebug(s"Build blank with params: buffer size = ${params.size}, target table  = ${params.table}")
+    flushedBatches.incrementAndGet()
+    flushedRecords.addAndGet(size)
     writer.write(params)
-    localValues.clear()
   }
 
-  private[this] def flush: Boolean = {
-    if (localValues.nonEmpty) {
-      localValues.size >= bufferSize || {
-        if (timestamp == 0) false else {
-          val current = System.currentTimeMillis
-          current - timestamp > delayTime
-        }
+  override def flush(): Unit = {
+    val chunk = current.get()
+    val size = chunk.size
+    if (size > 0 && chunk.seal(size)) addToQueue(chunk, size)
+  }
+
+  override def close(): Unit = flush()
+
+}
+
+object SinkChunk {
+  val APPENDED = 0
+  val FULL = 1
+  val SEALED = 2
+}
+
+/**
+ * state >= 0: the count of published records, only the writer moves it forward.
+ * state < 0: sealed with -(state + 1) records, no record can be appended any more.
+ * the record is stored before the state is published by CAS, so a reader which sees the state sees the records too.
+ */
+private[failover] class SinkChunk(capacity: Int) {
+
+  private[this] val records = new Array[String](capacity)
+
+  private[this] val state = new AtomicInteger(0)
+
+  @volatile private[this] var firstTime = 0L
+
+  //only accessed by the writer
+  private[this] var bytes = 0L
+
+  def timestamp: Long = firstTime
+
+  def addBytes(len: Int): Long = {
+    bytes += len
+    bytes
+  }
+
+  def size: Int = state.get() match {
+    case n if n < 0 => 0
+    case n => n
+  }
+
+  def append(value: String): Int = {
+    val n = state.get()
+    if (n < 0) SinkChunk.SEALED else {
+      records(n) = value
+      if (n == 0) firstTime = System.currentTimeMillis
+      if (!state.compareAndSet(n, n + 1)) SinkChunk.SEALED else {
+        if (n + 1 == capacity) SinkChunk.FULL else SinkChunk.APPENDED
       }
-    } else false
+    }
   }
 
-  private[this] def buildDeepCopy(original: util.List[String]): util.List[String] = Collections.unmodifiableList(new util.ArrayList[String](original))
+  /**
+   * only one of the writer and the checker can seal the chunk with exactly size records, the winner flushes it.
+   */
+  def seal(size: Int): Boolean = state.compareAndSet(size, -(size + 1))
+
+  def asList(count: Int): util.List[String] = new util.AbstractList[String] with util.RandomAccess {
+    override def get(index: Int): String = {
+      if (index < 0 || index >= count) throw new IndexOutOfBoundsException(s"Index: $index, Size: $count")
+      records(index)
+    }
 
-  override def close(): Unit = if (localValues.nonEmpty) addToQueue()
+    override def size(): Int = count
+  }
 
 }
@@ -20,10 +20,132 @@
  */
 package com.streamxhub.streamx.flink.core.scala.failover
 
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataInputStream, DataOutputStream}
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
 import java.util
+import java.util.Base64
+import java.util.zip.{Deflater, DeflaterOutputStream, InflaterInputStream}
+import scala.collection.JavaConversions._
+
+/**
+ * a batch of records waiting to be written.
+ * for binary insert format, the rows are already encoded into body(ready to read, gzip when compressed),
+ * records are the same rows as failover records, only used when the batch goes to failover storage.
+ */
+case class SinkRequest(records: util.List[String],
+                       table: String,
+                       var attemptCounter: Int = 0,
+                       body: ByteBuffer = null,
+                       rows: Int = 0,
+                       compressed: Boolean = false) {
+
+  //the PendingRequests of the subtask which wrote this request
+  @transient private[failover] var owner: PendingRequests = _
 
-case class SinkRequest(records: util.List[String], table: String, var attemptCounter: Int = 0) {
   def incrementCounter(): Unit = attemptCounter += 1
 
-  def size: Int = records.size()
+  /**
+   * written to the target or saved to failover storage
+   */
+  def finish(): Unit = if (owner != null) owner.remove(this)
+
+  /**
+   * neither written to the target nor saved to failover storage
+   */
+  def fail(cause: Throwable): Unit = if (owner != null) owner.fail(this, cause)
+
+  def isBinary: Boolean = body != null
+
+  def size: Int = if (isBinary) rows else records.size()
+
+  /**
+   * the request written to failover storage: one text record for each row, so that it can be replayed.
+   */
+  def toFailover: SinkRequest = if (isBinary) SinkRequest(records, table, attemptCounter) else this
+}
+
+object SinkRequest {
+
+  /**
+   * the failover record of one binary row: the prefix and the base64 of the encoded row.
+   */
+  val BINARY_RECORD_PREFIX = "binary:"
+
+  def binaryRecord(bytes: Array[Byte], offset: Int, length: Int): String = {
+    val row = if (offset == 0 && length == bytes.length) bytes else util.Arrays.copyOfRange(bytes, offset, offset + length)
+    BINARY_RECORD_PREFIX + Base64.getEncoder.encodeToString(row)
+  }
+
+  /**
+   * the requests of the replayed failover records: the text records are one request,
+   * the binary rows are joined into one uncompressed binary request(the binary rows of a batch can be concatenated).
+   */
+  def fromFailover(records: util.List[String], table: String): List[SinkRequest] = {
+    val (binary, text) = records.partition(_.startsWith(BINARY_RECORD_PREFIX))
+    val textRequest = if (text.isEmpty) Nil else List(SinkRequest(new util.ArrayList[String](text), table))
+    val binaryRequest = if (binary.isEmpty) Nil else {
+      val rows = binary.map(x => Base64.getDecoder.decode(x.substring(BINARY_RECORD_PREFIX.length)))
+      val body = ByteBuffer.allocate(rows.map(_.length).sum)
+      rows.foreach(x => body.put(x))
+      body.flip()
+      List(SinkRequest(new util.ArrayList[String](binary), table, body = body, rows = rows.size))
+    }
+    textRequest ++ binaryRequest
+  }
+
+  /**
+   * deflated, length-prefixed bytes of a request, used to keep the unacknowledged requests in the operator state.
+   */
+  def serialize(request: SinkRequest): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream()
+    val out = new DataOutputStream(new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED)))
+    writeBytes(out, request.table.getBytes(StandardCharsets.UTF_8))
+    out.writeBoolean(request.isBinary)
+    if (request.isBinary) {
+      out.writeInt(request.rows)
+      out.writeBoolean(request.compressed)
+      val body = new Array[Byte](request.body.remaining())
+      request.body.duplicate().get(body)
+      writeBytes(out, body)
+    }
+    out.writeInt(request.records.size())
+    val iterator = request.records.iterator()
+    while (iterator.hasNext) {
+      writeBytes(out, iterator.next().getBytes(StandardCharsets.UTF_8))
+    }
+    out.close()
+    bytes.toByteArray
+  }
+
+  def deserialize(bytes: Array[Byte]): SinkRequest = {
+    val in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)))
+    try {
+      val table = new String(readBytes(in), StandardCharsets.UTF_8)
+      val binary = in.readBoolean()
+      val rows = if (binary) in.readInt() else 0
+      val compressed = binary && in.readBoolean()
+      val body = if (binary) ByteBuffer.wrap(readBytes(in)) else null
+      val size = in.readInt()
+      val records = new util.ArrayList[String](size)
+      for (_ <- 0 until size) {
+        records.add(new String(readBytes(in), StandardCharsets.UTF_8))
+      }
+      SinkRequest(records, table, body = body, rows = rows, compressed = compressed)
+    } finally {
+      in.close()
+    }
+  }
+
+  private[this] def writeBytes(out: DataOutputStream, bytes: Array[Byte]): Unit = {
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+
+  private[this] def readBytes(in: DataInputStream): Array[Byte] = {
+    val bytes = new Array[Byte](in.readInt())
+    in.readFully(bytes)
+    bytes
+  }
+
 }
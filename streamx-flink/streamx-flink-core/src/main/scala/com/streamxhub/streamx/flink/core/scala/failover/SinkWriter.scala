@@ -23,7 +23,87 @@ package com.streamxhub.streamx.flink.core.scala.failover
 
 import com.streamxhub.streamx.common.util.Logger
 
+import java.util
+import scala.collection.JavaConversions._
+
 
 trait SinkWriter extends AutoCloseable with Logger {
   def write(request: SinkRequest)
 }
+
+/**
+ * the view of a shared SinkWriter for one subtask,
+ * tracks the requests written by this subtask which are not yet acknowledged by the target or saved to failover storage.
+ */
+class SubtaskSinkWriter(writer: SinkWriter) extends SinkWriter {
+
+  val pendingRequests: PendingRequests = new PendingRequests
+
+  override def write(request: SinkRequest): Unit = {
+    pendingRequests.add(request)
+    writer.write(request)
+  }
+
+  /**
+   * block until all the pending requests of this subtask are finished, used when checkpointing.
+   */
+  def flush(): Unit = pendingRequests.awaitEmpty()
+
+  /**
+   * the shared writer is closed by SinkWriterPool when it's released by the last subtask.
+   */
+  override def close(): Unit = {}
+
+}
+
+class PendingRequests extends Logger {
+
+  //compared by reference, a retried request is the same instance.
+  private[this] val requests = new util.IdentityHashMap[SinkRequest, java.lang.Boolean]()
+
+  def add(request: SinkRequest): Unit = this.synchronized {
+    request.owner = this
+    requests.put(request, java.lang.Boolean.TRUE)
+  }
+
+  def remove(request: SinkRequest): Unit = this.synchronized {
+    requests.remove(request)
+    if (requests.isEmpty) this.notifyAll()
+  }
+
+  @volatile private[this] var failure: Throwable = _
+
+  /**
+   * the request is neither written to the target nor to failover storage,the next checkpoint must fail.
+   */
+  def fail(request: SinkRequest, cause: Throwable): Unit = this.synchronized {
+    if (failure == null) failure = cause
+    remove(request)
+    this.notifyAll()
+  }
+
+  def size: Int = this.synchronized(requests.size())
+
+  /**
+   * the requests are serialized under the lock, a finished request can't release its body in the meantime.
+   */
+  def snapshot[R](func: SinkRequest => R): List[R] = this.synchronized(requests.keySet().map(func).toList)
+
+  def awaitEmpty(): Unit = this.synchronized {
+    val start = System.currentTimeMillis()
+    while (!requests.isEmpty && failure == null) {
+      this.wait(1000)
+      if (!requests.isEmpty) {
+        logInfo(s"Waiting for ${requests.size()} pending requests, elapsed: ${System.currentTimeMillis() - start} ms")
+      }
+    }
+    checkFailure()
+  }
+
+  def checkFailure(): Unit = {
+    if (failure != null) {
+      throw new RuntimeException("[StreamX] some requests are lost, neither written nor saved to failover storage", failure)
+    }
+  }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.streamxhub.streamx.flink.core.scala.failover
+
+import com.streamxhub.streamx.common.util.Logger
+
+import scala.collection.mutable
+
+/**
+ * the writers shared by the subtasks in the same TaskManager, keyed by the target(cluster and table) and the digest of the ThresholdConf.
+ * all the subtasks writing to the same target share one writer(its connections and writer threads) and one FailoverChecker,
+ * each subtask keeps its own buffer. the writer is closed when the last subtask releases it.
+ */
+object SinkWriterPool extends Logger {
+
+  case class SharedWriter[W <: SinkWriter](writer: W, checker: FailoverChecker)
+
+  private[this] val writers = mutable.Map[String, (SharedWriter[_ <: SinkWriter], Int)]()
+
+  def acquire[W <: SinkWriter](key: String, delayTime: Long)(create: => W): SharedWriter[W] = this.synchronized {
+    val (shared, refCount) = writers.getOrElse(key, SharedWriter(create, FailoverChecker(delayTime)) -> 0)
+    writers += key -> (shared, refCount + 1)
+    logInfo(s"SinkWriterPool acquire writer: $key, reference count: ${refCount + 1}")
+    shared.asInstanceOf[SharedWriter[W]]
+  }
+
+  /**
+   * the number of the subtasks using the writer of the key, 0 if there is no such writer.
+   */
+  def referenceCount(key: String): Int = this.synchronized {
+    writers.get(key).map(_._2).getOrElse(0)
+  }
+
+  def size: Int = this.synchronized(writers.size)
+
+  def release(key: String): Unit = this.synchronized {
+    writers.get(key) match {
+      case None => logWarn(s"SinkWriterPool release writer: $key, but it's not found")
+      case Some((shared, 1)) =>
+        writers -= key
+        shared.checker.close()
+        shared.writer.close()
+        logInfo(s"SinkWriterPool release writer: $key, it's closed")
+      case Some((shared, refCount)) =>
+        writers += key -> (shared, refCount - 1)
+        logInfo(s"SinkWriterPool release writer: $key, reference count: ${refCount - 1}")
+    }
+  }
+
+}
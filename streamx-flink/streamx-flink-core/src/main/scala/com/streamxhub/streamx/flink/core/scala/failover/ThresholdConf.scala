@@ -23,6 +23,7 @@ package com.streamxhub.streamx.flink.core.scala.failover
 import com.streamxhub.streamx.common.conf.ConfigConst._
 import com.streamxhub.streamx.common.util.ConfigUtils
 import com.streamxhub.streamx.flink.core.scala.failover.FailoverStorageType.{FailoverStorageType, HBase, HDFS, Kafka, MySQL}
+import org.apache.commons.codec.digest.DigestUtils
 
 import java.util.Properties
 import scala.collection.JavaConversions._
@@ -38,8 +39,26 @@ case class ThresholdConf(parameters: Properties) {
   val successCode: List[Int] = Try(parameters(KEY_SINK_THRESHOLD_SUCCESS_CODE).split(",").map(_.toInt).toList).getOrElse(List(DEFAULT_HTTP_SUCCESS_CODE))
   val numWriters: Int = Try(parameters(KEY_SINK_THRESHOLD_NUM_WRITERS).toInt).getOrElse(DEFAULT_SINK_THRESHOLD_NUM_WRITERS)
   val maxRetries: Int = Try(parameters(KEY_SINK_THRESHOLD_RETRIES).toInt).getOrElse(DEFAULT_SINK_THRESHOLD_RETRIES)
+  val adaptive: Boolean = Try(parameters(KEY_SINK_THRESHOLD_ADAPTIVE).toBoolean).getOrElse(false)
+  /**
+   * the max bytes(chars) of a batch, by default only used in adaptive mode, the batch is flushed when either bufferSize or bufferBytes is reached.
+   */
+  val bufferBytes: Long = Try(parameters(KEY_SINK_THRESHOLD_BUFFER_BYTES).toLong).getOrElse(if (adaptive) DEFAULT_SINK_THRESHOLD_BUFFER_BYTES else Long.MaxValue)
+  val minInFlight: Int = Try(parameters(KEY_SINK_THRESHOLD_MIN_IN_FLIGHT).toInt).getOrElse(DEFAULT_SINK_THRESHOLD_MIN_IN_FLIGHT)
+  val maxInFlight: Int = Try(parameters(KEY_SINK_THRESHOLD_MAX_IN_FLIGHT).toInt).getOrElse(numWriters * 4)
+  val targetLatency: Long = Try(parameters(KEY_SINK_THRESHOLD_TARGET_LATENCY).toLong).getOrElse(timeout / 2L)
+  /**
+   * false: flush and wait for all the in-flight requests when checkpointing.
+   * true: keep the unacknowledged requests in the operator state without waiting, they are sent again after restore.
+   */
+  val persistPending: Boolean = Try(parameters(KEY_SINK_THRESHOLD_PERSIST_PENDING).toBoolean).getOrElse(false)
   val storageType: FailoverStorageType = FailoverStorageType.get(parameters.getOrElse(KEY_SINK_FAILOVER_STORAGE, throw new IllegalArgumentException(s"[StreamX] usage error! failover.storage muse be not null! ")))
 
+  /**
+   * digest of all the parameters, the subtasks share a writer only when their thresholds and failover settings are the same.
+   */
+  lazy val digest: String = DigestUtils.md5Hex(parameters.toSeq.sortBy(_._1).map(x => s"${x._1}=${x._2}").mkString("\n"))
+
   def getFailoverConfig: Properties = {
     storageType match {
       case Kafka => ConfigUtils.getConf(parameters.toMap.asJava, "failover.kafka.")
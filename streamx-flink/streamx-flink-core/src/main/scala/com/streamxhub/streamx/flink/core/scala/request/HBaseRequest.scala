@@ -21,19 +21,27 @@
 package com.streamxhub.streamx.flink.core.scala.request
 
 
-import com.streamxhub.streamx.common.util.{Logger, Utils}
+import com.streamxhub.streamx.common.conf.ConfigConst._
+import com.streamxhub.streamx.common.util.{HBaseClient, Logger, Utils}
 import com.streamxhub.streamx.flink.core.java.wrapper.HBaseQuery
+import com.streamxhub.streamx.flink.core.scala.failover.LatencyWindow
 import org.apache.flink.api.common.typeinfo.TypeInformation
 import org.apache.flink.configuration.Configuration
+import org.apache.flink.metrics.Gauge
 import org.apache.flink.streaming.api.scala._
 import org.apache.flink.streaming.api.scala.async.{ResultFuture, RichAsyncFunction}
-import org.apache.hadoop.hbase.client.{Result, ResultScanner, Table}
+import org.apache.hadoop.hbase.TableName
+import org.apache.hadoop.hbase.client.{Operation, Result, Table}
 
 import java.util.Properties
-import java.util.concurrent.{CompletableFuture, ExecutorService, Executors, TimeUnit}
-import java.util.function.{Consumer, Supplier}
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent._
+import java.util.function.{BiConsumer, Supplier}
 import scala.annotation.meta.param
+import scala.annotation.tailrec
 import scala.collection.JavaConversions._
+import scala.collection.concurrent
+import scala.util.{Failure, Success, Try}
 
 object HBaseRequest {
 
@@ -50,13 +58,14 @@ class HBaseRequest[T: TypeInformation](@(transient@param) private val stream: Da
    * @param resultFunc
    * @param timeout
    * @param capacity
+   * @param cache     查询结果的缓存,为null时不缓存,batchSize > 1时未命中的Get合并成multi-Get
    * @param prop
    * @tparam R
    * @return
    */
-  def requestOrdered[R: TypeInformation](queryFunc: T => HBaseQuery, resultFunc: (T, Result) => R, timeout: Long = 1000, capacity: Int = 10)(implicit prop: Properties): DataStream[R] = {
+  def requestOrdered[R: TypeInformation](queryFunc: T => HBaseQuery, resultFunc: (T, Result) => R, timeout: Long = 1000, capacity: Int = 10, cache: LookupCacheConf = null)(implicit prop: Properties): DataStream[R] = {
     Utils.copyProperties(property, prop)
-    val async = new HBaseAsyncFunction[T, R](prop, queryFunc, resultFunc, capacity)
+    val async = new HBaseAsyncFunction[T, R](prop, queryFunc, resultFunc, capacity, cache)
     AsyncDataStream.orderedWait(stream, async, timeout, TimeUnit.MILLISECONDS, capacity)
   }
 
@@ -66,39 +75,65 @@ class HBaseRequest[T: TypeInformation](@(transient@param) private val stream: Da
    * @param resultFunc
    * @param timeout
    * @param capacity
+   * @param cache     查询结果的缓存,为null时不缓存,batchSize > 1时未命中的Get合并成multi-Get
    * @param prop
    * @tparam R
    * @return
    */
-  def requestUnordered[R: TypeInformation](queryFunc: T => HBaseQuery, resultFunc: (T, Result) => R, timeout: Long = 1000, capacity: Int = 10)(implicit prop: Properties): DataStream[R] = {
+  def requestUnordered[R: TypeInformation](queryFunc: T => HBaseQuery, resultFunc: (T, Result) => R, timeout: Long = 1000, capacity: Int = 10, cache: LookupCacheConf = null)(implicit prop: Properties): DataStream[R] = {
     Utils.copyProperties(property, prop)
-    val async = new HBaseAsyncFunction[T, R](prop, queryFunc, resultFunc, capacity)
+    val async = new HBaseAsyncFunction[T, R](prop, queryFunc, resultFunc, capacity, cache)
     AsyncDataStream.unorderedWait(stream, async, timeout, TimeUnit.MILLISECONDS, capacity)
   }
 
 }
 
-class HBaseAsyncFunction[T: TypeInformation, R: TypeInformation](prop: Properties, queryFunc: T => HBaseQuery, resultFunc: (T, Result) => R, capacity: Int) extends RichAsyncFunction[T, R] with Logger {
-  @transient private[this] var table: Table = _
+/**
+ * 整个operator共用一个HBase Connection,表名只解析一次,每次查询从Connection获取轻量的Table(HBase 1.x的HTable不是线程安全的),用完即关闭.
+ * Get查询直接使用table.get,查询失败时按hbase.lookup.backoff指数退避重试hbase.lookup.retries次.
+ */
+class HBaseAsyncFunction[T: TypeInformation, R: TypeInformation](prop: Properties, queryFunc: T => HBaseQuery, resultFunc: (T, Result) => R, capacity: Int, cacheConf: LookupCacheConf = null) extends RichAsyncFunction[T, R] with Logger {
+  @transient private[this] var client: HBaseClient = _
+  @transient private[this] var tableNames: concurrent.Map[String, TableName] = _
   @transient private[this] var executorService: ExecutorService = _
+  @transient private[this] var cache: LookupCache[HBaseLookupKey, List[Result]] = _
+  @transient private[this] var inFlight: AtomicInteger = _
+  @transient private[this] var latencies: LatencyWindow = _
+
+  private[this] val maxRetries = Try(prop.remove(KEY_HBASE_LOOKUP_RETRIES).toString.toInt).getOrElse(DEFAULT_HBASE_LOOKUP_RETRIES)
+  private[this] val backoff = Try(prop.remove(KEY_HBASE_LOOKUP_BACKOFF).toString.toLong).getOrElse(DEFAULT_HBASE_LOOKUP_BACKOFF)
 
   override def open(parameters: Configuration): Unit = {
     super.open(parameters)
+    client = HBaseClient(prop)
+    tableNames = new ConcurrentHashMap[String, TableName]()
     executorService = Executors.newFixedThreadPool(capacity)
+    inFlight = new AtomicInteger(0)
+    latencies = new LatencyWindow(1024)
+    val group = getRuntimeContext.getMetricGroup
+    group.gauge[Int, Gauge[Int]]("hbaseInFlightRequests", new Gauge[Int] {
+      override def getValue: Int = inFlight.get()
+    })
+    Seq(50, 95, 99).foreach(p => {
+      group.gauge[Long, Gauge[Long]](s"hbaseRequestLatencyP$p", new Gauge[Long] {
+        override def getValue: Long = latencies.percentile(p)
+      })
+    })
+    if (cacheConf != null) {
+      cache = new LookupCache[HBaseLookupKey, List[Result]](cacheConf, _.isEmpty, key => query(key.query), batchQuery, Nil)
+      cache.registerMetrics(group)
+    }
   }
 
   override def asyncInvoke(input: T, resultFuture: async.ResultFuture[R]): Unit = {
-    CompletableFuture.supplyAsync(new Supplier[ResultScanner]() {
-      override def get(): ResultScanner = {
-        val query = queryFunc(input)
-        require(query != null && query.getTable != null, "[StreamX] HBaseRequest query and query's attr table must be not null ")
-        table = query.getTable(prop)
-        table.getScanner(query)
-      }
-    }, executorService).thenAccept(new Consumer[ResultScanner] {
-      override def accept(result: ResultScanner): Unit = {
-        val list = result.toList
-        if (list.isEmpty) {
+    val hbaseQuery = queryFunc(input)
+    require(hbaseQuery != null && hbaseQuery.getTable != null, "[StreamX] HBaseRequest query and query's attr table must be not null ")
+    val future = if (cache == null) query(hbaseQuery) else cache.get(HBaseLookupKey(hbaseQuery))
+    future.whenComplete(new BiConsumer[List[Result], Throwable] {
+      override def accept(list: List[Result], error: Throwable): Unit = {
+        if (error != null) {
+          resultFuture.completeExceptionally(error)
+        } else if (list.isEmpty) {
           resultFuture.complete(List(resultFunc(input, Result.EMPTY_RESULT)))
         } else {
           resultFuture.complete(list.map(r => resultFunc(input, r)))
@@ -107,16 +142,99 @@ class HBaseAsyncFunction[T: TypeInformation, R: TypeInformation](prop: Propertie
     })
   }
 
+  private[this] def query(query: HBaseQuery): CompletableFuture[List[Result]] = request {
+    withTable(query.getTable)(table => {
+      query.getGet match {
+        case null =>
+          val scanner = table.getScanner(query)
+          try scanner.toList finally scanner.close()
+        case get =>
+          val result = table.get(get)
+          if (result == null || result.isEmpty) Nil else List(result)
+      }
+    })
+  }
+
+  /**
+   * 同一个表的Get合并成一次multi-Get,Scan逐个查询
+   */
+  private[this] def batchQuery(keys: Seq[HBaseLookupKey]): CompletableFuture[Map[HBaseLookupKey, List[Result]]] = request {
+    keys.groupBy(_.query.getTable).flatMap { case (name, group) =>
+      withTable(name)(table => {
+        val (gets, scans) = group.partition(_.query.getGet != null)
+        val getResults = if (gets.isEmpty) Nil else {
+          val results = table.get(gets.map(_.query.getGet).toList)
+          gets.zip(results).map { case (key, result) => key -> (if (result == null || result.isEmpty) Nil else List(result)) }
+        }
+        val scanResults = scans.map(key => {
+          val scanner = table.getScanner(key.query)
+          try key -> scanner.toList finally scanner.close()
+        })
+        getResults ++ scanResults
+      })
+    }
+  }
+
+  private[this] def request[V](func: => V): CompletableFuture[V] = {
+    inFlight.incrementAndGet()
+    val start = System.currentTimeMillis()
+    val future = CompletableFuture.supplyAsync(new Supplier[V]() {
+      override def get(): V = retry(0)(func)
+    }, executorService)
+    future.whenComplete(new BiConsumer[V, Throwable] {
+      override def accept(value: V, error: Throwable): Unit = {
+        inFlight.decrementAndGet()
+        latencies.add(System.currentTimeMillis() - start)
+      }
+    })
+    future
+  }
+
+  @tailrec private[this] def retry[V](attempt: Int)(func: => V): V = {
+    Try(func) match {
+      case Success(value) => value
+      case Failure(e) if attempt < maxRetries =>
+        val sleep = backoff << attempt
+        logWarn(s"HBaseASync request error, retry after $sleep ms, attempt: ${attempt + 1}, error: ${e.getMessage}")
+        Thread.sleep(sleep)
+        retry(attempt + 1)(func)
+      case Failure(e) => throw e
+    }
+  }
+
+  private[this] def withTable[V](name: String)(func: Table => V): V = {
+    val table = client.connection.getTable(tableNames.getOrElseUpdate(name, TableName.valueOf(name)))
+    try func(table) finally table.close()
+  }
+
+  /**
+   * 查询本身已经有限次地重试过,超时不再无限重新查询
+   */
   override def timeout(input: T, resultFuture: ResultFuture[R]): Unit = {
-    logWarn("HBaseASync request timeout. retrying... ")
-    asyncInvoke(input, resultFuture)
+    logWarn("HBaseASync request timeout.")
+    resultFuture.completeExceptionally(new TimeoutException("[StreamX] HBaseASync request timeout"))
   }
 
   override def close(): Unit = {
     super.close()
-    table.close()
-    if (!executorService.isShutdown) {
+    if (cache != null) cache.close()
+    if (executorService != null && !executorService.isShutdown) {
       executorService.shutdown()
     }
+    if (client != null) Try(client.connection.close())
+  }
+}
+
+/**
+ * 缓存的key,以表名和查询条件的json为准
+ */
+case class HBaseLookupKey(id: String)(val query: HBaseQuery)
+
+object HBaseLookupKey {
+
+  def apply(query: HBaseQuery): HBaseLookupKey = {
+    val operation: Operation = if (query.getGet != null) query.getGet else query
+    HBaseLookupKey(s"${query.getTable}|${operation.toJSON}")(query)
   }
+
 }
@@ -33,9 +33,9 @@ import org.apache.flink.configuration.Configuration
 import org.apache.flink.streaming.api.scala.async.{ResultFuture, RichAsyncFunction}
 import org.apache.flink.streaming.api.scala.{AsyncDataStream, DataStream}
 
-import java.util.{Collections, Properties}
-import java.util.concurrent.{CompletableFuture, ExecutorService, Executors, TimeUnit}
-import java.util.function.{Consumer, Supplier}
+import java.util.Properties
+import java.util.concurrent.{CompletableFuture, ExecutorService, Executors, TimeUnit, TimeoutException}
+import java.util.function.{BiConsumer, Supplier, Function => JavaFunction}
 import javax.sql.DataSource
 import scala.annotation.meta.param
 import scala.collection.JavaConversions._
@@ -53,21 +53,105 @@ class JdbcRequest[T: TypeInformation](@(transient@param) private val stream: Dat
    *
    * @param sqlFun
    * @param jdbc
+   * @param cache 查询结果的缓存,以sql为key,为null时不缓存
    * @tparam R
    * @return
    */
-  def requestOrdered[R: TypeInformation](@(transient@param) sqlFun: T => String, @(transient@param) resultFun: (T, Map[String, _]) => R, timeout: Long = 1000, capacity: Int = 10)(implicit jdbc: Properties): DataStream[R] = {
+  def requestOrdered[R: TypeInformation](@(transient@param) sqlFun: T => String, @(transient@param) resultFun: (T, Map[String, _]) => R, timeout: Long = 1000, capacity: Int = 10, cache: LookupCacheConf = null)(implicit jdbc: Properties): DataStream[R] = {
     Utils.copyProperties(property, jdbc)
-    val async = new JdbcASyncClientFunction[T, R](sqlFun, resultFun, jdbc)
+    val async = new JdbcASyncClientFunction[T, R](sqlFun, resultFun, jdbc, cache)
     AsyncDataStream.orderedWait(stream, async, timeout, TimeUnit.MILLISECONDS, capacity)
   }
 
-  def requestUnordered[R: TypeInformation](@(transient@param) sqlFun: T => String, @(transient@param) resultFun: (T, Map[String, _]) => R, timeout: Long = 1000, capacity: Int = 10)(implicit jdbc: Properties): DataStream[R] = {
+  def requestUnordered[R: TypeInformation](@(transient@param) sqlFun: T => String, @(transient@param) resultFun: (T, Map[String, _]) => R, timeout: Long = 1000, capacity: Int = 10, cache: LookupCacheConf = null)(implicit jdbc: Properties): DataStream[R] = {
     Utils.copyProperties(property, jdbc)
-    val async = new JdbcASyncClientFunction[T, R](sqlFun, resultFun, jdbc)
+    val async = new JdbcASyncClientFunction[T, R](sqlFun, resultFun, jdbc, cache)
     AsyncDataStream.unorderedWait(stream, async, timeout, TimeUnit.MILLISECONDS, capacity)
   }
 
+  /**
+   * 按key查询,结果按key缓存,未命中的多个key合并成一个查询(cache.batchSize > 1)
+   *
+   * @param keyFun    维表的key
+   * @param sqlFun    多个key的查询,e.g: keys => s"select * from t_user where id in (${keys.mkString(",")})"
+   * @param rowKeyFun 查询结果的一行对应的key
+   * @param resultFun
+   * @param cache
+   * @param timeout
+   * @param capacity
+   * @param jdbc
+   * @tparam K
+   * @tparam R
+   * @return
+   */
+  def batchRequestOrdered[K, R: TypeInformation](@(transient@param) keyFun: T => K, @(transient@param) sqlFun: Iterable[K] => String, @(transient@param) rowKeyFun: Map[String, _] => K, @(transient@param) resultFun: (T, Map[String, _]) => R, cache: LookupCacheConf = LookupCacheConf(batchSize = 100), timeout: Long = 1000, capacity: Int = 100)(implicit jdbc: Properties): DataStream[R] = {
+    Utils.copyProperties(property, jdbc)
+    val async = new JdbcBatchASyncClientFunction[T, K, R](keyFun, sqlFun, rowKeyFun, resultFun, jdbc, cache)
+    AsyncDataStream.orderedWait(stream, async, timeout, TimeUnit.MILLISECONDS, capacity)
+  }
+
+  def batchRequestUnordered[K, R: TypeInformation](@(transient@param) keyFun: T => K, @(transient@param) sqlFun: Iterable[K] => String, @(transient@param) rowKeyFun: Map[String, _] => K, @(transient@param) resultFun: (T, Map[String, _]) => R, cache: LookupCacheConf = LookupCacheConf(batchSize = 100), timeout: Long = 1000, capacity: Int = 100)(implicit jdbc: Properties): DataStream[R] = {
+    Utils.copyProperties(property, jdbc)
+    val async = new JdbcBatchASyncClientFunction[T, K, R](keyFun, sqlFun, rowKeyFun, resultFun, jdbc, cache)
+    AsyncDataStream.unorderedWait(stream, async, timeout, TimeUnit.MILLISECONDS, capacity)
+  }
+
+}
+
+object JdbcASyncClient {
+
+  def create(jdbc: Properties): SQLClient = {
+    System.getProperties().setProperty(DISABLE_DNS_RESOLVER_PROP_NAME, "true")
+    val clientConfig = new JsonObject()
+    jdbc.foreach(x => clientConfig.put(x._1, x._2))
+    clientConfig.remove(KEY_ALIAS)
+    clientConfig.remove(KEY_SEMANTIC)
+    //使用HikariCP连接池.
+    clientConfig.put("provider_class", classOf[HikariCPDataSourceProvider].getName)
+    val vertxOpts = new VertxOptions()
+    val vertx = Vertx.vertx(vertxOpts)
+    JDBCClient.createNonShared(vertx, clientConfig)
+  }
+
+  def query(client: SQLClient, sql: String): CompletableFuture[List[Map[String, _]]] = {
+    val future = new CompletableFuture[List[Map[String, _]]]()
+    client.getConnection(new Handler[AsyncResult[SQLConnection]]() {
+      def handle(asyncResult: AsyncResult[SQLConnection]): Unit = {
+        if (asyncResult.succeeded()) {
+          val connection = asyncResult.result()
+          connection.query(sql, new Handler[AsyncResult[ResultSet]] {
+            override def handle(event: AsyncResult[ResultSet]): Unit = {
+              //查询结束后再归还连接
+              connection.close()
+              if (event.succeeded) {
+                future.complete(event.result().getRows().map(_.getMap.asScala.toMap).toList)
+              } else {
+                future.completeExceptionally(event.cause())
+              }
+            }
+          })
+        } else {
+          future.completeExceptionally(asyncResult.cause())
+        }
+      }
+    })
+    future
+  }
+
+  def complete[T, R](input: T, rows: CompletableFuture[List[Map[String, _]]], resultFunc: (T, Map[String, _]) => R, resultFuture: ResultFuture[R]): Unit = {
+    rows.whenComplete(new BiConsumer[List[Map[String, _]], Throwable] {
+      override def accept(list: List[Map[String, _]], error: Throwable): Unit = {
+        if (error != null) {
+          resultFuture.completeExceptionally(error)
+        } else if (list.isEmpty) {
+          resultFuture.complete(List(resultFunc(input, Map.empty[String, Any])))
+        } else {
+          resultFuture.complete(list.map(x => resultFunc(input, x)))
+        }
+      }
+    })
+  }
+
 }
 
 /**
@@ -76,61 +160,97 @@ class JdbcRequest[T: TypeInformation](@(transient@param) private val stream: Dat
  * @param sqlFun
  * @param resultFun
  * @param jdbc
+ * @param cacheConf 为null时不缓存
  * @tparam T
  * @tparam R
  */
 
-class JdbcASyncClientFunction[T: TypeInformation, R: TypeInformation](sqlFun: T => String, resultFunc: (T, Map[String, _]) => R, jdbc: Properties) extends RichAsyncFunction[T, R] with Logger {
+class JdbcASyncClientFunction[T: TypeInformation, R: TypeInformation](sqlFun: T => String, resultFunc: (T, Map[String, _]) => R, jdbc: Properties, cacheConf: LookupCacheConf = null) extends RichAsyncFunction[T, R] with Logger {
 
   @transient private[this] var client: SQLClient = _
+  @transient private[this] var cache: LookupCache[String, List[Map[String, _]]] = _
 
   override def open(parameters: Configuration): Unit = {
     super.open(parameters)
-    System.getProperties().setProperty(DISABLE_DNS_RESOLVER_PROP_NAME, "true")
-    val clientConfig = new JsonObject()
-    jdbc.foreach(x => clientConfig.put(x._1, x._2))
-    clientConfig.remove(KEY_ALIAS)
-    clientConfig.remove(KEY_SEMANTIC)
-    //使用HikariCP连接池.
-    clientConfig.put("provider_class", classOf[HikariCPDataSourceProvider].getName)
-    val vertxOpts = new VertxOptions()
-    val vertx = Vertx.vertx(vertxOpts)
-    client = JDBCClient.createNonShared(vertx, clientConfig)
+    client = JdbcASyncClient.create(jdbc)
+    if (cacheConf != null) {
+      cache = new LookupCache[String, List[Map[String, _]]](cacheConf, _.isEmpty, sql => JdbcASyncClient.query(client, sql))
+      cache.registerMetrics(getRuntimeContext.getMetricGroup)
+    }
   }
 
   override def close(): Unit = {
     super.close()
+    if (cache != null) cache.close()
     client.close()
   }
 
   @throws[Exception] def asyncInvoke(input: T, resultFuture: ResultFuture[R]): Unit = {
-    client.getConnection(new Handler[AsyncResult[SQLConnection]]() {
-      def handle(asyncResult: AsyncResult[SQLConnection]): Unit = {
-        if (asyncResult.succeeded()) {
-          asyncResult
-            .result()
-            .query(sqlFun(input), new Handler[AsyncResult[ResultSet]] {
-              override def handle(event: AsyncResult[ResultSet]): Unit = {
-                if (event.succeeded) {
-                  val list = event.result().getRows()
-                  if (list.isEmpty) {
-                    resultFuture.complete(Collections.singleton(resultFunc(input, Map.empty[String, R])))
-                  } else {
-                    resultFuture.complete(list.map(x => resultFunc(input, x.getMap.asScala.toMap)))
-                  }
-                } else throw event.cause()
-              }
-            }).close()
-        } else {
-          throw asyncResult.cause()
-        }
-      }
-    })
+    val sql = sqlFun(input)
+    val rows = if (cache == null) JdbcASyncClient.query(client, sql) else cache.get(sql)
+    JdbcASyncClient.complete(input, rows, resultFunc, resultFuture)
   }
 
   override def timeout(input: T, resultFuture: ResultFuture[R]): Unit = {
-    logWarn("JdbcASyncClient request timeout. retrying... ")
-    asyncInvoke(input, resultFuture)
+    logWarn("JdbcASyncClient request timeout.")
+    resultFuture.completeExceptionally(new TimeoutException("[StreamX] JdbcASyncClient request timeout"))
+  }
+
+}
+
+/**
+ * 按key查询并缓存,未命中的key合并成一个查询
+ *
+ * @param keyFun
+ * @param sqlFun
+ * @param rowKeyFun
+ * @param resultFunc
+ * @param jdbc
+ * @param cacheConf
+ * @tparam T
+ * @tparam K
+ * @tparam R
+ */
+class JdbcBatchASyncClientFunction[T: TypeInformation, K, R: TypeInformation](keyFun: T => K,
+                                                                              sqlFun: Iterable[K] => String,
+                                                                              rowKeyFun: Map[String, _] => K,
+                                                                              resultFunc: (T, Map[String, _]) => R,
+                                                                              jdbc: Properties,
+                                                                              cacheConf: LookupCacheConf) extends RichAsyncFunction[T, R] with Logger {
+
+  require(cacheConf != null, "[StreamX] JdbcBatchASyncClient cacheConf can not be null")
+
+  @transient private[this] var client: SQLClient = _
+  @transient private[this] var cache: LookupCache[K, List[Map[String, _]]] = _
+
+  override def open(parameters: Configuration): Unit = {
+    super.open(parameters)
+    client = JdbcASyncClient.create(jdbc)
+    cache = new LookupCache[K, List[Map[String, _]]](
+      cacheConf,
+      _.isEmpty,
+      key => JdbcASyncClient.query(client, sqlFun(List(key))),
+      keys => JdbcASyncClient.query(client, sqlFun(keys)).thenApply(new JavaFunction[List[Map[String, _]], Map[K, List[Map[String, _]]]] {
+        override def apply(rows: List[Map[String, _]]): Map[K, List[Map[String, _]]] = rows.groupBy(rowKeyFun)
+      }),
+      Nil
+    )
+    cache.registerMetrics(getRuntimeContext.getMetricGroup)
+  }
+
+  override def close(): Unit = {
+    super.close()
+    if (cache != null) cache.close()
+    client.close()
+  }
+
+  @throws[Exception] def asyncInvoke(input: T, resultFuture: ResultFuture[R]): Unit = {
+    JdbcASyncClient.complete(input, cache.get(keyFun(input)), resultFunc, resultFuture)
+  }
+
+  override def timeout(input: T, resultFuture: ResultFuture[R]): Unit = {
+    logWarn("JdbcBatchASyncClient request timeout.")
+    resultFuture.completeExceptionally(new TimeoutException("[StreamX] JdbcBatchASyncClient request timeout"))
   }
 
 }
@@ -141,47 +261,49 @@ class JdbcASyncClientFunction[T: TypeInformation, R: TypeInformation](sqlFun: T
  * @param sqlFun
  * @param resultFun
  * @param jdbc
+ * @param cacheConf 为null时不缓存
  * @tparam T
  * @tparam R
  */
 
-class JdbcASyncFunction[T: TypeInformation, R: TypeInformation](sqlFun: T => String, resultFun: (T, Map[String, _]) => R, jdbc: Properties, capacity: Int = 10) extends RichAsyncFunction[T, R] with Logger {
+class JdbcASyncFunction[T: TypeInformation, R: TypeInformation](sqlFun: T => String, resultFun: (T, Map[String, _]) => R, jdbc: Properties, capacity: Int = 10, cacheConf: LookupCacheConf = null) extends RichAsyncFunction[T, R] with Logger {
 
   @transient private[this] var executorService: ExecutorService = _
+  @transient private[this] var cache: LookupCache[String, List[Map[String, _]]] = _
 
   override def open(parameters: Configuration): Unit = {
     super.open(parameters)
     executorService = Executors.newFixedThreadPool(capacity)
+    if (cacheConf != null) {
+      cache = new LookupCache[String, List[Map[String, _]]](cacheConf, _.isEmpty, query)
+      cache.registerMetrics(getRuntimeContext.getMetricGroup)
+    }
   }
 
   override def close(): Unit = {
     super.close()
+    if (cache != null) cache.close()
     if (!executorService.isShutdown) {
       executorService.shutdown()
     }
   }
 
+  private[this] def query(sql: String): CompletableFuture[List[Map[String, _]]] = {
+    CompletableFuture.supplyAsync(new Supplier[List[Map[String, _]]] {
+      override def get(): List[Map[String, _]] = JdbcUtils.select(sql)(jdbc)
+    }, executorService)
+  }
+
   @throws[Exception]
   def asyncInvoke(input: T, resultFuture: ResultFuture[R]): Unit = {
-
-    CompletableFuture.supplyAsync(new Supplier[Iterable[Map[String, _]]] {
-      override def get(): Iterable[Map[String, _]] = JdbcUtils.select(sqlFun(input))(jdbc)
-    }, executorService).thenAccept(new Consumer[Iterable[Map[String, _]]] {
-      override def accept(result: Iterable[Map[String, _]]): Unit = {
-        val list = result.toList
-        if (list.isEmpty) {
-          resultFuture.complete(List(resultFun(input, Map.empty[String, Any])))
-        } else {
-          resultFuture.complete(list.map(x => resultFun(input, x)))
-        }
-      }
-    })
-
+    val sql = sqlFun(input)
+    val rows = if (cache == null) query(sql) else cache.get(sql)
+    JdbcASyncClient.complete(input, rows, resultFun, resultFuture)
   }
 
   override def timeout(input: T, resultFuture: ResultFuture[R]): Unit = {
-    logWarn("JdbcASync request timeout. retrying... ")
-    asyncInvoke(input, resultFuture)
+    logWarn("JdbcASync request timeout.")
+    resultFuture.completeExceptionally(new TimeoutException("[StreamX] JdbcASync request timeout"))
   }
 }
 
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.request
+
+import com.streamxhub.streamx.common.util.{Logger, ThreadUtils}
+import com.streamxhub.streamx.flink.core.scala.failover.LatencyWindow
+import org.apache.flink.metrics.{Counter, Gauge, MetricGroup}
+
+import java.util
+import java.util.concurrent._
+import java.util.function.BiConsumer
+import scala.collection.JavaConversions._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * 维表查询缓存的配置
+ *
+ * @param maxSize    最多缓存的key的个数,超过时淘汰最久未访问的
+ * @param ttl        查询到数据的缓存时间(毫秒)
+ * @param missTtl    没有查询到数据的缓存时间(毫秒),0表示不缓存
+ * @param batchSize  大于1时,多个未命中的key合并成一次查询(in (...)或者multi-Get),达到batchSize或者等待batchDelay后查询
+ * @param batchDelay 合并查询时最多等待的时间(毫秒)
+ */
+case class LookupCacheConf(maxSize: Int = 100000,
+                           ttl: Long = 60000L,
+                           missTtl: Long = 10000L,
+                           batchSize: Int = 0,
+                           batchDelay: Long = 5L) {
+  require(maxSize > 0 && ttl > 0 && missTtl >= 0, s"[StreamX] LookupCacheConf invalid: $this")
+
+  def batch: Boolean = batchSize > 1
+}
+
+/**
+ * 每个subtask一个的维表查询缓存:
+ * 按maxSize淘汰最久未访问的key,按ttl/missTtl过期,没有查询到的结果也会缓存(negative caching),
+ * 同一个key并发的未命中共享一次查询,开启batch时多个key合并成一次查询.
+ * 查询失败的结果不缓存.
+ *
+ * @param conf
+ * @param isEmpty     结果是否为空(没有查询到数据)
+ * @param loader      查询一个key
+ * @param batchLoader 查询多个key,返回的Map里没有的key视为没有数据
+ * @param empty       没有数据时的结果
+ */
+class LookupCache[K, V](conf: LookupCacheConf,
+                        isEmpty: V => Boolean,
+                        loader: K => CompletableFuture[V],
+                        batchLoader: Seq[K] => CompletableFuture[Map[K, V]] = null,
+                        empty: V = null.asInstanceOf[V]) extends AutoCloseable with Logger {
+
+  require(!conf.batch || batchLoader != null, "[StreamX] LookupCache batchSize > 1 but batchLoader is null")
+
+  private[this] case class Entry(value: V, expireAt: Long)
+
+  private[this] val entries = new util.LinkedHashMap[K, Entry](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: util.Map.Entry[K, Entry]): Boolean = size() > conf.maxSize
+  }
+
+  private[this] val loading = new ConcurrentHashMap[K, CompletableFuture[V]]()
+
+  private[this] val pending = ArrayBuffer[K]()
+
+  private[this] lazy val scheduler: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(ThreadUtils.threadFactory("LookupCache-batch"))
+
+  private[this] var hits: Counter = _
+  private[this] var misses: Counter = _
+  private[this] val latencies = new LatencyWindow(1024)
+
+  def get(key: K): CompletableFuture[V] = {
+    cached(key) match {
+      case Some(value) =>
+        if (hits != null) hits.inc()
+        CompletableFuture.completedFuture(value)
+      case None =>
+        if (misses != null) misses.inc()
+        val future = new CompletableFuture[V]()
+        loading.putIfAbsent(key, future) match {
+          //已经在查询中,共享同一个结果
+          case null =>
+            if (conf.batch) enqueue(key) else load(key)
+            future
+          case running => running
+        }
+    }
+  }
+
+  private[this] def cached(key: K): Option[V] = entries.synchronized {
+    entries.get(key) match {
+      case null => None
+      case entry if entry.expireAt < System.currentTimeMillis() =>
+        entries.remove(key)
+        None
+      case entry => Some(entry.value)
+    }
+  }
+
+  private[this] def load(key: K): Unit = {
+    val start = System.currentTimeMillis()
+    val future = try loader(key) catch {
+      case e: Throwable => failedFuture[V](e)
+    }
+    future.whenComplete(new BiConsumer[V, Throwable] {
+      override def accept(value: V, error: Throwable): Unit = {
+        latencies.add(System.currentTimeMillis() - start)
+        complete(key, value, error)
+      }
+    })
+  }
+
+  private[this] def enqueue(key: K): Unit = {
+    val batch = pending.synchronized {
+      pending += key
+      if (pending.size == 1 && conf.batchSize > 1) {
+        scheduler.schedule(new Runnable {
+          override def run(): Unit = flush()
+        }, conf.batchDelay, TimeUnit.MILLISECONDS)
+      }
+      if (pending.size >= conf.batchSize) drain() else Nil
+    }
+    if (batch.nonEmpty) loadBatch(batch)
+  }
+
+  private[this] def flush(): Unit = {
+    val batch = pending.synchronized(drain())
+    if (batch.nonEmpty) loadBatch(batch)
+  }
+
+  private[this] def drain(): Seq[K] = {
+    val batch = pending.toList
+    pending.clear()
+    batch
+  }
+
+  private[this] def loadBatch(keys: Seq[K]): Unit = {
+    val start = System.currentTimeMillis()
+    val future = try batchLoader(keys) catch {
+      case e: Throwable => failedFuture[Map[K, V]](e)
+    }
+    future.whenComplete(new BiConsumer[Map[K, V], Throwable] {
+      override def accept(values: Map[K, V], error: Throwable): Unit = {
+        latencies.add(System.currentTimeMillis() - start)
+        keys.foreach(key => complete(key, if (error == null) values.getOrElse(key, empty) else empty, error))
+      }
+    })
+  }
+
+  private[this] def complete(key: K, value: V, error: Throwable): Unit = {
+    if (error == null) {
+      val ttl = if (isEmpty(value)) conf.missTtl else conf.ttl
+      if (ttl > 0) {
+        entries.synchronized(entries.put(key, Entry(value, System.currentTimeMillis() + ttl)))
+      }
+    } else {
+      logWarn(s"LookupCache load error, key: $key, error: ${error.getMessage}")
+    }
+    val future = loading.remove(key)
+    if (future != null) {
+      if (error == null) future.complete(value) else future.completeExceptionally(error)
+    }
+  }
+
+  private[this] def failedFuture[R](error: Throwable): CompletableFuture[R] = {
+    val future = new CompletableFuture[R]()
+    future.completeExceptionally(error)
+    future
+  }
+
+  def size: Int = entries.synchronized(entries.size())
+
+  def registerMetrics(group: MetricGroup): Unit = {
+    hits = group.counter("lookupCacheHits")
+    misses = group.counter("lookupCacheMisses")
+    group.gauge[Int, Gauge[Int]]("lookupCacheSize", new Gauge[Int] {
+      override def getValue: Int = size
+    })
+    group.gauge[Int, Gauge[Int]]("lookupLoading", new Gauge[Int] {
+      override def getValue: Int = loading.size()
+    })
+    Seq(50, 95, 99).foreach(p => {
+      group.gauge[Long, Gauge[Long]](s"lookupLoadLatencyP$p", new Gauge[Long] {
+        override def getValue: Long = latencies.percentile(p)
+      })
+    })
+  }
+
+  override def close(): Unit = {
+    if (conf.batch) {
+      ThreadUtils.shutdownExecutorService(scheduler)
+    }
+    entries.synchronized(entries.clear())
+  }
+
+}
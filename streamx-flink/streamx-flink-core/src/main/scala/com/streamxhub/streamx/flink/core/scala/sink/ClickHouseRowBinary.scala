@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.streamxhub.streamx.flink.core.scala.sink
+
+import com.streamxhub.streamx.common.util.Logger
+import com.streamxhub.streamx.flink.core.scala.failover.{FlushableBuffer, SinkRequest, SinkWriter}
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.lang.reflect.{Field, Modifier}
+import java.nio.charset.StandardCharsets
+import java.nio.{ByteBuffer, ByteOrder}
+import java.time.{LocalDate, LocalDateTime, ZoneId}
+import java.util.concurrent.{ArrayBlockingQueue, ConcurrentHashMap}
+import java.util.function.{Function => JavaFunc}
+import java.util.zip.{GZIPInputStream, GZIPOutputStream}
+import java.util.{AbstractList, Date}
+
+/**
+ * @author benjobs
+ *         RowBinary insert format for ClickHouse.
+ *         rows are encoded straight into pooled buffers, no intermediate string is built for each record or for the batch.
+ *         see: https://clickhouse.tech/docs/en/interfaces/formats/#rowbinary
+ */
+object RowBinaryEncoder {
+
+  private[this] val encoders = new ConcurrentHashMap[Class[_], RowBinaryEncoder]()
+
+  /**
+   * the encoder is resolved once per class and shared by all the subtasks in the same jvm.
+   */
+  def apply(clazz: Class[_]): RowBinaryEncoder = encoders.computeIfAbsent(clazz, new JavaFunc[Class[_], RowBinaryEncoder] {
+    override def apply(c: Class[_]): RowBinaryEncoder = new RowBinaryEncoder(c)
+  })
+
+}
+
+class RowBinaryEncoder(clazz: Class[_]) {
+
+  private[this] type FieldWriter = (AnyRef, RowBinaryBuffer) => Unit
+
+  private[this] val zoneId = ZoneId.systemDefault()
+
+  /**
+   * the column order follows the declared fields,same as the Values format.
+   */
+  private[this] val fields: Array[Field] = clazz.getDeclaredFields
+    .filterNot(f => Modifier.isStatic(f.getModifiers) || f.isSynthetic)
+    .map(f => {
+      f.setAccessible(true)
+      f
+    })
+
+  private[this] val writers: Array[FieldWriter] = fields.map(fieldWriter)
+
+  require(writers.nonEmpty, s"[StreamX] RowBinaryEncoder: ${clazz.getName} has no field to write")
+
+  def encode(value: AnyRef, buffer: RowBinaryBuffer): Unit = {
+    var i = 0
+    while (i < writers.length) {
+      writers(i)(value, buffer)
+      i += 1
+    }
+  }
+
+  private[this] def fieldWriter(field: Field): FieldWriter = field.getType match {
+    case java.lang.Integer.TYPE => (v, b) => b.writeInt(field.getInt(v))
+    case java.lang.Long.TYPE => (v, b) => b.writeLong(field.getLong(v))
+    case java.lang.Short.TYPE => (v, b) => b.writeShort(field.getShort(v))
+    case java.lang.Byte.TYPE => (v, b) => b.writeByte(field.getByte(v))
+    case java.lang.Boolean.TYPE => (v, b) => b.writeByte(if (field.getBoolean(v)) 1 else 0)
+    case java.lang.Float.TYPE => (v, b) => b.writeFloat(field.getFloat(v))
+    case java.lang.Double.TYPE => (v, b) => b.writeDouble(field.getDouble(v))
+    case java.lang.Character.TYPE => (v, b) => b.writeShort(field.getChar(v))
+    case c if c == classOf[String] => (v, b) => field.get(v) match {
+      case null => b.writeVarInt(0)
+      case s => b.writeString(s.asInstanceOf[String])
+    }
+    case c if c == classOf[Array[Byte]] => (v, b) => field.get(v) match {
+      case null => b.writeVarInt(0)
+      case bytes => b.writeBytes(bytes.asInstanceOf[Array[Byte]])
+    }
+    // boxed type and Option are mapped to Nullable(T),the type of value is resolved at runtime
+    case c if c == classOf[Option[_]] => (v, b) => field.get(v) match {
+      case null | None => b.writeByte(1)
+      case Some(x) =>
+        b.writeByte(0)
+        writeValue(x.asInstanceOf[AnyRef], b)
+    }
+    case c if isNullable(c) => (v, b) => field.get(v) match {
+      case null => b.writeByte(1)
+      case x =>
+        b.writeByte(0)
+        writeValue(x, b)
+    }
+    case c if isTemporal(c) => (v, b) => writeValue(field.get(v), b)
+    case c => throw new IllegalArgumentException(s"[StreamX] RowBinaryEncoder: unsupported type ${c.getName} of field ${field.getName}, please use Values insert format")
+  }
+
+  private[this] def isNullable(c: Class[_]): Boolean = c == classOf[java.lang.Integer] ||
+    c == classOf[java.lang.Long] ||
+    c == classOf[java.lang.Short] ||
+    c == classOf[java.lang.Byte] ||
+    c == classOf[java.lang.Boolean] ||
+    c == classOf[java.lang.Float] ||
+    c == classOf[java.lang.Double]
+
+  private[this] def isTemporal(c: Class[_]): Boolean = classOf[Date].isAssignableFrom(c) ||
+    c == classOf[LocalDate] ||
+    c == classOf[LocalDateTime]
+
+  private[this] def writeValue(value: AnyRef, b: RowBinaryBuffer): Unit = value match {
+    case x: java.lang.Integer => b.writeInt(x)
+    case x: java.lang.Long => b.writeLong(x)
+    case x: java.lang.Short => b.writeShort(x.toInt)
+    case x: java.lang.Byte => b.writeByte(x.toInt)
+    case x: java.lang.Boolean => b.writeByte(if (x) 1 else 0)
+    case x: java.lang.Float => b.writeFloat(x)
+    case x: java.lang.Double => b.writeDouble(x)
+    case x: String => b.writeString(x)
+    case x: Array[Byte] => b.writeBytes(x)
+    // Date: UInt16, days since 1970-01-01
+    case x: java.sql.Date => b.writeShort(x.toLocalDate.toEpochDay.toInt)
+    case x: LocalDate => b.writeShort(x.toEpochDay.toInt)
+    // DateTime: UInt32, seconds since 1970-01-01 00:00:00
+    case x: Date => b.writeInt((x.getTime / 1000).toInt)
+    case x: LocalDateTime => b.writeInt(x.atZone(zoneId).toEpochSecond.toInt)
+    case null => throw new IllegalArgumentException(s"[StreamX] RowBinaryEncoder: null value of not Nullable field in ${clazz.getName}")
+    case x => throw new IllegalArgumentException(s"[StreamX] RowBinaryEncoder: unsupported value type ${x.getClass.getName}")
+  }
+
+}
+
+/**
+ * little endian writer over a pooled ByteBuffer, grows when a row does not fit.
+ */
+class RowBinaryBuffer(pool: ByteBufferPool) {
+
+  private[this] var buffer: ByteBuffer = pool.acquire()
+
+  private[this] var rows = 0
+
+  //the end position of each row, the failover records are sliced from the body by them
+  private[this] var ends = new Array[Int](1024)
+
+  def size: Int = rows
+
+  def position: Int = buffer.position()
+
+  def isEmpty: Boolean = rows == 0
+
+  def endRow(): Unit = {
+    if (rows == ends.length) {
+      ends = java.util.Arrays.copyOf(ends, rows * 2)
+    }
+    ends(rows) = buffer.position()
+    rows += 1
+  }
+
+  /**
+   * discard the bytes of a row which failed to be encoded
+   */
+  def rollback(position: Int): Unit = buffer.position(position)
+
+  def writeByte(v: Int): Unit = {
+    ensureCapacity(1)
+    buffer.put(v.toByte)
+  }
+
+  def writeShort(v: Int): Unit = {
+    ensureCapacity(2)
+    buffer.putShort(v.toShort)
+  }
+
+  def writeInt(v: Int): Unit = {
+    ensureCapacity(4)
+    buffer.putInt(v)
+  }
+
+  def writeLong(v: Long): Unit = {
+    ensureCapacity(8)
+    buffer.putLong(v)
+  }
+
+  def writeFloat(v: Float): Unit = {
+    ensureCapacity(4)
+    buffer.putFloat(v)
+  }
+
+  def writeDouble(v: Double): Unit = {
+    ensureCapacity(8)
+    buffer.putDouble(v)
+  }
+
+  def writeVarInt(v: Int): Unit = {
+    var value = v
+    while ((value & 0xFFFFFF80) != 0) {
+      writeByte((value & 0x7F) | 0x80)
+      value >>>= 7
+    }
+    writeByte(value)
+  }
+
+  def writeBytes(bytes: Array[Byte]): Unit = {
+    writeVarInt(bytes.length)
+    ensureCapacity(bytes.length)
+    buffer.put(bytes)
+  }
+
+  def writeString(s: String): Unit = writeBytes(s.getBytes(StandardCharsets.UTF_8))
+
+  /**
+   * hand off the encoded rows as a readable buffer with the end position of each row, and start a new one.
+   * the returned buffer must be given back to the pool by the writer when the request is finished.
+   */
+  def drain(): (ByteBuffer, Array[Int]) = {
+    val out = buffer
+    out.flip()
+    val rowEnds = java.util.Arrays.copyOf(ends, rows)
+    buffer = pool.acquire()
+    rows = 0
+    out -> rowEnds
+  }
+
+  def release(): Unit = {
+    pool.release(buffer)
+    buffer = null
+  }
+
+  private[this] def ensureCapacity(len: Int): Unit = {
+    if (buffer.remaining() < len) {
+      val newCapacity = math.max(buffer.capacity() * 2, buffer.position() + len)
+      val grown = ByteBuffer.allocateDirect(newCapacity).order(ByteOrder.LITTLE_ENDIAN)
+      buffer.flip()
+      grown.put(buffer)
+      pool.release(buffer)
+      buffer = grown
+    }
+  }
+
+}
+
+/**
+ * fixed size direct buffers, reused between the sink thread(encode) and the writer callback(release).
+ * buffers which are grown beyond the fixed size are not taken back.
+ */
+class ByteBufferPool(bufferBytes: Int, maxPooled: Int) {
+
+  private[this] val pool = new ArrayBlockingQueue[ByteBuffer](maxPooled)
+
+  def acquire(): ByteBuffer = pool.poll() match {
+    case null => ByteBuffer.allocateDirect(bufferBytes).order(ByteOrder.LITTLE_ENDIAN)
+    case buffer => buffer
+  }
+
+  def release(buffer: ByteBuffer): Unit = {
+    if (buffer != null && buffer.isDirect && buffer.capacity() == bufferBytes) {
+      buffer.clear()
+      pool.offer(buffer)
+    }
+  }
+
+  def clear(): Unit = pool.clear()
+
+}
+
+/**
+ * the RowBinary counterpart of SinkBuffer: encodes the records as they arrive and
+ * flushes by row count, encoded bytes or delayTime.
+ */
+case class RowBinarySinkBuffer(writer: SinkWriter,
+                               pool: ByteBufferPool,
+                               delayTime: Long,
+                               bufferSize: Int,
+                               bufferBytes: Int,
+                               compress: Boolean,
+                               table: String) extends FlushableBuffer with Logger {
+
+  private[this] val buffer = new RowBinaryBuffer(pool)
+
+  private[this] var timestamp = 0L
+
+  def put(value: AnyRef): Unit = {
+    this.synchronized {
+      val start = buffer.position
+      try {
+        RowBinaryEncoder(value.getClass).encode(value, buffer)
+      } catch {
+        case e: Exception =>
+          buffer.rollback(start)
+          logError(s"RowBinary encode error, record: $value, error: $e")
+          throw e
+      }
+      buffer.endRow()
+      timestamp = System.currentTimeMillis
+      if (buffer.size >= bufferSize || buffer.position >= bufferBytes) {
+        addToQueue()
+      }
+    }
+  }
+
+  override def tryAddToQueue(): Unit = {
+    this.synchronized {
+      if (!buffer.isEmpty && timestamp > 0 && System.currentTimeMillis - timestamp > delayTime) {
+        addToQueue()
+      }
+    }
+  }
+
+  private[this] def addToQueue(): Unit = {
+    val (body, ends) = buffer.drain()
+    val payload = if (compress) gzip(body) else body
+    logDebug(s"Build RowBinary request: rows = ${ends.length}, bytes = ${payload.remaining()}, target table = $table")
+    writer.write(SinkRequest(new RowBinaryRows(payload, ends, compress), table, body = payload, rows = ends.length, compressed = compress))
+  }
+
+  /**
+   * compress once here,not for every retry. the pooled buffer can be released right away.
+   */
+  private[this] def gzip(body: ByteBuffer): ByteBuffer = {
+    val out = new ByteArrayOutputStream(math.max(body.remaining() / 4, 64))
+    val gzip = new GZIPOutputStream(out, 8192)
+    val chunk = new Array[Byte](8192)
+    while (body.hasRemaining) {
+      val len = math.min(chunk.length, body.remaining())
+      body.get(chunk, 0, len)
+      gzip.write(chunk, 0, len)
+    }
+    gzip.close()
+    pool.release(body)
+    ByteBuffer.wrap(out.toByteArray)
+  }
+
+  override def flush(): Unit = {
+    this.synchronized {
+      if (!buffer.isEmpty) addToQueue()
+    }
+  }
+
+  override def close(): Unit = {
+    this.synchronized {
+      if (!buffer.isEmpty) addToQueue()
+      buffer.release()
+    }
+  }
+
+}
+
+/**
+ * the rows of a RowBinary batch as failover records, only the encoded body and the end position of each row are kept.
+ * each row is sliced from the body when it is read, a compressed body is inflated once for every iteration.
+ * the records are replayed as RowBinary again, see SinkRequest.fromFailover.
+ */
+class RowBinaryRows(body: ByteBuffer, ends: Array[Int], compressed: Boolean) extends AbstractList[String] {
+
+  override def get(index: Int): String = row(rawBody, index)
+
+  override def iterator(): java.util.Iterator[String] = new java.util.Iterator[String] {
+    private[this] lazy val raw = rawBody
+    private[this] var index = 0
+
+    override def hasNext: Boolean = index < ends.length
+
+    override def next(): String = {
+      if (!hasNext) throw new NoSuchElementException
+      index += 1
+      row(raw, index - 1)
+    }
+  }
+
+  override def size(): Int = ends.length
+
+  private[this] def row(raw: Array[Byte], index: Int): String = {
+    val from = if (index == 0) 0 else ends(index - 1)
+    SinkRequest.binaryRecord(raw, from, ends(index) - from)
+  }
+
+  private[this] def rawBody: Array[Byte] = {
+    val in = body.duplicate()
+    val bytes = new Array[Byte](in.remaining())
+    in.get(bytes)
+    if (!compressed) bytes else {
+      val gzip = new GZIPInputStream(new ByteArrayInputStream(bytes))
+      val out = new ByteArrayOutputStream(ends.lastOption.getOrElse(0))
+      val chunk = new Array[Byte](8192)
+      Iterator.continually(gzip.read(chunk)).takeWhile(_ >= 0).foreach(out.write(chunk, 0, _))
+      gzip.close()
+      out.toByteArray
+    }
+  }
+
+}
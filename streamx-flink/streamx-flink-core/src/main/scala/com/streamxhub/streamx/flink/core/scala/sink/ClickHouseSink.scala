@@ -27,8 +27,11 @@ import com.streamxhub.streamx.flink.core.scala.StreamingContext
 import com.streamxhub.streamx.flink.core.scala.failover._
 import io.netty.handler.codec.http.HttpHeaders
 import org.apache.flink.api.common.io.RichOutputFormat
-import org.apache.flink.api.common.typeinfo.TypeInformation
+import org.apache.flink.api.common.state.{ListState, ListStateDescriptor}
+import org.apache.flink.api.common.typeinfo.{PrimitiveArrayTypeInfo, TypeInformation}
 import org.apache.flink.configuration.Configuration
+import org.apache.flink.runtime.state.{FunctionInitializationContext, FunctionSnapshotContext}
+import org.apache.flink.streaming.api.checkpoint.CheckpointedFunction
 import org.apache.flink.streaming.api.datastream.DataStreamSink
 import org.apache.flink.streaming.api.functions.sink.{RichSinkFunction, SinkFunction}
 import org.apache.flink.streaming.api.scala.DataStream
@@ -100,37 +103,68 @@ class ClickHouseSink(@(transient@param) ctx: StreamingContext,
 
 }
 
-class AsyncClickHouseSinkFunction[T](properties: Properties)(implicit toCSVFun: T => String = null) extends RichSinkFunction[T] with Logger {
-
-  private[this] object Lock {
-    @volatile var initialized = false
-    val lock = new Object()
-  }
+class AsyncClickHouseSinkFunction[T](properties: Properties)(implicit toCSVFun: T => String = null) extends RichSinkFunction[T] with CheckpointedFunction with Logger {
 
   @transient var clickHouseConf: ClickHouseConfig = _
   @transient var sinkBuffer: SinkBuffer = _
+  @transient var rowBinaryBuffer: RowBinarySinkBuffer = _
   @transient var clickHouseWriter: ClickHouseSinkWriter = _
+  @transient var subtaskWriter: SubtaskSinkWriter = _
   @transient var failoverChecker: FailoverChecker = _
+  @transient var writerKey: String = _
   @volatile var isClosed: Boolean = false
+  @transient private[this] var pendingState: ListState[Array[Byte]] = _
+  @transient private[this] var restoredRequests: List[SinkRequest] = Nil
+  private val PENDING_STATE_NAME: String = "clickhouse-sink-pending-requests"
 
   override def open(config: Configuration): Unit = {
-    if (!Lock.initialized) {
-      Lock.lock.synchronized {
-        if (!Lock.initialized) {
-          Lock.initialized = true
-          clickHouseConf = new ClickHouseConfig(properties)
-          val table = properties(KEY_SINK_FAILOVER_TABLE)
-          clickHouseWriter = ClickHouseSinkWriter(clickHouseConf)
-          failoverChecker = FailoverChecker(clickHouseConf.delayTime)
-          sinkBuffer = SinkBuffer(clickHouseWriter, clickHouseConf.delayTime, clickHouseConf.bufferSize, table)
-          failoverChecker.addSinkBuffer(sinkBuffer)
-          logInfo("AsyncClickHouseSink initialize... ")
-        }
-      }
+    clickHouseConf = new ClickHouseConfig(properties)
+    val table = properties(KEY_SINK_FAILOVER_TABLE)
+    //the subtasks in the same TaskManager writing to the same cluster and table with the same settings share the writer and the checker.
+    writerKey = s"clickhouse|${clickHouseConf.jdbcUrls.mkString(",")}|$table|${clickHouseConf.digest}"
+    val shared = SinkWriterPool.acquire(writerKey, clickHouseConf.delayTime)(ClickHouseSinkWriter(clickHouseConf))
+    clickHouseWriter = shared.writer
+    failoverChecker = shared.checker
+    subtaskWriter = new SubtaskSinkWriter(clickHouseWriter)
+    if (clickHouseConf.isRowBinary) {
+      rowBinaryBuffer = RowBinarySinkBuffer(
+        subtaskWriter,
+        clickHouseWriter.bufferPool,
+        clickHouseConf.delayTime,
+        clickHouseConf.bufferSize,
+        clickHouseConf.insertBufferBytes,
+        clickHouseConf.compress,
+        table
+      )
+      failoverChecker.addSinkBuffer(rowBinaryBuffer)
+    } else {
+      sinkBuffer = SinkBuffer(subtaskWriter, clickHouseConf.delayTime, clickHouseConf.bufferSize, table, clickHouseConf.bufferBytes)
+      failoverChecker.addSinkBuffer(sinkBuffer)
+      //no RuntimeContext when it's used by AsyncClickHouseOutputFormat
+      Try(getRuntimeContext.getMetricGroup).foreach(sinkBuffer.registerMetrics)
+    }
+    Try(getRuntimeContext.getMetricGroup).foreach(clickHouseWriter.limiter.registerMetrics)
+    logInfo(s"AsyncClickHouseSink initialize... insert format: ${clickHouseConf.insertFormat}, writer: $writerKey")
+    if (restoredRequests.nonEmpty) {
+      logInfo(s"AsyncClickHouseSink resend ${restoredRequests.size} requests restored from state")
+      restoredRequests.foreach(subtaskWriter.write)
+      restoredRequests = Nil
     }
   }
 
-  override def invoke(value: T): Unit = {
+  override def invoke(value: T): Unit = rowBinaryBuffer match {
+    case null => putValues(value)
+    case buffer =>
+      try {
+        buffer.put(value.asInstanceOf[AnyRef])
+      } catch {
+        case e: Exception =>
+          logError(s"""Error while sending data to Clickhouse, record = $value,error:$e""")
+          throw new RuntimeException(e)
+      }
+  }
+
+  private[this] def putValues(value: T): Unit = {
     val csv = toCSVFun match {
       case null => //啧啧啧...
         val buffer = new StringBuilder("(")
@@ -155,17 +189,43 @@ class AsyncClickHouseSinkFunction[T](properties: Properties)(implicit toCSVFun:
     }
   }
 
+  /**
+   * all the buffered records are handed to the writer, then either wait for all the requests to be finished,
+   * or keep the unfinished requests in the state(threshold.persistPending), so at-least-once holds.
+   */
+  override def snapshotState(context: FunctionSnapshotContext): Unit = {
+    if (sinkBuffer != null) sinkBuffer.flush()
+    if (rowBinaryBuffer != null) rowBinaryBuffer.flush()
+    pendingState.clear()
+    if (subtaskWriter != null) {
+      if (clickHouseConf.persistPending) {
+        subtaskWriter.pendingRequests.checkFailure()
+        val pending = subtaskWriter.pendingRequests.snapshot(SinkRequest.serialize)
+        pending.foreach(pendingState.add)
+        logDebug(s"AsyncClickHouseSink snapshotState checkpointId: ${context.getCheckpointId}, pending requests: ${pending.size}")
+      } else {
+        subtaskWriter.flush()
+      }
+    }
+  }
+
+  override def initializeState(context: FunctionInitializationContext): Unit = {
+    pendingState = context.getOperatorStateStore.getListState(new ListStateDescriptor[Array[Byte]](PENDING_STATE_NAME, PrimitiveArrayTypeInfo.BYTE_PRIMITIVE_ARRAY_TYPE_INFO))
+    if (context.isRestored) {
+      restoredRequests = pendingState.get().map(SinkRequest.deserialize).toList
+      logInfo(s"AsyncClickHouseSink initializeState, restored requests: ${restoredRequests.size}")
+    }
+  }
+
   override def close(): Unit = {
     if (!isClosed) {
-      Lock.lock.synchronized {
-        if (!isClosed) {
-          if (sinkBuffer != null) sinkBuffer.close()
-          if (clickHouseWriter != null) clickHouseWriter.close()
-          if (failoverChecker != null) failoverChecker.close()
-          isClosed = true
-          super.close()
-        }
-      }
+      isClosed = true
+      Seq[FlushableBuffer](sinkBuffer, rowBinaryBuffer).filter(_ != null).foreach(buffer => {
+        buffer.close()
+        failoverChecker.removeSinkBuffer(buffer)
+      })
+      if (writerKey != null) SinkWriterPool.release(writerKey)
+      super.close()
     }
   }
 }
@@ -328,6 +388,20 @@ class ClickHouseConfig(parameters: Properties) extends ThresholdConf(parameters)
 
   require(jdbcUrls.nonEmpty)
 
+  /**
+   * Values: INSERT INTO t VALUES (...),(...) built from toCSVFun
+   * RowBinary: rows encoded into binary buffers by the field of record,toCSVFun is ignored.
+   */
+  val insertFormat: String = parameters.getOrElse(KEY_CLICKHOUSE_INSERT_FORMAT, DEFAULT_CLICKHOUSE_INSERT_FORMAT)
+
+  require(Seq("Values", "RowBinary").exists(_.equalsIgnoreCase(insertFormat)), s"[StreamX] usage error! unsupported insert.format: $insertFormat, only Values|RowBinary")
+
+  val isRowBinary: Boolean = "RowBinary".equalsIgnoreCase(insertFormat)
+
+  val compress: Boolean = Try(parameters(KEY_CLICKHOUSE_INSERT_COMPRESS).toBoolean).getOrElse(false)
+
+  val insertBufferBytes: Int = Try(parameters(KEY_CLICKHOUSE_INSERT_BUFFER_BYTES).toInt).getOrElse(DEFAULT_CLICKHOUSE_INSERT_BUFFER_BYTES)
+
   def getRandomHostUrl: String = {
     currentHostId = ThreadLocalRandom.current.nextInt(jdbcUrls.size)
     jdbcUrls.get(currentHostId)
@@ -358,12 +432,18 @@ case class ClickHouseSinkWriter(clickHouseConfig: ClickHouseConfig) extends Sink
   )
 
   var tasks: ListBuffer[ClickHouseWriterTask] = ListBuffer[ClickHouseWriterTask]()
-  var recordQueue: BlockingQueue[SinkRequest] = new LinkedBlockingQueue[SinkRequest](clickHouseConfig.queueCapacity)
+  val limiter: AdaptiveLimiter = AdaptiveLimiter(clickHouseConfig)
+  //in adaptive mode the queue is kept short, a slow ClickHouse blocks the sink thread soon instead of piling up requests.
+  var recordQueue: BlockingQueue[SinkRequest] = new LinkedBlockingQueue[SinkRequest](
+    if (clickHouseConfig.adaptive) math.min(clickHouseConfig.queueCapacity, clickHouseConfig.maxInFlight) else clickHouseConfig.queueCapacity
+  )
   var asyncHttpClient: AsyncHttpClient = Dsl.asyncHttpClient
   var service: ExecutorService = Executors.newFixedThreadPool(clickHouseConfig.numWriters, threadFactory)
+  //one buffer is being encoded, the others are in flight.
+  val bufferPool: ByteBufferPool = new ByteBufferPool(clickHouseConfig.insertBufferBytes, clickHouseConfig.numWriters * 2 + 1)
 
   for (i <- 0 until clickHouseConfig.numWriters) {
-    val task = ClickHouseWriterTask(i, clickHouseConfig, asyncHttpClient, recordQueue, callbackService)
+    val task = ClickHouseWriterTask(i, clickHouseConfig, asyncHttpClient, recordQueue, callbackService, bufferPool, limiter)
     tasks.add(task)
     service.submit(task)
   }
@@ -385,6 +465,7 @@ case class ClickHouseSinkWriter(clickHouseConfig: ClickHouseConfig) extends Sink
     ThreadUtils.shutdownExecutorService(service)
     ThreadUtils.shutdownExecutorService(callbackService)
     asyncHttpClient.close()
+    bufferPool.clear()
     logInfo(s"${classOf[ClickHouseSinkWriter].getSimpleName} is closed")
   }
 
@@ -395,7 +476,9 @@ case class ClickHouseWriterTask(id: Int,
                                 clickHouseConf: ClickHouseConfig,
                                 asyncHttpClient: AsyncHttpClient,
                                 queue: BlockingQueue[SinkRequest],
-                                callbackService: ExecutorService) extends Runnable with AutoCloseable with Logger {
+                                callbackService: ExecutorService,
+                                bufferPool: ByteBufferPool,
+                                limiter: AdaptiveLimiter) extends Runnable with AutoCloseable with Logger {
   @volatile var isWorking = false
 
   val failoverWriter: FailoverWriter = new FailoverWriter(clickHouseConf.storageType, clickHouseConf.getFailoverConfig)
@@ -418,21 +501,42 @@ case class ClickHouseWriterTask(id: Int,
   }
 
   def send(sinkRequest: SinkRequest): Unit = {
-    val request = buildRequest(sinkRequest)
-    logDebug(s"Ready to load data to ${sinkRequest.table}, size = ${sinkRequest.size}")
-    val whenResponse = asyncHttpClient.executeRequest(request)
-    val callback = respCallback(whenResponse, sinkRequest)
-    whenResponse.addListener(callback, callbackService)
+    limiter.acquire()
+    val start = System.currentTimeMillis()
+    try {
+      val request = buildRequest(sinkRequest)
+      logDebug(s"Ready to load data to ${sinkRequest.table}, size = ${sinkRequest.size}")
+      val whenResponse = asyncHttpClient.executeRequest(request)
+      val callback = respCallback(whenResponse, sinkRequest, start)
+      whenResponse.addListener(callback, callbackService)
+    } catch {
+      case e: Exception =>
+        limiter.release(System.currentTimeMillis() - start, success = false)
+        throw e
+    }
   }
 
   def buildRequest(sinkRequest: SinkRequest): Request = {
-    val query = s"INSERT INTO ${sinkRequest.table} VALUES ${sinkRequest.records.mkString(",")}"
     val host = clickHouseConf.getRandomHostUrl
     val builder = asyncHttpClient
       .preparePost(host)
       .setRequestTimeout(clickHouseConf.timeout)
-      .setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=utf-8")
-      .setBody(query)
+
+    if (sinkRequest.isBinary) {
+      //the query goes to url, the body is the encoded rows. duplicate so that a retry reads the body from the beginning.
+      builder
+        .addQueryParam("query", s"INSERT INTO ${sinkRequest.table} FORMAT RowBinary")
+        .setHeader(HttpHeaders.Names.CONTENT_TYPE, "application/octet-stream")
+        .setBody(sinkRequest.body.duplicate())
+      if (sinkRequest.compressed) {
+        builder.setHeader(HttpHeaders.Names.CONTENT_ENCODING, "gzip")
+      }
+    } else {
+      val query = s"INSERT INTO ${sinkRequest.table} VALUES ${sinkRequest.records.mkString(",")}"
+      builder
+        .setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=utf-8")
+        .setBody(query)
+    }
 
     if (clickHouseConf.credentials != null) {
       builder.setHeader(HttpHeaders.Names.AUTHORIZATION, "Basic " + clickHouseConf.credentials)
@@ -440,9 +544,12 @@ case class ClickHouseWriterTask(id: Int,
     builder.build
   }
 
-  def respCallback(whenResponse: ListenableFuture[Response], sinkRequest: SinkRequest): Runnable = new Runnable {
+  def respCallback(whenResponse: ListenableFuture[Response], sinkRequest: SinkRequest, start: Long): Runnable = new Runnable {
     override def run(): Unit = {
-      Try(whenResponse.get()).getOrElse(null) match {
+      val response = Try(whenResponse.get()).getOrElse(null)
+      val success = response != null && clickHouseConf.successCode.contains(response.getStatusCode)
+      limiter.release(System.currentTimeMillis() - start, success)
+      response match {
         case null =>
           logError(s"""Error ClickHouseSink executing callback, params = $clickHouseConf,can not get Response. """)
           handleFailedResponse(null, sinkRequest)
@@ -450,6 +557,8 @@ case class ClickHouseWriterTask(id: Int,
           logError(s"Error ClickHouseSink executing callback, params = $clickHouseConf, StatusCode = ${resp.getStatusCode} ")
           handleFailedResponse(resp, sinkRequest)
         case _ =>
+          sinkRequest.finish()
+          if (sinkRequest.isBinary) bufferPool.release(sinkRequest.body)
       }
     }
   }
@@ -463,8 +572,25 @@ case class ClickHouseWriterTask(id: Int,
   def handleFailedResponse(response: Response, sinkRequest: SinkRequest): Unit = {
     if (sinkRequest.attemptCounter > clickHouseConf.maxRetries) {
       logWarn(s"""Failed to send data to ClickHouse, cause: limit of attempts is exceeded. ClickHouse response = $response. Ready to flush data to ${clickHouseConf.storageType}""")
-      failoverWriter.write(sinkRequest)
-      logInfo(s"failover Successful, StorageType = ${clickHouseConf.storageType}, size = ${sinkRequest.size}")
+      try {
+        //RowBinary rows are kept as base64 records, one record per row, so that they can be replayed as RowBinary.
+        //the failover write is asynchronous, the body is released only after the request is finished or failed.
+        failoverWriter.writeAsync(sinkRequest.toFailover) {
+          case null =>
+            sinkRequest.finish()
+            if (sinkRequest.isBinary) bufferPool.release(sinkRequest.body)
+            logInfo(s"failover Successful, StorageType = ${clickHouseConf.storageType}, size = ${sinkRequest.size}")
+          case e =>
+            logError(s"failover Failed, StorageType = ${clickHouseConf.storageType}, size = ${sinkRequest.size}", e)
+            sinkRequest.fail(e)
+            if (sinkRequest.isBinary) bufferPool.release(sinkRequest.body)
+        }
+      } catch {
+        case e: Exception =>
+          logError(s"failover Failed, StorageType = ${clickHouseConf.storageType}, size = ${sinkRequest.size}", e)
+          sinkRequest.fail(e)
+          if (sinkRequest.isBinary) bufferPool.release(sinkRequest.body)
+      }
     } else {
       sinkRequest.incrementCounter()
       logWarn(s"Next attempt to send data to ClickHouse, table = ${sinkRequest.table}, buffer size = ${sinkRequest.size}, current attempt num = ${sinkRequest.attemptCounter}, max attempt num = ${clickHouseConf.maxRetries}, response = $response")
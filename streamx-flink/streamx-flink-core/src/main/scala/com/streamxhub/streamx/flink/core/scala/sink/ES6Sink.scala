@@ -21,10 +21,16 @@
 package com.streamxhub.streamx.flink.core.scala.sink
 
 import com.streamxhub.streamx.common.conf.ConfigConst._
-import com.streamxhub.streamx.common.util.Logger
+import com.streamxhub.streamx.common.util.{Logger, ThreadUtils}
 import com.streamxhub.streamx.flink.core.scala.StreamingContext
+import com.streamxhub.streamx.flink.core.scala.failover.AdaptiveLimiter
 import org.apache.flink.api.common.functions.RuntimeContext
+import org.apache.flink.configuration.Configuration
+import org.apache.flink.metrics.{Counter, Gauge}
+import org.apache.flink.runtime.state.{FunctionInitializationContext, FunctionSnapshotContext}
+import org.apache.flink.streaming.api.checkpoint.CheckpointedFunction
 import org.apache.flink.streaming.api.datastream.DataStreamSink
+import org.apache.flink.streaming.api.functions.sink.RichSinkFunction
 import org.apache.flink.streaming.api.scala.DataStream
 import org.apache.flink.streaming.connectors.elasticsearch.ElasticsearchSinkBase._
 import org.apache.flink.streaming.connectors.elasticsearch.util.RetryRejectedExecutionFailureHandler
@@ -37,14 +43,22 @@ import org.apache.http.client.config.RequestConfig
 import org.apache.http.impl.client.BasicCredentialsProvider
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder
 import org.apache.http.message.BasicHeader
+import org.elasticsearch.ElasticsearchStatusException
+import org.elasticsearch.action.bulk.{BulkRequest, BulkResponse}
+import org.elasticsearch.action.delete.DeleteRequest
 import org.elasticsearch.action.index.IndexRequest
-import org.elasticsearch.client.RestClientBuilder
+import org.elasticsearch.action.update.UpdateRequest
+import org.elasticsearch.action.{ActionListener, ActionRequest, DocWriteRequest}
+import org.elasticsearch.client._
+import org.elasticsearch.rest.RestStatus
 
 import java.util.Properties
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentLinkedQueue, Executors, ScheduledExecutorService, TimeUnit}
 import java.util.function.BiConsumer
 import scala.annotation.meta.param
 import scala.collection.JavaConversions._
-import scala.collection.Map
+import scala.collection.{Map, mutable}
 import scala.util.{Success, Try}
 
 
@@ -94,6 +108,28 @@ class ES6Sink(@(transient@param) ctx: StreamingContext,
 
     require(httpHosts.nonEmpty, "elasticsearch config error,please check, e.g: sink.es.host=$host1:$port1,$host2:$port2")
 
+    //bulk的配置,方法参数优先
+    val bulkConfig = shortConfig.filter(_._1.startsWith("bulk.")) ++ property.map(x => x._1 -> x._2)
+    if (Try(bulkConfig(KEY_ES_BULK_ADAPTIVE_ENABLE).toBoolean).getOrElse(false)) {
+      val factory = restClientFactory match {
+        case null => new RestClientFactoryImpl(fullConfig)
+        case x => x.asInstanceOf[RestClientFactory]
+      }
+      val adaptiveSink = new AdaptiveES6SinkFunction[T](httpHosts.toList, bulkConfig.toMap, factory, failureHandler, f)
+      afterSink(stream.addSink(adaptiveSink), parallelism, name, uid)
+    } else {
+      bulkProcessorSink(stream, httpHosts, fullConfig, shortConfig, restClientFactory, failureHandler)
+    }
+  }
+
+  private[this] def bulkProcessorSink[T](stream: DataStream[T],
+                                         httpHosts: Array[HttpHost],
+                                         fullConfig: Map[String, String],
+                                         shortConfig: Map[String, String],
+                                         restClientFactory: Any,
+                                         failureHandler: ActionRequestFailureHandler)
+                                        (implicit f: T => IndexRequest): DataStreamSink[T] = {
+
     val sinkFunc: ElasticsearchSinkFunction[T] = new ElasticsearchSinkFunction[T] {
       def createIndexRequest(element: T): IndexRequest = f(element)
 
@@ -211,3 +247,301 @@ class RestClientFactoryImpl(val config: Map[String, String]) extends RestClientF
     setHeader()
   }
 }
+
+/**
+ * 自适应的bulk写入:
+ * 每个index一个BulkRoute,各自按bulk的耗时和429拒绝调整每个bulk的条数(AIMD),超过targetLatency或者有拒绝时减半,否则缓慢增加;
+ * 并发的bulk请求数由AdaptiveLimiter控制,每个index最多占用limit/活跃index数个请求,热点index不会占满所有请求.
+ * 被429拒绝的请求最多重试bulk.flush.backoff.retries次,其余的失败交给failureHandler.
+ * checkpoint时flush所有index并等待所有请求完成(包括重试).
+ */
+class AdaptiveES6SinkFunction[T](httpHosts: List[HttpHost],
+                                 config: Map[String, String],
+                                 restClientFactory: RestClientFactory,
+                                 failureHandler: ActionRequestFailureHandler,
+                                 f: T => IndexRequest) extends RichSinkFunction[T] with CheckpointedFunction with Logger {
+
+  private[this] val minActions = Try(config(KEY_ES_BULK_ADAPTIVE_MIN_ACTIONS).toInt).getOrElse(DEFAULT_ES_BULK_ADAPTIVE_MIN_ACTIONS)
+  private[this] val maxActions = Try(config(KEY_ES_BULK_ADAPTIVE_MAX_ACTIONS).toInt).getOrElse(DEFAULT_ES_BULK_ADAPTIVE_MAX_ACTIONS)
+  private[this] val initActions = Try(config(CONFIG_KEY_BULK_FLUSH_MAX_ACTIONS).toInt).getOrElse(1000)
+  private[this] val maxBytes = Try(config(CONFIG_KEY_BULK_FLUSH_MAX_SIZE_MB).toLong).getOrElse(5L) * 1024 * 1024
+  private[this] val flushInterval = Try(config(CONFIG_KEY_BULK_FLUSH_INTERVAL_MS).toLong).getOrElse(1000L)
+  private[this] val maxRetries = Try(config(CONFIG_KEY_BULK_FLUSH_BACKOFF_RETRIES).toInt).getOrElse(8)
+  private[this] val targetLatency = Try(config(KEY_ES_BULK_ADAPTIVE_TARGET_LATENCY).toLong).getOrElse(DEFAULT_ES_BULK_ADAPTIVE_TARGET_LATENCY)
+  private[this] val maxConcurrent = Try(config(KEY_ES_BULK_ADAPTIVE_MAX_CONCURRENT).toInt).getOrElse(DEFAULT_ES_BULK_ADAPTIVE_MAX_CONCURRENT)
+
+  require(minActions > 0 && minActions <= maxActions, s"[StreamX] es bulk.adaptive actions range error: [$minActions,$maxActions]")
+
+  @transient private[this] var client: RestHighLevelClient = _
+  @transient private[this] var limiter: AdaptiveLimiter = _
+  @transient private[this] var routes: mutable.LinkedHashMap[String, BulkRoute] = _
+  @transient private[this] var retryQueue: ConcurrentLinkedQueue[DocWriteRequest[_]] = _
+  @transient private[this] var attempts: java.util.Map[DocWriteRequest[_], Integer] = _
+  @transient private[this] var indexer: RequestIndexer = _
+  @transient private[this] var scheduler: ScheduledExecutorService = _
+  @volatile private[this] var flushException: Throwable = _
+
+  @transient private[this] var retryCounter: Counter = _
+  @transient private[this] var rejectedCounter: Counter = _
+  @volatile private[this] var lastBulkActions = 0
+  @volatile private[this] var lastBulkBytes = 0L
+
+  override def open(parameters: Configuration): Unit = {
+    val builder = RestClient.builder(httpHosts: _*)
+    restClientFactory.configureRestClientBuilder(builder)
+    client = new RestHighLevelClient(builder)
+    limiter = new AdaptiveLimiter(1, maxConcurrent, targetLatency)
+    routes = mutable.LinkedHashMap[String, BulkRoute]()
+    retryQueue = new ConcurrentLinkedQueue[DocWriteRequest[_]]()
+    attempts = java.util.Collections.synchronizedMap(new java.util.IdentityHashMap[DocWriteRequest[_], Integer]())
+    indexer = new RequestIndexer {
+      override def add(deleteRequests: DeleteRequest*): Unit = deleteRequests.foreach(retryQueue.add)
+
+      override def add(indexRequests: IndexRequest*): Unit = indexRequests.foreach(retryQueue.add)
+
+      override def add(updateRequests: UpdateRequest*): Unit = updateRequests.foreach(retryQueue.add)
+    }
+
+    val group = getRuntimeContext.getMetricGroup
+    limiter.registerMetrics(group)
+    retryCounter = group.counter("bulkRetries")
+    rejectedCounter = group.counter("bulkRejected")
+    group.gauge[Int, Gauge[Int]]("bulkActions", new Gauge[Int] {
+      override def getValue: Int = lastBulkActions
+    })
+    group.gauge[Long, Gauge[Long]]("bulkBytes", new Gauge[Long] {
+      override def getValue: Long = lastBulkBytes
+    })
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(ThreadUtils.threadFactory("ES6-bulk-flusher"))
+    scheduler.scheduleWithFixedDelay(new Runnable {
+      override def run(): Unit = AdaptiveES6SinkFunction.this.synchronized {
+        try {
+          drainRetries()
+          val now = System.currentTimeMillis()
+          routes.values.filter(r => r.nonEmpty && now - r.firstTime >= flushInterval).foreach(send)
+        } catch {
+          case e: Throwable => if (flushException == null) flushException = e
+        }
+      }
+    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS)
+    logInfo(s"AdaptiveES6Sink open, actions: [$minActions,$maxActions], maxBytes: $maxBytes, targetLatency: $targetLatency, maxConcurrent: $maxConcurrent")
+  }
+
+  override def invoke(value: T): Unit = this.synchronized {
+    checkFlushException()
+    drainRetries()
+    add(f(value))
+  }
+
+  private[this] def add(request: DocWriteRequest[_]): Unit = {
+    val route = routes.getOrElseUpdate(request.index(), new BulkRoute(request.index(), minActions, maxActions, initActions, targetLatency))
+    route.add(request)
+    if (route.size >= route.actions || route.bytes >= maxBytes) {
+      send(route)
+    }
+  }
+
+  private[this] def drainRetries(): Unit = {
+    var request = retryQueue.poll()
+    while (request != null) {
+      add(request)
+      request = retryQueue.poll()
+    }
+  }
+
+  /**
+   * 调用时持有this的锁,等待时释放锁,定时flush和checkpoint可以进入.
+   * 等待期间route可能已经被它们发送,等待之后重新检查,不发送空的bulk.
+   */
+  private[this] def send(route: BulkRoute): Unit = {
+    while (route.nonEmpty && route.inFlight.get() >= fairShare) {
+      this.wait(10)
+    }
+    if (route.nonEmpty) {
+      limiter.acquire()
+      val batch = route.drain()
+      val request = new BulkRequest()
+      batch.foreach(x => request.add(x))
+      lastBulkActions = batch.size()
+      lastBulkBytes = route.lastBytes
+      route.inFlight.incrementAndGet()
+      val start = System.currentTimeMillis()
+      try {
+        client.bulkAsync(request, RequestOptions.DEFAULT, new ActionListener[BulkResponse] {
+          override def onResponse(response: BulkResponse): Unit = complete(route, batch, start, response, null)
+
+          override def onFailure(e: Exception): Unit = complete(route, batch, start, null, e)
+        })
+      } catch {
+        case e: Exception =>
+          route.inFlight.decrementAndGet()
+          limiter.release(System.currentTimeMillis() - start, success = false)
+          throw e
+      }
+    }
+  }
+
+  /**
+   * 每个index可以占用的并发请求数
+   */
+  private[this] def fairShare: Int = {
+    val active = math.max(1, routes.values.count(r => r.nonEmpty || r.inFlight.get() > 0))
+    math.max(1, math.ceil(limiter.currentLimit.toDouble / active).toInt)
+  }
+
+  /**
+   * bulk的回调,在es client的io线程里执行,不能获取this的锁.
+   */
+  private[this] def complete(route: BulkRoute, batch: java.util.List[DocWriteRequest[_]], start: Long, response: BulkResponse, error: Exception): Unit = {
+    val latency = System.currentTimeMillis() - start
+    var rejected = 0
+    var failed = false
+    try {
+      if (error == null) {
+        response.getItems.zipWithIndex.foreach {
+          case (item, i) if item.isFailed =>
+            val failure = item.getFailure
+            if (failure.getStatus == RestStatus.TOO_MANY_REQUESTS) {
+              rejected += 1
+              retry(batch.get(i), failure.getCause)
+            } else {
+              failed = true
+              attempts.remove(batch.get(i))
+              failureHandler.onFailure(batch.get(i).asInstanceOf[ActionRequest], failure.getCause, failure.getStatus.getStatus, indexer)
+            }
+          case (_, i) => attempts.remove(batch.get(i))
+        }
+      } else {
+        val status = error match {
+          case e: ElasticsearchStatusException => e.status().getStatus
+          case e: ResponseException => e.getResponse.getStatusLine.getStatusCode
+          case _ => -1
+        }
+        if (status == RestStatus.TOO_MANY_REQUESTS.getStatus) {
+          rejected = batch.size()
+          batch.foreach(x => retry(x, error))
+        } else {
+          failed = true
+          logError(s"AdaptiveES6Sink bulk failed, index: ${route.index}, actions: ${batch.size()}, status: $status", error)
+          batch.foreach(x => {
+            attempts.remove(x)
+            failureHandler.onFailure(x.asInstanceOf[ActionRequest], error, status, indexer)
+          })
+        }
+      }
+    } catch {
+      case e: Throwable => if (flushException == null) flushException = e
+    } finally {
+      if (rejected > 0) rejectedCounter.inc(rejected)
+      route.adapt(latency, rejected > 0)
+      limiter.release(latency, rejected == 0 && !failed && error == null)
+      route.inFlight.decrementAndGet()
+    }
+  }
+
+  private[this] def retry(request: DocWriteRequest[_], cause: Throwable): Unit = {
+    val attempt = Option(attempts.get(request)).map(_.intValue()).getOrElse(0) + 1
+    if (attempt > maxRetries) {
+      attempts.remove(request)
+      failureHandler.onFailure(request.asInstanceOf[ActionRequest], cause, RestStatus.TOO_MANY_REQUESTS.getStatus, indexer)
+    } else {
+      attempts.put(request, attempt)
+      retryCounter.inc()
+      retryQueue.add(request)
+    }
+  }
+
+  private[this] def checkFlushException(): Unit = {
+    if (flushException != null) {
+      throw new RuntimeException("[StreamX] AdaptiveES6Sink writing records failed.", flushException)
+    }
+  }
+
+  /**
+   * flush所有的index,等待所有的请求(包括被拒绝后重试的)完成
+   */
+  private[this] def flushAll(): Unit = this.synchronized {
+    var done = false
+    while (!done) {
+      checkFlushException()
+      drainRetries()
+      routes.values.filter(_.nonEmpty).foreach(send)
+      done = retryQueue.isEmpty && routes.values.forall(r => r.isEmpty && r.inFlight.get() == 0)
+      if (!done) this.wait(10)
+    }
+    checkFlushException()
+  }
+
+  override def snapshotState(context: FunctionSnapshotContext): Unit = flushAll()
+
+  override def initializeState(context: FunctionInitializationContext): Unit = {}
+
+  override def close(): Unit = {
+    if (scheduler != null) {
+      ThreadUtils.shutdownExecutorService(scheduler)
+    }
+    try {
+      if (client != null) flushAll()
+    } finally {
+      if (client != null) client.close()
+      super.close()
+    }
+  }
+
+}
+
+/**
+ * 一个index的缓冲和自适应的bulk条数,只在sink的锁内修改缓冲,actions在回调里调整.
+ */
+private[sink] class BulkRoute(val index: String, minActions: Int, maxActions: Int, initActions: Int, targetLatency: Long) {
+
+  private[this] var requests = new java.util.ArrayList[DocWriteRequest[_]]()
+
+  var bytes = 0L
+
+  var lastBytes = 0L
+
+  var firstTime = 0L
+
+  val inFlight = new AtomicInteger(0)
+
+  @volatile var actions: Int = math.min(maxActions, math.max(minActions, initActions))
+
+  def size: Int = requests.size()
+
+  def isEmpty: Boolean = requests.isEmpty
+
+  def nonEmpty: Boolean = !isEmpty
+
+  def add(request: DocWriteRequest[_]): Unit = {
+    if (requests.isEmpty) firstTime = System.currentTimeMillis()
+    requests.add(request)
+    bytes += (request match {
+      case x: IndexRequest if x.source() != null => x.source().length()
+      case _ => 256
+    })
+  }
+
+  def drain(): java.util.List[DocWriteRequest[_]] = {
+    val drained = requests
+    requests = new java.util.ArrayList[DocWriteRequest[_]](drained.size())
+    lastBytes = bytes
+    bytes = 0L
+    drained
+  }
+
+  /**
+   * 超过targetLatency或者有请求被拒绝时减半,耗时低于targetLatency的一半时增加1/8
+   */
+  def adapt(latency: Long, rejected: Boolean): Unit = this.synchronized {
+    if (rejected || latency > targetLatency) {
+      actions = math.max(minActions, actions / 2)
+    } else if (latency < targetLatency / 2) {
+      actions = math.min(maxActions, actions + math.max(1, actions / 8))
+    }
+  }
+
+  override def toString: String = s"BulkRoute(index:$index,actions:$actions,buffered:$size,inFlight:${inFlight.get()})"
+
+}
@@ -21,11 +21,11 @@
 package com.streamxhub.streamx.flink.core.scala.sink
 
 import com.streamxhub.streamx.common.util.{Logger, Utils}
-import org.apache.flink.api.common.ExecutionConfig
 import org.apache.flink.api.common.functions.util.PrintSinkOutputWriter
 import org.apache.flink.api.common.typeutils.base.VoidSerializer
-import org.apache.flink.api.java.typeutils.runtime.kryo.KryoSerializer
+import org.apache.flink.api.common.typeutils.{NestedSerializersSnapshotDelegate, TypeSerializer, TypeSerializerSchemaCompatibility, TypeSerializerSnapshot}
 import org.apache.flink.configuration.Configuration
+import org.apache.flink.core.memory.{DataInputView, DataOutputView}
 import org.apache.flink.streaming.api.datastream.DataStreamSink
 import org.apache.flink.streaming.api.functions.sink.{SinkFunction, TwoPhaseCommitSinkFunction}
 import org.apache.flink.streaming.api.operators.StreamingRuntimeContext
@@ -41,16 +41,18 @@ import scala.collection.mutable
 object EchoSink {
 
   def apply[T](@(transient@param) sinkIdentifier: String)(implicit stream: DataStream[T]): DataStreamSink[T] = {
-    stream.addSink(new EchoSinkFunction[T](sinkIdentifier)).name("Echo to Std. Out")
+    val serializer = stream.dataType.createSerializer(stream.executionConfig)
+    stream.addSink(new EchoSinkFunction[T](sinkIdentifier, serializer)).name("Echo to Std. Out")
   }
 
 }
 
 /**
  * @param sinkIdentifier
+ * @param serializer 数据的序列化器,状态里的数据由它序列化
  * @tparam T
  */
-class EchoSinkFunction[T](sinkIdentifier: String) extends TwoPhaseCommitSinkFunction[T, Echo[T], Void](new KryoSerializer[Echo[T]](classOf[Echo[T]], new ExecutionConfig), VoidSerializer.INSTANCE)
+class EchoSinkFunction[T](sinkIdentifier: String, serializer: TypeSerializer[T]) extends TwoPhaseCommitSinkFunction[T, Echo[T], Void](new EchoSerializer[T](serializer), VoidSerializer.INSTANCE)
   with Logger {
 
   private[this] val buffer: collection.mutable.Map[String, Echo[T]] = collection.mutable.Map.empty
@@ -97,3 +99,100 @@ case class Echo[T](transactionId: String = Utils.uuid(), buffer: mutable.Mutable
 
   override def toString: String = s"(transactionId:$transactionId,size:${buffer.size},invoked:$invoked)"
 }
+
+/**
+ * transactionId,invoked,数据个数,之后是由数据的序列化器写入的每条数据
+ */
+class EchoSerializer[T](val valueSerializer: TypeSerializer[T]) extends TypeSerializer[Echo[T]] {
+
+  override def isImmutableType: Boolean = false
+
+  override def duplicate(): TypeSerializer[Echo[T]] = {
+    val duplicated = valueSerializer.duplicate()
+    if (duplicated eq valueSerializer) this else new EchoSerializer[T](duplicated)
+  }
+
+  override def createInstance(): Echo[T] = new Echo[T]()
+
+  override def copy(from: Echo[T]): Echo[T] = {
+    val echo = from.copy(buffer = mutable.MutableList.empty[T])
+    from.buffer.foreach(x => echo.add(valueSerializer.copy(x)))
+    echo
+  }
+
+  override def copy(from: Echo[T], reuse: Echo[T]): Echo[T] = copy(from)
+
+  override def getLength: Int = -1
+
+  override def serialize(record: Echo[T], target: DataOutputView): Unit = {
+    target.writeUTF(record.transactionId)
+    target.writeBoolean(record.invoked)
+    target.writeInt(record.buffer.size)
+    record.buffer.foreach(valueSerializer.serialize(_, target))
+  }
+
+  override def deserialize(source: DataInputView): Echo[T] = {
+    val echo = Echo[T](transactionId = source.readUTF(), invoked = source.readBoolean())
+    (0 until source.readInt()).foreach(_ => echo.add(valueSerializer.deserialize(source)))
+    echo
+  }
+
+  override def deserialize(reuse: Echo[T], source: DataInputView): Echo[T] = deserialize(source)
+
+  override def copy(source: DataInputView, target: DataOutputView): Unit = {
+    target.writeUTF(source.readUTF())
+    target.writeBoolean(source.readBoolean())
+    val size = source.readInt()
+    target.writeInt(size)
+    (0 until size).foreach(_ => valueSerializer.copy(source, target))
+  }
+
+  override def equals(obj: Any): Boolean = obj match {
+    case other: EchoSerializer[_] => valueSerializer == other.valueSerializer
+    case _ => false
+  }
+
+  override def hashCode(): Int = valueSerializer.hashCode()
+
+  override def snapshotConfiguration(): TypeSerializerSnapshot[Echo[T]] = new EchoSerializerSnapshot[T](this)
+
+}
+
+class EchoSerializerSnapshot[T] extends TypeSerializerSnapshot[Echo[T]] {
+
+  private[this] var nested: NestedSerializersSnapshotDelegate = _
+
+  def this(serializer: EchoSerializer[T]) = {
+    this()
+    this.nested = new NestedSerializersSnapshotDelegate(serializer.valueSerializer)
+  }
+
+  override def getCurrentVersion: Int = 1
+
+  override def writeSnapshot(out: DataOutputView): Unit = nested.writeNestedSerializerSnapshots(out)
+
+  override def readSnapshot(readVersion: Int, in: DataInputView, userCodeClassLoader: ClassLoader): Unit = {
+    nested = NestedSerializersSnapshotDelegate.readNestedSerializerSnapshots(in, userCodeClassLoader)
+  }
+
+  override def restoreSerializer(): TypeSerializer[Echo[T]] = new EchoSerializer[T](nested.getRestoredNestedSerializer[T](0))
+
+  override def resolveSchemaCompatibility(newSerializer: TypeSerializer[Echo[T]]): TypeSerializerSchemaCompatibility[Echo[T]] = {
+    newSerializer match {
+      case serializer: EchoSerializer[_] =>
+        val snapshot = nested.getNestedSerializerSnapshots()(0).asInstanceOf[TypeSerializerSnapshot[T]]
+        val compatibility = snapshot.resolveSchemaCompatibility(serializer.asInstanceOf[EchoSerializer[T]].valueSerializer)
+        if (compatibility.isCompatibleAsIs) {
+          TypeSerializerSchemaCompatibility.compatibleAsIs()
+        } else if (compatibility.isCompatibleAfterMigration) {
+          TypeSerializerSchemaCompatibility.compatibleAfterMigration()
+        } else if (compatibility.isCompatibleWithReconfiguredSerializer) {
+          TypeSerializerSchemaCompatibility.compatibleWithReconfiguredSerializer(new EchoSerializer[T](compatibility.getReconfiguredSerializer))
+        } else {
+          TypeSerializerSchemaCompatibility.incompatible()
+        }
+      case _ => TypeSerializerSchemaCompatibility.incompatible()
+    }
+  }
+
+}
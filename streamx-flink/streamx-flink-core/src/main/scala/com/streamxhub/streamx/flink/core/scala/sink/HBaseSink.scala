@@ -21,24 +21,31 @@
 package com.streamxhub.streamx.flink.core.scala.sink
 
 import com.streamxhub.streamx.common.conf.ConfigConst._
-import com.streamxhub.streamx.common.util.{ConfigUtils, HBaseClient, Logger, Utils}
+import com.streamxhub.streamx.common.util.{ConfigUtils, HBaseClient, Logger, ThreadUtils, Utils}
 import com.streamxhub.streamx.flink.core.scala.StreamingContext
+import com.streamxhub.streamx.flink.core.scala.failover.{FailoverWriter, LatencyWindow, SinkRequest, ThresholdConf}
 import org.apache.flink.api.common.io.RichOutputFormat
 import org.apache.flink.api.common.typeinfo.TypeInformation
 import org.apache.flink.configuration.Configuration
+import org.apache.flink.metrics.{Counter, Gauge, MeterView}
+import org.apache.flink.runtime.state.{FunctionInitializationContext, FunctionSnapshotContext}
+import org.apache.flink.streaming.api.checkpoint.CheckpointedFunction
 import org.apache.flink.streaming.api.datastream.DataStreamSink
 import org.apache.flink.streaming.api.functions.sink.{RichSinkFunction, SinkFunction}
 import org.apache.flink.streaming.api.scala.DataStream
 import org.apache.hadoop.hbase.TableName
 import org.apache.hadoop.hbase.client._
 
+import java.io.IOException
 import java.lang.{Iterable => JIter}
+import java.util
 import java.util.Properties
 import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
-import java.util.concurrent.{Executors, ScheduledExecutorService, TimeUnit}
+import java.util.concurrent.{ConcurrentLinkedQueue, Executors, ScheduledExecutorService, TimeUnit}
 import scala.annotation.meta.param
 import scala.collection.JavaConversions._
 import scala.collection.mutable.ArrayBuffer
+import scala.util.Try
 
 object HBaseSink {
 
@@ -66,7 +73,10 @@ class HBaseSink(@(transient@param) ctx: StreamingContext,
   def sink[T](stream: DataStream[T], tableName: String)(implicit fun: T => JIter[Mutation]): DataStreamSink[T] = {
     implicit val prop: Properties = ConfigUtils.getConf(ctx.parameter.toMap, HBASE_PREFIX, HBASE_PREFIX)(alias)
     Utils.copyProperties(property, prop)
-    val sinkFun = new HBaseSinkFunction[T](tableName, fun)
+    val sinkFun = prop.getOrElse(KEY_HBASE_SINK_MODE, "batch") match {
+      case "mutator" => new HBaseMutatorSinkFunction[T](tableName, fun)
+      case _ => new HBaseSinkFunction[T](tableName, fun)
+    }
     val sink = stream.addSink(sinkFun)
     afterSink(sink, parallelism, name, uid)
   }
@@ -159,6 +169,181 @@ class HBaseSinkFunction[T](tabName: String, fun: T => JIter[Mutation])(implicit
 
 }
 
+/**
+ * hbase.sink.mode: mutator
+ * Put和Delete交给BufferedMutator,超过writeBufferSize时由BufferedMutator在后台异步提交,Increment/Append等在flush时由table.batch提交.
+ * 所有的flush(定时,达到commitBatch,checkpoint,close)都在同一把锁内进行,最多有commitBatch条没有确认的mutation,
+ * snapshotState时flush,保证at-least-once.
+ * 重试耗尽的mutation写入failover存储(hbase.failover.*,同ClickHouseSink的failover配置),没有配置failover时任务失败.
+ */
+class HBaseMutatorSinkFunction[T](tabName: String, fun: T => JIter[Mutation])(implicit prop: Properties) extends RichSinkFunction[T] with CheckpointedFunction with Logger {
+
+  private[this] val commitBatch = Try(prop(KEY_HBASE_COMMIT_BATCH).toInt).getOrElse(DEFAULT_HBASE_COMMIT_BATCH)
+  private[this] val writeBufferSize = Try(prop(KEY_HBASE_WRITE_SIZE).toLong).getOrElse(DEFAULT_HBASE_WRITE_SIZE.toLong)
+  private[this] val flushInterval = Try(prop(KEY_HBASE_SINK_FLUSH_INTERVAL).toLong).getOrElse(DEFAULT_HBASE_SINK_FLUSH_INTERVAL)
+
+  @transient private[this] var connection: Connection = _
+  @transient private[this] var table: Table = _
+  @transient private[this] var mutator: BufferedMutator = _
+  @transient private[this] var failoverWriter: FailoverWriter = _
+  @transient private[this] var failoverTable: String = _
+  @transient private[this] var scheduler: ScheduledExecutorService = _
+  @volatile private[this] var flushException: Exception = _
+
+  //BufferedMutator不支持的Increment,Append等
+  @transient private[this] var others: ArrayBuffer[Mutation] = _
+  //重试耗尽的mutation,listener在提交的线程里收集,flush之后写入failover存储
+  @transient private[this] var failed: ConcurrentLinkedQueue[Row] = _
+  //上次flush之后写入的mutation个数
+  private[this] var pending = 0
+
+  @transient private[this] var mutations: Counter = _
+  @transient private[this] var failoverMutations: Counter = _
+  @transient private[this] var latencies: LatencyWindow = _
+
+  override def initializeState(context: FunctionInitializationContext): Unit = {}
+
+  override def open(parameters: Configuration): Unit = {
+    others = new ArrayBuffer[Mutation]()
+    failed = new ConcurrentLinkedQueue[Row]()
+    latencies = new LatencyWindow(1024)
+    initFailover()
+    connection = HBaseClient(prop).connection
+    val tableName = TableName.valueOf(tabName)
+    val mutatorParam = new BufferedMutatorParams(tableName)
+      .writeBufferSize(writeBufferSize)
+      .listener(new BufferedMutator.ExceptionListener {
+        override def onException(exception: RetriesExhaustedWithDetailsException, mutator: BufferedMutator): Unit = {
+          logWarn(s"HBaseSink ${exception.getNumExceptions} mutations failed after retries, error:${exception.getLocalizedMessage}")
+          for (i <- 0.until(exception.getNumExceptions)) {
+            failed.add(exception.getRow(i))
+          }
+        }
+      })
+    mutator = connection.getBufferedMutator(mutatorParam)
+    table = connection.getTable(tableName)
+
+    val group = getRuntimeContext.getMetricGroup
+    mutations = group.counter("hbaseMutations")
+    failoverMutations = group.counter("hbaseFailoverMutations")
+    group.meter("hbaseMutationsPerSecond", new MeterView(mutations, 60))
+    Seq(50, 95, 99).foreach(p => {
+      group.gauge[Long, Gauge[Long]](s"hbaseFlushLatencyP$p", new Gauge[Long] {
+        override def getValue: Long = latencies.percentile(p)
+      })
+    })
+
+    if (flushInterval > 0) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(ThreadUtils.threadFactory("HBaseSink-flusher"))
+      scheduler.scheduleWithFixedDelay(new Runnable {
+        override def run(): Unit = HBaseMutatorSinkFunction.this.synchronized {
+          if (flushException == null) {
+            try flush() catch {
+              case e: Exception => flushException = e
+            }
+          }
+        }
+      }, flushInterval, flushInterval, TimeUnit.MILLISECONDS)
+    }
+  }
+
+  /**
+   * hbase.failover.storage, hbase.failover.kafka.topic ... => failover.storage, failover.kafka.topic ...
+   */
+  private[this] def initFailover(): Unit = {
+    val failoverProp = new Properties()
+    prop.filter(_._1.startsWith(s"${HBASE_PREFIX}failover.")).foreach(x => failoverProp.put(x._1.drop(HBASE_PREFIX.length), x._2))
+    if (failoverProp.containsKey(KEY_SINK_FAILOVER_STORAGE)) {
+      val conf = ThresholdConf(failoverProp)
+      failoverWriter = new FailoverWriter(conf.storageType, conf.getFailoverConfig)
+      failoverTable = failoverProp.getOrElse(KEY_SINK_FAILOVER_TABLE, tabName.replace(':', '_'))
+    }
+  }
+
+  override def invoke(value: T, context: SinkFunction.Context): Unit = this.synchronized {
+    checkFlushException()
+    fun(value).foreach(mutation => {
+      mutation match {
+        case m@(_: Put | _: Delete) => mutator.mutate(m)
+        case other => others += other
+      }
+      pending += 1
+    })
+    if (pending >= commitBatch) {
+      flush()
+    }
+  }
+
+  private[this] def flush(): Unit = this.synchronized {
+    if (pending > 0 || !failed.isEmpty) {
+      val start = System.currentTimeMillis()
+      mutator.flush()
+      if (others.nonEmpty) {
+        try {
+          table.batch(others, new Array[AnyRef](others.length))
+        } catch {
+          case e: RetriesExhaustedWithDetailsException =>
+            for (i <- 0.until(e.getNumExceptions)) {
+              failed.add(e.getRow(i))
+            }
+        }
+        others.clear()
+      }
+      latencies.add(System.currentTimeMillis() - start)
+      mutations.inc(pending)
+      pending = 0
+      failover()
+    }
+  }
+
+  private[this] def failover(): Unit = {
+    if (!failed.isEmpty) {
+      val records = new util.ArrayList[String]()
+      Iterator.continually(failed.poll()).takeWhile(_ != null).foreach {
+        case m: Mutation => records.add(m.toJSON)
+        case other => records.add(other.toString)
+      }
+      if (failoverWriter == null) {
+        throw new IOException(s"[StreamX] HBaseSink ${records.size} mutations to $tabName failed after retries, and hbase.failover.storage is not configured")
+      }
+      failoverWriter.write(SinkRequest(records, failoverTable))
+      failoverMutations.inc(records.size)
+    }
+  }
+
+  private[this] def checkFlushException(): Unit = {
+    if (flushException != null) {
+      throw new RuntimeException("[StreamX] HBaseSink flush error", flushException)
+    }
+  }
+
+  override def snapshotState(context: FunctionSnapshotContext): Unit = this.synchronized {
+    checkFlushException()
+    flush()
+  }
+
+  override def close(): Unit = {
+    if (scheduler != null) {
+      ThreadUtils.shutdownExecutorService(scheduler)
+    }
+    this.synchronized {
+      try {
+        if (mutator != null) {
+          checkFlushException()
+          flush()
+        }
+      } finally {
+        if (mutator != null) mutator.close()
+        if (table != null) table.close()
+        if (failoverWriter != null) failoverWriter.close()
+        //the connection is created by open() for this subtask only
+        if (connection != null) Try(connection.close())
+      }
+    }
+  }
+
+}
+
 class HBaseOutputFormat[T: TypeInformation](tabName: String, fun: T => JIter[Mutation])(implicit prop: Properties) extends RichOutputFormat[T] with Logger {
 
   val sinkFunction = new HBaseSinkFunction[T](tabName, fun)
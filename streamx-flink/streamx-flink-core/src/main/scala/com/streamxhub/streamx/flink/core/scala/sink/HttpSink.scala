@@ -25,7 +25,11 @@ import com.streamxhub.streamx.common.util._
 import com.streamxhub.streamx.flink.core.scala.StreamingContext
 import com.streamxhub.streamx.flink.core.scala.failover._
 import io.netty.handler.codec.http.HttpHeaders
+import org.apache.flink.api.common.state.{ListState, ListStateDescriptor}
+import org.apache.flink.api.common.typeinfo.PrimitiveArrayTypeInfo
 import org.apache.flink.configuration.Configuration
+import org.apache.flink.runtime.state.{FunctionInitializationContext, FunctionSnapshotContext}
+import org.apache.flink.streaming.api.checkpoint.CheckpointedFunction
 import org.apache.flink.streaming.api.datastream.DataStreamSink
 import org.apache.flink.streaming.api.functions.sink.RichSinkFunction
 import org.apache.flink.streaming.api.scala.DataStream
@@ -35,7 +39,6 @@ import org.json4s.jackson.Serialization
 
 import java.util.Properties
 import java.util.concurrent._
-import java.util.concurrent.locks.ReentrantLock
 import scala.annotation.meta.param
 import scala.collection.JavaConversions._
 import scala.collection.mutable
@@ -83,39 +86,42 @@ class HttpSink(@(transient@param) ctx: StreamingContext,
 
 class HttpSinkFunction(properties: mutable.Map[String, String],
                        header: Map[String, String],
-                       method: String) extends RichSinkFunction[String] with Logger {
-
-  private[this] object Lock {
-    @volatile var initialized = false
-    val lock = new ReentrantLock()
-  }
+                       method: String) extends RichSinkFunction[String] with CheckpointedFunction with Logger {
 
   @transient var sinkBuffer: SinkBuffer = _
   @transient var thresholdConf: ThresholdConf = _
   @transient var httpSinkWriter: HttpSinkWriter = _
+  @transient var subtaskWriter: SubtaskSinkWriter = _
   @transient var failoverChecker: FailoverChecker = _
+  @transient var writerKey: String = _
   @volatile var isClosed: Boolean = false
+  @transient private[this] var pendingState: ListState[Array[Byte]] = _
+  @transient private[this] var restoredRequests: List[SinkRequest] = Nil
+  private val PENDING_STATE_NAME: String = "http-sink-pending-requests"
 
   override def open(config: Configuration): Unit = {
-    if (!Lock.initialized) {
-      Lock.lock.lock()
-      if (!Lock.initialized) {
-        Lock.initialized = true
-
-        val prop: Properties = new Properties()
-        properties.foreach { case (k, v) => prop.put(k, v) }
-        thresholdConf = ThresholdConf(prop)
-
-        val bufferSize = 1
-        val table = properties(KEY_SINK_FAILOVER_TABLE)
-
-        httpSinkWriter = HttpSinkWriter(thresholdConf, header)
-        failoverChecker = FailoverChecker(thresholdConf.delayTime)
-        sinkBuffer = SinkBuffer(httpSinkWriter, thresholdConf.delayTime, bufferSize, table)
-        failoverChecker.addSinkBuffer(sinkBuffer)
-        logInfo("HttpSink initialize... ")
-      }
-      Lock.lock.unlock()
+    val prop: Properties = new Properties()
+    properties.foreach { case (k, v) => prop.put(k, v) }
+    thresholdConf = ThresholdConf(prop)
+
+    val bufferSize = 1
+    val table = properties(KEY_SINK_FAILOVER_TABLE)
+
+    //the subtasks in the same TaskManager with the same table, header and settings share the writer and the checker.
+    writerKey = s"http|$table|${header.toSeq.sorted.mkString(",")}|${thresholdConf.digest}"
+    val shared = SinkWriterPool.acquire(writerKey, thresholdConf.delayTime)(HttpSinkWriter(thresholdConf, header))
+    httpSinkWriter = shared.writer
+    failoverChecker = shared.checker
+    subtaskWriter = new SubtaskSinkWriter(httpSinkWriter)
+    sinkBuffer = SinkBuffer(subtaskWriter, thresholdConf.delayTime, bufferSize, table)
+    failoverChecker.addSinkBuffer(sinkBuffer)
+    sinkBuffer.registerMetrics(getRuntimeContext.getMetricGroup)
+    httpSinkWriter.limiter.registerMetrics(getRuntimeContext.getMetricGroup)
+    logInfo(s"HttpSink initialize... writer: $writerKey")
+    if (restoredRequests.nonEmpty) {
+      logInfo(s"HttpSink resend ${restoredRequests.size} requests restored from state")
+      restoredRequests.foreach(subtaskWriter.write)
+      restoredRequests = Nil
     }
   }
 
@@ -123,17 +129,41 @@ class HttpSinkFunction(properties: mutable.Map[String, String],
     sinkBuffer.put(s"$method///$url")
   }
 
+  /**
+   * same as AsyncClickHouseSinkFunction: wait for the in-flight requests, or keep them in the state(threshold.persistPending).
+   */
+  override def snapshotState(context: FunctionSnapshotContext): Unit = {
+    if (sinkBuffer != null) sinkBuffer.flush()
+    pendingState.clear()
+    if (subtaskWriter != null) {
+      if (thresholdConf.persistPending) {
+        subtaskWriter.pendingRequests.checkFailure()
+        val pending = subtaskWriter.pendingRequests.snapshot(SinkRequest.serialize)
+        pending.foreach(pendingState.add)
+        logDebug(s"HttpSink snapshotState checkpointId: ${context.getCheckpointId}, pending requests: ${pending.size}")
+      } else {
+        subtaskWriter.flush()
+      }
+    }
+  }
+
+  override def initializeState(context: FunctionInitializationContext): Unit = {
+    pendingState = context.getOperatorStateStore.getListState(new ListStateDescriptor[Array[Byte]](PENDING_STATE_NAME, PrimitiveArrayTypeInfo.BYTE_PRIMITIVE_ARRAY_TYPE_INFO))
+    if (context.isRestored) {
+      restoredRequests = pendingState.get().map(SinkRequest.deserialize).toList
+      logInfo(s"HttpSink initializeState, restored requests: ${restoredRequests.size}")
+    }
+  }
+
   override def close(): Unit = {
     if (!isClosed) {
-      Lock.lock.synchronized {
-        if (!isClosed) {
-          if (sinkBuffer != null) sinkBuffer.close()
-          if (httpSinkWriter != null) httpSinkWriter.close()
-          if (failoverChecker != null) failoverChecker.close()
-          isClosed = true
-          super.close()
-        }
+      isClosed = true
+      if (sinkBuffer != null) {
+        sinkBuffer.close()
+        failoverChecker.removeSinkBuffer(sinkBuffer)
       }
+      if (writerKey != null) SinkWriterPool.release(writerKey)
+      super.close()
     }
   }
 }
@@ -153,13 +183,17 @@ case class HttpSinkWriter(thresholdConf: ThresholdConf, header: Map[String, Stri
   )
 
   var tasks: ListBuffer[HttpWriterTask] = ListBuffer[HttpWriterTask]()
-  var recordQueue: BlockingQueue[SinkRequest] = new LinkedBlockingQueue[SinkRequest](thresholdConf.queueCapacity)
+  val limiter: AdaptiveLimiter = AdaptiveLimiter(thresholdConf)
+  //in adaptive mode the queue is kept short, a slow endpoint blocks the sink thread soon instead of piling up requests.
+  var recordQueue: BlockingQueue[SinkRequest] = new LinkedBlockingQueue[SinkRequest](
+    if (thresholdConf.adaptive) math.min(thresholdConf.queueCapacity, thresholdConf.maxInFlight) else thresholdConf.queueCapacity
+  )
   var asyncHttpClient: AsyncHttpClient = Dsl.asyncHttpClient
 
   var service: ExecutorService = Executors.newFixedThreadPool(thresholdConf.numWriters, threadFactory)
 
   for (i <- 0 until thresholdConf.numWriters) {
-    val task = HttpWriterTask(i, thresholdConf, asyncHttpClient, header, recordQueue, callbackService)
+    val task = HttpWriterTask(i, thresholdConf, asyncHttpClient, header, recordQueue, callbackService, limiter)
     tasks.add(task)
     service.submit(task)
   }
@@ -190,7 +224,8 @@ case class HttpWriterTask(id: Int,
                           asyncHttpClient: AsyncHttpClient,
                           header: Map[String, String],
                           queue: BlockingQueue[SinkRequest],
-                          callbackService: ExecutorService) extends Runnable with AutoCloseable with Logger {
+                          callbackService: ExecutorService,
+                          limiter: AdaptiveLimiter) extends Runnable with AutoCloseable with Logger {
 
   @volatile var isWorking = false
 
@@ -250,11 +285,20 @@ case class HttpWriterTask(id: Int,
       val req = queue.poll(100, TimeUnit.MILLISECONDS)
       if (req != null) {
         val url = req.records.head
-        val sinkRequest = SinkRequest(List(url), req.table, req.attemptCounter)
-        val request = buildRequest(url)
-        val whenResponse = asyncHttpClient.executeRequest(request)
-        val callback = respCallback(whenResponse, sinkRequest)
-        whenResponse.addListener(callback, callbackService)
+        //the same instance is retried, it's tracked by the PendingRequests of its subtask
+        val sinkRequest = req
+        limiter.acquire()
+        val start = System.currentTimeMillis()
+        try {
+          val request = buildRequest(url)
+          val whenResponse = asyncHttpClient.executeRequest(request)
+          val callback = respCallback(whenResponse, sinkRequest, start)
+          whenResponse.addListener(callback, callbackService)
+        } catch {
+          case e: Exception =>
+            limiter.release(System.currentTimeMillis() - start, success = false)
+            throw e
+        }
         if (req.attemptCounter > 0) {
           logInfo(s"get retry url from queue,attemptCounter:${req.attemptCounter}")
         }
@@ -268,16 +312,19 @@ case class HttpWriterTask(id: Int,
     logInfo(s"Task id = $id is finished")
   }
 
-  def respCallback(whenResponse: ListenableFuture[Response], sinkRequest: SinkRequest): Runnable = new Runnable {
+  def respCallback(whenResponse: ListenableFuture[Response], sinkRequest: SinkRequest, start: Long): Runnable = new Runnable {
     override def run(): Unit = {
-      Try(whenResponse.get()).getOrElse(null) match {
+      val response = Try(whenResponse.get()).getOrElse(null)
+      val success = response != null && thresholdConf.successCode.contains(response.getStatusCode)
+      limiter.release(System.currentTimeMillis() - start, success)
+      response match {
         case null =>
           logError(s"""Error HttpSink executing callback, params = $thresholdConf,can not get Response. """)
           handleFailedResponse(null, sinkRequest)
         case resp if !thresholdConf.successCode.contains(resp.getStatusCode) =>
           logError(s"""Error HttpSink executing callback, params = $thresholdConf, StatusCode = ${resp.getStatusCode} """)
           handleFailedResponse(resp, sinkRequest)
-        case _ =>
+        case _ => sinkRequest.finish()
       }
     }
   }
@@ -290,15 +337,22 @@ case class HttpWriterTask(id: Int,
    */
   def handleFailedResponse(response: Response, sinkRequest: SinkRequest): Unit = try {
     if (sinkRequest.attemptCounter >= thresholdConf.maxRetries) {
-      failoverWriter.write(sinkRequest.copy(records = sinkRequest.records.map(_.replaceFirst("^[A-Z]+///", ""))))
       logWarn(s"""Failed to send data to Http, Http response = $response. Ready to flush data to ${thresholdConf.storageType}""")
+      failoverWriter.writeAsync(sinkRequest.copy(records = sinkRequest.records.map(_.replaceFirst("^[A-Z]+///", "")))) {
+        case null => sinkRequest.finish()
+        case e =>
+          logError(s"HttpSink failover error, table = ${sinkRequest.table}", e)
+          sinkRequest.fail(e)
+      }
     } else {
       sinkRequest.incrementCounter()
       logWarn(s"Next attempt to send data to Http, table = ${sinkRequest.table}, buffer size = ${sinkRequest.size}, current attempt num = ${sinkRequest.attemptCounter}, max attempt num = ${thresholdConf.maxRetries}, response = $response")
       queue.put(sinkRequest)
     }
   } catch {
-    case e: Exception => new RuntimeException(s"[StreamX] handleFailedResponse,error:$e")
+    case e: Exception =>
+      logError(s"HttpSink handleFailedResponse error, table = ${sinkRequest.table}", e)
+      sinkRequest.fail(e)
   }
 
 
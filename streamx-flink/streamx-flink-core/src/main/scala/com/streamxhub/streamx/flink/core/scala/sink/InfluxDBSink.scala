@@ -21,22 +21,34 @@
 package com.streamxhub.streamx.flink.core.scala.sink
 
 import com.streamxhub.streamx.common.conf.ConfigConst._
-import com.streamxhub.streamx.common.util.{ConfigUtils, Logger, Utils}
+import com.streamxhub.streamx.common.util.{ConfigUtils, Logger, ThreadUtils, Utils}
 import com.streamxhub.streamx.flink.core.scala.StreamingContext
+import com.streamxhub.streamx.flink.core.scala.failover._
+import io.netty.handler.codec.http.HttpHeaders
 import org.apache.flink.api.common.io.RichOutputFormat
-import org.apache.flink.api.common.typeinfo.TypeInformation
+import org.apache.flink.api.common.state.{ListState, ListStateDescriptor}
+import org.apache.flink.api.common.typeinfo.{PrimitiveArrayTypeInfo, TypeInformation}
 import org.apache.flink.configuration.Configuration
+import org.apache.flink.runtime.state.{FunctionInitializationContext, FunctionSnapshotContext}
+import org.apache.flink.streaming.api.checkpoint.CheckpointedFunction
 import org.apache.flink.streaming.api.datastream.DataStreamSink
 import org.apache.flink.streaming.api.functions.sink.RichSinkFunction
 import org.apache.flink.streaming.api.scala.DataStream
+import org.asynchttpclient._
 import org.influxdb.dto.Point
 import org.influxdb.{InfluxDB, InfluxDBFactory}
 
-import java.util.Properties
-import java.util.concurrent.TimeUnit
+import java.io._
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.util.concurrent._
+import java.util.zip.{GZIPInputStream, GZIPOutputStream}
+import java.util.{Collections, Properties}
 import scala.annotation.meta.param
 import scala.collection.JavaConversions._
 import scala.collection.Map
+import scala.collection.mutable.ListBuffer
+import scala.util.Try
 
 object InfluxDBSink {
 
@@ -57,7 +69,11 @@ class InfluxDBSink(@(transient@param) ctx: StreamingContext,
   def sink[T](stream: DataStream[T], alias: String = "")(implicit entity: InfluxEntity[T]): DataStreamSink[T] = {
     val prop = ConfigUtils.getInfluxConfig(ctx.parameter.toMap)(alias)
     Utils.copyProperties(property, prop)
-    val sinkFun = new InfluxDBFunction[T](prop)
+    val sinkFun = prop.getOrElse(KEY_INFLUX_MODE, INFLUX_MODE_CLIENT) match {
+      case INFLUX_MODE_CLIENT => new InfluxDBFunction[T](prop)
+      case INFLUX_MODE_LINE => new InfluxDBLineSinkFunction[T](prop)
+      case x => throw new IllegalArgumentException(s"[StreamX] influx mode error, unknown value: $x, must be ($INFLUX_MODE_CLIENT|$INFLUX_MODE_LINE)")
+    }
     val sink = stream.addSink(sinkFun)
     afterSink(sink, parallelism, name, uid)
   }
@@ -83,7 +99,7 @@ class InfluxDBFunction[T](config: Properties)(implicit endpoint: InfluxEntity[T]
 
   override def invoke(value: T): Unit = {
     val point = Point.measurement(endpoint.measurement)
-      .time(System.currentTimeMillis(), TimeUnit.MILLISECONDS)
+      .time(endpoint.timestamp(value), TimeUnit.MILLISECONDS)
       .tag(endpoint.tagFun(value))
       .fields(endpoint.fieldFun(value).asInstanceOf[Map[String, Object]])
       .build()
@@ -113,6 +129,479 @@ class InfluxDBOutputFormat[T: TypeInformation](implicit prop: Properties, endpoi
 }
 
 
+/**
+ * line模式: 记录直接编码为line protocol写入批次(默认gzip压缩),按threshold.bufferSize,threshold.bufferBytes或threshold.delayTime
+ * 交给共享的InfluxDBSinkWriter,多个writer并发发送http请求,重试threshold.retries次后仍失败的批次写入failover.
+ * checkpoint时flush批次并等待所有的请求完成(或threshold.persistPending时保存到state),保证at-least-once.
+ */
+class InfluxDBLineSinkFunction[T](properties: Properties)(implicit endpoint: InfluxEntity[T]) extends RichSinkFunction[T] with CheckpointedFunction with Logger {
+
+  @transient var influxConf: InfluxDBConfig = _
+  @transient var sinkBuffer: LineProtocolSinkBuffer = _
+  @transient var influxWriter: InfluxDBSinkWriter = _
+  @transient var subtaskWriter: SubtaskSinkWriter = _
+  @transient var failoverChecker: FailoverChecker = _
+  @transient var writerKey: String = _
+  @volatile var isClosed: Boolean = false
+  @transient private[this] var line: java.lang.StringBuilder = _
+  @transient private[this] var pendingState: ListState[Array[Byte]] = _
+  @transient private[this] var restoredRequests: List[SinkRequest] = Nil
+  private val PENDING_STATE_NAME: String = "influx-sink-pending-requests"
+
+  override def open(parameters: Configuration): Unit = {
+    influxConf = new InfluxDBConfig(properties, endpoint.database, endpoint.retentionPolicy)
+    val table = properties.getOrElse(KEY_SINK_FAILOVER_TABLE, endpoint.measurement)
+    writerKey = s"influx|${influxConf.writeUrl}|${endpoint.database}|${endpoint.retentionPolicy}|${influxConf.digest}"
+    val shared = SinkWriterPool.acquire(writerKey, influxConf.delayTime)(InfluxDBSinkWriter(influxConf))
+    influxWriter = shared.writer
+    failoverChecker = shared.checker
+    subtaskWriter = new SubtaskSinkWriter(influxWriter)
+    sinkBuffer = LineProtocolSinkBuffer(subtaskWriter, influxConf.delayTime, influxConf.bufferSize, influxConf.bufferBytes, influxConf.compress, table)
+    failoverChecker.addSinkBuffer(sinkBuffer)
+    line = new java.lang.StringBuilder(256)
+    //no RuntimeContext when it's used by an OutputFormat
+    Try(getRuntimeContext.getMetricGroup).foreach(influxWriter.limiter.registerMetrics)
+    logInfo(s"InfluxDBLineSink initialize... writer: $writerKey")
+    if (restoredRequests.nonEmpty) {
+      logInfo(s"InfluxDBLineSink resend ${restoredRequests.size} requests restored from state")
+      restoredRequests.foreach(subtaskWriter.write)
+      restoredRequests = Nil
+    }
+  }
+
+  override def invoke(value: T): Unit = {
+    line.setLength(0)
+    if (LineProtocol.encode(endpoint, value, line)) {
+      sinkBuffer.put(line.toString.getBytes(StandardCharsets.UTF_8))
+    } else {
+      logWarn(s"InfluxDBLineSink skip the record without any field, record: $value")
+    }
+  }
+
+  override def snapshotState(context: FunctionSnapshotContext): Unit = {
+    if (sinkBuffer != null) sinkBuffer.flush()
+    pendingState.clear()
+    if (subtaskWriter != null) {
+      if (influxConf.persistPending) {
+        subtaskWriter.pendingRequests.checkFailure()
+        val pending = subtaskWriter.pendingRequests.snapshot(SinkRequest.serialize)
+        pending.foreach(pendingState.add)
+        logDebug(s"InfluxDBLineSink snapshotState checkpointId: ${context.getCheckpointId}, pending requests: ${pending.size}")
+      } else {
+        subtaskWriter.flush()
+      }
+    }
+  }
+
+  override def initializeState(context: FunctionInitializationContext): Unit = {
+    pendingState = context.getOperatorStateStore.getListState(new ListStateDescriptor[Array[Byte]](PENDING_STATE_NAME, PrimitiveArrayTypeInfo.BYTE_PRIMITIVE_ARRAY_TYPE_INFO))
+    if (context.isRestored) {
+      restoredRequests = pendingState.get().map(SinkRequest.deserialize).toList
+      logInfo(s"InfluxDBLineSink initializeState, restored requests: ${restoredRequests.size}")
+    }
+  }
+
+  override def close(): Unit = {
+    if (!isClosed) {
+      isClosed = true
+      if (sinkBuffer != null) {
+        sinkBuffer.close()
+        failoverChecker.removeSinkBuffer(sinkBuffer)
+      }
+      if (writerKey != null) SinkWriterPool.release(writerKey)
+      super.close()
+    }
+  }
+
+}
+
+/**
+ * https://docs.influxdata.com/influxdb/v1.8/write_protocols/line_protocol_reference/
+ */
+object LineProtocol {
+
+  /**
+   * measurement,tag1=v1,tag2=v2 field1=1i,field2="v" timestamp
+   * tags按key排序(influxdb推荐的顺序),值为null的tag和field被忽略.
+   * measurement,tag和field的key以及tag的值里不能有换行(抛出IllegalArgumentException);字符串field按原样写入换行,influxdb只转义\"和\\.
+   *
+   * @return false: 没有任何field,不是合法的point
+   */
+  def encode[T](entity: InfluxEntity[T], value: T, sb: java.lang.StringBuilder): Boolean = {
+    escape(entity.measurement, sb, measurement = true)
+    val tags = entity.tagFun(value)
+    if (tags != null) {
+      tags.filter(x => x._2 != null && x._2.nonEmpty).toSeq.sortBy(_._1).foreach { case (k, v) =>
+        sb.append(',')
+        escape(k, sb)
+        sb.append('=')
+        escape(v, sb)
+      }
+    }
+    var first = true
+    val fields = entity.fieldFun(value)
+    if (fields != null) {
+      fields.filter(_._2 != null).foreach { case (k, v) =>
+        sb.append(if (first) ' ' else ',')
+        first = false
+        escape(k, sb)
+        sb.append('=')
+        fieldValue(v, sb)
+      }
+    }
+    sb.append(' ').append(entity.timestamp(value))
+    !first
+  }
+
+  /**
+   * 把批次拆成行: 按引号外面的'\n'拆分,字符串field里可以有换行.
+   * 和influxdb的解析一致: measurement,tags和fields里'\\'转义下一个字符,fields里未转义的'='之后的'"'开始一个字符串,
+   * 字符串在下一个未转义的'"'结束;未转义的空格依次结束measurement和tags,fields.
+   */
+  def split(body: String): java.util.List[String] = {
+    val lines = new java.util.ArrayList[String]()
+    var start = 0
+    //0: measurement和tags, 1: fields, 2: timestamp
+    var section = 0
+    var quoted = false
+    var equals = false
+    var i = 0
+    while (i < body.length) {
+      val c = body.charAt(i)
+      val afterEquals = equals
+      equals = false
+      c match {
+        case '\\' if section < 2 => i += 1
+        case '"' if quoted => quoted = false
+        case _ if quoted =>
+        case '"' if section == 1 && afterEquals => quoted = true
+        case '=' => equals = true
+        case ' ' if section < 2 => section += 1
+        case '\n' =>
+          if (i > start) lines.add(body.substring(start, i))
+          start = i + 1
+          section = 0
+        case _ =>
+      }
+      i += 1
+    }
+    if (start < body.length) lines.add(body.substring(start))
+    lines
+  }
+
+  private[this] def fieldValue(value: Any, sb: java.lang.StringBuilder): Unit = value match {
+    case x: java.lang.Double => sb.append(x.doubleValue())
+    case x: java.lang.Float => sb.append(x.floatValue())
+    case x: java.math.BigDecimal => sb.append(x.toPlainString)
+    case x: BigDecimal => sb.append(x.bigDecimal.toPlainString)
+    case x: java.lang.Long => sb.append(x.longValue()).append('i')
+    case x: java.lang.Integer => sb.append(x.intValue()).append('i')
+    case x: java.lang.Short => sb.append(x.shortValue()).append('i')
+    case x: java.lang.Byte => sb.append(x.byteValue()).append('i')
+    case x: java.math.BigInteger => sb.append(x).append('i')
+    case x: BigInt => sb.append(x.bigInteger).append('i')
+    case x: java.lang.Boolean => sb.append(x.booleanValue())
+    case x =>
+      sb.append('"')
+      val str = x.toString
+      for (i <- 0 until str.length) {
+        str.charAt(i) match {
+          case c@('"' | '\\') => sb.append('\\').append(c)
+          case c => sb.append(c)
+        }
+      }
+      sb.append('"')
+  }
+
+  /**
+   * measurement需要转义逗号和空格,tag key,tag value,field key还需要转义等号,换行无法转义
+   */
+  private[this] def escape(str: String, sb: java.lang.StringBuilder, measurement: Boolean = false): Unit = {
+    for (i <- 0 until str.length) {
+      str.charAt(i) match {
+        case c@(',' | ' ') => sb.append('\\').append(c)
+        case '=' if !measurement => sb.append("\\=")
+        case '\n' | '\r' => throw new IllegalArgumentException(s"[StreamX] InfluxDB line protocol: measurement, tags and field keys must not contain newlines: ${str.replace("\n", "\\n").replace("\r", "\\r")}")
+        case c => sb.append(c)
+      }
+    }
+  }
+
+}
+
+/**
+ * 编码好的行直接写入(gzip)批次,达到bufferSize,bufferBytes(未压缩的字节数)或者超过delayTime时交给writer.
+ * 压缩随着写入进行,flush时不需要再压缩一遍.
+ */
+case class LineProtocolSinkBuffer(writer: SinkWriter,
+                                  delayTime: Long,
+                                  bufferSize: Int,
+                                  bufferBytes: Long,
+                                  compress: Boolean,
+                                  table: String) extends FlushableBuffer with Logger {
+
+  private[this] var bytes: ByteArrayOutputStream = _
+
+  private[this] var out: OutputStream = _
+
+  private[this] var rows = 0
+
+  private[this] var written = 0L
+
+  private[this] var timestamp = 0L
+
+  def put(line: Array[Byte]): Unit = {
+    this.synchronized {
+      if (out == null) {
+        bytes = new ByteArrayOutputStream(8192)
+        out = if (compress) new GZIPOutputStream(bytes, 8192) else bytes
+        timestamp = System.currentTimeMillis
+      }
+      out.write(line)
+      out.write('\n')
+      rows += 1
+      written += line.length + 1
+      if (rows >= bufferSize || written >= bufferBytes) {
+        addToQueue()
+      }
+    }
+  }
+
+  override def tryAddToQueue(): Unit = {
+    this.synchronized {
+      if (rows > 0 && System.currentTimeMillis - timestamp > delayTime) {
+        addToQueue()
+      }
+    }
+  }
+
+  private[this] def addToQueue(): Unit = {
+    out.close()
+    val body = ByteBuffer.wrap(bytes.toByteArray)
+    logDebug(s"Build line protocol request: rows = $rows, bytes = $written, payload = ${body.remaining()}, target table = $table")
+    val request = SinkRequest(Collections.emptyList[String](), table, body = body, rows = rows)
+    bytes = null
+    out = null
+    rows = 0
+    written = 0L
+    writer.write(request)
+  }
+
+  override def flush(): Unit = {
+    this.synchronized {
+      if (rows > 0) addToQueue()
+    }
+  }
+
+  override def close(): Unit = flush()
+
+}
+
+class InfluxDBConfig(parameters: Properties, val database: String, val retentionPolicy: String) extends ThresholdConf(parameters) {
+
+  val url: String = parameters.getOrElse(KEY_JDBC_URL, throw new IllegalArgumentException(s"[StreamX] influx $KEY_JDBC_URL must be not null"))
+
+  val writeUrl: String = url.replaceAll("\\s+", "").replaceFirst("^(?!https?://)", "http://").replaceFirst("/$", "") + "/write"
+
+  val username: String = parameters.getProperty(KEY_JDBC_USER)
+
+  val password: String = parameters.getProperty(KEY_JDBC_PASSWORD)
+
+  val compress: Boolean = Try(parameters(KEY_INFLUX_COMPRESS).toBoolean).getOrElse(true)
+
+  /**
+   * influxdb写入成功返回204
+   */
+  override val successCode: List[Int] = Try(parameters(KEY_SINK_THRESHOLD_SUCCESS_CODE).split(",").map(_.toInt).toList).getOrElse(List(DEFAULT_INFLUX_SUCCESS_CODE))
+
+  override def toString: String = s"InfluxDBConfig(url:$writeUrl,database:$database,retentionPolicy:$retentionPolicy)"
+
+}
+
+case class InfluxDBSinkWriter(influxConf: InfluxDBConfig) extends SinkWriter with Logger {
+  private val callbackServiceFactory = ThreadUtils.threadFactory("InfluxDB-writer-callback-executor")
+  private val threadFactory: ThreadFactory = ThreadUtils.threadFactory("InfluxDB-writer")
+
+  val callbackService: ExecutorService = new ThreadPoolExecutor(
+    math.max(Runtime.getRuntime.availableProcessors / 4, 2),
+    Integer.MAX_VALUE,
+    60L,
+    TimeUnit.SECONDS,
+    new LinkedBlockingQueue[Runnable],
+    callbackServiceFactory
+  )
+
+  val limiter: AdaptiveLimiter = AdaptiveLimiter(influxConf)
+  val recordQueue: BlockingQueue[SinkRequest] = new LinkedBlockingQueue[SinkRequest](
+    if (influxConf.adaptive) math.min(influxConf.queueCapacity, influxConf.maxInFlight) else influxConf.queueCapacity
+  )
+  val asyncHttpClient: AsyncHttpClient = Dsl.asyncHttpClient
+  val service: ExecutorService = Executors.newFixedThreadPool(influxConf.numWriters, threadFactory)
+  val tasks: ListBuffer[InfluxDBWriterTask] = ListBuffer[InfluxDBWriterTask]()
+
+  for (i <- 0 until influxConf.numWriters) {
+    val task = InfluxDBWriterTask(i, influxConf, asyncHttpClient, recordQueue, callbackService, limiter)
+    tasks.add(task)
+    service.submit(task)
+  }
+
+  def write(request: SinkRequest): Unit = {
+    try {
+      recordQueue.put(request)
+    } catch {
+      case e: InterruptedException =>
+        logError(s"Interrupted error while putting data to queue,error:$e")
+        Thread.currentThread.interrupt()
+        throw new RuntimeException(e)
+    }
+  }
+
+  override def close(): Unit = {
+    logInfo("Closing InfluxDB-writer...")
+    tasks.foreach(_.close())
+    ThreadUtils.shutdownExecutorService(service)
+    ThreadUtils.shutdownExecutorService(callbackService)
+    asyncHttpClient.close()
+    logInfo(s"${classOf[InfluxDBSinkWriter].getSimpleName} is closed")
+  }
+
+}
+
+case class InfluxDBWriterTask(id: Int,
+                              influxConf: InfluxDBConfig,
+                              asyncHttpClient: AsyncHttpClient,
+                              queue: BlockingQueue[SinkRequest],
+                              callbackService: ExecutorService,
+                              limiter: AdaptiveLimiter) extends Runnable with AutoCloseable with Logger {
+
+  @volatile var isWorking = false
+
+  val failoverWriter: FailoverWriter = new FailoverWriter(influxConf.storageType, influxConf.getFailoverConfig)
+
+  override def run(): Unit = try {
+    isWorking = true
+    logInfo(s"Start writer task, id = $id")
+    while (isWorking || queue.nonEmpty) {
+      val req = queue.poll(300, TimeUnit.MILLISECONDS)
+      if (req != null) {
+        send(req)
+      }
+    }
+  } catch {
+    case e: Exception =>
+      logError("Error while writing data", e)
+      throw new RuntimeException(e)
+  } finally {
+    logInfo(s"Task id = $id is finished")
+  }
+
+  def send(sinkRequest: SinkRequest): Unit = {
+    limiter.acquire()
+    val start = System.currentTimeMillis()
+    try {
+      val whenResponse = asyncHttpClient.executeRequest(buildRequest(sinkRequest))
+      whenResponse.addListener(respCallback(whenResponse, sinkRequest, start), callbackService)
+    } catch {
+      case e: Exception =>
+        limiter.release(System.currentTimeMillis() - start, success = false)
+        throw e
+    }
+  }
+
+  def buildRequest(sinkRequest: SinkRequest): Request = {
+    val builder = asyncHttpClient
+      .preparePost(influxConf.writeUrl)
+      .setRequestTimeout(influxConf.timeout)
+      .addQueryParam("db", influxConf.database)
+      .addQueryParam("precision", "ms")
+      .setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=utf-8")
+      //duplicate so that a retry reads the body from the beginning.
+      .setBody(sinkRequest.body.duplicate())
+    if (influxConf.retentionPolicy != null) {
+      builder.addQueryParam("rp", influxConf.retentionPolicy)
+    }
+    if (influxConf.username != null) {
+      builder.addQueryParam("u", influxConf.username).addQueryParam("p", influxConf.password)
+    }
+    if (influxConf.compress) {
+      builder.setHeader(HttpHeaders.Names.CONTENT_ENCODING, "gzip")
+    }
+    builder.build
+  }
+
+  def respCallback(whenResponse: ListenableFuture[Response], sinkRequest: SinkRequest, start: Long): Runnable = new Runnable {
+    override def run(): Unit = {
+      val response = Try(whenResponse.get()).getOrElse(null)
+      val success = response != null && influxConf.successCode.contains(response.getStatusCode)
+      limiter.release(System.currentTimeMillis() - start, success)
+      response match {
+        case null =>
+          logError(s"Error InfluxDBSink executing callback, params = $influxConf, can not get Response.")
+          handleFailedResponse(null, sinkRequest)
+        case resp if !success =>
+          logError(s"Error InfluxDBSink executing callback, params = $influxConf, StatusCode = ${resp.getStatusCode}, body = ${resp.getResponseBody}")
+          //4xx: the points are rejected(e.g. field type conflict), retrying can't help.
+          if (resp.getStatusCode >= 400 && resp.getStatusCode < 500) {
+            sinkRequest.attemptCounter = influxConf.maxRetries + 1
+          }
+          handleFailedResponse(resp, sinkRequest)
+        case _ => sinkRequest.finish()
+      }
+    }
+  }
+
+  /**
+   * retry $maxRetries, if still failed, the lines of the batch are written to $failoverStorage
+   */
+  def handleFailedResponse(response: Response, sinkRequest: SinkRequest): Unit = {
+    if (sinkRequest.attemptCounter > influxConf.maxRetries) {
+      logWarn(s"Failed to send data to InfluxDB, cause: limit of attempts is exceeded. InfluxDB response = $response. Ready to flush data to ${influxConf.storageType}")
+      try {
+        failoverWriter.writeAsync(SinkRequest(lines(sinkRequest.body), sinkRequest.table, sinkRequest.attemptCounter)) {
+          case null =>
+            sinkRequest.finish()
+            logInfo(s"failover Successful, StorageType = ${influxConf.storageType}, size = ${sinkRequest.size}")
+          case e =>
+            logError(s"failover Failed, StorageType = ${influxConf.storageType}, size = ${sinkRequest.size}", e)
+            sinkRequest.fail(e)
+        }
+      } catch {
+        case e: Exception =>
+          logError(s"failover Failed, StorageType = ${influxConf.storageType}, size = ${sinkRequest.size}", e)
+          sinkRequest.fail(e)
+      }
+    } else {
+      sinkRequest.incrementCounter()
+      logWarn(s"Next attempt to send data to InfluxDB, table = ${sinkRequest.table}, buffer size = ${sinkRequest.size}, current attempt num = ${sinkRequest.attemptCounter}, max attempt num = ${influxConf.maxRetries}, response = $response")
+      queue.put(sinkRequest)
+    }
+  }
+
+  private[this] def lines(body: ByteBuffer): java.util.List[String] = {
+    val bytes = new Array[Byte](body.remaining())
+    body.duplicate().get(bytes)
+    val in = if (influxConf.compress) new GZIPInputStream(new ByteArrayInputStream(bytes)) else new ByteArrayInputStream(bytes)
+    try {
+      val out = new ByteArrayOutputStream(bytes.length)
+      val buffer = new Array[Byte](8192)
+      var read = in.read(buffer)
+      while (read != -1) {
+        out.write(buffer, 0, read)
+        read = in.read(buffer)
+      }
+      LineProtocol.split(new String(out.toByteArray, StandardCharsets.UTF_8))
+    } finally {
+      in.close()
+    }
+  }
+
+  override def close(): Unit = {
+    isWorking = false
+    failoverWriter.close()
+  }
+
+}
+
 /**
  *
  * @param database
@@ -120,12 +609,17 @@ class InfluxDBOutputFormat[T: TypeInformation](implicit prop: Properties, endpoi
  * @param retentionPolicy
  * @param tagFun
  * @param fieldFun
+ * @param timeFun 事件时间(毫秒),为null时使用写入时的系统时间
  * @tparam T
  */
 case class InfluxEntity[T](database: String, //指定database
                            measurement: String, //指定measurement
                            retentionPolicy: String, //失效策略
                            tagFun: T => Map[String, String], //tags 函数
-                           fieldFun: T => Map[String, Any] //field 函数
+                           fieldFun: T => Map[String, Any], //field 函数
+                           timeFun: T => Long = null //事件时间 函数
                           ) {
+
+  def timestamp(value: T): Long = if (timeFun == null) System.currentTimeMillis() else timeFun(value)
+
 }
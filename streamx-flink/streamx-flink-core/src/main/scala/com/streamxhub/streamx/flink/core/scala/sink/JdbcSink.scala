@@ -23,24 +23,34 @@ package com.streamxhub.streamx.flink.core.scala.sink
 import com.streamxhub.streamx.common.conf.ConfigConst._
 import com.streamxhub.streamx.common.enums.ApiType.ApiType
 import com.streamxhub.streamx.common.enums.{ApiType, Semantic}
-import com.streamxhub.streamx.common.util.{ConfigUtils, JdbcUtils, Logger, Utils}
-import com.streamxhub.streamx.flink.core.java.function.SQLFromFunction
+import com.streamxhub.streamx.common.util.{ConfigUtils, JdbcUtils, Logger, ThreadUtils, Utils}
+import com.streamxhub.streamx.flink.core.java.function.{SQLFromFunction, StatementBindFunction}
 import com.streamxhub.streamx.flink.core.scala.StreamingContext
-import org.apache.flink.api.common.ExecutionConfig
 import org.apache.flink.api.common.io.RichOutputFormat
+import org.apache.flink.api.common.state.{ListState, ListStateDescriptor}
 import org.apache.flink.api.common.typeinfo.TypeInformation
-import org.apache.flink.api.common.typeutils.base.VoidSerializer
-import org.apache.flink.api.java.typeutils.runtime.kryo.KryoSerializer
+import org.apache.flink.api.common.typeutils.base.{TypeSerializerSingleton, VoidSerializer}
+import org.apache.flink.api.common.typeutils.{SimpleTypeSerializerSnapshot, TypeSerializer, TypeSerializerSnapshot}
 import org.apache.flink.configuration.Configuration
+import org.apache.flink.core.memory.{DataInputView, DataOutputView}
+import org.apache.flink.runtime.state.{FunctionInitializationContext, FunctionSnapshotContext}
+import org.apache.flink.streaming.api.checkpoint.CheckpointedFunction
 import org.apache.flink.streaming.api.datastream.DataStreamSink
 import org.apache.flink.streaming.api.functions.sink.{RichSinkFunction, SinkFunction, TwoPhaseCommitSinkFunction}
 import org.apache.flink.streaming.api.scala.DataStream
+import org.apache.flink.types.StringValue
 
-import java.sql._
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+import java.sql.{Connection, PreparedStatement, SQLException, Statement}
 import java.util.concurrent.atomic.AtomicLong
-import java.util.{Optional, Properties}
+import java.util.concurrent.{Executors, ScheduledExecutorService, TimeUnit}
+import java.util.function.Supplier
+import java.util.Properties
 import scala.annotation.meta.param
 import scala.collection.mutable
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Try
 
 object JdbcSink {
 
@@ -86,6 +96,24 @@ class JdbcSink(@(transient@param) ctx: StreamingContext,
     }
     afterSink(sink, parallelism, name, uid)
   }
+
+  /**
+   * typed mode: one PreparedStatement is reused, the record is bound to the parameters of sql by binder.
+   *
+   * @param stream : DataStream
+   * @param sql    : insert sql with parameters, e.g: insert into t_user(name,age) values(?,?)
+   * @param binder : 绑定参数的函数,由用户提供.
+   * @tparam T : DataStream里的流的数据类型
+   * @return
+   */
+  def sink[T](stream: DataStream[T], sql: String)(binder: (PreparedStatement, T) => Unit): DataStreamSink[T] = {
+    val prop = ConfigUtils.getJdbcConf(ctx.parameter.toMap, alias)
+    val semantic = Semantic.of(prop.getProperty(KEY_SEMANTIC, Semantic.NONE.name()))
+    require(semantic != Semantic.EXACTLY_ONCE, "[StreamX] JdbcSink typed mode does not support Semantic EXACTLY_ONCE, please use toSQLFn")
+    val sinkFun = new JdbcPreparedSinkFunction[T](prop, sql, binder)
+    val sink = stream.addSink(sinkFun)
+    afterSink(sink, parallelism, name, uid)
+  }
 }
 
 class JdbcSinkFunction[T](apiType: ApiType = ApiType.scala, jdbc: Properties) extends RichSinkFunction[T] with Logger {
@@ -131,15 +159,17 @@ class JdbcSinkFunction[T](apiType: ApiType = ApiType.scala, jdbc: Properties) ex
     }
     batchSize match {
       case 1 =>
+        val prepared = connection.prepareStatement(sql)
         try {
-          statement = connection.prepareStatement(sql)
-          statement.asInstanceOf[PreparedStatement].executeUpdate
+          prepared.executeUpdate
           connection.commit()
         } catch {
           case e: Exception =>
             logError(s"JdbcSink invoke error:${sql}")
             throw e
           case _: Throwable =>
+        } finally {
+          JdbcUtils.close(prepared)
         }
       case batch =>
         try {
@@ -178,6 +208,248 @@ class JdbcSinkFunction[T](apiType: ApiType = ApiType.scala, jdbc: Properties) ex
 }
 
 
+/**
+ * typed mode of JdbcSink: the sql is prepared once, each record is bound to the parameters and added to the batch.
+ * the batch is executed when batch.size is reached or every batch.interval(ms) by a timer,
+ * with batch.rewrite=true the batch is sent as multi-row statements: insert into t values(?,?),(?,?)...
+ *
+ * @param apiType
+ * @param jdbc
+ * @param sql
+ * @tparam T
+ */
+class JdbcPreparedSinkFunction[T](apiType: ApiType = ApiType.scala, jdbc: Properties, sql: String) extends RichSinkFunction[T] with CheckpointedFunction with Logger {
+  private var connection: Connection = _
+  private var statement: PreparedStatement = _
+  private var rewriter: BatchRewriter = _
+  private var scalaBinder: (PreparedStatement, T) => Unit = _
+  private var javaBinder: StatementBindFunction[T] = _
+  @transient private var scheduler: ScheduledExecutorService = _
+  @volatile private var flushException: Exception = _
+  private var rows: Int = 0
+
+  private val batchSize = jdbc.remove(KEY_JDBC_INSERT_BATCH) match {
+    case null => DEFAULT_JDBC_INSERT_BATCH
+    case batch => batch.toString.toInt
+  }
+
+  private val batchInterval = Try(jdbc.remove(KEY_JDBC_INSERT_BATCH_INTERVAL).toString.toLong).getOrElse(DEFAULT_JDBC_INSERT_BATCH_INTERVAL)
+
+  private val rewrite = Try(jdbc.remove(KEY_JDBC_INSERT_BATCH_REWRITE).toString.toBoolean).getOrElse(false)
+
+  def this(jdbc: Properties, sql: String, binder: (PreparedStatement, T) => Unit) {
+    this(ApiType.scala, jdbc, sql)
+    require(binder != null, "[StreamX] JdbcSink binder can not be null")
+    this.scalaBinder = binder
+  }
+
+  def this(jdbc: Properties, sql: String, binder: StatementBindFunction[T]) {
+    this(ApiType.java, jdbc, sql)
+    require(binder != null, "[StreamX] StatementBindFunction can not be null")
+    this.javaBinder = binder
+  }
+
+  @throws[Exception]
+  override def open(parameters: Configuration): Unit = {
+    require(jdbc != null, "[StreamX] JdbcSink jdbc can not be null")
+    require(sql != null && sql.trim.nonEmpty, "[StreamX] JdbcSink sql can not be null")
+    logInfo(s"JdbcSink Open.... sql: $sql, batch.size: $batchSize, batch.interval: $batchInterval, batch.rewrite: $rewrite")
+    connection = JdbcUtils.getConnection(jdbc)
+    connection.setAutoCommit(false)
+    if (rewrite && batchSize > 1) {
+      rewriter = new BatchRewriter(sql, batchSize)
+    } else {
+      statement = connection.prepareStatement(sql)
+    }
+    if (batchSize > 1 && batchInterval > 0) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(ThreadUtils.threadFactory("JdbcSink-flusher"))
+      scheduler.scheduleWithFixedDelay(new Runnable {
+        override def run(): Unit = JdbcPreparedSinkFunction.this.synchronized {
+          if (flushException == null) {
+            try flush() catch {
+              case e: Exception => flushException = e
+            }
+          }
+        }
+      }, batchInterval, batchInterval, TimeUnit.MILLISECONDS)
+    }
+  }
+
+  override def invoke(value: T, context: SinkFunction.Context): Unit = this.synchronized {
+    checkFlushException()
+    try {
+      rewriter match {
+        case null =>
+          bind(statement, value)
+          statement.addBatch()
+        case r => r.add(bind(_, value))
+      }
+      rows += 1
+      if (rows >= batchSize) {
+        flush()
+      }
+    } catch {
+      case e: Exception =>
+        logError(s"JdbcSink invoke error:$sql, value: $value")
+        throw e
+    }
+  }
+
+  private[this] def bind(statement: PreparedStatement, value: T): Unit = apiType match {
+    case ApiType.scala => scalaBinder(statement, value)
+    case ApiType.java => javaBinder.bind(statement, value)
+  }
+
+  private[this] def flush(): Unit = {
+    if (rows > 0) {
+      val start = System.currentTimeMillis()
+      val count = rewriter match {
+        case null =>
+          val count = statement.executeBatch().sum
+          statement.clearBatch()
+          count
+        case r => r.execute(connection)
+      }
+      connection.commit()
+      rows = 0
+      logInfo(s"JdbcSink batch $count use ${System.currentTimeMillis() - start} MS")
+    }
+  }
+
+  private[this] def checkFlushException(): Unit = {
+    if (flushException != null) {
+      throw new RuntimeException("[StreamX] JdbcSink flush batch error", flushException)
+    }
+  }
+
+  override def initializeState(context: FunctionInitializationContext): Unit = {}
+
+  /**
+   * the rows buffered in the batch are committed before the checkpoint completes.
+   */
+  override def snapshotState(context: FunctionSnapshotContext): Unit = this.synchronized {
+    checkFlushException()
+    flush()
+  }
+
+  override def close(): Unit = {
+    if (scheduler != null) {
+      ThreadUtils.shutdownExecutorService(scheduler)
+    }
+    this.synchronized {
+      try {
+        if (connection != null) {
+          checkFlushException()
+          flush()
+        }
+      } finally {
+        if (rewriter != null) rewriter.close()
+        JdbcUtils.close(statement, connection)
+      }
+    }
+  }
+
+}
+
+/**
+ * rewrite the batch into multi-row statements, one round trip and one parse per batch instead of per row,
+ * the same as rewriteBatchedStatements of MySQL driver.
+ * the parameters bound by user are recorded, then replayed to the multi-row statement with the offset of the row.
+ *
+ * @param sql     insert into t(a,b) values(?,?) [on duplicate key update ...]
+ * @param maxRows max rows of one statement
+ */
+class BatchRewriter(sql: String, maxRows: Int) extends AutoCloseable {
+
+  private[this] val (prefix, values, suffix) = {
+    val start = "(?i)\\bvalues\\s*\\(".r.findFirstMatchIn(sql) match {
+      case Some(m) => m.end - 1
+      case None => throw new IllegalArgumentException(s"[StreamX] batch.rewrite only supports insert ... values(...), sql: $sql")
+    }
+    var depth = 0
+    var end = start
+    do {
+      sql.charAt(end) match {
+        case '(' => depth += 1
+        case ')' => depth -= 1
+        case _ =>
+      }
+      end += 1
+    } while (depth > 0 && end < sql.length)
+    require(depth == 0, s"[StreamX] batch.rewrite invalid sql: $sql")
+    (sql.substring(0, start), sql.substring(start, end), sql.substring(end))
+  }
+
+  val parameterCount: Int = values.count(_ == '?')
+
+  require(parameterCount > 0, s"[StreamX] batch.rewrite no parameter found in sql: $sql")
+
+  //most of the databases limit the parameters of one statement to 65535
+  private[this] val rowsPerStatement = math.max(1, math.min(maxRows, 65535 / parameterCount))
+
+  private[this] val rows = ArrayBuffer[ArrayBuffer[(Method, Array[AnyRef])]]()
+
+  private[this] var fullStatement: PreparedStatement = _
+
+  private[this] val recorder = Proxy.newProxyInstance(
+    getClass.getClassLoader,
+    Array[Class[_]](classOf[PreparedStatement]),
+    new InvocationHandler {
+      override def invoke(proxy: AnyRef, method: Method, args: Array[AnyRef]): AnyRef = {
+        if (method.getName.startsWith("set") && args != null && args.length > 1 && args(0).isInstanceOf[Integer]) {
+          rows.last += method -> args.clone()
+          null
+        } else {
+          throw new UnsupportedOperationException(s"[StreamX] batch.rewrite only setXXX(parameterIndex, value) is supported, method: ${method.getName}")
+        }
+      }
+    }
+  ).asInstanceOf[PreparedStatement]
+
+  def size: Int = rows.size
+
+  def add(bind: PreparedStatement => Unit): Unit = {
+    rows += ArrayBuffer[(Method, Array[AnyRef])]()
+    try bind(recorder) catch {
+      case e: Throwable =>
+        rows.remove(rows.size - 1)
+        throw e
+    }
+  }
+
+  def execute(connection: Connection): Int = {
+    var count = 0
+    rows.grouped(rowsPerStatement).foreach(group => {
+      val statement = if (group.size == rowsPerStatement) {
+        if (fullStatement == null) {
+          fullStatement = connection.prepareStatement(rewriteSql(rowsPerStatement))
+        }
+        fullStatement
+      } else connection.prepareStatement(rewriteSql(group.size))
+      try {
+        group.zipWithIndex.foreach { case (row, index) =>
+          row.foreach { case (method, args) =>
+            val params = args.clone()
+            params(0) = Int.box(args(0).asInstanceOf[Integer] + index * parameterCount)
+            method.invoke(statement, params: _*)
+          }
+        }
+        count += statement.executeUpdate()
+      } finally {
+        if (statement ne fullStatement) JdbcUtils.close(statement)
+      }
+    })
+    rows.clear()
+    count
+  }
+
+  private[this] def rewriteSql(rowCount: Int): String = Seq.fill(rowCount)(values).mkString(prefix, ",", suffix)
+
+  override def close(): Unit = JdbcUtils.close(fullStatement)
+
+}
+
+
 class JdbcOutputFormat[T: TypeInformation](implicit prop: Properties, toSQlFun: T => String) extends RichOutputFormat[T] with Logger {
 
   val sinkFunction = new JdbcSinkFunction[T](prop, toSQlFun)
@@ -202,7 +474,7 @@ class JdbcOutputFormat[T: TypeInformation](implicit prop: Properties, toSQlFun:
  * @tparam T
  */
 class Jdbc2PCSinkFunction[T](apiType: ApiType = ApiType.scala, jdbc: Properties)
-  extends TwoPhaseCommitSinkFunction[T, Transaction, Void](new KryoSerializer[Transaction](classOf[Transaction], new ExecutionConfig), VoidSerializer.INSTANCE)
+  extends TwoPhaseCommitSinkFunction[T, Transaction, Void](TransactionSerializer, VoidSerializer.INSTANCE)
     with Logger {
 
   private[this] val buffer: collection.mutable.Map[String, Transaction] = collection.mutable.Map.empty[String, Transaction]
@@ -210,6 +482,14 @@ class Jdbc2PCSinkFunction[T](apiType: ApiType = ApiType.scala, jdbc: Properties)
   private var scalaToSQLFn: T => String = _
   private var javaToSQLFunc: SQLFromFunction[T] = _
 
+  /**
+   * staging.table: sql语句在checkpoint间隔内分批写入数据库的暂存表,状态里只保存transactionId,commit时在一个事务里执行并清除暂存的sql.
+   * 未配置时所有sql保存在状态里.
+   */
+  private val stagingTable: String = Try(jdbc.remove(KEY_JDBC_STAGING_TABLE).toString.trim).filter(_.nonEmpty).getOrElse(null)
+
+  private val stagingBatch: Int = Try(jdbc.remove(KEY_JDBC_STAGING_BATCH).toString.toInt).getOrElse(DEFAULT_JDBC_STAGING_BATCH)
+
   def this(jdbc: Properties, toSQLFn: T => String) {
     this(ApiType.scala, jdbc)
     this.scalaToSQLFn = toSQLFn
@@ -221,11 +501,79 @@ class Jdbc2PCSinkFunction[T](apiType: ApiType = ApiType.scala, jdbc: Properties)
     this.javaToSQLFunc = toSQLFn
   }
 
-  override def initializeUserContext(): Optional[Void] = super.initializeUserContext()
+  /**
+   * the ids of the pending and current transactions of all the subtasks at the last checkpoint,
+   * the staged statements of the other transactions are orphans after restored.
+   */
+  @transient private var liveTransactions: ListState[String] = _
+
+  private val STAGING_TRANSACTIONS_STATE_NAME: String = "jdbc-sink-staging-transactions"
+
+  /**
+   * the pending transactions are committed or aborted when restored, the staging table must exist before it.
+   */
+  override def initializeState(context: FunctionInitializationContext): Unit = {
+    if (stagingTable != null) {
+      val ddl = s"create table if not exists $stagingTable (transaction_id varchar(64) not null, seq bigint not null, statement text not null, primary key (transaction_id, seq))"
+      if (!JdbcUtils.execute(ddl)(jdbc)) {
+        logWarn(s"Jdbc2PCSink create staging table failed, please create it manually: $ddl")
+      }
+      liveTransactions = context.getOperatorStateStore.getUnionListState(new ListStateDescriptor[String](STAGING_TRANSACTIONS_STATE_NAME, classOf[String]))
+    }
+    super.initializeState(context)
+    if (stagingTable != null && context.isRestored) {
+      cleanOrphans(liveTransactions.get().asScala.toSet)
+    }
+  }
+
+  override def snapshotState(context: FunctionSnapshotContext): Unit = {
+    super.snapshotState(context)
+    if (stagingTable != null) {
+      val live = pendingTransactions().iterator().asScala.map(_.getValue.transactionId) ++ Iterator(currentTransaction().transactionId)
+      liveTransactions.update(live.toList.asJava)
+    }
+  }
 
+  /**
+   * the transaction id starts with the index of the subtask which began it.
+   */
   override def beginTransaction(): Transaction = {
     logInfo("Jdbc2PCSink beginTransaction.")
-    Transaction()
+    Transaction(transactionId = s"${getRuntimeContext.getIndexOfThisSubtask}-${Utils.uuid()}")
+  }
+
+  /**
+   * the transactions began after the last checkpoint(e.g. staged by invoke when staging.batch is reached) are not in any state.
+   * each subtask deletes the orphans began by the old subtasks it takes over(old index % parallelism == index),
+   * so the transactions of the other running subtasks are never touched.
+   */
+  private[this] def cleanOrphans(live: Set[String]): Unit = {
+    val index = getRuntimeContext.getIndexOfThisSubtask
+    val parallelism = getRuntimeContext.getNumberOfParallelSubtasks
+    var connection: Connection = null
+    try {
+      connection = JdbcUtils.getConnection(jdbc)
+      connection.setAutoCommit(false)
+      val select = connection.createStatement()
+      val result = select.executeQuery(s"select distinct transaction_id from $stagingTable")
+      val orphans = ArrayBuffer[String]()
+      while (result.next()) {
+        orphans += result.getString(1)
+      }
+      JdbcUtils.close(result, select)
+      orphans
+        .filterNot(live.contains)
+        .filter(id => Try(id.split("-", 2).head.toInt % parallelism == index).getOrElse(index == 0))
+        .foreach(id => {
+          deleteStaged(connection, id)
+          logInfo(s"Jdbc2PCSink delete orphan staged statements,TransactionId:$id")
+        })
+      connection.commit()
+    } catch {
+      case e: Exception => logWarn(s"Jdbc2PCSink delete orphan staged statements failed,error:${e.getMessage}")
+    } finally {
+      JdbcUtils.close(connection)
+    }
   }
 
   override def invoke(transaction: Transaction, value: T, context: SinkFunction.Context): Unit = {
@@ -239,17 +587,23 @@ class Jdbc2PCSinkFunction[T](apiType: ApiType = ApiType.scala, jdbc: Properties)
     //调用invoke插入过数据....
     transaction.invoked = true
     transaction + sql
+    if (stagingTable != null && transaction.sql.size >= stagingBatch) {
+      stage(transaction)
+    }
   }
 
   /**
    * call on snapshotState
-   * 将要操作的sql语句保存到状态里.如果这一步失败,会回滚
+   * 将要操作的sql语句保存到状态里(或暂存表里).如果这一步失败,会回滚
    *
    * @param transaction
    */
   override def preCommit(transaction: Transaction): Unit = {
     //防止未调用invoke方法直接调用preCommit
     if (transaction.invoked) {
+      if (stagingTable != null) {
+        stage(transaction)
+      }
       logInfo(s"Jdbc2PCSink preCommit.TransactionId:${transaction.transactionId}")
       buffer += transaction.transactionId -> transaction
     }
@@ -267,7 +621,7 @@ class Jdbc2PCSinkFunction[T](apiType: ApiType = ApiType.scala, jdbc: Properties)
    */
   override def commit(transaction: Transaction): Unit = {
     //防止未调用invoke方法直接调用preCommit和commit...
-    if (transaction.invoked && transaction.sql.nonEmpty) {
+    if (transaction.invoked && (transaction.sql.nonEmpty || transaction.staged > 0)) {
       logInfo(s"Jdbc2PCSink commit,TransactionId:${transaction.transactionId}")
       var connection: Connection = null
       var statement: Statement = null
@@ -276,14 +630,28 @@ class Jdbc2PCSinkFunction[T](apiType: ApiType = ApiType.scala, jdbc: Properties)
         connection = JdbcUtils.getConnection(jdbc)
         connection.setAutoCommit(false)
         statement = connection.createStatement()
-        //全部是插入则走批量插入
-        if (transaction.insertMode) {
-          transaction.sql.foreach(statement.addBatch)
-          statement.executeBatch
-          statement.clearBatch()
+        if (stagingTable == null) {
+          execute(statement, transaction.sql, transaction.insertMode)
         } else {
-          //单条记录插入...
-          transaction.sql.foreach(statement.executeUpdate)
+          //按seq分页读取暂存的sql,执行后在同一个事务里删除,重复commit时暂存表里已没有数据,不会重复执行
+          val select = connection.prepareStatement(s"select statement from $stagingTable where transaction_id = ? and seq >= ? and seq < ? order by seq")
+          try {
+            (0L until transaction.staged by stagingBatch.toLong).foreach(from => {
+              select.setString(1, transaction.transactionId)
+              select.setLong(2, from)
+              select.setLong(3, from + stagingBatch)
+              val result = select.executeQuery()
+              val page = ArrayBuffer[String]()
+              while (result.next()) {
+                page += result.getString(1)
+              }
+              JdbcUtils.close(result)
+              execute(statement, page, transaction.insertMode)
+            })
+          } finally {
+            JdbcUtils.close(select)
+          }
+          deleteStaged(connection, transaction.transactionId)
         }
         connection.commit()
         //成功,清除state...
@@ -304,6 +672,69 @@ class Jdbc2PCSinkFunction[T](apiType: ApiType = ApiType.scala, jdbc: Properties)
   override def abort(transaction: Transaction): Unit = {
     logInfo(s"Jdbc2PCSink abort,TransactionId:${transaction.transactionId}")
     buffer -= transaction.transactionId
+    //the restored copy of the current transaction is snapshotted before invoke staged anything,its staged is always 0.
+    if (stagingTable != null) {
+      var connection: Connection = null
+      try {
+        connection = JdbcUtils.getConnection(jdbc)
+        connection.setAutoCommit(false)
+        deleteStaged(connection, transaction.transactionId)
+        connection.commit()
+      } catch {
+        case e: Exception => logWarn(s"Jdbc2PCSink abort, delete staged statements failed,TransactionId:${transaction.transactionId},error:${e.getMessage}")
+      } finally {
+        JdbcUtils.close(connection)
+      }
+    }
+  }
+
+  private[this] def execute(statement: Statement, sql: Iterable[String], insertMode: Boolean): Unit = {
+    //全部是插入则走批量插入
+    if (insertMode) {
+      sql.foreach(statement.addBatch)
+      statement.executeBatch
+      statement.clearBatch()
+    } else {
+      //单条记录插入...
+      sql.foreach(statement.executeUpdate)
+    }
+  }
+
+  /**
+   * 将内存里的sql写入暂存表并提交,状态里只保留已暂存的条数
+   */
+  private[this] def stage(transaction: Transaction): Unit = {
+    if (transaction.sql.nonEmpty) {
+      var connection: Connection = null
+      var statement: PreparedStatement = null
+      try {
+        connection = JdbcUtils.getConnection(jdbc)
+        connection.setAutoCommit(false)
+        statement = connection.prepareStatement(s"insert into $stagingTable (transaction_id, seq, statement) values (?, ?, ?)")
+        transaction.sql.zipWithIndex.foreach { case (sql, index) =>
+          statement.setString(1, transaction.transactionId)
+          statement.setLong(2, transaction.staged + index)
+          statement.setString(3, sql)
+          statement.addBatch()
+        }
+        statement.executeBatch()
+        connection.commit()
+        transaction.staged += transaction.sql.size
+        transaction.sql.clear()
+      } finally {
+        JdbcUtils.close(statement, connection)
+      }
+    }
+  }
+
+  private[this] def deleteStaged(connection: Connection, transactionId: String): Unit = {
+    val statement = connection.prepareStatement(s"delete from $stagingTable where transaction_id = ?")
+    try {
+      statement.setString(1, transactionId)
+      statement.executeUpdate()
+    } finally {
+      JdbcUtils.close(statement)
+    }
   }
 
 }
@@ -324,12 +755,55 @@ class Jdbc2PCOutputFormat[T: TypeInformation](implicit prop: Properties, toSQlFu
   override def close(): Unit = sinkFunction.close()
 }
 
-case class Transaction(transactionId: String = Utils.uuid(), sql: mutable.MutableList[String] = mutable.MutableList.empty[String], var insertMode: Boolean = true, var invoked: Boolean = false) extends Serializable {
+case class Transaction(transactionId: String = Utils.uuid(), sql: mutable.MutableList[String] = mutable.MutableList.empty[String], var insertMode: Boolean = true, var invoked: Boolean = false, var staged: Long = 0L) extends Serializable {
   def +(text: String): Unit = sql += text
 
-  override def toString: String = s"(transactionId:$transactionId,size:${sql.size},insertMode:$insertMode,invoked:$invoked)"
+  override def toString: String = s"(transactionId:$transactionId,size:${sql.size},staged:$staged,insertMode:$insertMode,invoked:$invoked)"
 }
 
+/**
+ * Transaction写入状态的序列化: transactionId,insertMode,invoked,staged,sql条数,每条sql.
+ */
+object TransactionSerializer extends TypeSerializerSingleton[Transaction] {
+
+  override def isImmutableType: Boolean = false
 
+  override def createInstance(): Transaction = Transaction()
 
+  override def copy(from: Transaction): Transaction = from.copy(sql = mutable.MutableList(from.sql: _*))
+
+  override def copy(from: Transaction, reuse: Transaction): Transaction = copy(from)
+
+  override def getLength: Int = -1
+
+  override def serialize(record: Transaction, target: DataOutputView): Unit = {
+    target.writeUTF(record.transactionId)
+    target.writeBoolean(record.insertMode)
+    target.writeBoolean(record.invoked)
+    target.writeLong(record.staged)
+    target.writeInt(record.sql.size)
+    record.sql.foreach(StringValue.writeString(_, target))
+  }
+
+  override def deserialize(source: DataInputView): Transaction = {
+    val transaction = Transaction(
+      transactionId = source.readUTF(),
+      insertMode = source.readBoolean(),
+      invoked = source.readBoolean(),
+      staged = source.readLong()
+    )
+    (0 until source.readInt()).foreach(_ => transaction + StringValue.readString(source))
+    transaction
+  }
+
+  override def deserialize(reuse: Transaction, source: DataInputView): Transaction = deserialize(source)
+
+  override def copy(source: DataInputView, target: DataOutputView): Unit = serialize(deserialize(source), target)
+
+  override def snapshotConfiguration(): TypeSerializerSnapshot[Transaction] = new TransactionSerializerSnapshot
+
+}
 
+class TransactionSerializerSnapshot extends SimpleTypeSerializerSnapshot[Transaction](new Supplier[TypeSerializer[Transaction]] {
+  override def get(): TypeSerializer[Transaction] = TransactionSerializer
+})
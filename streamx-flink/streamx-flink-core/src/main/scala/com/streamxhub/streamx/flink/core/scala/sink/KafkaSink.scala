@@ -30,11 +30,13 @@ import org.apache.flink.streaming.connectors.kafka.FlinkKafkaProducer
 import org.apache.flink.streaming.connectors.kafka.FlinkKafkaProducer.{DEFAULT_KAFKA_PRODUCERS_POOL_SIZE, Semantic}
 import org.apache.flink.streaming.connectors.kafka.internals.KeyedSerializationSchemaWrapper
 import org.apache.flink.streaming.connectors.kafka.partitioner.FlinkKafkaPartitioner
+import org.apache.kafka.clients.producer.ProducerConfig
 
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.{Optional, Properties}
 import javax.annotation.Nullable
 import scala.annotation.meta.param
+import scala.collection.mutable
 import scala.util.Try
 
 object KafkaSink {
@@ -86,7 +88,17 @@ class KafkaSink(@(transient@param) val ctx: StreamingContext,
       }
       val schema = new KeyedSerializationSchemaWrapper[T](serializer)
 
-      val customPartitioner = partitioner match {
+      /**
+       * partitioner: sticky 时使用KafkaStickyPartitioner替换默认的KafkaEqualityPartitioner
+       */
+      val sinkPartitioner = Try(prop.remove(ConfigConst.KEY_KAFKA_PARTITIONER).toString.trim.toLowerCase).getOrElse(null) match {
+        case "sticky" if partitioner.isInstanceOf[KafkaEqualityPartitioner[T]] =>
+          val batchSize = Try(prop.getProperty(ProducerConfig.BATCH_SIZE_CONFIG).toInt).getOrElse(16384)
+          val lingerMs = Try(prop.getProperty(ProducerConfig.LINGER_MS_CONFIG).toLong).getOrElse(0L)
+          new KafkaStickyPartitioner[T](batchSize, lingerMs)
+        case _ => partitioner
+      }
+      val customPartitioner = sinkPartitioner match {
         case null => Optional.ofNullable(null).asInstanceOf[Optional[FlinkKafkaPartitioner[T]]]
         case part => Optional.of(part)
       }
@@ -145,3 +157,81 @@ class KafkaEqualityPartitioner[T](parallelism: Int) extends FlinkKafkaPartitione
   def checkArgument(condition: Boolean, @Nullable errorMessage: String): Unit = if (!condition) throw new IllegalArgumentException(errorMessage)
 
 }
+
+/**
+ * <b>KafkaStickyPartitioner</b>分区器: 每个subtask连续写同一个分区,直到写入的字节数达到batch.size或者超过linger.ms(至少1ms)才切换分区,
+ * 这样producer的每个batch都能攒满,减少请求次数.
+ * 切换时选择最近写入字节数最少的分区(每次切换时各分区的字节数衰减一半),分区间负载均衡,不同subtask从不同的分区开始.
+ * 注意: 分区器拿不到broker的确认,"最近写入的字节数"是本subtask在途数据量的近似.
+ *
+ * @param batchSize producer的batch.size
+ * @param lingerMs  producer的linger.ms
+ * @tparam T
+ */
+class KafkaStickyPartitioner[T](batchSize: Int, lingerMs: Long) extends FlinkKafkaPartitioner[T] with Logger {
+
+  private[this] var parallelInstanceId = 0
+
+  private[this] val stickyMs = math.max(lingerMs, 1L)
+
+  @transient private[this] var states: mutable.HashMap[String, StickyState] = _
+
+  override def open(parallelInstanceId: Int, parallelInstances: Int): Unit = {
+    logInfo(s"KafkaStickyPartitioner: batchSize $batchSize, lingerMs $lingerMs")
+    require(parallelInstanceId >= 0 && parallelInstances > 0, "[StreamX] KafkaStickyPartitioner:Id of this subtask cannot be negative,Number of subtasks must be larger than 0.")
+    this.parallelInstanceId = parallelInstanceId
+    this.states = new mutable.HashMap[String, StickyState]()
+  }
+
+  override def partition(record: T, key: Array[Byte], value: Array[Byte], targetTopic: String, partitions: Array[Int]): Int = {
+    require(partitions != null && partitions.length > 0, "[StreamX] KafkaStickyPartitioner:Partitions of the target topic is empty.")
+    val bytes = (if (key == null) 0 else key.length) + (if (value == null) 0 else value.length)
+    if (partitions.length == 1) partitions(0) else {
+      val state = states.getOrElseUpdate(targetTopic, new StickyState)
+      val now = System.currentTimeMillis()
+      if (state.partitions ne partitions) {
+        //分区发生了变化(或第一次写入)
+        state.partitions = partitions
+        if (!partitions.contains(state.current)) {
+          state.switchTo(partitions(parallelInstanceId % partitions.length), now)
+        }
+      } else if (state.bytes >= batchSize || now - state.since >= stickyMs) {
+        state.rotate(now)
+      }
+      state.bytes += bytes
+      state.current
+    }
+  }
+
+  private[this] class StickyState {
+    var partitions: Array[Int] = _
+    var current: Int = -1
+    var bytes: Long = 0L
+    var since: Long = 0L
+    //各分区最近写入的字节数,每次切换时衰减一半
+    val loads = new mutable.HashMap[Int, Double]()
+
+    def switchTo(partition: Int, now: Long): Unit = {
+      current = partition
+      bytes = 0L
+      since = now
+    }
+
+    def rotate(now: Long): Unit = {
+      loads.transform((_, v) => v / 2)
+      loads(current) = loads.getOrElse(current, 0D) + bytes
+      val size = partitions.length
+      val index = partitions.indexOf(current)
+      //负载最小的分区,相同时按轮询的顺序
+      val next = partitions.indices
+        .filter(_ != index)
+        .minBy(i => (loads.getOrElse(partitions(i), 0D), (i - index + size) % size))
+      switchTo(partitions(next), now)
+    }
+  }
+
+  override def equals(o: Any): Boolean = o.isInstanceOf[KafkaStickyPartitioner[_]]
+
+  override def hashCode: Int = classOf[KafkaStickyPartitioner[T]].hashCode
+
+}
@@ -21,29 +21,36 @@
 package com.streamxhub.streamx.flink.core.scala.sink
 
 import com.streamxhub.streamx.common.conf.ConfigConst._
-import com.streamxhub.streamx.common.util.{ConfigUtils, Logger, Utils}
+import com.streamxhub.streamx.common.util.{ConfigUtils, Logger, RedisClient, RedisConfig, RedisEndpoint, RedisNode, ThreadUtils, Utils}
 import com.streamxhub.streamx.flink.core.scala.StreamingContext
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig
-import org.apache.flink.api.common.ExecutionConfig
-import org.apache.flink.api.common.typeutils.base.VoidSerializer
-import org.apache.flink.api.java.typeutils.runtime.kryo.KryoSerializer
+import org.apache.flink.api.common.typeutils.base.{TypeSerializerSingleton, VoidSerializer}
+import org.apache.flink.api.common.typeutils.{SimpleTypeSerializerSnapshot, TypeSerializer, TypeSerializerSnapshot}
 import org.apache.flink.configuration.Configuration
+import org.apache.flink.core.memory.{DataInputView, DataOutputView}
+import org.apache.flink.runtime.state.{FunctionInitializationContext, FunctionSnapshotContext}
+import org.apache.flink.streaming.api.checkpoint.CheckpointedFunction
 import org.apache.flink.streaming.api.datastream.DataStreamSink
-import org.apache.flink.streaming.api.functions.sink.{SinkFunction, TwoPhaseCommitSinkFunction}
+import org.apache.flink.streaming.api.functions.sink.{RichSinkFunction, SinkFunction, TwoPhaseCommitSinkFunction}
 import org.apache.flink.streaming.api.scala.DataStream
+import org.apache.flink.types.StringValue
 import org.apache.flink.streaming.connectors.redis.common.config.{FlinkJedisConfigBase, FlinkJedisPoolConfig}
 import org.apache.flink.streaming.connectors.redis.common.container.{RedisContainer => RContainer}
 import org.apache.flink.streaming.connectors.redis.common.mapper.RedisCommand._
 import org.apache.flink.streaming.connectors.redis.common.mapper.{RedisCommand, RedisCommandDescription, RedisMapper => RMapper}
 import org.apache.flink.streaming.connectors.redis.{RedisSink => RSink}
-import redis.clients.jedis.exceptions.JedisException
-import redis.clients.jedis.{Jedis, JedisPool}
+import redis.clients.jedis.exceptions.{JedisDataException, JedisException, JedisRedirectionException}
+import redis.clients.jedis.{Jedis, JedisPool, MultiKeyPipelineBase}
 
 import java.io.IOException
 import java.util.Properties
+import java.util.concurrent.{Executors, ScheduledExecutorService, TimeUnit}
+import java.util.function.Supplier
 import scala.annotation.meta.param
 import scala.collection.JavaConversions._
 import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Try
 
 object RedisSink {
 
@@ -61,9 +68,13 @@ class RedisSink(@(transient@param) ctx: StreamingContext,
                 uid: String = null
                ) extends Sink {
 
-  lazy val config: FlinkJedisConfigBase = {
+  lazy val redisConf: Properties = {
     val redisConf = ConfigUtils.getConf(ctx.parameter.toMap, REDIS_PREFIX)
     Utils.copyProperties(property, redisConf)
+    redisConf
+  }
+
+  lazy val config: FlinkJedisConfigBase = {
     val builder = new FlinkJedisPoolConfig.Builder()
     redisConf.map {
       case (KEY_HOST, host) => builder.setHost(host)
@@ -85,6 +96,25 @@ class RedisSink(@(transient@param) ctx: StreamingContext,
     afterSink(sink, parallelism, name, uid)
   }
 
+  /**
+   * 每个subtask缓存数据,达到batch.size或者batch.interval时按slot分组,用Pipeline一次写入每个节点,
+   * SET带有ttl时合并为SETEX,其他命令每批次每个key只EXPIRE一次,checkpoint时flush(at-least-once).
+   * 连接池在TaskManager内按RedisEndpoint共享.
+   *
+   * @param stream
+   * @param mapper
+   * @param ttl
+   * @tparam T
+   * @return
+   */
+  def pipelineSink[T](stream: DataStream[T], mapper: RedisMapper[T], ttl: Int = Int.MaxValue): DataStreamSink[T] = {
+    val batchSize = Try(redisConf(KEY_REDIS_BATCH_SIZE).toInt).getOrElse(DEFAULT_REDIS_BATCH_SIZE)
+    val batchInterval = Try(redisConf(KEY_REDIS_BATCH_INTERVAL).toLong).getOrElse(DEFAULT_REDIS_BATCH_INTERVAL)
+    val sinkFun = new RedisPipelineSinkFunction[T](new RedisEndpoint(redisConf), mapper, ttl, batchSize, batchInterval)
+    val sink = stream.addSink(sinkFun)
+    afterSink(sink, parallelism, name, uid)
+  }
+
   def towPCSink[T](stream: DataStream[T], mapper: RedisMapper[T], ttl: Int = Int.MaxValue): DataStreamSink[T] = {
     val sinkFun = new Redis2PCSinkFunction[T](config, mapper, ttl)
     val sink = stream.addSink(sinkFun)
@@ -112,24 +142,208 @@ class RedisSinkFunction[T](jedisConfig: FlinkJedisConfigBase, mapper: RedisMappe
 
 }
 
+class RedisPipelineSinkFunction[T](endpoint: RedisEndpoint,
+                                   mapper: RedisMapper[T],
+                                   ttl: Int,
+                                   batchSize: Int,
+                                   batchInterval: Long) extends RichSinkFunction[T] with CheckpointedFunction with Logger {
+
+  private[this] val MAX_REDIRECTS = 3
+
+  @transient private[this] var description: RedisCommandDescription = _
+  @transient private[this] var config: RedisConfig = _
+  @transient private[this] var buffer: ArrayBuffer[(String, String)] = _
+  @transient private[this] var scheduler: ScheduledExecutorService = _
+  @volatile private[this] var flushException: Exception = _
+
+  override def initializeState(context: FunctionInitializationContext): Unit = {}
+
+  override def open(parameters: Configuration): Unit = {
+    description = mapper.getCommandDescription
+    config = RedisClient.config(endpoint)
+    buffer = new ArrayBuffer[(String, String)](batchSize)
+    if (batchSize > 1 && batchInterval > 0) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(ThreadUtils.threadFactory("RedisSink-flusher"))
+      scheduler.scheduleWithFixedDelay(new Runnable {
+        override def run(): Unit = RedisPipelineSinkFunction.this.synchronized {
+          if (flushException == null) {
+            try flush() catch {
+              case e: Exception => flushException = e
+            }
+          }
+        }
+      }, batchInterval, batchInterval, TimeUnit.MILLISECONDS)
+    }
+  }
+
+  override def invoke(value: T, context: SinkFunction.Context): Unit = this.synchronized {
+    checkFlushException()
+    buffer += mapper.getKeyFromData(value) -> mapper.getValueFromData(value)
+    if (buffer.size >= batchSize) {
+      flush()
+    }
+  }
+
+  private[this] def flush(): Unit = {
+    if (buffer.nonEmpty) {
+      val start = System.currentTimeMillis()
+      write(buffer, 0)
+      logDebug(s"RedisSink batch ${buffer.size} use ${System.currentTimeMillis() - start} MS")
+      buffer.clear()
+    }
+  }
+
+  /**
+   * 按key所在的slot分组,每个节点一次Pipeline,被重定向(slot迁移)的数据刷新节点信息后重新写入
+   */
+  private[this] def write(records: Seq[(String, String)], redirects: Int): Unit = {
+    records.groupBy(x => config.getHost(RedisPipeline.redisKey(description, x._1))).foreach { case (node, nodeRecords) =>
+      val moved = writeNode(node, nodeRecords)
+      if (moved.nonEmpty) {
+        if (redirects >= MAX_REDIRECTS) {
+          throw new JedisException(s"[StreamX] RedisSink too many redirections, ${moved.size} records are not written")
+        }
+        logWarn(s"RedisSink ${moved.size} records are redirected from ${node.endpoint.host}:${node.endpoint.port}, refresh the cluster slots")
+        config = RedisClient.refreshConfig(endpoint)
+        write(moved, redirects + 1)
+      }
+    }
+  }
+
+  /**
+   * @return 被重定向到其他节点的数据
+   */
+  private[this] def writeNode(node: RedisNode, records: Seq[(String, String)]): Seq[(String, String)] = {
+    val jedis = RedisClient.connect(node.endpoint)
+    try {
+      val pipeline = jedis.pipelined()
+      val expireKeys = new mutable.LinkedHashSet[String]()
+      records.foreach { case (key, value) =>
+        if (RedisPipeline.command(pipeline, description, key, value, ttl)) {
+          expireKeys += RedisPipeline.redisKey(description, key)
+        }
+      }
+      expireKeys.foreach(pipeline.expire(_, ttl))
+      val replies = pipeline.syncAndReturnAll()
+      val moved = new ArrayBuffer[(String, String)]()
+      replies.zipWithIndex.foreach {
+        case (_: JedisRedirectionException, i) => if (i < records.size) moved += records(i)
+        case (e: JedisDataException, _) => throw e
+        case _ =>
+      }
+      moved
+    } finally {
+      jedis.close()
+    }
+  }
+
+  private[this] def checkFlushException(): Unit = {
+    if (flushException != null) {
+      throw new RuntimeException("[StreamX] RedisSink flush batch error", flushException)
+    }
+  }
+
+  override def snapshotState(context: FunctionSnapshotContext): Unit = this.synchronized {
+    checkFlushException()
+    flush()
+  }
+
+  override def close(): Unit = {
+    if (scheduler != null) {
+      ThreadUtils.shutdownExecutorService(scheduler)
+    }
+    this.synchronized {
+      if (buffer != null) {
+        checkFlushException()
+        flush()
+      }
+    }
+  }
+
+}
+
+/**
+ * 在Pipeline或者事务(multi)里执行RedisMapper的命令
+ */
+object RedisPipeline {
+
+  def endpoint(jedisConfig: FlinkJedisConfigBase): RedisEndpoint = {
+    val poolConfig = jedisConfig.asInstanceOf[FlinkJedisPoolConfig]
+    RedisEndpoint(poolConfig.getHost, poolConfig.getPort, poolConfig.getPassword, poolConfig.getDatabase, poolConfig.getConnectionTimeout)
+  }
+
+  /**
+   * 实际写入的key,HSET/ZADD/ZREM写入的是additionalKey,数据的key是field或者member
+   */
+  def redisKey(description: RedisCommandDescription, key: String): String = description.getCommand match {
+    case HSET | ZADD | ZREM => description.getAdditionalKey
+    case _ => key
+  }
+
+  /**
+   * SET带有ttl时合并成SETEX
+   *
+   * @return 是否还需要对redisKey执行EXPIRE
+   */
+  def command(pipeline: MultiKeyPipelineBase, description: RedisCommandDescription, key: String, value: String, ttl: Int): Boolean = {
+    val expire = ttl != Int.MaxValue
+    description.getCommand match {
+      case SET if expire =>
+        pipeline.setex(key, ttl, value)
+        false
+      case SET =>
+        pipeline.set(key, value)
+        false
+      case PUBLISH =>
+        pipeline.publish(key, value)
+        false
+      case RPUSH =>
+        pipeline.rpush(key, value)
+        expire
+      case LPUSH =>
+        pipeline.lpush(key, value)
+        expire
+      case SADD =>
+        pipeline.sadd(key, value)
+        expire
+      case PFADD =>
+        pipeline.pfadd(key, value)
+        expire
+      case ZADD =>
+        pipeline.zadd(description.getAdditionalKey, value.toDouble, key)
+        expire
+      case ZREM =>
+        pipeline.zrem(description.getAdditionalKey, key)
+        expire
+      case HSET =>
+        pipeline.hset(description.getAdditionalKey, key, value)
+        expire
+      case other => throw new IllegalArgumentException("[StreamX] RedisSink:Cannot process such data type: " + other)
+    }
+  }
+
+}
+
 //-------------Redis2PCSinkFunction,端到端精准一次语义实现---------------------------------------------------------------------------------------
 
 class Redis2PCSinkFunction[T](jedisConfig: FlinkJedisConfigBase, mapper: RedisMapper[T], ttl: Int)
-  extends TwoPhaseCommitSinkFunction[T, RedisTransaction[T], Void](new KryoSerializer[RedisTransaction[T]](classOf[RedisTransaction[T]], new ExecutionConfig), VoidSerializer.INSTANCE) with Logger {
+  extends TwoPhaseCommitSinkFunction[T, RedisTransaction, Void](RedisTransactionSerializer, VoidSerializer.INSTANCE) with Logger {
+
+  private[this] val buffer: collection.mutable.Map[String, RedisTransaction] = collection.mutable.Map.empty[String, RedisTransaction]
 
-  private[this] val buffer: collection.mutable.Map[String, RedisTransaction[T]] = collection.mutable.Map.empty[String, RedisTransaction[T]]
+  private[this] val endpoint: RedisEndpoint = RedisPipeline.endpoint(jedisConfig)
 
-  override def beginTransaction(): RedisTransaction[T] = {
+  override def beginTransaction(): RedisTransaction = {
     logInfo("Redis2PCSink beginTransaction.")
-    RedisTransaction[T]()
+    RedisTransaction()
   }
 
-  override def invoke(transaction: RedisTransaction[T], value: T, context: SinkFunction.Context): Unit = {
+  override def invoke(transaction: RedisTransaction, value: T, context: SinkFunction.Context): Unit = {
     transaction.invoked = true
-    transaction + (mapper, value, ttl)
+    transaction + (mapper.getKeyFromData(value) -> mapper.getValueFromData(value))
   }
 
-  override def preCommit(transaction: RedisTransaction[T]): Unit = {
+  override def preCommit(transaction: RedisTransaction): Unit = {
     //防止未调用invoke方法直接调用preCommit
     if (transaction.invoked) {
       logInfo(s"Redis2PCSink preCommit.TransactionId:${transaction.transactionId}")
@@ -137,19 +351,22 @@ class Redis2PCSinkFunction[T](jedisConfig: FlinkJedisConfigBase, mapper: RedisMa
     }
   }
 
-  override def commit(redisTransaction: RedisTransaction[T]): Unit = {
-    if (redisTransaction.invoked && redisTransaction.mapper.nonEmpty) {
+  override def commit(redisTransaction: RedisTransaction): Unit = {
+    if (redisTransaction.invoked && redisTransaction.records.nonEmpty) {
+      //使用TaskManager内共享的连接池,不再每次commit创建新的连接池
+      val jedis = RedisClient.connect(endpoint)
       try {
-        val redisContainer = RedisContainer.getContainer(jedisConfig)
-        val transaction = redisContainer.jedis.multi()
-        redisTransaction.mapper.foreach(x => {
-          redisContainer.invoke[T](x._1, x._2, Some(transaction))
-          val key = mapper.getKeyFromData(x._2)
-          transaction.expire(key, x._3)
-        })
+        val transaction = jedis.multi()
+        val description = mapper.getCommandDescription
+        val expireKeys = new mutable.LinkedHashSet[String]()
+        redisTransaction.records.foreach { case (key, value) =>
+          if (RedisPipeline.command(transaction, description, key, value, ttl)) {
+            expireKeys += RedisPipeline.redisKey(description, key)
+          }
+        }
+        expireKeys.foreach(transaction.expire(_, ttl))
         transaction.exec()
         transaction.close()
-        redisContainer.close()
         //成功,清除state...
         buffer -= redisTransaction.transactionId
       } catch {
@@ -159,27 +376,72 @@ class Redis2PCSinkFunction[T](jedisConfig: FlinkJedisConfigBase, mapper: RedisMa
         case t: Throwable =>
           logError(s"Redis2PCSink commit Throwable:${t.getMessage}")
           throw t
+      } finally {
+        jedis.close()
       }
     }
   }
 
-  override def abort(transaction: RedisTransaction[T]): Unit = {
+  override def abort(transaction: RedisTransaction): Unit = {
     logInfo(s"Redis2PCSink abort,TransactionId:${transaction.transactionId}")
     buffer -= transaction.transactionId
   }
 
 }
 
+/**
+ * 状态里只保存每条数据的key和value,RedisMapper和ttl对所有数据都一样,由Redis2PCSinkFunction提供
+ */
+case class RedisTransaction(transactionId: String = Utils.uuid(),
+                            records: ArrayBuffer[(String, String)] = ArrayBuffer.empty[(String, String)],
+                            var invoked: Boolean = false) extends Serializable {
+  def +(record: (String, String)): Unit = records += record
+
+  override def toString: String = s"(transactionId:$transactionId,size:${records.size},invoked:$invoked)"
+}
+
+object RedisTransactionSerializer extends TypeSerializerSingleton[RedisTransaction] {
+
+  override def isImmutableType: Boolean = false
 
-case class RedisTransaction[T](
-                                transactionId: String = Utils.uuid(),
-                                mapper: mutable.MutableList[(RedisMapper[T], T, Int)] = mutable.MutableList.empty[(RedisMapper[T], T, Int)],
-                                var invoked: Boolean = false) extends Serializable {
-  def +(redisMapper: (RedisMapper[T], T, Int)): Unit = mapper += redisMapper
+  override def createInstance(): RedisTransaction = RedisTransaction()
+
+  override def copy(from: RedisTransaction): RedisTransaction = from.copy(records = ArrayBuffer(from.records: _*))
+
+  override def copy(from: RedisTransaction, reuse: RedisTransaction): RedisTransaction = copy(from)
+
+  override def getLength: Int = -1
+
+  override def serialize(record: RedisTransaction, target: DataOutputView): Unit = {
+    target.writeUTF(record.transactionId)
+    target.writeBoolean(record.invoked)
+    target.writeInt(record.records.size)
+    record.records.foreach { case (key, value) =>
+      StringValue.writeString(key, target)
+      StringValue.writeString(value, target)
+    }
+  }
+
+  override def deserialize(source: DataInputView): RedisTransaction = {
+    val transaction = RedisTransaction(transactionId = source.readUTF(), invoked = source.readBoolean())
+    val size = source.readInt()
+    transaction.records.sizeHint(size)
+    (0 until size).foreach(_ => transaction + (StringValue.readString(source) -> StringValue.readString(source)))
+    transaction
+  }
+
+  override def deserialize(reuse: RedisTransaction, source: DataInputView): RedisTransaction = deserialize(source)
+
+  override def copy(source: DataInputView, target: DataOutputView): Unit = serialize(deserialize(source), target)
+
+  override def snapshotConfiguration(): TypeSerializerSnapshot[RedisTransaction] = new RedisTransactionSerializerSnapshot
 
-  override def toString: String = s"(transactionId:$transactionId,size:${mapper.size},invoked:$invoked)"
 }
 
+class RedisTransactionSerializerSnapshot extends SimpleTypeSerializerSnapshot[RedisTransaction](new Supplier[TypeSerializer[RedisTransaction]] {
+  override def get(): TypeSerializer[RedisTransaction] = RedisTransactionSerializer
+})
+
 
 object RedisContainer extends Logger {
 
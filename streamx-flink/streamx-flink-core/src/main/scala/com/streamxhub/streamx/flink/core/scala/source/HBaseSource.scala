@@ -20,22 +20,25 @@
  */
 package com.streamxhub.streamx.flink.core.scala.source
 
+import com.streamxhub.streamx.common.conf.ConfigConst._
 import com.streamxhub.streamx.common.enums.ApiType
-import com.streamxhub.streamx.common.util.{Logger, Utils}
+import com.streamxhub.streamx.common.util.{HBaseClient, Logger, Utils}
 import com.streamxhub.streamx.flink.core.java.function.{HBaseQueryFunction, HBaseResultFunction}
 import com.streamxhub.streamx.flink.core.java.wrapper.HBaseQuery
 import com.streamxhub.streamx.flink.core.scala.StreamingContext
 import ApiType.ApiType
 import com.streamxhub.streamx.flink.common.util.FlinkUtils
-import org.apache.flink.api.common.state.ListState
+import org.apache.flink.api.common.state.{ListState, ListStateDescriptor}
 import org.apache.flink.api.common.typeinfo.TypeInformation
 import org.apache.flink.configuration.Configuration
 import org.apache.flink.runtime.state.{CheckpointListener, FunctionInitializationContext, FunctionSnapshotContext}
 import org.apache.flink.streaming.api.checkpoint.CheckpointedFunction
-import org.apache.flink.streaming.api.functions.source.RichSourceFunction
+import org.apache.flink.streaming.api.functions.source.{RichParallelSourceFunction, RichSourceFunction}
 import org.apache.flink.streaming.api.functions.source.SourceFunction.SourceContext
 import org.apache.flink.streaming.api.scala.DataStream
+import org.apache.hadoop.hbase.TableName
 import org.apache.hadoop.hbase.client._
+import org.apache.hadoop.hbase.util.Bytes
 
 import java.util.Properties
 import scala.annotation.meta.param
@@ -62,6 +65,26 @@ class HBaseSource(@(transient@param) val ctx: StreamingContext, property: Proper
     ctx.addSource(hBaseFunc)
   }
 
+  /**
+   * 并行增量读取: 按table的region的key范围切分,分配给各个subtask,每一轮用setTimeRange只扫描上一轮之后写入的数据(变更捕获),
+   * 每个region在checkpoint里记录(startKey, lastRowKey, lastTimestamp),没有新数据的时候按指数退避等待.
+   * 每一轮只扫描到 当前时间 - hbase.source.safetyLag,写入的数据至少延迟safetyLag才会被读取.
+   * 注意: 增量的一轮只返回时间范围内写入的cell,不是整行;写入时由客户端指定了时间戳(早于已扫描的范围)的cell不会被读取.
+   *
+   * @param table       表名
+   * @param parallelism source的并行度,超过region个数的subtask没有数据可读
+   * @param scanFunc    设置列族,列,过滤器等查询条件,start/stop row和time range由source控制
+   * @param func        将Result转换成R
+   * @param prop
+   * @tparam R
+   * @return
+   */
+  def getParallelDataStream[R: TypeInformation](table: String, parallelism: Int, scanFunc: Scan => Unit = null)(func: Result => R)(implicit prop: Properties = new Properties()): DataStream[R] = {
+    Utils.copyProperties(property, prop)
+    val sourceFun = new HBaseParallelSourceFunction[R](prop, table, scanFunc, func)
+    ctx.addSource(sourceFun).setParallelism(parallelism)
+  }
+
 }
 
 
@@ -161,3 +184,189 @@ class HBaseSourceFunction[R: TypeInformation](apiType: ApiType = ApiType.scala,
   }
 
 }
+
+/**
+ * 按region的key范围并行增量读取HBase
+ *
+ * @tparam R
+ */
+class HBaseParallelSourceFunction[R: TypeInformation](prop: Properties,
+                                                      table: String,
+                                                      scanFunc: Scan => Unit,
+                                                      resultFunc: Result => R) extends RichParallelSourceFunction[R] with CheckpointedFunction with Logger {
+
+  @volatile private[this] var running = true
+
+  private[this] val caching = Try(prop.remove(KEY_HBASE_SOURCE_CACHING).toString.toInt).getOrElse(DEFAULT_HBASE_SOURCE_CACHING)
+  private[this] val batch = Try(prop.remove(KEY_HBASE_SOURCE_BATCH).toString.toInt).getOrElse(-1)
+  private[this] val pollInterval = Try(prop.remove(KEY_HBASE_SOURCE_POLL_INTERVAL).toString.toLong).getOrElse(DEFAULT_HBASE_SOURCE_POLL_INTERVAL)
+  private[this] val pollMaxInterval = Try(prop.remove(KEY_HBASE_SOURCE_POLL_MAX_INTERVAL).toString.toLong).getOrElse(DEFAULT_HBASE_SOURCE_POLL_MAX_INTERVAL)
+  private[this] val safetyLag = Try(prop.remove(KEY_HBASE_SOURCE_SAFETY_LAG).toString.toLong).getOrElse(DEFAULT_HBASE_SOURCE_SAFETY_LAG)
+
+  //在客户端按当前的region切分一次,各个subtask拿到相同的split,恢复时以状态里的为准.
+  private[this] val initialSplits: List[HBaseRegionSplit] = HBaseRegionSplit.split(table)(prop)
+
+  @transient private[this] var client: HBaseClient = _
+  @transient private[this] var state: ListState[HBaseRegionSplit] = _
+  @transient private[this] var allSplits: List[HBaseRegionSplit] = _
+  @transient private[this] var splits: List[HBaseRegionSplit] = _
+  private val SPLITS_STATE_NAME: String = "hbase-source-region-states"
+
+  //for JAVA
+  def this(prop: Properties, table: String, resultFunc: HBaseResultFunction[R]) {
+    this(prop, table, null, (result: Result) => resultFunc.result(result))
+  }
+
+  override def initializeState(context: FunctionInitializationContext): Unit = {
+    state = context.getOperatorStateStore.getUnionListState(new ListStateDescriptor[HBaseRegionSplit](SPLITS_STATE_NAME, classOf[HBaseRegionSplit]))
+    allSplits = if (context.isRestored) state.get().toList.sortBy(_.id) else initialSplits
+    if (allSplits.isEmpty) allSplits = initialSplits
+    logInfo(s"HBaseParallelSource initializeState, splits: ${allSplits.mkString(",")}")
+  }
+
+  override def open(parameters: Configuration): Unit = {
+    val index = getRuntimeContext.getIndexOfThisSubtask
+    val parallelism = getRuntimeContext.getNumberOfParallelSubtasks
+    splits = allSplits.filter(_.id % parallelism == index)
+    client = HBaseClient(prop)
+    logInfo(s"HBaseParallelSource open, subtask: $index, splits: ${splits.mkString(",")}")
+  }
+
+  @throws[Exception]
+  override def run(ctx: SourceContext[R]): Unit = {
+    if (splits.isEmpty) {
+      ctx.markAsTemporarilyIdle()
+    }
+    val backoff = new PollBackoff(pollInterval, pollMaxInterval)
+    val htable = client.table(table)
+    try {
+      while (running) {
+        val rows = splits.map(split => poll(htable, split, ctx)).sum
+        backoff.await(rows == 0)
+      }
+    } finally {
+      htable.close()
+    }
+  }
+
+  /**
+   * 扫描split在[lastTimestamp, passTimestamp)内写入的数据,从lastRowKey之后继续,扫描完一轮后时间范围向后推进.
+   * passTimestamp为当前时间减去safetyLag: cell的时间戳由RegionServer的时钟决定,并且写入在可见之前就已经确定了时间戳,
+   * 以客户端的当前时间为上界会漏掉RegionServer时钟落后或者还在写入中的数据.
+   */
+  private[this] def poll(htable: Table, split: HBaseRegionSplit, ctx: SourceContext[R]): Long = {
+    if (split.passTimestamp == 0) {
+      val started = ctx.getCheckpointLock.synchronized {
+        split.startPass(System.currentTimeMillis(), safetyLag)
+      }
+      if (!started) return 0L
+    }
+    val scan = new Scan()
+    if (scanFunc != null) {
+      scanFunc(scan)
+    }
+    scan.setStartRow(split.nextRow)
+    scan.setStopRow(split.endKey)
+    scan.setTimeRange(split.lastTimestamp, split.passTimestamp)
+    scan.setCaching(caching)
+    scan.setCacheBlocks(false)
+    if (batch > 0) {
+      scan.setBatch(batch)
+    }
+    val scanner = htable.getScanner(scan)
+    var rows = 0L
+    try {
+      var result = scanner.next()
+      while (running && result != null) {
+        val record = resultFunc(result)
+        ctx.getCheckpointLock.synchronized {
+          ctx.collect(record)
+          split.lastRowKey = result.getRow
+        }
+        rows += 1
+        result = scanner.next()
+      }
+    } finally {
+      scanner.close()
+    }
+    if (running) {
+      ctx.getCheckpointLock.synchronized {
+        split.finishPass()
+      }
+    }
+    rows
+  }
+
+  override def cancel(): Unit = this.running = false
+
+  override def close(): Unit = {
+    super.close()
+    //each subtask creates its own connection in open()
+    if (client != null) Try(client.connection.close())
+  }
+
+  override def snapshotState(context: FunctionSnapshotContext): Unit = {
+    state.clear()
+    splits.foreach(x => state.add(x.copy()))
+  }
+
+}
+
+/**
+ * region的[startKey, endKey)范围,空数组表示无界.
+ * lastTimestamp之前写入的数据已经读取,passTimestamp不为0表示正在扫描[lastTimestamp, passTimestamp),已读取到lastRowKey.
+ */
+case class HBaseRegionSplit(id: Int,
+                            startKey: Array[Byte],
+                            endKey: Array[Byte],
+                            var lastRowKey: Array[Byte] = null,
+                            var lastTimestamp: Long = 0L,
+                            var passTimestamp: Long = 0L) {
+
+  //开启了scan batch时,一行会分多次返回,恢复时从下一行开始
+  def nextRow: Array[Byte] = if (lastRowKey == null) startKey else Bytes.add(lastRowKey, Array[Byte](0))
+
+  /**
+   * 开始新的一轮,扫描到now - safetyLag为止,时间范围没有向后推进时不扫描
+   */
+  def startPass(now: Long, safetyLag: Long): Boolean = {
+    val upper = now - safetyLag
+    if (upper > lastTimestamp) {
+      passTimestamp = upper
+      lastRowKey = null
+      true
+    } else false
+  }
+
+  def finishPass(): Unit = {
+    lastTimestamp = passTimestamp
+    passTimestamp = 0
+    lastRowKey = null
+  }
+
+  override def toString: String = s"(id:$id,startKey:${Bytes.toStringBinary(startKey)},endKey:${Bytes.toStringBinary(endKey)}," +
+    s"lastRowKey:${if (lastRowKey == null) null else Bytes.toStringBinary(lastRowKey)},lastTimestamp:$lastTimestamp,passTimestamp:$passTimestamp)"
+
+}
+
+object HBaseRegionSplit extends Logger {
+
+  def split(table: String)(implicit prop: Properties): List[HBaseRegionSplit] = {
+    //HBaseClient会移除认证的用户,这里用副本
+    val copy = new Properties()
+    copy.putAll(prop)
+    val connection = HBaseClient(copy).connection
+    try {
+      val locator = connection.getRegionLocator(TableName.valueOf(table))
+      try {
+        val keys = locator.getStartEndKeys
+        keys.getFirst.zip(keys.getSecond).zipWithIndex.map { case ((start, end), i) => HBaseRegionSplit(i, start, end) }.toList
+      } finally {
+        locator.close()
+      }
+    } finally {
+      connection.close()
+    }
+  }
+
+}
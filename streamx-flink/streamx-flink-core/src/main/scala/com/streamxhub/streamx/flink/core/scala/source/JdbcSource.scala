@@ -20,20 +20,23 @@
  */
 package com.streamxhub.streamx.flink.core.scala.source
 
+import com.streamxhub.streamx.common.conf.ConfigConst._
 import com.streamxhub.streamx.common.enums.ApiType
 import com.streamxhub.streamx.common.util.{JdbcUtils, Logger, Utils}
-import com.streamxhub.streamx.flink.core.java.function.{SQLQueryFunction, SQLResultFunction}
+import com.streamxhub.streamx.flink.core.java.function.{SQLQueryFunction, SQLResultFunction, SQLRowFunction}
 import com.streamxhub.streamx.flink.core.scala.StreamingContext
 import ApiType.ApiType
 import com.streamxhub.streamx.flink.common.util.FlinkUtils
-import org.apache.flink.api.common.state.ListState
+import org.apache.flink.api.common.state.{ListState, ListStateDescriptor}
 import org.apache.flink.api.common.typeinfo.TypeInformation
 import org.apache.flink.runtime.state.{CheckpointListener, FunctionInitializationContext, FunctionSnapshotContext}
 import org.apache.flink.streaming.api.checkpoint.CheckpointedFunction
-import org.apache.flink.streaming.api.functions.source.RichSourceFunction
+import org.apache.flink.configuration.Configuration
+import org.apache.flink.streaming.api.functions.source.{RichParallelSourceFunction, RichSourceFunction}
 import org.apache.flink.streaming.api.functions.source.SourceFunction.SourceContext
 import org.apache.flink.streaming.api.scala.DataStream
 
+import java.sql.{Connection, PreparedStatement, ResultSet, Types}
 import java.util.Properties
 import scala.annotation.meta.param
 import scala.collection.JavaConversions._
@@ -64,6 +67,24 @@ class JdbcSource(@(transient@param) val ctx: StreamingContext, property: Propert
     ctx.addSource(mysqlFun)
   }
 
+  /**
+   * 并行读取: 按jdbc.split.key(数值类型的唯一键,未配置时为splitColumn)取模将表切分成parallelism个split,分配给各个subtask,
+   * 每个split按splitColumn(数值或时间类型,单调递增)增量读取,在checkpoint里记录已读取到的splitColumn的值和该值上已发送的行.
+   *
+   * @param query       查询语句,e.g: select * from t_order
+   * @param splitColumn 切分和增量读取的列,e.g: id
+   * @param parallelism split的个数,即source的并行度
+   * @param rowFunc     将ResultSet的当前行转换成R
+   * @param jdbc
+   * @tparam R
+   * @return
+   */
+  def getParallelDataStream[R: TypeInformation](query: String, splitColumn: String, parallelism: Int)(rowFunc: ResultSet => R)(implicit jdbc: Properties = new Properties()): DataStream[R] = {
+    Utils.copyProperties(property, jdbc)
+    val sourceFun = new JdbcParallelSourceFunction[R](jdbc, query, splitColumn, parallelism, rowFunc)
+    ctx.addSource(sourceFun).setParallelism(parallelism)
+  }
+
 }
 
 /**
@@ -97,16 +118,16 @@ private[this] class JdbcSourceFunction[R: TypeInformation](apiType: ApiType = Ap
 
   @throws[Exception]
   override def run(ctx: SourceContext[R]): Unit = {
+    val backoff = new PollBackoff(DEFAULT_JDBC_POLL_INTERVAL, DEFAULT_JDBC_POLL_MAX_INTERVAL)
     while (this.running) {
+      val sql = apiType match {
+        case ApiType.scala => scalaSqlFunc(last)
+        case ApiType.java => javaSqlFunc.query(last)
+      }
+      val result: List[Map[String, _]] = JdbcUtils.select(sql)(jdbc)
+      //没有查询到数据时等待一段时间再查询,避免空转
+      backoff.await(result.isEmpty)
       ctx.getCheckpointLock.synchronized {
-        val sql = apiType match {
-          case ApiType.scala => scalaSqlFunc(last)
-          case ApiType.java => javaSqlFunc.query(last)
-        }
-        val result: List[Map[String, _]] = apiType match {
-          case ApiType.scala => JdbcUtils.select(sql)(jdbc)
-          case ApiType.java => JdbcUtils.select(sql)(jdbc)
-        }
         apiType match {
           case ApiType.scala => scalaResultFunc(result).foreach(x => {
             last = x
@@ -149,3 +170,211 @@ private[this] class JdbcSourceFunction[R: TypeInformation](apiType: ApiType = Ap
   }
 }
 
+
+/**
+ * 并行的JdbcSource,每个subtask读取分配给它的split(split.id % parallelism == subtaskIndex),
+ * 以forward-only游标按fetch.size分批读取,不经过JdbcUtils.select,没有新数据时按poll.interval到poll.maxInterval指数退避.
+ * split按split.key(未配置时为splitColumn)取模切分: abs(mod(floor(column), count)) = id,不需要在启动时查询数据的范围,各个subtask的切分一致.
+ * split及其读取位置保存在union list state里,改变并行度后重新分配.
+ *
+ * @tparam R
+ */
+class JdbcParallelSourceFunction[R: TypeInformation](jdbc: Properties,
+                                                     query: String,
+                                                     splitColumn: String,
+                                                     splitCount: Int,
+                                                     rowFunc: ResultSet => R) extends RichParallelSourceFunction[R] with CheckpointedFunction with Logger {
+
+  @volatile private[this] var running = true
+
+  private[this] val fetchSize = Try(jdbc.remove(KEY_JDBC_FETCH_SIZE).toString.toInt).getOrElse(DEFAULT_JDBC_FETCH_SIZE)
+  private[this] val pollInterval = Try(jdbc.remove(KEY_JDBC_POLL_INTERVAL).toString.toLong).getOrElse(DEFAULT_JDBC_POLL_INTERVAL)
+  private[this] val pollMaxInterval = Try(jdbc.remove(KEY_JDBC_POLL_MAX_INTERVAL).toString.toLong).getOrElse(DEFAULT_JDBC_POLL_MAX_INTERVAL)
+  /**
+   * 唯一键(数值类型),用于切分和识别splitColumn取值相同的行,未配置时用整行的内容识别
+   */
+  private[this] val splitKey: String = Try(jdbc.remove(KEY_JDBC_SPLIT_KEY).toString.trim).filter(_.nonEmpty).getOrElse(null)
+
+  @transient private[this] var state: ListState[JdbcSplit] = _
+  @transient private[this] var allSplits: List[JdbcSplit] = _
+  @transient private[this] var splits: List[JdbcSplit] = _
+  private val SPLITS_STATE_NAME: String = "jdbc-source-split-states"
+
+  //for JAVA
+  def this(jdbc: Properties, query: String, splitColumn: String, splitCount: Int, rowFunc: SQLRowFunction[R]) {
+    this(jdbc, query, splitColumn, splitCount, (resultSet: ResultSet) => rowFunc.row(resultSet))
+  }
+
+  override def initializeState(context: FunctionInitializationContext): Unit = {
+    state = context.getOperatorStateStore.getUnionListState(new ListStateDescriptor[JdbcSplit](SPLITS_STATE_NAME, classOf[JdbcSplit]))
+    allSplits = if (context.isRestored) state.get().toList.sortBy(_.id) else Nil
+    if (allSplits.isEmpty) {
+      allSplits = JdbcSplit.split(query, Option(splitKey).getOrElse(splitColumn), splitCount)(jdbc)
+    }
+    logInfo(s"JdbcParallelSource initializeState, splits: ${allSplits.mkString(",")}")
+  }
+
+  override def open(parameters: Configuration): Unit = {
+    val index = getRuntimeContext.getIndexOfThisSubtask
+    val parallelism = getRuntimeContext.getNumberOfParallelSubtasks
+    splits = allSplits.filter(_.id % parallelism == index)
+    logInfo(s"JdbcParallelSource open, subtask: $index, splits: ${splits.mkString(",")}")
+  }
+
+  @throws[Exception]
+  override def run(ctx: SourceContext[R]): Unit = {
+    if (splits.isEmpty) {
+      ctx.markAsTemporarilyIdle()
+    }
+    val backoff = new PollBackoff(pollInterval, pollMaxInterval)
+    val connection = JdbcUtils.getConnection(jdbc)
+    try {
+      connection.setAutoCommit(false)
+      while (running) {
+        val rows = splits.map(split => poll(connection, split, ctx)).sum
+        backoff.await(rows == 0)
+      }
+    } finally {
+      JdbcUtils.close(connection)
+    }
+  }
+
+  /**
+   * 读取split里splitColumn大于等于已读取位置的数据,取值等于已读取位置且已经发送过的行被跳过,
+   * 所以checkpoint发生在相同取值的一批行中间,或者相同取值的行延迟提交时都不会丢失数据.
+   */
+  private[this] def poll(connection: Connection, split: JdbcSplit, ctx: SourceContext[R]): Long = {
+    val (where, params) = split.condition(splitColumn)
+    val statement: PreparedStatement = connection.prepareStatement(
+      s"select * from ($query) t where $where order by $splitColumn",
+      ResultSet.TYPE_FORWARD_ONLY,
+      ResultSet.CONCUR_READ_ONLY
+    )
+    var result: ResultSet = null
+    var rows = 0L
+    try {
+      statement.setFetchSize(fetchSize)
+      params.zipWithIndex.foreach { case (p, i) => statement.setObject(i + 1, p) }
+      result = statement.executeQuery()
+      val offsetIndex = result.findColumn(splitColumn)
+      val keyIndex = if (splitKey == null) -1 else result.findColumn(splitKey)
+      val start = split.offset
+      val emitted = new java.util.HashMap[String, Integer](split.emitted)
+      while (running && result.next()) {
+        val offset = result.getObject(offsetIndex)
+        val key = if (keyIndex > 0) String.valueOf(result.getObject(keyIndex)) else JdbcSplit.digest(result)
+        val sent: Int = if (offset == start) emitted.getOrDefault(key, 0) else 0
+        if (sent > 0) {
+          emitted.put(key, sent - 1)
+        } else {
+          val record = rowFunc(result)
+          ctx.getCheckpointLock.synchronized {
+            ctx.collect(record)
+            split.advance(offset, key)
+          }
+          rows += 1
+        }
+      }
+    } finally {
+      JdbcUtils.close(result, statement)
+      //结束本次读取的事务,下一次能读取到新的数据
+      connection.commit()
+    }
+    rows
+  }
+
+  override def cancel(): Unit = this.running = false
+
+  override def snapshotState(context: FunctionSnapshotContext): Unit = {
+    state.clear()
+    splits.foreach(x => state.add(x.copy(emitted = new java.util.HashMap[String, Integer](x.emitted))))
+  }
+
+}
+
+/**
+ * abs(mod(floor(partitionColumn), count)) = id 的数据,partitionColumn为null时只有一个split读取所有的数据.
+ * offset为已读取到的splitColumn的值,emitted为splitColumn等于offset的行中已经发送的行(key -> 行数).
+ */
+case class JdbcSplit(id: Int,
+                     count: Int,
+                     partitionColumn: String,
+                     var offset: AnyRef = null,
+                     emitted: java.util.HashMap[String, Integer] = new java.util.HashMap[String, Integer]()) {
+
+  def condition(column: String): (String, List[AnyRef]) = {
+    val from = if (offset == null) Nil else List(s"$column >= ?" -> offset)
+    val partition = if (partitionColumn == null || count <= 1) Nil else List(s"abs(mod(floor($partitionColumn), $count)) = ?" -> Int.box(id))
+    from ++ partition match {
+      case Nil => "1 = 1" -> Nil
+      case conditions => conditions.map(_._1).mkString(" and ") -> conditions.map(_._2)
+    }
+  }
+
+  def advance(value: AnyRef, key: String): Unit = {
+    if (value != offset) {
+      offset = value
+      emitted.clear()
+    }
+    emitted.put(key, emitted.getOrDefault(key, 0) + 1)
+  }
+
+  override def toString: String = s"(id:$id,count:$count,partitionColumn:$partitionColumn,offset:$offset,emitted:${emitted.size()})"
+
+}
+
+object JdbcSplit extends Logger {
+
+  /**
+   * 切分只取决于partitionColumn的类型,只查询元数据,各个subtask得到相同的split.
+   * partitionColumn不是数值类型时只使用一个split.
+   */
+  def split(query: String, partitionColumn: String, count: Int)(implicit jdbc: Properties): List[JdbcSplit] = {
+    val numeric = count > 1 && {
+      val connection = JdbcUtils.getConnection(jdbc)
+      var statement: PreparedStatement = null
+      try {
+        statement = connection.prepareStatement(s"select $partitionColumn from ($query) t where 1 = 0")
+        val columnType = statement.getMetaData.getColumnType(1)
+        Set(Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT, Types.NUMERIC, Types.DECIMAL, Types.FLOAT, Types.REAL, Types.DOUBLE).contains(columnType)
+      } finally {
+        JdbcUtils.close(statement, connection)
+      }
+    }
+    if (count > 1 && !numeric) {
+      logWarn(s"JdbcSource can not split by non-numeric column: $partitionColumn, please set jdbc.split.key to a numeric unique key, only one split is used")
+    }
+    if (numeric) (0 until count).map(JdbcSplit(_, count, partitionColumn)).toList else List(JdbcSplit(0, 1, null))
+  }
+
+  /**
+   * 没有唯一键时以整行的内容识别一行
+   */
+  def digest(result: ResultSet): String = {
+    val md5 = java.security.MessageDigest.getInstance("MD5")
+    (1 to result.getMetaData.getColumnCount).foreach(i => {
+      md5.update(String.valueOf(result.getString(i)).getBytes(java.nio.charset.StandardCharsets.UTF_8))
+      md5.update(0.toByte)
+    })
+    md5.digest().map("%02x".format(_)).mkString
+  }
+
+}
+
+/**
+ * 没有数据时等待的时间从minInterval开始翻倍直到maxInterval,读取到数据后重置
+ */
+class PollBackoff(minInterval: Long, maxInterval: Long) extends Serializable {
+
+  private[this] var interval = minInterval
+
+  def await(empty: Boolean): Unit = {
+    if (empty) {
+      Thread.sleep(interval)
+      interval = math.min(interval * 2, maxInterval)
+    } else {
+      interval = minInterval
+    }
+  }
+
+}
@@ -23,15 +23,25 @@ package com.streamxhub.streamx.flink.core.scala.source
 import com.streamxhub.streamx.common.conf.ConfigConst._
 import com.streamxhub.streamx.common.util.{ConfigUtils, Utils}
 import com.streamxhub.streamx.flink.core.scala.StreamingContext
+import org.apache.flink.api.common.ExecutionConfig
 import org.apache.flink.api.common.eventtime.WatermarkStrategy
-import org.apache.flink.api.common.typeinfo.TypeInformation
-import org.apache.flink.api.java.typeutils.TypeExtractor.getForClass
+import org.apache.flink.api.common.typeinfo.{BasicTypeInfo, TypeInformation}
+import org.apache.flink.api.common.typeutils.{NestedSerializersSnapshotDelegate, TypeSerializer, TypeSerializerSchemaCompatibility, TypeSerializerSnapshot}
+import org.apache.flink.connector.kafka.source.enumerator.initializer.OffsetsInitializer
+import org.apache.flink.connector.kafka.source.reader.deserializer.KafkaRecordDeserializer
+import org.apache.flink.connector.kafka.source.{KafkaSourceOptions, KafkaSource => FlinkKafkaSource}
+import org.apache.flink.core.memory.{DataInputView, DataOutputView}
 import org.apache.flink.streaming.api.scala.{DataStream, _}
 import org.apache.flink.streaming.connectors.kafka.internals.KafkaTopicPartition
-import org.apache.flink.streaming.connectors.kafka.{FlinkKafkaConsumer, KafkaDeserializationSchema}
-import org.apache.kafka.clients.consumer.{ConsumerConfig, ConsumerRecord}
+import org.apache.flink.streaming.connectors.kafka.{FlinkKafkaConsumer, FlinkKafkaConsumerBase, KafkaDeserializationSchema}
+import org.apache.flink.types.StringValue
+import org.apache.flink.util.Collector
+import org.apache.kafka.clients.consumer.{ConsumerConfig, ConsumerRecord, OffsetResetStrategy}
+import org.apache.kafka.common.TopicPartition
 
 import java.io
+import java.nio.charset.StandardCharsets
+import java.time.Duration
 import java.util.Properties
 import java.util.regex.Pattern
 import scala.annotation.meta.param
@@ -50,9 +60,8 @@ object KafkaSource {
                                     strategy: WatermarkStrategy[KafkaRecord[T]]
                                    ): FlinkKafkaConsumer[KafkaRecord[T]] = {
 
-    val prop = ConfigUtils.getConf(ctx.parameter.toMap, KAFKA_SOURCE_PREFIX + alias)
-    Utils.copyProperties(property, prop)
-    require(prop != null && prop.nonEmpty && prop.exists(x => x._1 == KEY_KAFKA_TOPIC || x._1 == KEY_KAFKA_PATTERN))
+    val prop = getConf(ctx, property, alias)
+    prop.remove(KEY_KAFKA_SOURCE_API)
 
     //start.form parameter...
     val timestamp = Try(Some(prop(s"$KEY_KAFKA_START_FROM.$KEY_KAFKA_START_FROM_TIMESTAMP").toLong)).getOrElse(None)
@@ -63,28 +72,18 @@ object KafkaSource {
     val topicOpt = Try(Some(prop.remove(KEY_KAFKA_TOPIC).toString)).getOrElse(None)
     val regexOpt = Try(Some(prop.remove(KEY_KAFKA_PATTERN).toString)).getOrElse(None)
 
-    val kfkDeserializer = new KafkaDeserializer[T](deserializer)
+    val fields = KafkaRecordFields(Try(prop.remove(KEY_KAFKA_RECORD_FIELDS).toString).getOrElse(null))
+    val kfkDeserializer = new KafkaDeserializer[T](deserializer, fields)
+
+    //partition discovery,对pattern订阅新增的topic和新增的partition生效
+    partitionDiscovery(prop, FlinkKafkaConsumerBase.KEY_PARTITION_DISCOVERY_INTERVAL_MILLIS)
+    val watermarkStrategy = withIdleness(strategy, prop)
 
     val consumer = (topicOpt, regexOpt) match {
       case (Some(_), Some(_)) =>
         throw new IllegalArgumentException("[StreamX] topic and regex cannot be defined at the same time")
-      case (Some(top), _) =>
-        val topics = top.split(",|\\s+")
-        val topicList = topic match {
-          case null => topics.toList
-          case x: String => List(x)
-          case x: List[String] => x
-          case _ => throw new IllegalArgumentException("[StreamX] topic type must be String(one topic) or List[String](more topic)")
-        }
-        new FlinkKafkaConsumer(topicList, kfkDeserializer, prop)
-      case (_, Some(reg)) =>
-        val pattern: Pattern = topic match {
-          case null => reg.r.pattern
-          case x: String => x.r.pattern
-          case _ => throw new IllegalArgumentException("[StreamX] subscriptionPattern type must be String(regex)")
-        }
-        val kfkDeserializer = new KafkaDeserializer[T](deserializer)
-        new FlinkKafkaConsumer(pattern, kfkDeserializer, prop)
+      case (Some(top), _) => new FlinkKafkaConsumer(topics(topic, top), kfkDeserializer, prop)
+      case (_, Some(reg)) => new FlinkKafkaConsumer(pattern(topic, reg), kfkDeserializer, prop)
       case _ => null
     }
 
@@ -95,48 +94,163 @@ object KafkaSource {
       case _ =>
     }
 
-    if (strategy != null) {
+    if (watermarkStrategy != null) {
       val assignerWithPeriodicWatermarks = consumer.getClass.getMethod("assignTimestampsAndWatermarks", classOf[WatermarkStrategy[T]])
       assignerWithPeriodicWatermarks.setAccessible(true)
-      assignerWithPeriodicWatermarks.invoke(consumer, strategy)
+      assignerWithPeriodicWatermarks.invoke(consumer, watermarkStrategy)
     }
 
-    (timestamp, startFrom) match {
+    timestamp match {
       //全局设定Timestamp,对所有的topic生效.
-      case (Some(t), _) => consumer.setStartFromTimestamp(t)
+      case Some(t) => consumer.setStartFromTimestamp(t)
       //精确为每个topic,partition指定offset
       case _ =>
-        val startFroms = (topicOpt, regexOpt) match {
-          //topic方式...
-          case (Some(top), _) =>
-            topic match {
-              case null => startFrom.toList
-              case x: String => startFrom.filter(_.topic == x).toList
-              case x: List[String] =>
-                val topics = if (topic == null) top.split(",|\\s+").toList else x
-                startFrom.filter(s => topics.contains(s.topic)).toList
-              case _ => List.empty[StartFrom]
-            }
-          case (_, Some(reg)) =>
-            topic match {
-              case null => startFrom.filter(s => reg.r.findFirstIn(s.topic).nonEmpty).toList
-              case x: String => startFrom.filter(s => x.r.findFirstIn(s.topic).nonEmpty).toList
-              case _ => List.empty[StartFrom]
-            }
-          case _ => null
+        val offsets = startOffsets(topic, topicOpt, regexOpt, startFrom)
+        if (offsets.nonEmpty) {
+          consumer.setStartFromSpecificOffsets(offsets)
         }
+    }
+    consumer
+  }
+
+  /**
+   * kafka.source.source.api=source时使用FLIP-27的KafkaSource,否则使用FlinkKafkaConsumer
+   */
+  def isSourceApi(ctx: StreamingContext, property: Properties = new Properties(), alias: String = ""): Boolean = {
+    val prop = getConf(ctx, property, alias)
+    Try(prop(KEY_KAFKA_SOURCE_API)).getOrElse(KAFKA_SOURCE_API_CONSUMER) match {
+      case KAFKA_SOURCE_API_SOURCE => true
+      case KAFKA_SOURCE_API_CONSUMER => false
+      case x => throw new IllegalArgumentException(s"[StreamX] kafka.source source.api error, unknown value: $x, must be ($KAFKA_SOURCE_API_CONSUMER|$KAFKA_SOURCE_API_SOURCE)")
+    }
+  }
+
+  /**
+   * 基于FLIP-27的KafkaSource,由SplitEnumerator统一分配和重新分配partition,每个split独立生成watermark.
+   * 注意: flink 1.12的KafkaSource在checkpoint时不会向kafka提交offset,offset只保存在state中.
+   */
+  def getKafkaSource[T: TypeInformation](ctx: StreamingContext,
+                                         property: Properties = new Properties(),
+                                         topic: io.Serializable,
+                                         alias: String,
+                                         deserializer: KafkaDeserializationSchema[T]
+                                        ): FlinkKafkaSource[KafkaRecord[T]] = {
+
+    val prop = getConf(ctx, property, alias)
+    prop.remove(KEY_KAFKA_SOURCE_API)
+    prop.remove(KEY_KAFKA_WATERMARK_IDLENESS)
 
-        //startOffsets...
-        val startOffsets = new java.util.HashMap[KafkaTopicPartition, java.lang.Long]()
-        startFroms.filter(x => x != null && x.partitionOffset != null).foreach(start => {
-          start.partitionOffset.foreach(x => startOffsets.put(new KafkaTopicPartition(start.topic, x._1), x._2))
-        })
+    val timestamp = Try(Some(prop(s"$KEY_KAFKA_START_FROM.$KEY_KAFKA_START_FROM_TIMESTAMP").toLong)).getOrElse(None)
+    val startFrom = StartFrom.startForm(prop)
 
-        if (startOffsets.nonEmpty) {
-          consumer.setStartFromSpecificOffsets(startOffsets)
+    val topicOpt = Try(Some(prop.remove(KEY_KAFKA_TOPIC).toString)).getOrElse(None)
+    val regexOpt = Try(Some(prop.remove(KEY_KAFKA_PATTERN).toString)).getOrElse(None)
+
+    val fields = KafkaRecordFields(Try(prop.remove(KEY_KAFKA_RECORD_FIELDS).toString).getOrElse(null))
+    val kfkDeserializer = new KafkaDeserializer[T](deserializer, fields)
+
+    partitionDiscovery(prop, KafkaSourceOptions.PARTITION_DISCOVERY_INTERVAL_MS.key())
+
+    val builder = FlinkKafkaSource.builder[KafkaRecord[T]]()
+      .setProperties(prop)
+      .setDeserializer(new KafkaSplitDeserializer[T](kfkDeserializer))
+
+    (topicOpt, regexOpt) match {
+      case (Some(_), Some(_)) =>
+        throw new IllegalArgumentException("[StreamX] topic and regex cannot be defined at the same time")
+      case (Some(top), _) => builder.setTopics(topics(topic, top))
+      case (_, Some(reg)) => builder.setTopicPattern(pattern(topic, reg))
+      case _ => throw new IllegalArgumentException("[StreamX] topic or pattern must be defined")
+    }
+
+    val offsets = startOffsets(topic, topicOpt, regexOpt, startFrom)
+    val initializer = timestamp match {
+      case Some(t) => OffsetsInitializer.timestamp(t)
+      case _ if offsets.nonEmpty =>
+        OffsetsInitializer.offsets(offsets.map(x => new TopicPartition(x._1.getTopic, x._1.getPartition) -> x._2))
+      case _ =>
+        val reset = prop.getOrElse(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "latest").toUpperCase
+        OffsetsInitializer.committedOffsets(OffsetResetStrategy.valueOf(reset))
+    }
+    builder.setStartingOffsets(initializer).build()
+  }
+
+  /**
+   * 加上kafka.source.watermark.idleness,空闲的partition(split)超过idleness没有数据后不再阻塞下游watermark的推进.
+   */
+  def getWatermarkStrategy[T](ctx: StreamingContext,
+                              property: Properties = new Properties(),
+                              alias: String = "",
+                              strategy: WatermarkStrategy[KafkaRecord[T]]): WatermarkStrategy[KafkaRecord[T]] = {
+    withIdleness(strategy, getConf(ctx, property, alias)) match {
+      case null => WatermarkStrategy.noWatermarks[KafkaRecord[T]]()
+      case x => x
+    }
+  }
+
+  private[this] def getConf(ctx: StreamingContext, property: Properties, alias: String): Properties = {
+    val prop = ConfigUtils.getConf(ctx.parameter.toMap, KAFKA_SOURCE_PREFIX + alias)
+    Utils.copyProperties(property, prop)
+    require(prop != null && prop.nonEmpty && prop.exists(x => x._1 == KEY_KAFKA_TOPIC || x._1 == KEY_KAFKA_PATTERN))
+    prop
+  }
+
+  private[this] def partitionDiscovery(prop: Properties, key: String): Unit = {
+    Try(prop.remove(KEY_KAFKA_PARTITION_DISCOVERY_INTERVAL).toString.toLong).foreach(interval => {
+      if (!prop.containsKey(key)) {
+        prop.put(key, interval.toString)
+      }
+    })
+  }
+
+  private[this] def withIdleness[T](strategy: WatermarkStrategy[T], prop: Properties): WatermarkStrategy[T] = {
+    Try(prop.remove(KEY_KAFKA_WATERMARK_IDLENESS).toString.toLong).toOption match {
+      case Some(idleness) if strategy != null && idleness > 0 => strategy.withIdleness(Duration.ofMillis(idleness))
+      case _ => strategy
+    }
+  }
+
+  private[this] def topics(topic: io.Serializable, top: String): List[String] = topic match {
+    case null => top.split(",|\\s+").toList
+    case x: String => List(x)
+    case x: List[String] => x
+    case _ => throw new IllegalArgumentException("[StreamX] topic type must be String(one topic) or List[String](more topic)")
+  }
+
+  private[this] def pattern(topic: io.Serializable, reg: String): Pattern = topic match {
+    case null => reg.r.pattern
+    case x: String => x.r.pattern
+    case _ => throw new IllegalArgumentException("[StreamX] subscriptionPattern type must be String(regex)")
+  }
+
+  private[this] def startOffsets(topic: io.Serializable,
+                                 topicOpt: Option[String],
+                                 regexOpt: Option[String],
+                                 startFrom: Array[StartFrom]): java.util.Map[KafkaTopicPartition, java.lang.Long] = {
+    val startFroms = (topicOpt, regexOpt) match {
+      //topic方式...
+      case (Some(top), _) =>
+        topic match {
+          case null => startFrom.toList
+          case x: String => startFrom.filter(_.topic == x).toList
+          case x: List[String] => startFrom.filter(s => x.contains(s.topic)).toList
+          case _ => List.empty[StartFrom]
+        }
+      case (_, Some(reg)) =>
+        topic match {
+          case null => startFrom.filter(s => reg.r.findFirstIn(s.topic).nonEmpty).toList
+          case x: String => startFrom.filter(s => x.r.findFirstIn(s.topic).nonEmpty).toList
+          case _ => List.empty[StartFrom]
         }
+      case _ => List.empty[StartFrom]
     }
-    consumer
+
+    //startOffsets...
+    val startOffsets = new java.util.HashMap[KafkaTopicPartition, java.lang.Long]()
+    startFroms.filter(x => x != null && x.partitionOffset != null).foreach(start => {
+      start.partitionOffset.foreach(x => startOffsets.put(new KafkaTopicPartition(start.topic, x._1), x._2))
+    })
+    startOffsets
   }
 
 }
@@ -172,46 +286,324 @@ class KafkaSource(@(transient@param) private[this] val ctx: StreamingContext, pr
                                         strategy: WatermarkStrategy[KafkaRecord[T]] = null
                                        ): DataStream[KafkaRecord[T]] = {
 
-    val consumer = KafkaSource.getSource[T](this.ctx, property, topic, alias, deserializer, strategy)
-    ctx.addSource(consumer)
+    if (KafkaSource.isSourceApi(this.ctx, property, alias)) {
+      val source = KafkaSource.getKafkaSource[T](this.ctx, property, topic, alias, deserializer)
+      val watermarkStrategy = KafkaSource.getWatermarkStrategy[T](this.ctx, property, alias, strategy)
+      ctx.fromSource(source, watermarkStrategy, s"KafkaSource-$alias")(source.getProducedType)
+    } else {
+      val consumer = KafkaSource.getSource[T](this.ctx, property, topic, alias, deserializer, strategy)
+      //使用KafkaRecordTypeInfo,避免按泛型类型走Kryo
+      ctx.addSource(consumer)(consumer.getProducedType)
+    }
+  }
+
+}
+
+
+/**
+ * key保留原始的字节,第一次访问时按UTF-8解码;
+ * 使用KafkaValueDeserializationSchema时value只保留原始的字节,第一次访问时才反序列化,被过滤掉的数据不需要解码,
+ * 注意这时反序列化的异常在第一次访问value的下游算子里抛出,而不是在source里;其他的KafkaDeserializationSchema在source里直接反序列化.
+ * 在网络上传输时由KafkaRecordSerializer序列化,不会使用Kryo.
+ * kafka.source的record.fields可以只保留需要的字段(key,headers,metadata),不保留metadata时topic为null,partition,timestamp,offset为-1.
+ */
+class KafkaRecord[T](val topic: String,
+                     val partition: Long,
+                     val timestamp: Long,
+                     val offset: Long,
+                     val keyBytes: Array[Byte],
+                     val headers: java.util.Map[String, Array[Byte]],
+                     @transient private[source] var decoder: () => T) {
+
+  private[source] var decodedValue: T = _
+
+  def this(topic: String, partition: Long, timestamp: Long, offset: Long, key: String, value: T) = {
+    this(topic, partition, timestamp, offset, if (key == null) null else key.getBytes(StandardCharsets.UTF_8), null, null)
+    this.decodedValue = value
+  }
+
+  lazy val key: String = if (keyBytes == null) null else new String(keyBytes, StandardCharsets.UTF_8)
+
+  /**
+   * 延迟解码时反序列化的异常在这里抛出
+   */
+  def value: T = {
+    if (decoder != null) {
+      decodedValue = decoder()
+      decoder = null
+    }
+    decodedValue
+  }
+
+  /**
+   * 还没有解码的value由各自的decoder解码,得到的是不同的对象
+   */
+  private[source] def copy(copyValue: T => T): KafkaRecord[T] = {
+    val record = new KafkaRecord[T](topic, partition, timestamp, offset, keyBytes, headers, decoder)
+    if (decoder == null) {
+      record.decodedValue = copyValue(decodedValue)
+    }
+    record
   }
 
+  override def toString: String = s"KafkaRecord(topic:$topic,partition:$partition,timestamp:$timestamp,offset:$offset,key:$key,value:$value)"
+
 }
 
+case class KafkaRecordFields(key: Boolean, headers: Boolean, metadata: Boolean)
+
+object KafkaRecordFields {
 
-class KafkaRecord[T: TypeInformation](
-                                       val topic: String,
-                                       val partition: Long,
-                                       val timestamp: Long,
-                                       val offset: Long,
-                                       val key: String,
-                                       val value: T
-                                     )
+  def apply(fields: String): KafkaRecordFields = fields match {
+    case null => KafkaRecordFields(key = true, headers = false, metadata = true)
+    case _ =>
+      val names = fields.split(",|\\s+").map(_.trim.toLowerCase).filter(_.nonEmpty).toSet
+      names.filterNot(Set("key", "headers", "metadata").contains).foreach(x => {
+        throw new IllegalArgumentException(s"[StreamX] kafka.source record.fields error, unknown field: $x, must be (key|headers|metadata)")
+      })
+      KafkaRecordFields(names.contains("key"), names.contains("headers"), names.contains("metadata"))
+  }
+
+}
 
-class KafkaDeserializer[T: TypeInformation](deserializer: KafkaDeserializationSchema[T]) extends KafkaDeserializationSchema[KafkaRecord[T]] {
+class KafkaDeserializer[T: TypeInformation](deserializer: KafkaDeserializationSchema[T],
+                                            fields: KafkaRecordFields = KafkaRecordFields(null)) extends KafkaDeserializationSchema[KafkaRecord[T]] {
 
   override def deserialize(record: ConsumerRecord[Array[Byte], Array[Byte]]): KafkaRecord[T] = {
-    val key = if (record.key() == null) null else new String(record.key())
-    val value = deserializer.deserialize(record)
-    val offset = record.offset()
-    val partition = record.partition()
-    val topic = record.topic()
-    val timestamp = record.timestamp()
-    new KafkaRecord[T](topic, partition, timestamp, offset, key, value)
+    val key = if (fields.key) record.key() else null
+    val headers = if (fields.headers) {
+      val map = new java.util.HashMap[String, Array[Byte]]()
+      record.headers().foreach(h => map.put(h.key(), h.value()))
+      map
+    } else null
+    //lazy decoder只引用value的字节,不引用整个ConsumerRecord
+    val decoder: () => T = deserializer match {
+      case schema: KafkaValueDeserializationSchema[T@unchecked] =>
+        val value = record.value()
+        () => schema.deserializeValue(value)
+      case _ => null
+    }
+    val kafkaRecord = if (fields.metadata) {
+      new KafkaRecord[T](record.topic(), record.partition(), record.timestamp(), record.offset(), key, headers, decoder)
+    } else {
+      new KafkaRecord[T](null, -1L, -1L, -1L, key, headers, decoder)
+    }
+    if (decoder == null) {
+      kafkaRecord.decodedValue = deserializer.deserialize(record)
+    }
+    kafkaRecord
   }
 
-  override def getProducedType: TypeInformation[KafkaRecord[T]] = getForClass(classOf[KafkaRecord[T]])
+  override def getProducedType: TypeInformation[KafkaRecord[T]] = new KafkaRecordTypeInfo[T](deserializer.getProducedType)
 
   override def isEndOfStream(nextElement: KafkaRecord[T]): Boolean = false
 
 }
 
-class KafkaStringDeserializationSchema extends KafkaDeserializationSchema[String] {
+/**
+ * FLIP-27 KafkaSource使用的反序列化器
+ */
+class KafkaSplitDeserializer[T](deserializer: KafkaDeserializer[T]) extends KafkaRecordDeserializer[KafkaRecord[T]] {
+
+  override def deserialize(record: ConsumerRecord[Array[Byte], Array[Byte]], collector: Collector[KafkaRecord[T]]): Unit = {
+    collector.collect(deserializer.deserialize(record))
+  }
+
+  override def getProducedType: TypeInformation[KafkaRecord[T]] = deserializer.getProducedType
+
+}
+
+/**
+ * 只依赖value字节的反序列化器,KafkaDeserializer只保留value的字节,第一次访问KafkaRecord.value时才反序列化
+ */
+abstract class KafkaValueDeserializationSchema[T] extends KafkaDeserializationSchema[T] {
+
+  def deserializeValue(value: Array[Byte]): T
+
+  override def deserialize(record: ConsumerRecord[Array[Byte], Array[Byte]]): T = deserializeValue(record.value())
+
+}
+
+class KafkaStringDeserializationSchema extends KafkaValueDeserializationSchema[String] {
   override def isEndOfStream(nextElement: String): Boolean = false
 
-  override def deserialize(record: ConsumerRecord[Array[Byte], Array[Byte]]): String = new String(record.value())
+  override def deserializeValue(value: Array[Byte]): String = {
+    if (value == null) null else new String(value, StandardCharsets.UTF_8)
+  }
+
+  override def getProducedType: TypeInformation[String] = BasicTypeInfo.STRING_TYPE_INFO
+}
+
+class KafkaRecordTypeInfo[T](val valueType: TypeInformation[T]) extends TypeInformation[KafkaRecord[T]] {
+
+  override def isBasicType: Boolean = false
+
+  override def isTupleType: Boolean = false
+
+  override def getArity: Int = 1
+
+  override def getTotalFields: Int = 1
+
+  override def getTypeClass: Class[KafkaRecord[T]] = classOf[KafkaRecord[T]]
+
+  override def isKeyType: Boolean = false
+
+  override def createSerializer(config: ExecutionConfig): TypeSerializer[KafkaRecord[T]] = new KafkaRecordSerializer[T](valueType.createSerializer(config))
+
+  override def toString: String = s"KafkaRecord<$valueType>"
+
+  override def equals(obj: Any): Boolean = obj match {
+    case other: KafkaRecordTypeInfo[_] => other.canEqual(this) && valueType == other.valueType
+    case _ => false
+  }
+
+  override def hashCode(): Int = 31 * classOf[KafkaRecordTypeInfo[_]].hashCode() + valueType.hashCode()
+
+  override def canEqual(obj: Any): Boolean = obj.isInstanceOf[KafkaRecordTypeInfo[_]]
+
+}
+
+/**
+ * flags(metadata,key,headers是否存在),metadata,key的原始字节,headers,value(由value的序列化器写入)
+ */
+class KafkaRecordSerializer[T](val valueSerializer: TypeSerializer[T]) extends TypeSerializer[KafkaRecord[T]] {
+
+  private[this] val METADATA = 1
+  private[this] val KEY = 2
+  private[this] val HEADERS = 4
+  private[this] val VALUE = 8
+
+  override def isImmutableType: Boolean = false
+
+  override def duplicate(): TypeSerializer[KafkaRecord[T]] = {
+    val duplicated = valueSerializer.duplicate()
+    if (duplicated eq valueSerializer) this else new KafkaRecordSerializer[T](duplicated)
+  }
+
+  override def createInstance(): KafkaRecord[T] = new KafkaRecord[T](null, -1L, -1L, -1L, null, null.asInstanceOf[T])
+
+  override def copy(from: KafkaRecord[T]): KafkaRecord[T] = from.copy(v => if (v == null) v else valueSerializer.copy(v))
+
+  override def copy(from: KafkaRecord[T], reuse: KafkaRecord[T]): KafkaRecord[T] = copy(from)
+
+  override def getLength: Int = -1
+
+  override def serialize(record: KafkaRecord[T], target: DataOutputView): Unit = {
+    val value = record.value
+    val flags = (if (record.topic != null) METADATA else 0) |
+      (if (record.keyBytes != null) KEY else 0) |
+      (if (record.headers != null) HEADERS else 0) |
+      (if (value != null) VALUE else 0)
+    target.writeByte(flags)
+    if (record.topic != null) {
+      StringValue.writeString(record.topic, target)
+      target.writeLong(record.partition)
+      target.writeLong(record.timestamp)
+      target.writeLong(record.offset)
+    }
+    if (record.keyBytes != null) {
+      writeBytes(record.keyBytes, target)
+    }
+    if (record.headers != null) {
+      target.writeInt(record.headers.size())
+      record.headers.foreach { case (k, v) =>
+        StringValue.writeString(k, target)
+        writeBytes(v, target)
+      }
+    }
+    if (value != null) {
+      valueSerializer.serialize(value, target)
+    }
+  }
+
+  override def deserialize(source: DataInputView): KafkaRecord[T] = {
+    val flags = source.readByte()
+    val (topic, partition, timestamp, offset) = if ((flags & METADATA) != 0) {
+      (StringValue.readString(source), source.readLong(), source.readLong(), source.readLong())
+    } else (null, -1L, -1L, -1L)
+    val key = if ((flags & KEY) != 0) readBytes(source) else null
+    val headers = if ((flags & HEADERS) != 0) {
+      val size = source.readInt()
+      val map = new java.util.HashMap[String, Array[Byte]](size)
+      (0 until size).foreach(_ => map.put(StringValue.readString(source), readBytes(source)))
+      map
+    } else null
+    val record = new KafkaRecord[T](topic, partition, timestamp, offset, key, headers, null)
+    if ((flags & VALUE) != 0) {
+      record.decodedValue = valueSerializer.deserialize(source)
+    }
+    record
+  }
+
+  override def deserialize(reuse: KafkaRecord[T], source: DataInputView): KafkaRecord[T] = deserialize(source)
+
+  override def copy(source: DataInputView, target: DataOutputView): Unit = serialize(deserialize(source), target)
+
+  private[this] def writeBytes(bytes: Array[Byte], target: DataOutputView): Unit = {
+    if (bytes == null) target.writeInt(-1) else {
+      target.writeInt(bytes.length)
+      target.write(bytes)
+    }
+  }
+
+  private[this] def readBytes(source: DataInputView): Array[Byte] = {
+    source.readInt() match {
+      case -1 => null
+      case length =>
+        val bytes = new Array[Byte](length)
+        source.readFully(bytes)
+        bytes
+    }
+  }
+
+  override def equals(obj: Any): Boolean = obj match {
+    case other: KafkaRecordSerializer[_] => valueSerializer == other.valueSerializer
+    case _ => false
+  }
+
+  override def hashCode(): Int = valueSerializer.hashCode()
+
+  override def snapshotConfiguration(): TypeSerializerSnapshot[KafkaRecord[T]] = new KafkaRecordSerializerSnapshot[T](this)
+
+}
+
+class KafkaRecordSerializerSnapshot[T] extends TypeSerializerSnapshot[KafkaRecord[T]] {
+
+  private[this] var nested: NestedSerializersSnapshotDelegate = _
+
+  def this(serializer: KafkaRecordSerializer[T]) = {
+    this()
+    this.nested = new NestedSerializersSnapshotDelegate(serializer.valueSerializer)
+  }
+
+  override def getCurrentVersion: Int = 1
+
+  override def writeSnapshot(out: DataOutputView): Unit = nested.writeNestedSerializerSnapshots(out)
+
+  override def readSnapshot(readVersion: Int, in: DataInputView, userCodeClassLoader: ClassLoader): Unit = {
+    nested = NestedSerializersSnapshotDelegate.readNestedSerializerSnapshots(in, userCodeClassLoader)
+  }
+
+  override def restoreSerializer(): TypeSerializer[KafkaRecord[T]] = new KafkaRecordSerializer[T](nested.getRestoredNestedSerializer[T](0))
+
+  override def resolveSchemaCompatibility(newSerializer: TypeSerializer[KafkaRecord[T]]): TypeSerializerSchemaCompatibility[KafkaRecord[T]] = {
+    newSerializer match {
+      case serializer: KafkaRecordSerializer[_] =>
+        val snapshot = nested.getNestedSerializerSnapshots()(0).asInstanceOf[TypeSerializerSnapshot[T]]
+        val compatibility = snapshot.resolveSchemaCompatibility(serializer.asInstanceOf[KafkaRecordSerializer[T]].valueSerializer)
+        if (compatibility.isCompatibleAsIs) {
+          TypeSerializerSchemaCompatibility.compatibleAsIs()
+        } else if (compatibility.isCompatibleAfterMigration) {
+          TypeSerializerSchemaCompatibility.compatibleAfterMigration()
+        } else if (compatibility.isCompatibleWithReconfiguredSerializer) {
+          TypeSerializerSchemaCompatibility.compatibleWithReconfiguredSerializer(new KafkaRecordSerializer[T](compatibility.getReconfiguredSerializer))
+        } else {
+          TypeSerializerSchemaCompatibility.incompatible()
+        }
+      case _ => TypeSerializerSchemaCompatibility.incompatible()
+    }
+  }
 
-  override def getProducedType: TypeInformation[String] = getForClass(classOf[String])
 }
 
 
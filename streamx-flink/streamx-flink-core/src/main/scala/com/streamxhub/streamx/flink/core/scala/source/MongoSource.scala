@@ -21,26 +21,34 @@
 package com.streamxhub.streamx.flink.core.scala.source
 
 import com.mongodb.MongoClient
-import com.mongodb.client.{FindIterable, MongoCollection, MongoCursor}
+import com.mongodb.client.model.changestream.FullDocument
+import com.mongodb.client.model.{Aggregates, Filters, Projections, Sorts}
+import com.mongodb.client.{FindIterable, MongoCollection, MongoCursor, MongoDatabase}
 import com.streamxhub.streamx.common.enums.ApiType
 import com.streamxhub.streamx.common.util.{Logger, MongoConfig, Utils}
-import com.streamxhub.streamx.flink.core.java.function.{MongoQueryFunction, MongoResultFunction}
+import com.streamxhub.streamx.flink.core.java.function.{MongoDocumentFunction, MongoQueryFunction, MongoResultFunction}
 import com.streamxhub.streamx.flink.core.scala.StreamingContext
 import ApiType.ApiType
 import com.streamxhub.streamx.flink.common.util.FlinkUtils
-import org.apache.flink.api.common.state.ListState
+import org.apache.flink.api.common.state.{ListState, ListStateDescriptor}
 import org.apache.flink.api.common.typeinfo.TypeInformation
 import org.apache.flink.configuration.Configuration
 import org.apache.flink.runtime.state.{CheckpointListener, FunctionInitializationContext, FunctionSnapshotContext}
 import org.apache.flink.streaming.api.checkpoint.CheckpointedFunction
-import org.apache.flink.streaming.api.functions.source.RichSourceFunction
+import org.apache.flink.streaming.api.functions.source.{RichParallelSourceFunction, RichSourceFunction}
 import org.apache.flink.streaming.api.functions.source.SourceFunction.SourceContext
 import org.apache.flink.streaming.api.scala.DataStream
-import org.bson.Document
+import org.bson.codecs.DecoderContext
+import org.bson.conversions.Bson
+import org.bson.json.{JsonMode, JsonWriterSettings}
+import org.bson.types.ObjectId
+import org.bson.{BsonDocument, BsonDocumentReader, BsonTimestamp, BsonType, Document}
 
 import java.util.Properties
+import java.util.concurrent.TimeUnit
 import scala.annotation.meta.param
 import scala.collection.JavaConversions._
+import scala.collection.mutable.ListBuffer
 import scala.util.{Success, Try}
 
 
@@ -48,6 +56,11 @@ object MongoSource {
 
   def apply(@(transient@param) property: Properties = new Properties())(implicit ctx: StreamingContext): MongoSource = new MongoSource(ctx, property)
 
+  /**
+   * 并行读取时快照阶段的operation
+   */
+  val OPERATION_READ = "read"
+
 }
 
 class MongoSource(@(transient@param) val ctx: StreamingContext, property: Properties = new Properties()) {
@@ -68,6 +81,27 @@ class MongoSource(@(transient@param) val ctx: StreamingContext, property: Proper
     ctx.addSource(mongoFun)
   }
 
+  /**
+   * 并行读取: 快照阶段_id为ObjectId的文档按ObjectId里的时间分桶,各个subtask轮流读取分到的桶,_id为其他类型的文档由单独一个split读取,
+   * 切分只依赖_id本身,客户端和subtask都不需要采样,checkpoint里记录每个split读取到的桶和_id;
+   * 快照完成后subtask 0从不晚于快照开始的operationTime读取change stream,checkpoint里记录resume token,不再重复查询.
+   * 快照和change stream可能有重叠(at-least-once),下游需要按_id幂等处理.
+   * change stream需要副本集或分片集群,mongodb.source.change-stream=false时只读取快照,读完后source结束.
+   *
+   * @param collection  集合名
+   * @param parallelism source的并行度
+   * @param filter      快照阶段的查询条件,不作用于change stream
+   * @param func        (operation, document) => R, 快照阶段operation为read,change stream阶段为insert,update,replace,delete(document为documentKey)
+   * @param prop
+   * @tparam R
+   * @return
+   */
+  def getParallelDataStream[R: TypeInformation](collection: String, parallelism: Int, filter: Document = null)(func: (String, Document) => R)(implicit prop: Properties = new Properties()): DataStream[R] = {
+    Utils.copyProperties(property, prop)
+    val sourceFun = new MongoParallelSourceFunction[R](prop, collection, parallelism, filter, func)
+    ctx.addSource(sourceFun).setParallelism(parallelism)
+  }
+
 }
 
 
@@ -164,3 +198,361 @@ private[this] class MongoSourceFunction[R: TypeInformation](apiType: ApiType, pr
   }
 
 }
+
+class MongoParallelSourceFunction[R: TypeInformation](prop: Properties,
+                                                     collection: String,
+                                                     parallelism: Int,
+                                                     filter: Document,
+                                                     resultFunc: (String, Document) => R) extends RichParallelSourceFunction[R] with CheckpointedFunction with Logger {
+
+  @volatile private[this] var running = true
+
+  private[this] val batchSize = Try(MongoConfig.getProperty(prop, MongoConfig.source_batch_size).toInt).getOrElse(1000)
+  private[this] val changeStream = Try(MongoConfig.getProperty(prop, MongoConfig.source_change_stream).toBoolean).getOrElse(true)
+  private[this] val awaitTime = Try(MongoConfig.getProperty(prop, MongoConfig.source_await_time).toLong).getOrElse(1000L)
+  private[this] val numSplits = Try(MongoConfig.getProperty(prop, MongoConfig.source_splits).toInt).getOrElse(parallelism)
+  private[this] val splitInterval = Try(MongoConfig.getProperty(prop, MongoConfig.source_split_interval).toLong).getOrElse(60L)
+
+  //构建作业的时间,change stream最晚从这里开始,早于所有subtask开始读取快照的时间,不需要在客户端访问mongodb.
+  private[this] val startTime = System.currentTimeMillis()
+
+  @transient private[this] var client: MongoClient = _
+  @transient private[this] var mongoCollection: MongoCollection[Document] = _
+  @transient private[this] var splitState: ListState[MongoSplit] = _
+  @transient private[this] var offsetState: ListState[MongoStreamOffset] = _
+  @transient private[this] var allSplits: List[MongoSplit] = _
+  @transient private[this] var splits: List[MongoSplit] = _
+  @transient private[this] var offset: MongoStreamOffset = _
+  private val SPLITS_STATE_NAME: String = "mongo-source-split-states"
+  private val OFFSET_STATE_NAME: String = "mongo-source-stream-states"
+
+  //for JAVA
+  def this(prop: Properties, collection: String, parallelism: Int, filter: Document, resultFunc: MongoDocumentFunction[R]) {
+    this(prop, collection, parallelism, filter, (operation: String, document: Document) => resultFunc.result(operation, document))
+  }
+
+  override def initializeState(context: FunctionInitializationContext): Unit = {
+    splitState = context.getOperatorStateStore.getUnionListState(new ListStateDescriptor[MongoSplit](SPLITS_STATE_NAME, classOf[MongoSplit]))
+    offsetState = context.getOperatorStateStore.getUnionListState(new ListStateDescriptor[MongoStreamOffset](OFFSET_STATE_NAME, classOf[MongoStreamOffset]))
+    //split只依赖_id本身,不用查询mongodb,每个subtask各自生成的都一样,恢复时以状态里的为准.
+    allSplits = if (context.isRestored) splitState.get().toList.sortBy(_.id) else Nil
+    if (allSplits.isEmpty) allSplits = MongoSplit.create(numSplits)
+    offset = if (context.isRestored) Try(offsetState.get().head).getOrElse(MongoStreamOffset(null, 0L)) else MongoStreamOffset(null, 0L)
+    logInfo(s"MongoParallelSource initializeState, splits: ${allSplits.mkString(",")}, offset: $offset")
+  }
+
+  override def open(parameters: Configuration): Unit = {
+    val index = getRuntimeContext.getIndexOfThisSubtask
+    val subtasks = getRuntimeContext.getNumberOfParallelSubtasks
+    splits = allSplits.filter(_.id % subtasks == index)
+    client = MongoConfig.getClient(prop)
+    val database = client.getDatabase(MongoConfig.getProperty(prop, MongoConfig.database))
+    mongoCollection = database.getCollection(collection)
+    if (changeStream && index == 0 && offset.resumeAfter.isEmpty && offset.operationTime == 0) {
+      offset.operationTime = MongoSplit.operationTime(database, startTime)
+    }
+    logInfo(s"MongoParallelSource open, subtask: $index, splits: ${splits.mkString(",")}, offset: $offset")
+  }
+
+  @throws[Exception]
+  override def run(ctx: SourceContext[R]): Unit = {
+    splits.filterNot(_.finished).foreach(split => if (running) read(split, ctx))
+    if (changeStream) {
+      if (getRuntimeContext.getIndexOfThisSubtask == 0) {
+        tail(ctx)
+      } else {
+        //保持运行,flink 1.12里已经结束的task会导致无法checkpoint
+        ctx.markAsTemporarilyIdle()
+        while (running) {
+          Thread.sleep(awaitTime)
+        }
+      }
+    }
+  }
+
+  /**
+   * 按_id升序分批读取split,每批从上次读取到的_id之后开始,不会长时间占用一个cursor.
+   * ObjectId的split每次读取一个桶,桶读完后跳到下一个属于这个split的桶.
+   */
+  private[this] def read(split: MongoSplit, ctx: SourceContext[R]): Unit = {
+    while (running && !split.finished) {
+      if (split.objectId && split.bucket < 0) {
+        seek(split, 0L, ctx)
+      } else {
+        val cursor = mongoCollection.find(split.query(filter, splitInterval))
+          .sort(Sorts.ascending(MongoSplit.ID))
+          .limit(batchSize)
+          .batchSize(batchSize)
+          .iterator()
+        var rows = 0
+        try {
+          while (running && cursor.hasNext) {
+            val document = cursor.next()
+            val record = resultFunc(MongoSource.OPERATION_READ, document)
+            ctx.getCheckpointLock.synchronized {
+              ctx.collect(record)
+              split.lastValue = document.get(MongoSplit.ID)
+            }
+            rows += 1
+          }
+        } finally {
+          cursor.close()
+        }
+        if (running && rows < batchSize) {
+          if (split.objectId) {
+            seek(split, (split.bucket + 1) * splitInterval, ctx)
+          } else {
+            ctx.getCheckpointLock.synchronized {
+              split.finished = true
+            }
+          }
+          if (split.finished) {
+            logInfo(s"MongoParallelSource split finished: $split")
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * 找到from秒之后的第一个ObjectId(只走_id索引,不带查询条件),定位到它之后第一个属于split的桶,没有了split就读取完成.
+   */
+  private[this] def seek(split: MongoSplit, from: Long, ctx: SourceContext[R]): Unit = {
+    val first = if (from > MongoSplit.MAX_SECONDS) null else {
+      mongoCollection.find(Filters.gte(MongoSplit.ID, MongoSplit.objectId(from)))
+        .projection(Projections.include(MongoSplit.ID))
+        .sort(Sorts.ascending(MongoSplit.ID))
+        .limit(1)
+        .first()
+    }
+    ctx.getCheckpointLock.synchronized {
+      split.seek(if (first == null) null else first.getObjectId(MongoSplit.ID), splitInterval)
+    }
+  }
+
+  private[this] def tail(ctx: SourceContext[R]): Unit = {
+    val pipeline = java.util.Collections.singletonList[Bson](Aggregates.`match`(Filters.in("operationType", "insert", "update", "replace", "delete")))
+    val watch = mongoCollection.watch(pipeline)
+      .fullDocument(FullDocument.UPDATE_LOOKUP)
+      .maxAwaitTime(awaitTime, TimeUnit.MILLISECONDS)
+      .batchSize(batchSize)
+    offset.resumeAfter match {
+      case Some(token) => watch.resumeAfter(token)
+      case _ if offset.operationTime > 0 => watch.startAtOperationTime(new BsonTimestamp(offset.operationTime))
+      case _ =>
+    }
+    logInfo(s"MongoParallelSource start change stream, offset: $offset")
+    val cursor = watch.cursor()
+    try {
+      while (running) {
+        val change = cursor.tryNext()
+        if (change != null) {
+          val document = change.getFullDocument match {
+            case null => MongoStreamOffset.toDocument(change.getDocumentKey)
+            case x => x
+          }
+          val record = resultFunc(change.getOperationType.getValue, document)
+          ctx.getCheckpointLock.synchronized {
+            ctx.collect(record)
+            offset.token = change.getResumeToken
+          }
+        } else {
+          //没有数据时也推进resume token,恢复时不用从很早的oplog开始
+          val token = cursor.getResumeToken
+          if (token != null) {
+            ctx.getCheckpointLock.synchronized {
+              offset.token = token
+            }
+          }
+        }
+      }
+    } finally {
+      cursor.close()
+    }
+  }
+
+  override def cancel(): Unit = this.running = false
+
+  override def close(): Unit = {
+    super.close()
+    if (client != null) {
+      client.close()
+    }
+  }
+
+  override def snapshotState(context: FunctionSnapshotContext): Unit = {
+    splitState.clear()
+    splits.foreach(x => splitState.add(x.snapshot()))
+    offsetState.clear()
+    if (getRuntimeContext.getIndexOfThisSubtask == 0) {
+      offsetState.add(offset.snapshot())
+    }
+  }
+
+}
+
+/**
+ * 快照阶段的split,只由_id本身决定,不需要采样,各个subtask生成的split一致且互不重叠:
+ * id < count的split读取_id为ObjectId的文档,按ObjectId里的秒数分桶(每桶splitInterval秒),读取桶号 % count == id的桶,
+ * 桶是_id上的范围查询,只走_id索引;id == count的split读取_id不是ObjectId的文档.
+ * mongodb里$gt/$lt只匹配相同BSON类型的值,所以不同类型的_id不会跨split,非ObjectId的split续读时按BSON类型的顺序把后面的类型也带上.
+ * bucket是正在读取的桶(-1表示还没有定位),lastId是当前桶里读取到的_id(extended json),finished表示split已经读取完成.
+ */
+case class MongoSplit(id: Int, count: Int, var bucket: Long, var lastId: String, var finished: Boolean) {
+
+  //读取时只记录_id的值,checkpoint时才转成json
+  @transient private[source] var lastValue: AnyRef = _
+
+  def objectId: Boolean = id < count
+
+  def snapshot(): MongoSplit = {
+    MongoSplit(id, count, bucket, if (lastValue == null) lastId else MongoSplit.toJson(lastValue), finished)
+  }
+
+  private[this] def last: AnyRef = (lastValue, lastId) match {
+    case (null, null) => null
+    case (null, x) => MongoSplit.fromJson(x)
+    case (x, _) => x
+  }
+
+  def query(filter: Document, interval: Long): Bson = {
+    val conditions = ListBuffer[Bson]()
+    if (filter != null) {
+      conditions += filter
+    }
+    if (objectId) {
+      conditions += (last match {
+        case null => Filters.gte(MongoSplit.ID, MongoSplit.objectId(bucket * interval))
+        case x => Filters.gt(MongoSplit.ID, x)
+      })
+      val upper = (bucket + 1) * interval
+      if (upper <= MongoSplit.MAX_SECONDS) {
+        conditions += Filters.lt(MongoSplit.ID, MongoSplit.objectId(upper))
+      }
+    } else {
+      conditions += Filters.not(Filters.`type`(MongoSplit.ID, BsonType.OBJECT_ID))
+      last match {
+        case null =>
+        case x => conditions += MongoSplit.after(x)
+      }
+    }
+    Filters.and(conditions: _*)
+  }
+
+  /**
+   * 定位到first所在的桶之后(含)第一个属于这个split的桶,first为null时split读取完成.
+   */
+  def seek(first: ObjectId, interval: Long): Unit = {
+    lastValue = null
+    lastId = null
+    first match {
+      case null => finished = true
+      case x =>
+        val current = (x.getTimestamp & 0xFFFFFFFFL) / interval
+        bucket = current + Math.floorMod(id - current, count.toLong)
+    }
+  }
+
+  override def toString: String = s"MongoSplit(id:$id,count:$count,bucket:$bucket,lastId:$lastId,finished:$finished)"
+
+}
+
+object MongoSplit extends Logger {
+
+  val ID = "_id"
+
+  /**
+   * ObjectId里的秒数是无符号的4个字节
+   */
+  val MAX_SECONDS = 0xFFFFFFFFL
+
+  /**
+   * mongodb比较不同类型时的顺序,同一组里的类型按值比较
+   */
+  private[this] val TYPE_ORDER = List(
+    List(BsonType.MIN_KEY) -> List("minKey"),
+    List(BsonType.NULL, BsonType.UNDEFINED) -> List("null", "undefined"),
+    List(BsonType.INT32, BsonType.INT64, BsonType.DOUBLE, BsonType.DECIMAL128) -> List("int", "long", "double", "decimal"),
+    List(BsonType.SYMBOL, BsonType.STRING) -> List("symbol", "string"),
+    List(BsonType.DOCUMENT) -> List("object"),
+    List(BsonType.ARRAY) -> List("array"),
+    List(BsonType.BINARY) -> List("binData"),
+    List(BsonType.OBJECT_ID) -> List("objectId"),
+    List(BsonType.BOOLEAN) -> List("bool"),
+    List(BsonType.DATE_TIME) -> List("date"),
+    List(BsonType.TIMESTAMP) -> List("timestamp"),
+    List(BsonType.REGULAR_EXPRESSION) -> List("regex"),
+    List(BsonType.MAX_KEY) -> List("maxKey")
+  )
+
+  private[this] val jsonSettings = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build()
+
+  def toJson(value: AnyRef): String = new Document(ID, value).toJson(jsonSettings)
+
+  def fromJson(json: String): AnyRef = Document.parse(json).get(ID)
+
+  /**
+   * 秒数对应的最小的ObjectId
+   */
+  def objectId(seconds: Long): ObjectId = new ObjectId(f"$seconds%08x0000000000000000")
+
+  def create(numSplits: Int): List[MongoSplit] = {
+    val count = math.max(numSplits, 1)
+    (0 to count).map(MongoSplit(_, count, -1L, null, finished = false)).toList
+  }
+
+  /**
+   * 排在value之后的_id: 相同类型里更大的值,加上BSON顺序里排在后面的类型.
+   */
+  def after(value: AnyRef): Bson = {
+    val bsonType = new Document(ID, value).toBsonDocument(classOf[BsonDocument], MongoClient.getDefaultCodecRegistry).get(ID).getBsonType
+    TYPE_ORDER.indexWhere(_._1.contains(bsonType)) match {
+      case -1 => Filters.gt(ID, value)
+      case i =>
+        val types = TYPE_ORDER.drop(i + 1).flatMap(_._2)
+        if (types.isEmpty) Filters.gt(ID, value) else {
+          Filters.or(Filters.gt(ID, value), new Document(ID, new Document("$type", seqAsJavaList(types))))
+        }
+    }
+  }
+
+  /**
+   * change stream开始的operationTime: 集群当前的operationTime和构建作业时间里较早的一个,
+   * 保证不晚于任何一个subtask开始读取快照的时间,重叠的部分是at-least-once.
+   */
+  def operationTime(database: MongoDatabase, startTime: Long): Long = {
+    database.runCommand(new Document("isMaster", 1)).get("operationTime") match {
+      case x: BsonTimestamp => math.min(x.getValue, new BsonTimestamp((startTime / 1000).toInt, 0).getValue)
+      case _ =>
+        logWarn("MongoParallelSource can not get operationTime, the change stream starts when it's opened")
+        0L
+    }
+  }
+
+}
+
+
+/**
+ * change stream读取到的位置: resumeToken(json)不为null时从resumeToken之后继续,否则从operationTime开始.
+ */
+case class MongoStreamOffset(var resumeToken: String, var operationTime: Long) {
+
+  @transient private[source] var token: BsonDocument = _
+
+  def resumeAfter: Option[BsonDocument] = (token, resumeToken) match {
+    case (null, null) => None
+    case (null, x) => Some(BsonDocument.parse(x))
+    case (x, _) => Some(x)
+  }
+
+  def snapshot(): MongoStreamOffset = MongoStreamOffset(if (token == null) resumeToken else token.toJson, operationTime)
+
+}
+
+object MongoStreamOffset {
+
+  private[this] lazy val codec = MongoClient.getDefaultCodecRegistry.get(classOf[Document])
+
+  def toDocument(bson: BsonDocument): Document = codec.decode(new BsonDocumentReader(bson), DecoderContext.builder().build())
+
+}
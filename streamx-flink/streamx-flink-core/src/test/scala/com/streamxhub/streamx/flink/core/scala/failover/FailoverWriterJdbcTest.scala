@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.failover
+
+import com.streamxhub.streamx.common.conf.ConfigConst._
+import org.junit.Assert._
+import org.junit.{After, Before, Test}
+
+import java.io.IOException
+import java.sql.{Connection, DriverManager}
+import java.util.Properties
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, TimeUnit}
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * the batched prepared inserts of the MySQL failover storage, on H2 in MySQL mode.
+ */
+class FailoverWriterJdbcTest {
+
+  private[this] val url = s"jdbc:h2:mem:failover${System.nanoTime()};MODE=MySQL;DB_CLOSE_DELAY=-1"
+  private[this] var keepAlive: Connection = _
+  private[this] var writer: FailoverWriter = _
+
+  @Before def setUp(): Unit = {
+    keepAlive = DriverManager.getConnection(url, "sa", "")
+    val prop = new Properties()
+    prop.put(KEY_JDBC_DRIVER, "org.h2.Driver")
+    prop.put(KEY_JDBC_URL, url)
+    prop.put(KEY_JDBC_USER, "sa")
+    prop.put(KEY_JDBC_PASSWORD, "")
+    prop.put(KEY_FAILOVER_JDBC_BATCH_SIZE, "100")
+    prop.put(KEY_FAILOVER_QUEUE_CAPACITY, "1")
+    writer = new FailoverWriter(FailoverStorageType.MySQL, prop)
+  }
+
+  @After def tearDown(): Unit = {
+    writer.close()
+    keepAlive.close()
+  }
+
+  private[this] def rows(table: String): List[(String, Long)] = {
+    val statement = keepAlive.createStatement()
+    try {
+      val result = statement.executeQuery(s"select `values`, `timestamp` from $table order by `values`")
+      val rows = ArrayBuffer[(String, Long)]()
+      while (result.next()) rows += result.getString(1) -> result.getLong(2)
+      rows.toList
+    } finally {
+      statement.close()
+    }
+  }
+
+  private[this] def request(table: String, records: Seq[String]): SinkRequest = {
+    val list = new java.util.ArrayList[String]()
+    records.foreach(list.add)
+    SinkRequest(list, s"test.$table")
+  }
+
+  @Test def batchedInsert(): Unit = {
+    val records = (1 to 250).map(i => f"($i%04d,'it''s \"quoted\"')")
+    writer.write(request("orders", records))
+    val saved = rows("orders")
+    assertEquals(records.toList, saved.map(_._1))
+    //one timestamp for the whole request
+    assertEquals(1, saved.map(_._2).distinct.size)
+
+    //the table is created once, later requests are appended
+    writer.write(request("orders", Seq("(9999,'last')")))
+    assertEquals(251, rows("orders").size)
+  }
+
+  @Test def rollbackFailedBatch(): Unit = {
+    val statement = keepAlive.createStatement()
+    try statement.execute("create table limited (`values` varchar(8), `timestamp` bigint)") finally statement.close()
+    //the second batch of 100 has a record too long for the column
+    val records = (1 to 150).map(i => if (i == 150) "(too long record)" else f"($i%04d)")
+    try {
+      writer.write(request("limited", records))
+      fail("the batch must fail")
+    } catch {
+      case _: Exception =>
+    }
+    assertTrue(rows("limited").isEmpty)
+  }
+
+  @Test def writeAsyncCallsBack(): Unit = {
+    val latch = new CountDownLatch(1)
+    @volatile var error: Throwable = new IllegalStateException("not called")
+    writer.writeAsync(request("async_orders", Seq("(1)", "(2)"))) { e =>
+      error = e
+      latch.countDown()
+    }
+    assertTrue(latch.await(10, TimeUnit.SECONDS))
+    assertNull(error)
+    assertEquals(List("(1)", "(2)"), rows("async_orders").map(_._1))
+  }
+
+  @Test def writeAsyncOffTheCallerThread(): Unit = {
+    val errors = new ConcurrentLinkedQueue[Throwable]()
+    val threads = new ConcurrentLinkedQueue[Thread]()
+    val latch = new CountDownLatch(2)
+    @volatile var rejected: Throwable = null
+    //write() holds the writer's monitor, so the failover thread blocks on the first request
+    writer.synchronized {
+      (1 to 2).foreach(i => writer.writeAsync(request("queued_orders", Seq(s"($i)"))) { e =>
+        if (e != null) errors.add(e)
+        threads.add(Thread.currentThread())
+        latch.countDown()
+      })
+      //one request in the queue(queueCapacity = 1), the next one fails right away on the caller thread
+      writer.writeAsync(request("queued_orders", Seq("(3)"))) { e => rejected = e }
+      assertTrue(rejected.isInstanceOf[IOException])
+      assertEquals(2, latch.getCount)
+    }
+    assertTrue(latch.await(10, TimeUnit.SECONDS))
+    assertTrue(errors.isEmpty)
+    assertFalse(threads.contains(Thread.currentThread()))
+    assertEquals(List("(1)", "(2)"), rows("queued_orders").map(_._1))
+  }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.failover
+
+import com.streamxhub.streamx.common.conf.ConfigConst._
+import kafka.server.{KafkaConfig, KafkaServer}
+import org.apache.curator.test.TestingServer
+import org.apache.kafka.clients.consumer.KafkaConsumer
+import org.apache.kafka.common.network.ListenerName
+import org.apache.kafka.common.serialization.StringDeserializer
+import org.junit.Assert._
+import org.junit.rules.TemporaryFolder
+import org.junit.{After, Before, Rule, Test}
+
+import java.io.IOException
+import java.time.Duration
+import java.util.Properties
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, TimeUnit}
+import scala.annotation.meta.getter
+import scala.collection.JavaConversions._
+
+/**
+ * the in-flight window of the Kafka failover storage, on an embedded broker.
+ */
+class FailoverWriterKafkaTest {
+
+  @(Rule@getter)
+  val folder = new TemporaryFolder()
+
+  private[this] val topic = "failover"
+  private[this] var zookeeper: TestingServer = _
+  private[this] var broker: KafkaServer = _
+  private[this] var bootstrap: String = _
+
+  @Before def startBroker(): Unit = {
+    zookeeper = new TestingServer(true)
+    val prop = new Properties()
+    prop.put("zookeeper.connect", zookeeper.getConnectString)
+    prop.put("broker.id", "0")
+    prop.put("listeners", "PLAINTEXT://localhost:0")
+    prop.put("log.dirs", folder.newFolder("kafka").getAbsolutePath)
+    prop.put("offsets.topic.replication.factor", "1")
+    prop.put("auto.create.topics.enable", "true")
+    broker = new KafkaServer(KafkaConfig.fromProps(prop))
+    broker.startup()
+    bootstrap = s"localhost:${broker.boundPort(ListenerName.normalised("PLAINTEXT"))}"
+  }
+
+  @After def stopBroker(): Unit = {
+    if (broker != null) {
+      broker.shutdown()
+      broker.awaitShutdown()
+    }
+    zookeeper.close()
+  }
+
+  private[this] def writer(maxInFlight: Int, inFlightTimeout: Long): FailoverWriter = {
+    val prop = new Properties()
+    prop.put("bootstrap.servers", bootstrap)
+    prop.put(KEY_KAFKA_TOPIC, topic)
+    prop.put(KEY_FAILOVER_KAFKA_MAX_IN_FLIGHT, maxInFlight.toString)
+    prop.put(KEY_FAILOVER_KAFKA_IN_FLIGHT_TIMEOUT, inFlightTimeout.toString)
+    prop.put("request.timeout.ms", "1000")
+    prop.put("delivery.timeout.ms", "5000")
+    prop.put("linger.ms", "0")
+    new FailoverWriter(FailoverStorageType.Kafka, prop)
+  }
+
+  private[this] def request(i: Int): SinkRequest = {
+    val records = new java.util.ArrayList[String]()
+    records.add(s"($i,'a')")
+    SinkRequest(records, "test.orders")
+  }
+
+  private[this] def consume(count: Int): List[String] = {
+    val prop = new Properties()
+    prop.put("bootstrap.servers", bootstrap)
+    prop.put("group.id", "failover-test")
+    prop.put("auto.offset.reset", "earliest")
+    val consumer = new KafkaConsumer[String, String](prop, new StringDeserializer, new StringDeserializer)
+    try {
+      consumer.subscribe(java.util.Collections.singletonList(topic))
+      val values = new java.util.ArrayList[String]()
+      val deadline = System.currentTimeMillis() + 30000
+      while (values.size() < count && System.currentTimeMillis() < deadline) {
+        consumer.poll(Duration.ofMillis(200)).foreach(x => values.add(x.value()))
+      }
+      values.toList
+    } finally {
+      consumer.close()
+    }
+  }
+
+  @Test def sendWithinWindow(): Unit = {
+    val failover = writer(maxInFlight = 4, inFlightTimeout = 10000)
+    val errors = new ConcurrentLinkedQueue[Throwable]()
+    val latch = new CountDownLatch(50)
+    try {
+      (1 to 50).foreach(i => failover.writeAsync(request(i)) { e =>
+        if (e != null) errors.add(e)
+        latch.countDown()
+      })
+      assertTrue(latch.await(30, TimeUnit.SECONDS))
+    } finally {
+      failover.close()
+    }
+    assertTrue(errors.mkString(","), errors.isEmpty)
+    val values = consume(50)
+    assertEquals(50, values.size)
+    (1 to 50).foreach(i => assertTrue(values.exists(_.contains(s"($i,'a')"))))
+  }
+
+  @Test def failFastWhenWindowIsFull(): Unit = {
+    val failover = writer(maxInFlight = 2, inFlightTimeout = 200)
+    try {
+      //warm up the metadata, then take the broker away so that the requests stay in flight
+      failover.write(request(0))
+      broker.shutdown()
+      broker.awaitShutdown()
+      broker = null
+
+      val inFlight = new CountDownLatch(2)
+      val inFlightErrors = new ConcurrentLinkedQueue[Throwable]()
+      (1 to 2).foreach(i => failover.writeAsync(request(i)) { e =>
+        if (e != null) inFlightErrors.add(e)
+        inFlight.countDown()
+      })
+
+      val start = System.currentTimeMillis()
+      @volatile var rejected: Throwable = null
+      @volatile var rejectedBy: Thread = null
+      val rejectedLatch = new CountDownLatch(1)
+      failover.writeAsync(request(3)) { e =>
+        rejected = e
+        rejectedBy = Thread.currentThread()
+        rejectedLatch.countDown()
+      }
+      //the caller does not wait for a permit
+      assertTrue(System.currentTimeMillis() - start < 100)
+      //called back on the failover thread after inFlightTimeout, not after the delivery timeout
+      assertTrue(rejectedLatch.await(5, TimeUnit.SECONDS))
+      assertTrue(rejected.isInstanceOf[IOException])
+      assertNotEquals(Thread.currentThread(), rejectedBy)
+      assertTrue(System.currentTimeMillis() - start < 1500)
+
+      //the in-flight requests fail after delivery.timeout.ms and give their permits back
+      assertTrue(inFlight.await(20, TimeUnit.SECONDS))
+      assertEquals(2, inFlightErrors.size())
+      @volatile var next: Throwable = null
+      val done = new CountDownLatch(1)
+      failover.writeAsync(request(4)) { e =>
+        next = e
+        done.countDown()
+      }
+      assertTrue(done.await(20, TimeUnit.SECONDS))
+      assertFalse(next.isInstanceOf[IOException] && next.getMessage.contains("in-flight"))
+    } finally {
+      failover.close()
+    }
+  }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.failover
+
+import com.streamxhub.streamx.common.conf.ConfigConst._
+import org.junit.Assert._
+import org.junit.rules.TemporaryFolder
+import org.junit.{Rule, Test}
+
+import java.io.{ByteArrayOutputStream, File, FileOutputStream}
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.Properties
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.zip.GZIPOutputStream
+import scala.annotation.meta.getter
+import scala.collection.JavaConversions._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * HdfsRollingWriter and FailoverReplay on the LocalFileSystem.
+ */
+class HdfsRollingWriterTest {
+
+  @(Rule@getter)
+  val folder = new TemporaryFolder()
+
+  private[this] def properties(codec: String, rollSize: Long = DEFAULT_FAILOVER_HDFS_ROLL_SIZE, rollInterval: Long = DEFAULT_FAILOVER_HDFS_ROLL_INTERVAL): Properties = {
+    val prop = new Properties()
+    prop.put(KEY_FAILOVER_HDFS_PATH, folder.getRoot.getAbsolutePath)
+    prop.put(KEY_FAILOVER_HDFS_CODEC, codec)
+    prop.put(KEY_FAILOVER_HDFS_ROLL_SIZE, rollSize.toString)
+    prop.put(KEY_FAILOVER_HDFS_ROLL_INTERVAL, rollInterval.toString)
+    prop.put(KEY_FAILOVER_HDFS_FLUSH_INTERVAL, "50")
+    prop
+  }
+
+  private[this] def write(writer: HdfsRollingWriter, table: String, records: List[String]): Unit = {
+    val latch = new CountDownLatch(1)
+    @volatile var error: Throwable = null
+    writer.write(table, new java.util.ArrayList[String](records)) { e =>
+      error = e
+      latch.countDown()
+    }
+    assertTrue(latch.await(10, TimeUnit.SECONDS))
+    assertNull(error)
+  }
+
+  private[this] def files(table: String): List[File] = {
+    val dir = new File(folder.getRoot, table)
+    if (!dir.exists()) Nil else Files.walk(dir.toPath).iterator().map(_.toFile).filter(x => x.isFile && !x.getName.endsWith(".crc")).toList
+  }
+
+  private[this] def replay(prop: Properties, table: String): List[String] = {
+    val replay = new FailoverReplay(prop)
+    val records = ArrayBuffer[String]()
+    try {
+      replay.replay(table, 2)(batch => records ++= batch)(() => {})
+    } finally {
+      replay.close()
+    }
+    records.toList
+  }
+
+  @Test def rollBySizeWithCompression(): Unit = {
+    val prop = properties("gzip", rollSize = 1)
+    val writer = new HdfsRollingWriter(prop)
+    try {
+      write(writer, "orders", List("(1,'a')", "(2,'b')"))
+      write(writer, "orders", List("(3,'c')"))
+    } finally {
+      writer.close()
+    }
+    val written = files("orders")
+    assertEquals(2, written.size)
+    written.foreach(x => assertTrue(x.getName, x.getName.endsWith(".gz")))
+    assertEquals(List("(1,'a')", "(2,'b')", "(3,'c')"), replay(prop, "orders").sorted)
+    files("orders").foreach(x => assertTrue(x.getName, x.getName.endsWith(FailoverReplay.REPLAYED_SUFFIX)))
+    //replayed files are not replayed again
+    assertTrue(replay(prop, "orders").isEmpty)
+  }
+
+  @Test def recordsWithNewlines(): Unit = {
+    val records = List("a\nb", "c:\\temp\\n", "tail\\", "{\n  \"k\": \"v\\n\"\n}", "\n")
+    List("gzip", "none").foreach(codec => {
+      val table = s"json_$codec"
+      val prop = properties(codec)
+      val writer = new HdfsRollingWriter(prop)
+      try {
+        write(writer, table, records)
+      } finally {
+        writer.close()
+      }
+      assertEquals(codec, records.sorted, replay(prop, table).sorted)
+    })
+  }
+
+  @Test def rollByInterval(): Unit = {
+    val prop = properties("none", rollInterval = 100)
+    val writer = new HdfsRollingWriter(prop)
+    try {
+      write(writer, "orders", List("(1,'a')"))
+      //rolled by the writer thread, without closing the writer
+      val deadline = System.currentTimeMillis() + 5000
+      while (files("orders").exists(_.getName.endsWith(HdfsRollingWriter.IN_PROGRESS_SUFFIX)) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(20)
+      }
+      assertEquals(1, files("orders").size)
+      assertFalse(files("orders").head.getName.endsWith(HdfsRollingWriter.IN_PROGRESS_SUFFIX))
+    } finally {
+      writer.close()
+    }
+    assertEquals(List("(1,'a')"), replay(prop, "orders"))
+  }
+
+  @Test def replayStaleInProgress(): Unit = {
+    val prop = properties("gzip", rollInterval = 1000)
+    val dir = new File(folder.getRoot, "orders/20210101")
+    dir.mkdirs()
+    val old = System.currentTimeMillis() - 60000
+
+    //a synced gzip member, followed by a member cut in the middle by a crash
+    val synced = gzip("(1,'a')\n(2,'b')\n")
+    val cut = gzip("(3,'c')\n(4,'d')\n")
+    val stale = new File(dir, s"part-$old-a.gz${HdfsRollingWriter.IN_PROGRESS_SUFFIX}")
+    writeFile(stale, synced ++ cut.take(cut.length / 2))
+    stale.setLastModified(old)
+
+    //a line without the newline is not acknowledged
+    val plain = new File(dir, s"part-$old-b${HdfsRollingWriter.IN_PROGRESS_SUFFIX}")
+    writeFile(plain, "(5,'e')\n(6,'f".getBytes(StandardCharsets.UTF_8))
+    plain.setLastModified(old)
+
+    //still being written
+    val now = System.currentTimeMillis()
+    val active = new File(dir, s"part-$now-c.gz${HdfsRollingWriter.IN_PROGRESS_SUFFIX}")
+    writeFile(active, gzip("(7,'g')\n"))
+
+    assertEquals(List("(1,'a')", "(2,'b')", "(5,'e')"), replay(prop, "orders").sorted)
+    assertTrue(new File(dir, s"part-$old-a.gz${FailoverReplay.REPLAYED_SUFFIX}").exists())
+    assertTrue(new File(dir, s"part-$old-b${FailoverReplay.REPLAYED_SUFFIX}").exists())
+    assertTrue(active.exists())
+  }
+
+  private[this] def gzip(text: String): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream()
+    val out = new GZIPOutputStream(bytes)
+    out.write(text.getBytes(StandardCharsets.UTF_8))
+    out.close()
+    bytes.toByteArray
+  }
+
+  private[this] def writeFile(file: File, bytes: Array[Byte]): Unit = {
+    val out = new FileOutputStream(file)
+    try out.write(bytes) finally out.close()
+  }
+
+}
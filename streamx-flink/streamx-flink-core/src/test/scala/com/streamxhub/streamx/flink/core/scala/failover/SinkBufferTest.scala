@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.failover
+
+import org.junit.Assert._
+import org.junit.Test
+
+import java.util
+import java.util.concurrent.{ConcurrentLinkedQueue, TimeUnit}
+import scala.collection.JavaConversions._
+
+/**
+ * SinkBuffer under contention: the sink thread puts records while another thread seals the chunks
+ * by tryAddToQueue/flush at the same time. every record must reach the SinkWriter exactly once,
+ * in order within its batch, and no batch may be empty, whichever side wins the seal.
+ */
+class SinkBufferTest {
+
+  private[this] val records = 100000
+
+  private[this] class CollectingWriter extends SinkWriter {
+    val batches = new ConcurrentLinkedQueue[util.List[String]]()
+
+    override def write(request: SinkRequest): Unit = batches.add(new util.ArrayList[String](request.records))
+
+    override def close(): Unit = {}
+  }
+
+  /**
+   * puts all the records on one thread while the checker runs on another one, returns the batches written
+   */
+  private[this] def stress(bufferSize: Int, bufferBytes: Long = Long.MaxValue)(checker: SinkBuffer => Unit): List[List[String]] = {
+    val writer = new CollectingWriter
+    val buffer = SinkBuffer(writer, 0L, bufferSize, "test.orders", bufferBytes)
+    @volatile var running = true
+    @volatile var error: Throwable = null
+    val thread = new Thread(new Runnable {
+      override def run(): Unit = try {
+        while (running) checker(buffer)
+      } catch {
+        case e: Throwable => error = e
+      }
+    }, "SinkBuffer-checker")
+    thread.start()
+    try {
+      (0 until records).foreach(i => buffer.put(i.toString))
+    } finally {
+      running = false
+      thread.join(TimeUnit.SECONDS.toMillis(30))
+    }
+    assertNull(error)
+    buffer.flush()
+    assertEquals(0, buffer.size)
+
+    val batches = writer.batches.map(_.toList).toList
+    assertTrue("no batch may be empty", batches.forall(_.nonEmpty))
+    assertTrue(batches.forall(_.size <= bufferSize))
+    //each batch is a run of consecutive records, together they are every record exactly once
+    batches.foreach(batch => assertEquals((batch.head.toInt until batch.head.toInt + batch.size).toList, batch.map(_.toInt)))
+    assertEquals((0 until records).map(_.toString).toList, batches.sortBy(_.head.toInt).flatten)
+    batches
+  }
+
+  @Test def fullAgainstChecker(): Unit = {
+    //the chunk fills up every 4 records, the writer(FULL) and the checker race to seal it
+    val batches = stress(bufferSize = 4)(_.tryAddToQueue())
+    assertTrue(batches.exists(_.size == 4))
+  }
+
+  @Test def byteBudgetAgainstChecker(): Unit = {
+    //sealed by the writer when 20 bytes are reached, long before bufferSize
+    val batches = stress(bufferSize = 1000, bufferBytes = 20)(_.tryAddToQueue())
+    batches.foreach(batch => assertTrue(batch.init.map(_.length).sum < 20))
+  }
+
+  @Test def flushAgainstChecker(): Unit = {
+    //sealed by flush and tryAddToQueue on the other thread, and by FULL on the writer
+    var flush = false
+    stress(bufferSize = 64) { buffer =>
+      flush = !flush
+      if (flush) buffer.flush() else buffer.tryAddToQueue()
+    }
+  }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.request
+
+import org.junit.Assert._
+import org.junit.Test
+
+import java.util.concurrent._
+import scala.collection.JavaConversions._
+
+/**
+ * LookupCache: one load for concurrent misses of a key, batches flushed by size and by delay,
+ * negative caching, failed loads, ttl expiry and lru eviction.
+ */
+class LookupCacheTest {
+
+  /**
+   * a loader whose results are set by the test, every call is recorded
+   */
+  private[this] class Loader(result: String => CompletableFuture[String] = x => CompletableFuture.completedFuture(s"v-$x")) {
+    val keys = new ConcurrentLinkedQueue[String]()
+    val batches = new ConcurrentLinkedQueue[Seq[String]]()
+
+    def load(key: String): CompletableFuture[String] = {
+      keys.add(key)
+      result(key)
+    }
+
+    def loadBatch(keys: Seq[String]): CompletableFuture[Map[String, String]] = {
+      batches.add(keys)
+      //keys starting with "none" have no data
+      CompletableFuture.completedFuture(keys.filterNot(_.startsWith("none")).map(x => x -> s"v-$x").toMap)
+    }
+  }
+
+  private[this] def cache(conf: LookupCacheConf, loader: Loader): LookupCache[String, String] = {
+    new LookupCache[String, String](conf, _.isEmpty, loader.load, loader.loadBatch, "")
+  }
+
+  private[this] def get(cache: LookupCache[String, String], key: String): String = cache.get(key).get(5, TimeUnit.SECONDS)
+
+  @Test def concurrentMissesLoadOnce(): Unit = {
+    val pending = new CompletableFuture[String]()
+    val loader = new Loader(_ => pending)
+    val lookup = cache(LookupCacheConf(), loader)
+    val threads = 8
+    val start = new CountDownLatch(1)
+    val executor = Executors.newFixedThreadPool(threads)
+    try {
+      val futures = (1 to threads).map(_ => executor.submit(new Callable[CompletableFuture[String]] {
+        override def call(): CompletableFuture[String] = {
+          start.await()
+          lookup.get("a")
+        }
+      }))
+      start.countDown()
+      val results = futures.map(_.get(5, TimeUnit.SECONDS))
+      assertEquals(List("a"), loader.keys.toList)
+      assertTrue(results.forall(!_.isDone))
+      pending.complete("v-a")
+      results.foreach(x => assertEquals("v-a", x.get(5, TimeUnit.SECONDS)))
+      //cached now
+      assertEquals("v-a", get(lookup, "a"))
+      assertEquals(1, loader.keys.size())
+    } finally {
+      executor.shutdownNow()
+      lookup.close()
+    }
+  }
+
+  @Test def batchFlushBySize(): Unit = {
+    val loader = new Loader()
+    val lookup = cache(LookupCacheConf(batchSize = 3, batchDelay = 3600000), loader)
+    try {
+      val a = lookup.get("a")
+      val b = lookup.get("b")
+      assertTrue(loader.batches.isEmpty)
+      assertFalse(a.isDone)
+      //the third key fills the batch, loaded at once without waiting for batchDelay
+      val none = lookup.get("none-c")
+      assertEquals(List(Seq("a", "b", "none-c")), loader.batches.toList)
+      assertEquals("v-a", a.get(5, TimeUnit.SECONDS))
+      assertEquals("v-b", b.get(5, TimeUnit.SECONDS))
+      //a key missing in the batch result is empty
+      assertEquals("", none.get(5, TimeUnit.SECONDS))
+      assertTrue(loader.keys.isEmpty)
+    } finally {
+      lookup.close()
+    }
+  }
+
+  @Test def batchFlushByDelay(): Unit = {
+    val loader = new Loader()
+    val lookup = cache(LookupCacheConf(batchSize = 100, batchDelay = 50), loader)
+    try {
+      val a = lookup.get("a")
+      val b = lookup.get("b")
+      //the batch is not full, flushed by the scheduler after batchDelay
+      assertEquals("v-a", a.get(5, TimeUnit.SECONDS))
+      assertEquals("v-b", b.get(5, TimeUnit.SECONDS))
+      assertEquals(List(Seq("a", "b")), loader.batches.toList)
+      //the next miss starts a new batch
+      assertEquals("v-c", get(lookup, "c"))
+      assertEquals(List(Seq("a", "b"), Seq("c")), loader.batches.toList)
+    } finally {
+      lookup.close()
+    }
+  }
+
+  @Test def negativeCaching(): Unit = {
+    val loader = new Loader(_ => CompletableFuture.completedFuture(""))
+    val cached = cache(LookupCacheConf(missTtl = 3600000), loader)
+    val uncached = cache(LookupCacheConf(missTtl = 0), loader)
+    try {
+      assertEquals("", get(cached, "a"))
+      assertEquals("", get(cached, "a"))
+      assertEquals(1, loader.keys.size())
+      assertEquals(1, cached.size)
+      //missTtl = 0: empty results are not cached
+      assertEquals("", get(uncached, "a"))
+      assertEquals("", get(uncached, "a"))
+      assertEquals(3, loader.keys.size())
+      assertEquals(0, uncached.size)
+    } finally {
+      cached.close()
+      uncached.close()
+    }
+  }
+
+  @Test def failedLoadNotCached(): Unit = {
+    val failures = new LinkedBlockingQueue[Boolean](java.util.Arrays.asList(true, false))
+    val loader = new Loader(x => {
+      val future = new CompletableFuture[String]()
+      if (failures.poll()) future.completeExceptionally(new RuntimeException("lookup failed")) else future.complete(s"v-$x")
+      future
+    })
+    val lookup = cache(LookupCacheConf(), loader)
+    try {
+      val failed = lookup.get("a")
+      try {
+        failed.get(5, TimeUnit.SECONDS)
+        fail("the failed load must complete exceptionally")
+      } catch {
+        case e: ExecutionException => assertEquals("lookup failed", e.getCause.getMessage)
+      }
+      assertEquals(0, lookup.size)
+      //loaded again, then cached
+      assertEquals("v-a", get(lookup, "a"))
+      assertEquals("v-a", get(lookup, "a"))
+      assertEquals(List("a", "a"), loader.keys.toList)
+    } finally {
+      lookup.close()
+    }
+  }
+
+  @Test def loaderThrows(): Unit = {
+    val lookup = new LookupCache[String, String](LookupCacheConf(), _.isEmpty, _ => throw new IllegalStateException("broken"))
+    try {
+      val future = lookup.get("a")
+      assertTrue(future.isCompletedExceptionally)
+      assertEquals(0, lookup.size)
+    } finally {
+      lookup.close()
+    }
+  }
+
+  @Test def ttlExpiry(): Unit = {
+    val loader = new Loader()
+    val lookup = cache(LookupCacheConf(ttl = 50), loader)
+    try {
+      assertEquals("v-a", get(lookup, "a"))
+      assertEquals("v-a", get(lookup, "a"))
+      assertEquals(1, loader.keys.size())
+      Thread.sleep(100)
+      assertEquals("v-a", get(lookup, "a"))
+      assertEquals(2, loader.keys.size())
+    } finally {
+      lookup.close()
+    }
+  }
+
+  @Test def lruEviction(): Unit = {
+    val loader = new Loader()
+    val lookup = cache(LookupCacheConf(maxSize = 2), loader)
+    try {
+      get(lookup, "a")
+      get(lookup, "b")
+      //"a" becomes the most recently used, "b" the eldest
+      get(lookup, "a")
+      get(lookup, "c")
+      assertEquals(2, lookup.size)
+      assertEquals(List("a", "b", "c"), loader.keys.toList)
+      get(lookup, "a")
+      get(lookup, "c")
+      assertEquals(List("a", "b", "c"), loader.keys.toList)
+      //"b" was evicted
+      get(lookup, "b")
+      assertEquals(List("a", "b", "c", "b"), loader.keys.toList)
+    } finally {
+      lookup.close()
+    }
+  }
+
+}
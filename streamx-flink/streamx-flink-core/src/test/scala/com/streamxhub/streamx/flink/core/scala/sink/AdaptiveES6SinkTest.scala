@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.sink
+
+import com.streamxhub.streamx.common.conf.ConfigConst._
+import com.sun.net.httpserver.{HttpExchange, HttpHandler, HttpServer}
+import org.apache.flink.runtime.testutils.MiniClusterResourceConfiguration
+import org.apache.flink.streaming.api.scala._
+import org.apache.flink.streaming.connectors.elasticsearch.ElasticsearchSinkBase._
+import org.apache.flink.streaming.connectors.elasticsearch.{ActionRequestFailureHandler, RequestIndexer}
+import org.apache.flink.test.util.MiniClusterWithClientResource
+import org.apache.http.HttpHost
+import org.elasticsearch.action.ActionRequest
+import org.elasticsearch.action.index.IndexRequest
+import org.junit.Assert._
+import org.junit.{After, Before, Rule, Test}
+
+import java.io.ByteArrayOutputStream
+import java.net.InetSocketAddress
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import scala.annotation.meta.getter
+import scala.collection.JavaConversions._
+
+/**
+ * AdaptiveES6SinkFunction against an in-process `_bulk` stub:
+ * every document is indexed once, documents rejected with 429 are retried,
+ * and a slow endpoint with a short flush interval never produces an empty bulk.
+ */
+class AdaptiveES6SinkTest {
+
+  @(Rule@getter)
+  val miniCluster = new MiniClusterWithClientResource(
+    new MiniClusterResourceConfiguration.Builder()
+      .setNumberTaskManagers(1)
+      .setNumberSlotsPerTaskManager(2)
+      .build()
+  )
+
+  private[this] var server: HttpServer = _
+  private[this] val indexed = new ConcurrentHashMap[String, AtomicInteger]()
+  private[this] val rejected = ConcurrentHashMap.newKeySet[String]()
+  private[this] val emptyBulks = new AtomicInteger()
+  @volatile private[this] var rejectFirst = false
+
+  private[this] val IdPattern = "\"_id\":\"([^\"]+)\"".r
+
+  @Before def startServer(): Unit = {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+    server.createContext("/_bulk", new HttpHandler {
+      override def handle(exchange: HttpExchange): Unit = {
+        val body = read(exchange)
+        //action and source lines
+        val ids = body.split("\n").filter(_.contains("\"index\"")).map(x => IdPattern.findFirstMatchIn(x).get.group(1))
+        if (ids.isEmpty) emptyBulks.incrementAndGet()
+        Thread.sleep(20)
+        val items = ids.map(id => {
+          if (rejectFirst && rejected.add(id)) {
+            s"""{"index":{"_index":"test","_type":"_doc","_id":"$id","status":429,"error":{"type":"es_rejected_execution_exception","reason":"rejected execution"}}}"""
+          } else {
+            indexed.computeIfAbsent(id, new java.util.function.Function[String, AtomicInteger] {
+              override def apply(t: String): AtomicInteger = new AtomicInteger()
+            }).incrementAndGet()
+            s"""{"index":{"_index":"test","_type":"_doc","_id":"$id","_version":1,"result":"created","_shards":{"total":1,"successful":1,"failed":0},"_seq_no":0,"_primary_term":1,"status":201}}"""
+          }
+        })
+        val errors = items.exists(_.contains("\"error\""))
+        val response = s"""{"took":1,"errors":$errors,"items":[${items.mkString(",")}]}""".getBytes(StandardCharsets.UTF_8)
+        exchange.getResponseHeaders.add("Content-Type", "application/json; charset=UTF-8")
+        exchange.sendResponseHeaders(200, response.length)
+        exchange.getResponseBody.write(response)
+        exchange.close()
+      }
+    })
+    server.start()
+  }
+
+  @After def stopServer(): Unit = server.stop(0)
+
+  private[this] def read(exchange: HttpExchange): String = {
+    val in = exchange.getRequestBody
+    val out = new ByteArrayOutputStream()
+    val buffer = new Array[Byte](4096)
+    var len = in.read(buffer)
+    while (len != -1) {
+      out.write(buffer, 0, len)
+      len = in.read(buffer)
+    }
+    new String(out.toByteArray, StandardCharsets.UTF_8)
+  }
+
+  private[this] def run(docs: Int): Unit = {
+    val config = Map(
+      KEY_ES_BULK_ADAPTIVE_MIN_ACTIONS -> "1",
+      KEY_ES_BULK_ADAPTIVE_MAX_ACTIONS -> "50",
+      KEY_ES_BULK_ADAPTIVE_MAX_CONCURRENT -> "1",
+      CONFIG_KEY_BULK_FLUSH_MAX_ACTIONS -> "10",
+      CONFIG_KEY_BULK_FLUSH_INTERVAL_MS -> "5",
+      CONFIG_KEY_BULK_FLUSH_BACKOFF_RETRIES -> "3"
+    )
+    val sink = new AdaptiveES6SinkFunction[Int](
+      List(new HttpHost("localhost", server.getAddress.getPort)),
+      config,
+      new RestClientFactoryImpl(Map.empty[String, String]),
+      new FailingFailureHandler,
+      AdaptiveES6SinkTest.toRequest
+    )
+    val env = StreamExecutionEnvironment.getExecutionEnvironment
+    env.setParallelism(2)
+    env.enableCheckpointing(50)
+    env.fromCollection(1 to docs).rebalance.addSink(sink)
+    env.execute("adaptive es6 sink")
+  }
+
+  @Test def indexAll(): Unit = {
+    run(500)
+    assertEquals(500, indexed.size())
+    indexed.values().foreach(x => assertEquals(1, x.get()))
+    assertEquals(0, emptyBulks.get())
+  }
+
+  @Test def retryRejected(): Unit = {
+    rejectFirst = true
+    run(200)
+    assertEquals(200, rejected.size())
+    assertEquals(200, indexed.size())
+    indexed.values().foreach(x => assertEquals(1, x.get()))
+    assertEquals(0, emptyBulks.get())
+  }
+
+}
+
+object AdaptiveES6SinkTest {
+
+  val toRequest: Int => IndexRequest = (x: Int) => new IndexRequest("test", "_doc", x.toString).source(java.util.Collections.singletonMap("value", x))
+
+}
+
+class FailingFailureHandler extends ActionRequestFailureHandler {
+  override def onFailure(action: ActionRequest, failure: Throwable, restStatusCode: Int, indexer: RequestIndexer): Unit = throw failure
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.sink
+
+import com.streamxhub.streamx.flink.core.scala.failover.{SinkRequest, SinkWriter}
+import org.junit.Assert._
+import org.junit.Test
+
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+import java.time.LocalDate
+import scala.collection.JavaConversions._
+import scala.collection.mutable.ArrayBuffer
+
+case class RowBinaryOrder(id: Int, amount: Long, name: String, score: Option[Int], day: LocalDate)
+
+class ClickHouseRowBinaryTest {
+
+  private[this] val orders = List(
+    RowBinaryOrder(1, 100L, "it's\na\\b", Some(7), LocalDate.of(2021, 1, 2)),
+    RowBinaryOrder(2, 200L, "plain", None, LocalDate.of(2021, 1, 3))
+  )
+
+  private[this] def encode(compress: Boolean): SinkRequest = {
+    val requests = ArrayBuffer[SinkRequest]()
+    val writer = new SinkWriter {
+      override def write(request: SinkRequest): Unit = requests += request
+
+      override def close(): Unit = {}
+    }
+    val buffer = RowBinarySinkBuffer(writer, new ByteBufferPool(1024, 4), 1000L, 100, 1024 * 1024, compress, "test.orders")
+    orders.foreach(buffer.put)
+    buffer.flush()
+    assertEquals(1, requests.size)
+    requests.head
+  }
+
+  @Test def encodeRows(): Unit = {
+    val request = encode(compress = false)
+    assertTrue(request.isBinary)
+    assertEquals(2, request.size)
+    val body = request.body.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+    assertEquals(1, body.getInt)
+    assertEquals(100L, body.getLong)
+    val name = new Array[Byte](body.get().toInt)
+    body.get(name)
+    assertEquals("it's\na\\b", new String(name, StandardCharsets.UTF_8))
+    assertEquals(0, body.get().toInt)
+    assertEquals(7, body.getInt)
+    assertEquals(LocalDate.of(2021, 1, 2).toEpochDay, body.getShort.toLong)
+  }
+
+  @Test def failoverRecordsReplayAsRowBinary(): Unit = {
+    val raw = encode(compress = false).body
+    List(false, true).foreach(compress => {
+      val request = encode(compress)
+      assertEquals(compress, request.compressed)
+      assertEquals(2, request.records.size())
+      request.records.foreach(x => assertTrue(x, x.startsWith(SinkRequest.BINARY_RECORD_PREFIX) && !x.contains("\n")))
+      assertEquals(request.records.toList, (0 until request.records.size()).map(request.records.get).toList)
+
+      val replayed = SinkRequest.fromFailover(new java.util.ArrayList[String](request.records), "test.orders")
+      assertEquals(1, replayed.size)
+      assertTrue(replayed.head.isBinary)
+      assertFalse(replayed.head.compressed)
+      assertEquals(2, replayed.head.size)
+      assertEquals(raw.duplicate(), replayed.head.body)
+    })
+  }
+
+  @Test def failoverOneRecordPerRow(): Unit = {
+    val request = encode(compress = false)
+    request.attemptCounter = 3
+    val failover = request.toFailover
+    assertFalse(failover.isBinary)
+    assertEquals(request.size, failover.size)
+    assertEquals(request.records.toList, failover.records.toList)
+    assertEquals(3, failover.attemptCounter)
+  }
+
+  @Test def mixedFailoverRecords(): Unit = {
+    val request = encode(compress = false)
+    val records = new java.util.ArrayList[String](List("(1)") ++ request.records ++ List("(2)"))
+    val replayed = SinkRequest.fromFailover(records, "test.orders")
+    assertEquals(2, replayed.size)
+    assertEquals(List("(1)", "(2)"), replayed.head.records.toList)
+    assertEquals(request.body.duplicate(), replayed(1).body)
+  }
+
+  @Test def stateRoundTrip(): Unit = {
+    val request = encode(compress = true)
+    val restored = SinkRequest.deserialize(SinkRequest.serialize(request))
+    assertTrue(restored.isBinary)
+    assertEquals(request.rows, restored.rows)
+    assertTrue(restored.compressed)
+    assertEquals(request.body.duplicate(), restored.body)
+    assertEquals(request.records.toList, restored.records.toList)
+
+    val values = SinkRequest(new java.util.ArrayList[String](List("(1)", "(2)")), "test.orders")
+    val restoredValues = SinkRequest.deserialize(SinkRequest.serialize(values))
+    assertFalse(restoredValues.isBinary)
+    assertEquals(values.records.toList, restoredValues.records.toList)
+  }
+
+}
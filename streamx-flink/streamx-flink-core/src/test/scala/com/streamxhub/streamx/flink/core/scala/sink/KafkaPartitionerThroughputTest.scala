@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.sink
+
+import kafka.server.{KafkaConfig, KafkaServer}
+import org.apache.curator.test.TestingServer
+import org.apache.flink.streaming.connectors.kafka.partitioner.FlinkKafkaPartitioner
+import org.apache.kafka.clients.admin.{AdminClient, NewTopic}
+import org.apache.kafka.clients.producer.{KafkaProducer, ProducerRecord}
+import org.apache.kafka.common.network.ListenerName
+import org.apache.kafka.common.serialization.ByteArraySerializer
+import org.junit.Assert._
+import org.junit.rules.TemporaryFolder
+import org.junit.{After, Before, Rule, Test}
+
+import java.util.Properties
+import scala.annotation.meta.getter
+import scala.collection.JavaConversions._
+
+/**
+ * KafkaStickyPartitioner against KafkaEqualityPartitioner on two embedded brokers(4 partitions, 2 on each broker):
+ * the same records are sent in small bursts, every burst is flushed like a sink at low throughput.
+ * the equality partitioner spreads every burst over all the partitions(a batch per partition, a request per broker),
+ * the sticky one puts it into one batch of one partition, so it needs fewer and larger batches and fewer requests.
+ */
+class KafkaPartitionerThroughputTest {
+
+  @(Rule@getter)
+  val folder = new TemporaryFolder()
+
+  private[this] val topic = "orders"
+  private[this] val bursts = 200
+  private[this] val burstSize = 50
+  private[this] val value = new Array[Byte](100)
+
+  private[this] var zookeeper: TestingServer = _
+  private[this] var brokers: List[KafkaServer] = Nil
+  private[this] var bootstrap: String = _
+
+  @Before def startBrokers(): Unit = {
+    zookeeper = new TestingServer(true)
+    brokers = (0 until 2).map(id => {
+      val prop = new Properties()
+      prop.put("zookeeper.connect", zookeeper.getConnectString)
+      prop.put("broker.id", id.toString)
+      prop.put("listeners", "PLAINTEXT://localhost:0")
+      prop.put("log.dirs", folder.newFolder(s"kafka-$id").getAbsolutePath)
+      prop.put("offsets.topic.replication.factor", "1")
+      val broker = new KafkaServer(KafkaConfig.fromProps(prop))
+      broker.startup()
+      broker
+    }).toList
+    bootstrap = brokers.map(x => s"localhost:${x.boundPort(ListenerName.normalised("PLAINTEXT"))}").mkString(",")
+    val prop = new Properties()
+    prop.put("bootstrap.servers", bootstrap)
+    val admin = AdminClient.create(prop)
+    try {
+      admin.createTopics(java.util.Collections.singletonList(new NewTopic(topic, 4, 1.toShort))).all().get()
+    } finally {
+      admin.close()
+    }
+  }
+
+  @After def stopBrokers(): Unit = {
+    brokers.foreach(x => {
+      x.shutdown()
+      x.awaitShutdown()
+    })
+    zookeeper.close()
+  }
+
+  /**
+   * sends all the bursts through a new producer and returns its metrics(and records/s as "records-per-sec")
+   */
+  private[this] def run(partitioner: FlinkKafkaPartitioner[String]): Map[String, Double] = {
+    val prop = new Properties()
+    prop.put("bootstrap.servers", bootstrap)
+    prop.put("batch.size", "16384")
+    prop.put("linger.ms", "5")
+    prop.put("acks", "1")
+    val producer = new KafkaProducer[Array[Byte], Array[Byte]](prop, new ByteArraySerializer, new ByteArraySerializer)
+    try {
+      val partitions = producer.partitionsFor(topic).map(_.partition()).sorted.toArray
+      assertEquals(4, partitions.length)
+      partitioner.open(0, 1)
+      //metadata and connections are ready, count only the bursts
+      val before = metrics(producer)
+      val start = System.nanoTime()
+      (1 to bursts).foreach(_ => {
+        (1 to burstSize).foreach(_ => {
+          val partition = partitioner.partition("x", null, value, topic, partitions)
+          producer.send(new ProducerRecord[Array[Byte], Array[Byte]](topic, partition, null, value))
+        })
+        producer.flush()
+      })
+      val seconds = (System.nanoTime() - start) / 1e9
+      val after = metrics(producer)
+      Map(
+        "request-total" -> (after("request-total") - before("request-total")),
+        "record-send-total" -> after("record-send-total"),
+        "record-error-total" -> after("record-error-total"),
+        "batch-size-avg" -> after("batch-size-avg"),
+        "records-per-sec" -> bursts * burstSize / seconds
+      )
+    } finally {
+      producer.close()
+    }
+  }
+
+  private[this] def metrics(producer: KafkaProducer[_, _]): Map[String, Double] = {
+    producer.metrics()
+      .filter(_._1.group() == "producer-metrics")
+      .map(x => x._1.name() -> x._2.metricValue())
+      .collect { case (name, v: java.lang.Double) => name -> v.doubleValue() }
+      .toMap
+  }
+
+  @Test def stickyNeedsFewerRequests(): Unit = {
+    val equality = run(new KafkaEqualityPartitioner[String](1))
+    val sticky = run(new KafkaStickyPartitioner[String](16384, 5))
+    val detail = s"equality: $equality, sticky: $sticky"
+    List(equality, sticky).foreach(x => {
+      assertEquals(detail, bursts * burstSize, x("record-send-total").toInt)
+      assertEquals(detail, 0, x("record-error-total").toInt)
+    })
+    //the equality partitioner reaches both brokers in (almost) every burst, the sticky one mostly a single broker
+    assertTrue(detail, sticky("request-total") < equality("request-total") * 0.8)
+    assertTrue(detail, sticky("batch-size-avg") > equality("batch-size-avg") * 1.5)
+  }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.sink
+
+import org.junit.Assert._
+import org.junit.Test
+
+/**
+ * the rotation of KafkaStickyPartitioner: sticky until batch.size or linger.ms,
+ * then the least loaded partition, and changes of the partition list.
+ */
+class KafkaStickyPartitionerTest {
+
+  private[this] val topic = "orders"
+
+  private[this] def partitioner(batchSize: Int, lingerMs: Long, subtask: Int = 0, subtasks: Int = 1): KafkaStickyPartitioner[String] = {
+    val partitioner = new KafkaStickyPartitioner[String](batchSize, lingerMs)
+    partitioner.open(subtask, subtasks)
+    partitioner
+  }
+
+  private[this] def send(partitioner: KafkaStickyPartitioner[String], bytes: Int, partitions: Array[Int], topic: String = topic): Int = {
+    partitioner.partition("x", null, new Array[Byte](bytes), topic, partitions)
+  }
+
+  @Test def stickUntilBatchSize(): Unit = {
+    val partitions = Array(0, 1, 2)
+    val sticky = partitioner(batchSize = 100, lingerMs = 3600000)
+    //30 bytes each: the 4th record fills the batch (120 >= 100), the 5th one switches
+    assertEquals(List(0, 0, 0, 0, 1, 1, 1, 1, 2), (1 to 9).map(_ => send(sticky, 30, partitions)).toList)
+  }
+
+  @Test def stickUntilLinger(): Unit = {
+    val partitions = Array(0, 1, 2)
+    val sticky = partitioner(batchSize = Int.MaxValue, lingerMs = 50)
+    assertEquals(0, send(sticky, 10, partitions))
+    assertEquals(0, send(sticky, 10, partitions))
+    Thread.sleep(100)
+    assertEquals(1, send(sticky, 10, partitions))
+    assertEquals(1, send(sticky, 10, partitions))
+  }
+
+  @Test def leastLoadedNext(): Unit = {
+    val partitions = Array(0, 1, 2)
+    val sticky = partitioner(batchSize = 100, lingerMs = 3600000)
+    (1 to 4).foreach(_ => assertEquals(0, send(sticky, 30, partitions)))
+    //one large record fills partition 1 at once
+    assertEquals(1, send(sticky, 500, partitions))
+    (1 to 4).foreach(_ => assertEquals(2, send(sticky, 30, partitions)))
+    //loads (halved on each switch): 0 -> 30, 1 -> 250, 2 -> 120
+    (1 to 4).foreach(_ => assertEquals(0, send(sticky, 30, partitions)))
+    //loads: 0 -> 135, 1 -> 125, 2 -> 60, the least loaded partition 2 wins over the next one in order
+    assertEquals(2, send(sticky, 30, partitions))
+  }
+
+  @Test def subtasksStartOnDifferentPartitions(): Unit = {
+    val partitions = Array(0, 1, 2)
+    assertEquals(List(0, 1, 2, 0), (0 until 4).map(i => send(partitioner(100, 3600000, i, 4), 10, partitions)).toList)
+  }
+
+  @Test def partitionsChanged(): Unit = {
+    val sticky = partitioner(batchSize = 100, lingerMs = 3600000, subtask = 1, subtasks = 2)
+    assertEquals(1, send(sticky, 10, Array(0, 1, 2)))
+    //the current partition is gone, start again from the partition of this subtask
+    assertEquals(2, send(sticky, 10, Array(0, 2, 3)))
+    //the current partition still exists, keep it
+    val grown = Array(0, 1, 2, 3, 4, 5)
+    assertEquals(2, send(sticky, 10, grown))
+    //and keep counting its bytes: 10 + 10 + 80 >= 100
+    assertEquals(2, send(sticky, 80, grown))
+    assertEquals(3, send(sticky, 10, grown))
+    //a single partition is always used
+    assertEquals(7, send(sticky, 10, Array(7)))
+  }
+
+  @Test def topicsAreIndependent(): Unit = {
+    val partitions = Array(0, 1)
+    val sticky = partitioner(batchSize = 100, lingerMs = 3600000)
+    assertEquals(0, send(sticky, 120, partitions))
+    assertEquals(0, send(sticky, 10, partitions, "payments"))
+    assertEquals(1, send(sticky, 10, partitions))
+    assertEquals(0, send(sticky, 10, partitions, "payments"))
+  }
+
+}
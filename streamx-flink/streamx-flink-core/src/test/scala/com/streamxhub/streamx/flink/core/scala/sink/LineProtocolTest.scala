@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.sink
+
+import org.junit.Assert._
+import org.junit.Test
+
+import scala.collection.JavaConversions._
+import scala.collection.immutable.ListMap
+
+/**
+ * the line protocol encoder of InfluxDBSink: escaping, field types, timestamps and splitting a batch into lines.
+ */
+class LineProtocolTest {
+
+  private[this] def encode(measurement: String,
+                           tags: Map[String, String],
+                           fields: ListMap[String, Any],
+                           time: Long = 1600000000000L): String = {
+    val entity = InfluxEntity[String]("db", measurement, null, _ => tags, _ => fields, _ => time)
+    val sb = new java.lang.StringBuilder()
+    assertTrue(LineProtocol.encode(entity, "x", sb))
+    sb.toString
+  }
+
+  @Test def escaping(): Unit = {
+    assertEquals(
+      """cpu\ load\,total=1,host\ name=a\ b\,c\=d value\ \=x=1i 1600000000000""",
+      encode("cpu load,total=1", Map("host name" -> "a b,c=d"), ListMap("value =x" -> 1L))
+    )
+    //influxdb only unescapes \" and \\ in string fields, newlines are written as they are
+    assertEquals(
+      "log message=\"say \\\"hi\\\" to c:\\\\temp\nnext line\r\" 1600000000000",
+      encode("log", null, ListMap("message" -> "say \"hi\" to c:\\temp\nnext line\r"))
+    )
+  }
+
+  @Test def fieldTypes(): Unit = {
+    val fields = ListMap[String, Any](
+      "d" -> 1.5D,
+      "big" -> 1e20D,
+      "f" -> 2.25F,
+      "l" -> 3L,
+      "i" -> 4,
+      "s" -> 5.toShort,
+      "b" -> 6.toByte,
+      "jbd" -> new java.math.BigDecimal("1E+3"),
+      "sbd" -> BigDecimal("0.000001"),
+      "jbi" -> new java.math.BigInteger("12345678901234567890"),
+      "sbi" -> BigInt(7),
+      "t" -> true,
+      "str" -> "v",
+      "other" -> List(1, 2)
+    )
+    assertEquals(
+      "m d=1.5,big=1.0E20,f=2.25,l=3i,i=4i,s=5i,b=6i,jbd=1000,sbd=0.000001,jbi=12345678901234567890i,sbi=7i,t=true,str=\"v\",other=\"List(1, 2)\" 1600000000000",
+      encode("m", Map.empty, fields)
+    )
+  }
+
+  @Test def tagsAndNulls(): Unit = {
+    val tags = Map("z" -> "1", "a" -> "2", "empty" -> "", "none" -> null)
+    assertEquals("m,a=2,z=1 v=1i,w=true 1600000000000", encode("m", tags, ListMap("v" -> 1, "null" -> null, "w" -> true)))
+    //no field, not a valid point
+    val entity = InfluxEntity[String]("db", "m", null, _ => tags, _ => ListMap("null" -> null), _ => 0L)
+    assertFalse(LineProtocol.encode(entity, "x", new java.lang.StringBuilder()))
+  }
+
+  @Test def timestamps(): Unit = {
+    assertTrue(encode("m", null, ListMap("v" -> 1), 0L).endsWith(" v=1i 0"))
+    assertTrue(encode("m", null, ListMap("v" -> 1), 1600000000123L).endsWith(" 1600000000123"))
+    //the processing time in ms without a time function
+    val entity = InfluxEntity[String]("db", "m", null, _ => null, _ => ListMap("v" -> 1))
+    val sb = new java.lang.StringBuilder()
+    val before = System.currentTimeMillis()
+    LineProtocol.encode(entity, "x", sb)
+    val time = sb.toString.split(' ').last.toLong
+    assertTrue(time >= before && time <= System.currentTimeMillis())
+  }
+
+  @Test def rejectNewlines(): Unit = {
+    val invalid = List(
+      ("cpu\nload", Map("host" -> "a"), ListMap[String, Any]("v" -> 1)),
+      ("cpu", Map("host\n" -> "a"), ListMap[String, Any]("v" -> 1)),
+      ("cpu", Map("host" -> "a\r\nb"), ListMap[String, Any]("v" -> 1)),
+      ("cpu", Map("host" -> "a"), ListMap[String, Any]("v\n" -> 1))
+    )
+    invalid.foreach { case (measurement, tags, fields) =>
+      try {
+        encode(measurement, tags, fields)
+        fail(s"$measurement $tags $fields")
+      } catch {
+        case e: IllegalArgumentException => assertTrue(e.getMessage, e.getMessage.contains("newlines"))
+      }
+    }
+  }
+
+  @Test def splitLines(): Unit = {
+    val lines = List(
+      encode("log", Map("host" -> "a"), ListMap("message" -> "first\nsecond\r\nthird", "n" -> 1)),
+      encode("log", Map("host" -> "b"), ListMap("message" -> "\n")),
+      //quotes in tags and keys don't start a string, escaped quotes don't end one
+      encode("log", Map("host" -> "\"q"), ListMap("a=\"" -> "x\n\" y=\"\n\\", "b" -> "\\\n")),
+      encode("cpu", null, ListMap("v" -> 1.5, "s" -> "")),
+      encode("cpu", null, ListMap("s" -> "\n\n"))
+    )
+    assertEquals(lines, LineProtocol.split(lines.mkString("", "\n", "\n")).toList)
+    assertEquals(lines, LineProtocol.split(lines.mkString("\n\n")).toList)
+    assertTrue(LineProtocol.split("").isEmpty)
+  }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.sink
+
+import com.streamxhub.streamx.common.conf.ConfigConst._
+import com.streamxhub.streamx.flink.core.scala.failover.{SinkWriterPool, ThresholdConf}
+import com.sun.net.httpserver.{HttpExchange, HttpHandler, HttpServer}
+import org.apache.flink.runtime.testutils.MiniClusterResourceConfiguration
+import org.apache.flink.streaming.api.scala._
+import org.apache.flink.test.util.MiniClusterWithClientResource
+import org.junit.Assert._
+import org.junit.rules.TemporaryFolder
+import org.junit.{After, Before, Rule, Test}
+
+import java.net.InetSocketAddress
+import java.util.Properties
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import scala.annotation.meta.getter
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+
+/**
+ * the subtasks of a sink running in the same TaskManager share one writer,
+ * sinks with different thresholds don't.
+ */
+class SharedSinkWriterTest {
+
+  @(Rule@getter)
+  val miniCluster = new MiniClusterWithClientResource(
+    new MiniClusterResourceConfiguration.Builder()
+      .setNumberTaskManagers(1)
+      .setNumberSlotsPerTaskManager(4)
+      .build()
+  )
+
+  @(Rule@getter)
+  val folder = new TemporaryFolder()
+
+  private[this] var server: HttpServer = _
+  private[this] val received = new ConcurrentHashMap[String, AtomicInteger]()
+  @volatile private[this] var maxSharedWriters = 0
+
+  @Before def startServer(): Unit = {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+    server.createContext("/", new HttpHandler {
+      override def handle(exchange: HttpExchange): Unit = {
+        maxSharedWriters = math.max(maxSharedWriters, SinkWriterPool.size)
+        received.computeIfAbsent(exchange.getRequestURI.getPath, new java.util.function.Function[String, AtomicInteger] {
+          override def apply(t: String): AtomicInteger = new AtomicInteger()
+        }).incrementAndGet()
+        exchange.sendResponseHeaders(200, -1)
+        exchange.close()
+      }
+    })
+    server.start()
+  }
+
+  @After def stopServer(): Unit = server.stop(0)
+
+  private[this] def properties(table: String, numWriters: Int): mutable.Map[String, String] = mutable.HashMap(
+    KEY_SINK_FAILOVER_TABLE -> table,
+    KEY_SINK_FAILOVER_STORAGE -> "hdfs",
+    s"failover.hdfs.$KEY_FAILOVER_HDFS_PATH" -> folder.getRoot.getAbsolutePath,
+    KEY_SINK_THRESHOLD_NUM_WRITERS -> numWriters.toString,
+    KEY_SINK_THRESHOLD_SUCCESS_CODE -> "200"
+  )
+
+  @Test def shareWriterBetweenSubtasks(): Unit = {
+    val base = s"http://localhost:${server.getAddress.getPort}"
+    val records = 200
+    val env = StreamExecutionEnvironment.getExecutionEnvironment
+    env.setParallelism(4)
+    env.enableCheckpointing(100)
+    val ids = env.fromCollection(1 to records).rebalance
+    //same table and header, different thresholds
+    ids.map(x => s"$base/a/$x").addSink(new HttpSinkFunction(properties("test", 1), Map.empty, "GET"))
+    ids.map(x => s"$base/b/$x").addSink(new HttpSinkFunction(properties("test", 2), Map.empty, "GET"))
+    env.execute("shared sink writer")
+
+    Seq("a", "b").foreach(prefix => {
+      val paths = received.keySet().filter(_.startsWith(s"/$prefix/"))
+      assertEquals(prefix, records, paths.size)
+    })
+    //4 subtasks of 2 sinks: one writer for each sink
+    assertTrue(s"shared writers: $maxSharedWriters", maxSharedWriters >= 1 && maxSharedWriters <= 2)
+    //released by the last subtask
+    assertEquals(0, SinkWriterPool.size)
+  }
+
+  @Test def digestOfThreshold(): Unit = {
+    def conf(numWriters: Int): ThresholdConf = {
+      val prop = new Properties()
+      properties("test", numWriters).foreach { case (k, v) => prop.put(k, v) }
+      ThresholdConf(prop)
+    }
+
+    assertEquals(conf(1).digest, conf(1).digest)
+    assertNotEquals(conf(1).digest, conf(2).digest)
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.sink
+
+import org.apache.flink.api.common.ExecutionConfig
+import org.apache.flink.api.common.typeutils.base.{LongSerializer, StringSerializer}
+import org.apache.flink.api.common.typeutils.{SerializerTestInstance, TypeSerializer, TypeSerializerSnapshot}
+import org.apache.flink.api.java.typeutils.runtime.kryo.KryoSerializer
+import org.apache.flink.core.memory.{DataInputDeserializer, DataOutputSerializer}
+import org.junit.Assert._
+import org.junit.Test
+
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * the binary serializers of the Redis2PCSink and EchoSink transactions:
+ * round trip, snapshot restore, compatibility and size compared with Kryo.
+ */
+class TransactionSerializerTest {
+
+  private[this] def redisTransactions: Array[RedisTransaction] = Array(
+    RedisTransaction(transactionId = "empty"),
+    RedisTransaction(transactionId = "small", records = ArrayBuffer("k1" -> "v1", "键" -> ""), invoked = true),
+    RedisTransaction(transactionId = "large", records = ArrayBuffer((1 to 200).map(i => s"key-$i" -> s"value-$i"): _*), invoked = true)
+  )
+
+  private[this] def echos: Array[Echo[String]] = Array(
+    Echo[String](transactionId = "empty"),
+    Echo[String](transactionId = "small", buffer = mutable.MutableList("a", "", "中文"), invoked = true),
+    Echo[String](transactionId = "large", buffer = mutable.MutableList((1 to 200).map(i => s"value-$i"): _*), invoked = true)
+  )
+
+  private[this] def echoSerializer: EchoSerializer[String] = new EchoSerializer[String](StringSerializer.INSTANCE)
+
+  private[this] def bytes[T](serializer: TypeSerializer[T], values: Seq[T]): Array[Byte] = {
+    val out = new DataOutputSerializer(1024)
+    values.foreach(serializer.serialize(_, out))
+    out.getCopyOfBuffer
+  }
+
+  private[this] def restore[T](serializer: TypeSerializer[T]): TypeSerializerSnapshot[T] = {
+    val out = new DataOutputSerializer(256)
+    TypeSerializerSnapshot.writeVersionedSnapshot(out, serializer.snapshotConfiguration())
+    TypeSerializerSnapshot.readVersionedSnapshot[T](new DataInputDeserializer(out.getCopyOfBuffer), getClass.getClassLoader)
+  }
+
+  @Test def redisTransactionSerializer(): Unit = {
+    new SerializerTestInstance[RedisTransaction](RedisTransactionSerializer, classOf[RedisTransaction], -1, redisTransactions: _*).testAll()
+  }
+
+  @Test def echoSerializerContract(): Unit = {
+    new SerializerTestInstance[Echo[String]](echoSerializer, classOf[Echo[String]], -1, echos: _*).testAll()
+  }
+
+  @Test def restoreRedisTransactionFromSnapshot(): Unit = {
+    val state = bytes(RedisTransactionSerializer, redisTransactions)
+    val snapshot = restore[RedisTransaction](RedisTransactionSerializer)
+    assertTrue(snapshot.resolveSchemaCompatibility(RedisTransactionSerializer).isCompatibleAsIs)
+    val restored = snapshot.restoreSerializer()
+    val in = new DataInputDeserializer(state)
+    redisTransactions.foreach(x => assertEquals(x, restored.deserialize(in)))
+    assertEquals(0, in.available())
+  }
+
+  @Test def restoreEchoFromSnapshot(): Unit = {
+    val state = bytes(echoSerializer, echos)
+    val snapshot = restore[Echo[String]](echoSerializer)
+    assertTrue(snapshot.resolveSchemaCompatibility(echoSerializer).isCompatibleAsIs)
+    //the values of the restored state must still be readable by the new value serializer
+    val changed = new EchoSerializer[java.lang.Long](LongSerializer.INSTANCE).asInstanceOf[TypeSerializer[Echo[String]]]
+    assertTrue(snapshot.resolveSchemaCompatibility(changed).isIncompatible)
+    val restored = snapshot.restoreSerializer()
+    assertEquals(echoSerializer, restored)
+    val in = new DataInputDeserializer(state)
+    echos.foreach(x => assertEquals(x, restored.deserialize(in)))
+    assertEquals(0, in.available())
+  }
+
+  @Test def smallerThanKryo(): Unit = {
+    val kryoTransaction = new KryoSerializer[RedisTransaction](classOf[RedisTransaction], new ExecutionConfig)
+    val redis = bytes(RedisTransactionSerializer, redisTransactions).length
+    val redisKryo = bytes(kryoTransaction, redisTransactions).length
+    assertTrue(s"binary: $redis, kryo: $redisKryo", redis < redisKryo)
+
+    val kryoEcho = new KryoSerializer[Echo[String]](classOf[Echo[String]], new ExecutionConfig)
+    val echo = bytes(echoSerializer, echos).length
+    val echoKryo = bytes(kryoEcho, echos).length
+    assertTrue(s"binary: $echo, kryo: $echoKryo", echo < echoKryo)
+  }
+
+}
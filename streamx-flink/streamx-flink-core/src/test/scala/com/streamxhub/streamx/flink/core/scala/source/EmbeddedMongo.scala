@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.source
+
+import com.mongodb.MongoClient
+import de.flapdoodle.embed.mongo.config.{MongodConfigBuilder, Net, Storage}
+import de.flapdoodle.embed.mongo.distribution.Version
+import de.flapdoodle.embed.mongo.{MongodExecutable, MongodStarter}
+import de.flapdoodle.embed.process.runtime.Network
+import org.bson.Document
+import org.junit.Assume
+
+import scala.util.Try
+
+/**
+ * an in-process mongod for the tests. flapdoodle downloads the mongod binary on the first run(cached in ~/.embedmongo),
+ * without network access and without the cache the tests are skipped instead of failing.
+ *
+ * @param replicaSet not null: started as a single node replica set with this name, change streams need it
+ */
+class EmbeddedMongo(replicaSet: String = null) extends AutoCloseable {
+
+  val port: Int = Network.getFreeServerPort
+
+  private[this] val mongod: MongodExecutable = {
+    val builder = new MongodConfigBuilder()
+      .version(Version.Main.V4_0)
+      .net(new Net("localhost", port, Network.localhostIsIPv6()))
+    if (replicaSet != null) builder.replication(new Storage(null, replicaSet, 0))
+    var executable: MongodExecutable = null
+    try {
+      executable = MongodStarter.getDefaultInstance.prepare(builder.build())
+      executable.start()
+      executable
+    } catch {
+      case e: Throwable =>
+        if (executable != null) Try(executable.stop())
+        Assume.assumeNoException("mongod can not be downloaded or started, skipped", e)
+        null
+    }
+  }
+
+  val client: MongoClient = new MongoClient("localhost", port)
+
+  if (replicaSet != null) initiate()
+
+  private[this] def initiate(): Unit = {
+    val member = new Document("_id", 0).append("host", s"localhost:$port")
+    client.getDatabase("admin").runCommand(new Document("replSetInitiate", new Document("_id", replicaSet).append("members", java.util.Collections.singletonList(member))))
+    val deadline = System.currentTimeMillis() + 30000
+    while (!client.getDatabase("admin").runCommand(new Document("isMaster", 1)).getBoolean("ismaster", false)) {
+      if (System.currentTimeMillis() > deadline) throw new IllegalStateException(s"[StreamX] replica set $replicaSet has no primary")
+      Thread.sleep(100)
+    }
+  }
+
+  override def close(): Unit = {
+    Try(client.close())
+    mongod.stop()
+  }
+
+}
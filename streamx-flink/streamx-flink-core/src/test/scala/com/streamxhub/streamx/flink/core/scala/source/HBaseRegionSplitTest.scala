@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.source
+
+import org.apache.hadoop.hbase.util.Bytes
+import org.junit.Assert._
+import org.junit.Test
+
+class HBaseRegionSplitTest {
+
+  private[this] val lag = 5000L
+
+  @Test def passEndsSafetyLagBeforeNow(): Unit = {
+    val split = HBaseRegionSplit(0, Array.empty, Array.empty)
+    assertTrue(split.startPass(100000L, lag))
+    assertEquals(0L, split.lastTimestamp)
+    assertEquals(95000L, split.passTimestamp)
+  }
+
+  @Test def passesAreContiguous(): Unit = {
+    val split = HBaseRegionSplit(0, Array.empty, Array.empty)
+    val ranges = (1 to 5).map(i => {
+      assertTrue(split.startPass(100000L + i * 1000L, lag))
+      val range = split.lastTimestamp -> split.passTimestamp
+      split.finishPass()
+      range
+    })
+    ranges.sliding(2).foreach(x => assertEquals(x.head._2, x.last._1))
+    //a cell stamped by a RegionServer clock behind the client is still in a later pass
+    val lateCell = 100000L + 5 * 1000L - lag - 1
+    assertTrue(ranges.exists { case (from, until) => lateCell >= from && lateCell < until })
+  }
+
+  @Test def noPassWhenTimeDoesNotAdvance(): Unit = {
+    val split = HBaseRegionSplit(0, Array.empty, Array.empty, lastTimestamp = 95000L)
+    assertFalse(split.startPass(100000L, lag))
+    assertEquals(0L, split.passTimestamp)
+    //clock going backwards
+    assertFalse(split.startPass(90000L, lag))
+    assertEquals(95000L, split.lastTimestamp)
+    assertTrue(split.startPass(100001L, lag))
+    assertEquals(95001L, split.passTimestamp)
+  }
+
+  @Test def resumeInsidePass(): Unit = {
+    val split = HBaseRegionSplit(0, Bytes.toBytes("a"), Bytes.toBytes("z"))
+    assertArrayEquals(Bytes.toBytes("a"), split.nextRow)
+    split.startPass(100000L, lag)
+    split.lastRowKey = Bytes.toBytes("k")
+    //the snapshot keeps the bound and the position of the pass
+    val restored = split.copy()
+    assertEquals(95000L, restored.passTimestamp)
+    assertArrayEquals(Bytes.add(Bytes.toBytes("k"), Array[Byte](0)), restored.nextRow)
+    restored.finishPass()
+    assertEquals(95000L, restored.lastTimestamp)
+    assertArrayEquals(Bytes.toBytes("a"), restored.nextRow)
+  }
+
+}
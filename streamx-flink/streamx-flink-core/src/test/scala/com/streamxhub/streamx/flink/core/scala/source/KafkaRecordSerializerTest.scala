@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.source
+
+import org.apache.flink.api.common.typeinfo.{BasicTypeInfo, TypeInformation}
+import org.apache.flink.api.common.typeutils.base.StringSerializer
+import org.apache.flink.api.common.typeutils.base.array.BytePrimitiveArraySerializer
+import org.apache.flink.api.common.typeutils.{SerializerTestInstance, TypeSerializer}
+import org.apache.flink.core.memory.{DataInputDeserializer, DataOutputSerializer}
+import org.apache.flink.testutils.DeeplyEqualsChecker
+import org.apache.flink.testutils.DeeplyEqualsChecker.CustomEqualityChecker
+import org.apache.flink.streaming.api.scala._
+import org.apache.flink.streaming.connectors.kafka.KafkaDeserializationSchema
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.apache.kafka.common.header.internals.{RecordHeader, RecordHeaders}
+import org.apache.kafka.common.record.TimestampType
+import org.junit.Assert._
+import org.junit.Test
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.BiFunction
+import scala.collection.JavaConversions._
+
+/**
+ * KafkaRecordSerializer: the serializer contract, lazy decoding and records with only some of the fields.
+ */
+class KafkaRecordSerializerTest {
+
+  private[this] val serializer = new KafkaRecordSerializer[String](StringSerializer.INSTANCE)
+
+  /**
+   * KafkaRecord has no equals, compare the fields and the (decoded) value
+   */
+  private[this] val checker = new DeeplyEqualsChecker().withCustomCheck(
+    new BiFunction[AnyRef, AnyRef, java.lang.Boolean] {
+      override def apply(a: AnyRef, b: AnyRef): java.lang.Boolean = a.isInstanceOf[KafkaRecord[_]] && b.isInstanceOf[KafkaRecord[_]]
+    },
+    new CustomEqualityChecker {
+      override def check(a: AnyRef, b: AnyRef, checker: DeeplyEqualsChecker): Boolean = {
+        KafkaRecordSerializerTest.same(a.asInstanceOf[KafkaRecord[String]], b.asInstanceOf[KafkaRecord[String]])
+      }
+    }
+  )
+
+  private[this] def consumerRecord(offset: Long, key: String, value: String): ConsumerRecord[Array[Byte], Array[Byte]] = {
+    val headers = new RecordHeaders(Array[org.apache.kafka.common.header.Header](new RecordHeader("trace", "t-1".getBytes(StandardCharsets.UTF_8))))
+    new ConsumerRecord[Array[Byte], Array[Byte]]("orders", 3, offset, 1600000000000L + offset, TimestampType.CREATE_TIME, null, -1, -1,
+      if (key == null) null else key.getBytes(StandardCharsets.UTF_8),
+      if (value == null) null else value.getBytes(StandardCharsets.UTF_8),
+      headers)
+  }
+
+  private[this] def deserializer(fields: String): KafkaDeserializer[String] = {
+    new KafkaDeserializer[String](new KafkaStringDeserializationSchema, KafkaRecordFields(fields))
+  }
+
+  private[this] def roundTrip(record: KafkaRecord[String]): KafkaRecord[String] = {
+    val out = new DataOutputSerializer(64)
+    serializer.serialize(record, out)
+    serializer.deserialize(new DataInputDeserializer(out.getCopyOfBuffer))
+  }
+
+  @Test def serializerContract(): Unit = {
+    val all = deserializer("key,headers,metadata")
+    val keyOnly = deserializer("key")
+    val records = Array(
+      new KafkaRecord[String]("orders", 0, 1L, 2L, "k", "decoded"),
+      new KafkaRecord[String](null, -1L, -1L, -1L, null, "no metadata"),
+      new KafkaRecord[String]("orders", 1, 1L, 2L, "k", null),
+      all.deserialize(consumerRecord(10, "key-10", "value-10")),
+      all.deserialize(consumerRecord(11, null, "中文")),
+      keyOnly.deserialize(consumerRecord(12, "key-12", "value-12")),
+      deserializer("").deserialize(consumerRecord(13, "key-13", null))
+    )
+    new SerializerTestInstance[KafkaRecord[String]](checker, serializer, classOf[KafkaRecord[String]], -1, records: _*).testAll()
+  }
+
+  @Test def copyBeforeDecode(): Unit = {
+    val decoded = new AtomicInteger()
+    val value = Array[Byte](1, 2, 3)
+    val record = new KafkaRecord[Array[Byte]]("orders", 0, 1L, 2L, "k".getBytes(StandardCharsets.UTF_8), null, () => {
+      decoded.incrementAndGet()
+      value.clone()
+    })
+    val copy = new KafkaRecordSerializer[Array[Byte]](BytePrimitiveArraySerializer.INSTANCE).copy(record)
+    //copying doesn't decode, each copy decodes its own value
+    assertEquals(0, decoded.get())
+    assertArrayEquals(value, copy.value)
+    assertArrayEquals(value, record.value)
+    assertEquals(2, decoded.get())
+    assertNotSame(copy.value, record.value)
+    //decoded only once per record
+    copy.value
+    record.value
+    assertEquals(2, decoded.get())
+    //a decoded value is copied by the value serializer
+    val second = new KafkaRecordSerializer[Array[Byte]](BytePrimitiveArraySerializer.INSTANCE).copy(record)
+    assertEquals(2, decoded.get())
+    assertArrayEquals(value, second.value)
+    assertNotSame(record.value, second.value)
+  }
+
+  @Test def serializeForcesDecode(): Unit = {
+    val decoded = new AtomicInteger()
+    val record = new KafkaRecord[String]("orders", 0, 1L, 2L, null, null, () => {
+      decoded.incrementAndGet()
+      "lazy"
+    })
+    val restored = roundTrip(record)
+    assertEquals(1, decoded.get())
+    assertEquals("lazy", restored.value)
+    //the original record keeps the decoded value
+    assertEquals("lazy", record.value)
+    assertEquals(1, decoded.get())
+  }
+
+  @Test def decodeValueOnly(): Unit = {
+    val decoded = new AtomicInteger()
+    val lazySchema = new KafkaValueDeserializationSchema[String] {
+      override def deserializeValue(value: Array[Byte]): String = {
+        decoded.incrementAndGet()
+        val text = new String(value, StandardCharsets.UTF_8)
+        if (text == "corrupt") throw new IllegalStateException(text)
+        text
+      }
+
+      override def isEndOfStream(nextElement: String): Boolean = false
+
+      override def getProducedType: TypeInformation[String] = BasicTypeInfo.STRING_TYPE_INFO
+
+      override def deserialize(record: ConsumerRecord[Array[Byte], Array[Byte]]): String = throw new UnsupportedOperationException
+    }
+    val kafkaDeserializer = new KafkaDeserializer[String](lazySchema, KafkaRecordFields("key"))
+    val record = kafkaDeserializer.deserialize(consumerRecord(30, "key-30", "value-30"))
+    assertEquals(0, decoded.get())
+    assertEquals("value-30", record.value)
+    assertEquals(1, decoded.get())
+    //the error of a value-only schema is thrown where the value is accessed first
+    val corrupt = kafkaDeserializer.deserialize(consumerRecord(31, "key-31", "corrupt"))
+    assertEquals("key-31", corrupt.key)
+    try {
+      corrupt.value
+      fail()
+    } catch {
+      case e: IllegalStateException => assertEquals("corrupt", e.getMessage)
+    }
+  }
+
+  @Test def decodeRecordEagerly(): Unit = {
+    //a schema which reads more than the value gets the whole ConsumerRecord in the source
+    val recordSchema = new KafkaDeserializationSchema[String] {
+      override def deserialize(record: ConsumerRecord[Array[Byte], Array[Byte]]): String = {
+        s"${record.offset()}:${new String(record.value(), StandardCharsets.UTF_8)}"
+      }
+
+      override def isEndOfStream(nextElement: String): Boolean = false
+
+      override def getProducedType: TypeInformation[String] = BasicTypeInfo.STRING_TYPE_INFO
+    }
+    val record = new KafkaDeserializer[String](recordSchema, KafkaRecordFields("")).deserialize(consumerRecord(32, null, "value-32"))
+    assertNull(record.decoder)
+    assertEquals("32:value-32", record.value)
+  }
+
+  @Test def partialFields(): Unit = {
+    val source = consumerRecord(20, "key-20", "value-20")
+
+    val keyOnly = roundTrip(deserializer("key").deserialize(source))
+    assertNull(keyOnly.topic)
+    assertEquals(-1L, keyOnly.partition)
+    assertEquals(-1L, keyOnly.timestamp)
+    assertEquals(-1L, keyOnly.offset)
+    assertNull(keyOnly.headers)
+    assertEquals("key-20", keyOnly.key)
+    assertEquals("value-20", keyOnly.value)
+
+    val headersOnly = roundTrip(deserializer("headers").deserialize(source))
+    assertNull(headersOnly.topic)
+    assertNull(headersOnly.keyBytes)
+    assertNull(headersOnly.key)
+    assertEquals(List("trace"), headersOnly.headers.keySet().toList)
+    assertEquals("t-1", new String(headersOnly.headers.get("trace"), StandardCharsets.UTF_8))
+    assertEquals("value-20", headersOnly.value)
+
+    val metadataOnly = roundTrip(deserializer("metadata").deserialize(source))
+    assertEquals("orders", metadataOnly.topic)
+    assertEquals(3L, metadataOnly.partition)
+    assertEquals(1600000000020L, metadataOnly.timestamp)
+    assertEquals(20L, metadataOnly.offset)
+    assertNull(metadataOnly.keyBytes)
+    assertNull(metadataOnly.headers)
+
+    val none = roundTrip(deserializer("").deserialize(consumerRecord(21, "key-21", null)))
+    assertNull(none.topic)
+    assertNull(none.keyBytes)
+    assertNull(none.headers)
+    assertNull(none.value)
+  }
+
+  @Test def unknownField(): Unit = {
+    try {
+      KafkaRecordFields("key,offset")
+      fail()
+    } catch {
+      case e: IllegalArgumentException => assertTrue(e.getMessage.contains("offset"))
+    }
+  }
+
+}
+
+object KafkaRecordSerializerTest {
+
+  private def bytes(x: Array[Byte], y: Array[Byte]): Boolean = java.util.Arrays.equals(x, y)
+
+  def same(x: KafkaRecord[String], y: KafkaRecord[String]): Boolean = {
+    x.topic == y.topic && x.partition == y.partition && x.timestamp == y.timestamp && x.offset == y.offset &&
+      bytes(x.keyBytes, y.keyBytes) &&
+      ((x.headers == null && y.headers == null) ||
+        (x.headers != null && y.headers != null && x.headers.keySet() == y.headers.keySet() && x.headers.forall { case (k, v) => bytes(v, y.headers.get(k)) })) &&
+      x.value == y.value
+  }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.source
+
+import com.mongodb.client.MongoCollection
+import com.mongodb.client.model.{Filters, Updates}
+import com.streamxhub.streamx.common.util.MongoConfig
+import org.apache.flink.api.common.JobID
+import org.apache.flink.runtime.jobgraph.{JobGraph, SavepointRestoreSettings}
+import org.apache.flink.runtime.testutils.MiniClusterResourceConfiguration
+import org.apache.flink.streaming.api.functions.sink.SinkFunction
+import org.apache.flink.streaming.api.scala._
+import org.apache.flink.test.util.MiniClusterWithClientResource
+import org.bson.{BsonTimestamp, Document}
+import org.junit.Assert._
+import org.junit.rules.TemporaryFolder
+import org.junit.{After, Before, Rule, Test}
+
+import java.util.Properties
+import java.util.concurrent.{ConcurrentLinkedQueue, TimeUnit}
+import scala.annotation.meta.getter
+import scala.collection.JavaConversions._
+
+/**
+ * the change stream phase of the parallel MongoSource on a single node replica set:
+ * it starts at an operationTime not after the job was built, and resumes from the resume token in a savepoint.
+ * skipped when the mongod binary can not be downloaded, see EmbeddedMongo.
+ */
+class MongoChangeStreamTest {
+
+  @(Rule@getter)
+  val miniCluster = new MiniClusterWithClientResource(
+    new MiniClusterResourceConfiguration.Builder()
+      .setNumberTaskManagers(1)
+      .setNumberSlotsPerTaskManager(2)
+      .build()
+  )
+
+  @(Rule@getter)
+  val folder = new TemporaryFolder()
+
+  private[this] val collectionName = "orders"
+  private[this] var mongo: EmbeddedMongo = _
+
+  @Before def startMongo(): Unit = {
+    mongo = new EmbeddedMongo("rs0")
+    MongoChangeStreamTest.changes.clear()
+  }
+
+  @After def stopMongo(): Unit = {
+    if (mongo != null) mongo.close()
+  }
+
+  private[this] def collection: MongoCollection[Document] = mongo.client.getDatabase("test").getCollection(collectionName)
+
+  private[this] def source(): MongoParallelSourceFunction[String] = {
+    val prop = new Properties()
+    prop.put("mongodb." + MongoConfig.address, s"localhost:${mongo.port}")
+    prop.put("mongodb." + MongoConfig.database, "test")
+    prop.put("mongodb." + MongoConfig.source_batch_size, "2")
+    prop.put("mongodb." + MongoConfig.source_await_time, "100")
+    new MongoParallelSourceFunction[String](prop, collectionName, 1, null, MongoChangeStreamTest.toChange)
+  }
+
+  private[this] def jobGraph(function: MongoParallelSourceFunction[String]): JobGraph = {
+    val env = StreamExecutionEnvironment.getExecutionEnvironment
+    env.addSource(function)
+      .uid("mongo-source")
+      .setParallelism(1)
+      .addSink(new MongoChangeSink)
+      .uid("change-sink")
+      .setParallelism(1)
+    env.getJavaEnv.getStreamGraph("mongo-change-stream").getJobGraph
+  }
+
+  private[this] def submit(graph: JobGraph): JobID = miniCluster.getClusterClient.submitJob(graph).get(30, TimeUnit.SECONDS)
+
+  private[this] def cancel(jobId: JobID): Unit = miniCluster.getClusterClient.cancel(jobId).get(30, TimeUnit.SECONDS)
+
+  /**
+   * waits until the sink has received all the expected changes(and maybe more)
+   */
+  private[this] def await(expected: String*): List[String] = {
+    val deadline = System.currentTimeMillis() + 60000
+    while (!expected.forall(MongoChangeStreamTest.changes.contains) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100)
+    }
+    val changes = MongoChangeStreamTest.changes.toList
+    assertTrue(s"expected: $expected, received: $changes", expected.forall(changes.contains))
+    changes
+  }
+
+  @Test def operationTimeOnReplicaSet(): Unit = {
+    val startTime = System.currentTimeMillis()
+    val operationTime = MongoSplit.operationTime(mongo.client.getDatabase("test"), startTime)
+    assertTrue(operationTime > 0)
+    assertTrue(operationTime <= new BsonTimestamp((startTime / 1000).toInt, 0).getValue)
+  }
+
+  @Test def startAtOperationTime(): Unit = {
+    collection.insertOne(new Document("_id", "early"))
+    //the operationTime has a precision of seconds
+    Thread.sleep(1500)
+    val function = source()
+    //written after the job was built but before the snapshot: read by the snapshot and replayed by the change stream
+    collection.insertOne(new Document("_id", "late"))
+    val jobId = submit(jobGraph(function))
+    try {
+      await("read:early", "read:late", "insert:late")
+      collection.insertOne(new Document("_id", "next"))
+      val changes = await("insert:next")
+      assertFalse(changes.contains("insert:early"))
+      assertEquals(1, changes.count(_ == "insert:late"))
+    } finally {
+      cancel(jobId)
+    }
+  }
+
+  @Test def resumeFromSavepoint(): Unit = {
+    collection.insertOne(new Document("_id", "a1"))
+    collection.insertOne(new Document("_id", "a2"))
+    collection.insertOne(new Document("_id", "a3"))
+    val first = submit(jobGraph(source()))
+    val savepoint = try {
+      await("read:a1", "read:a2", "read:a3")
+      collection.insertOne(new Document("_id", "b1"))
+      collection.insertOne(new Document("_id", "b2"))
+      await("insert:b1", "insert:b2")
+      miniCluster.getClusterClient.triggerSavepoint(first, folder.newFolder("savepoint").toURI.toString).get(60, TimeUnit.SECONDS)
+    } finally {
+      cancel(first)
+    }
+
+    //changed while no job is running
+    val deadline = System.currentTimeMillis() + 30000
+    while (!miniCluster.getClusterClient.getJobStatus(first).get().isGloballyTerminalState && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100)
+    }
+    collection.insertOne(new Document("_id", "c1"))
+    collection.updateOne(Filters.eq("_id", "b1"), Updates.set("v", 1))
+    collection.deleteOne(Filters.eq("_id", "a1"))
+    MongoChangeStreamTest.changes.clear()
+
+    val graph = jobGraph(source())
+    graph.setSavepointRestoreSettings(SavepointRestoreSettings.forPath(savepoint))
+    val second = submit(graph)
+    try {
+      await("insert:c1", "update:b1", "delete:a1")
+      //the finished snapshot is not read again and the change stream continues right after the resume token
+      assertEquals(List("insert:c1", "update:b1", "delete:a1"), MongoChangeStreamTest.changes.toList)
+    } finally {
+      cancel(second)
+    }
+  }
+
+}
+
+object MongoChangeStreamTest {
+
+  val changes = new ConcurrentLinkedQueue[String]()
+
+  val toChange: (String, Document) => String = (operation, document) => s"$operation:${document.get("_id")}"
+
+}
+
+class MongoChangeSink extends SinkFunction[String] {
+  override def invoke(value: String, context: SinkFunction.Context[_]): Unit = MongoChangeStreamTest.changes.add(value)
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2019 The StreamX Project
+ * <p>
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.streamxhub.streamx.flink.core.scala.source
+
+import com.mongodb.MongoClient
+import com.mongodb.client.MongoCollection
+import com.mongodb.client.model.Sorts
+import com.streamxhub.streamx.common.util.MongoConfig
+import org.apache.flink.runtime.testutils.MiniClusterResourceConfiguration
+import org.apache.flink.streaming.api.functions.sink.SinkFunction
+import org.apache.flink.streaming.api.scala._
+import org.apache.flink.test.util.MiniClusterWithClientResource
+import org.bson.types.{Decimal128, ObjectId}
+import org.bson.{BsonTimestamp, Document}
+import org.junit.Assert._
+import org.junit.{After, Before, Rule, Test}
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.{Date, Properties}
+import scala.annotation.meta.getter
+import scala.collection.JavaConversions._
+
+/**
+ * the snapshot phase of the parallel MongoSource against an in-process mongod:
+ * every document is read exactly once, whatever the type of its _id.
+ * skipped when the mongod binary can not be downloaded, see EmbeddedMongo.
+ */
+class MongoParallelSourceTest {
+
+  @(Rule@getter)
+  val miniCluster = new MiniClusterWithClientResource(
+    new MiniClusterResourceConfiguration.Builder()
+      .setNumberTaskManagers(1)
+      .setNumberSlotsPerTaskManager(3)
+      .build()
+  )
+
+  private[this] val collectionName = "orders"
+  private[this] var mongo: EmbeddedMongo = _
+
+  @Before def startMongo(): Unit = {
+    mongo = new EmbeddedMongo()
+    MongoParallelSourceTest.ids.clear()
+  }
+
+  @After def stopMongo(): Unit = {
+    if (mongo != null) mongo.close()
+  }
+
+  private[this] def client: MongoClient = mongo.client
+
+  private[this] def collection: MongoCollection[Document] = client.getDatabase("test").getCollection(collectionName)
+
+  private[this] def properties(): Properties = {
+    val prop = new Properties()
+    prop.put("mongodb." + MongoConfig.address, s"localhost:${mongo.port}")
+    prop.put("mongodb." + MongoConfig.database, "test")
+    prop.put("mongodb." + MongoConfig.source_batch_size, "3")
+    prop.put("mongodb." + MongoConfig.source_change_stream, "false")
+    prop.put("mongodb." + MongoConfig.source_split_interval, "60")
+    prop
+  }
+
+  /**
+   * ObjectIds spread over a few hours, plus numbers, strings, documents and dates as _id.
+   */
+  private[this] def insertMixed(): List[String] = {
+    val start = System.currentTimeMillis() - 4 * 3600 * 1000L
+    val ids: List[AnyRef] =
+      (0 until 120).map(i => new ObjectId(new Date(start + i * 97 * 1000L))).toList :::
+        (1 to 10).map(i => Int.box(i)).toList :::
+        List(Long.box(11L), Double.box(11.5), Decimal128.parse("12.5")) :::
+        (1 to 7).map(i => s"key-$i").toList :::
+        List(new Document("k", 1), new Document("k", 2), new Date(start), Boolean.box(true))
+    ids.foreach(id => collection.insertOne(new Document("_id", id).append("v", 1)))
+    ids.map(MongoSplit.toJson)
+  }
+
+  @Test def readEveryDocumentOnce(): Unit = {
+    val expected = insertMixed()
+    val env = StreamExecutionEnvironment.getExecutionEnvironment
+    env.addSource(new MongoParallelSourceFunction[String](properties(), collectionName, 3, null, MongoParallelSourceTest.toId))
+      .setParallelism(3)
+      .addSink(new MongoIdSink)
+      .setParallelism(1)
+    env.execute("mongo-parallel-source")
+    val read = MongoParallelSourceTest.ids.toList
+    assertEquals(expected.size, read.size)
+    assertEquals(expected.toSet, read.toSet)
+  }
+
+  @Test def splitsDoNotOverlap(): Unit = {
+    insertMixed()
+    val splits = MongoSplit.create(3)
+    assertEquals(4, splits.size)
+    assertEquals(1, splits.count(!_.objectId))
+    //every ObjectId falls into the bucket of exactly one split
+    collection.find().iterator().map(_.get("_id")).foreach {
+      case x: ObjectId =>
+        val owners = splits.filter(_.objectId).filter { split =>
+          split.seek(x, 60)
+          split.bucket == (x.getTimestamp & 0xFFFFFFFFL) / 60
+        }
+        assertEquals(1, owners.size)
+      case _ =>
+    }
+  }
+
+  @Test def resumeAcrossTypes(): Unit = {
+    insertMixed()
+    val other = MongoSplit.create(3).filterNot(_.objectId).head
+    val all = collection.find(other.query(null, 60)).sort(Sorts.ascending("_id")).iterator().map(_.get("_id")).toList
+    assertEquals(24, all.size)
+    //resuming after any _id returns exactly the documents sorted after it, even if they have another BSON type
+    all.zipWithIndex.foreach { case (last, i) =>
+      other.lastId = MongoSplit.toJson(last)
+      val rest = collection.find(other.query(null, 60)).sort(Sorts.ascending("_id")).iterator().map(x => MongoSplit.toJson(x.get("_id"))).toList
+      assertEquals(all.drop(i + 1).map(MongoSplit.toJson), rest)
+    }
+  }
+
+  @Test def operationTimeIsNotAfterStart(): Unit = {
+    val startTime = System.currentTimeMillis() - 60000
+    val database = client.getDatabase("test")
+    val operationTime = MongoSplit.operationTime(database, startTime)
+    //a standalone mongod has no operationTime, the change stream then starts when it's opened
+    assertTrue(operationTime == 0 || operationTime <= new BsonTimestamp((startTime / 1000).toInt, 0).getValue)
+  }
+
+}
+
+object MongoParallelSourceTest {
+
+  val ids = new ConcurrentLinkedQueue[String]()
+
+  val toId: (String, Document) => String = (_, document) => MongoSplit.toJson(document.get("_id"))
+
+}
+
+class MongoIdSink extends SinkFunction[String] {
+  override def invoke(value: String, context: SinkFunction.Context[_]): Unit = MongoParallelSourceTest.ids.add(value)
+}